@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the FEC benchmarks with the GC profiler and prints a summary of the
+ * throughput in MB/s and the heap allocated per operation. The arguments
+ * are passed to JMH, so the set of benchmarks and parameters can be narrowed
+ * down, for example:
+ * 
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.args="FECCodeBenchmark.decode -p codec=pure8 -p kn=10,14"
+ * 
+ * To compare a change against a baseline, run the same set before and after
+ * the change and save the outputs, "-rf json -rff file.json" also writes the
+ * full JMH results.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class FECBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions).addProfiler(GCProfiler.class);
+        if (cmdOptions.getIncludes().isEmpty()) {
+            options.include(FECCodeBenchmark.class.getSimpleName()).include(
+                    StreamingFECBenchmark.class.getSimpleName());
+        }
+
+        Collection<RunResult> results = new Runner(options.build()).run();
+
+        System.out.println();
+        System.out.printf("%-40s %-60s %10s %12s%n", "Benchmark", "Parameters", "MB/s", "B/op");
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            String name = params.getBenchmark();
+            name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+            StringBuilder paramString = new StringBuilder();
+            for (String key : params.getParamsKeys()) {
+                paramString.append(key).append('=').append(params.getParam(key)).append(' ');
+            }
+            double mbs = result.getPrimaryResult().getScore() * getBytesPerOp(params) / 1e6;
+            System.out.printf("%-40s %-60s %10.1f %12s%n", name, paramString, mbs, getAllocation(result));
+        }
+    }
+
+    /**
+     * @return The bytes of data handled by one operation, the source block for
+     *         the codes, the packet for the addMul kernel and the file for the
+     *         streaming.
+     */
+    static long getBytesPerOp(BenchmarkParams params) {
+        String fileSize = params.getParam("fileSize");
+        if (fileSize != null) {
+            return Long.parseLong(fileSize);
+        }
+        String length = params.getParam("length");
+        if (length != null) {
+            return Long.parseLong(length);
+        }
+        return (long) getK(params.getParam("kn")) * Integer.parseInt(params.getParam("packetSize"));
+    }
+
+    private static String getAllocation(RunResult result) {
+        for (Map.Entry<String, Result> entry : result.getSecondaryResults().entrySet()) {
+            if (entry.getKey().endsWith("gc.alloc.rate.norm")) {
+                return String.format("%.1f", entry.getValue().getScore());
+            }
+        }
+        return "-";
+    }
+
+    /**
+     * @return k of the "k,n" parameter.
+     */
+    static int getK(String kn) {
+        return Integer.parseInt(kn.substring(0, kn.indexOf(',')).trim());
+    }
+
+    /**
+     * @return n of the "k,n" parameter.
+     */
+    static int getN(String kn) {
+        return Integer.parseInt(kn.substring(kn.indexOf(',') + 1).trim());
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.onionnetworks.fec.CauchyCode;
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECMath;
+import com.onionnetworks.fec.Native8Code;
+import com.onionnetworks.fec.Pure16Code;
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Encode and decode throughput of the FEC codes for one block of k packets.
+ * The score is in blocks per second, FECBenchmarks converts it to MB/s of
+ * source data. The addMul benchmark measures the table lookup
+ * multiply-accumulate loop of the 8 bit codes alone, one packet per
+ * operation.
+ * 
+ * The native codes need the fec8 library, without it their runs fail and
+ * the rest of the benchmarks are still run.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class FECCodeBenchmark {
+
+    /**
+     * The code and one encoded block.
+     */
+    @State(Scope.Thread)
+    public static class Code {
+        @Param({ "pure8", "pure16", "cauchy8", "native8" })
+        public String codec;
+
+        @Param({ "5,7", "10,14", "16,20", "32,48" })
+        public String kn;
+
+        @Param({ "1024", "16384", "131072", "1048576" })
+        public int packetSize;
+
+        int k;
+        int n;
+        FECCode fec;
+        Buffer source[];
+        Buffer repair[];
+        int repairIndex[];
+        Buffer received[];
+        int receivedIndex[];
+
+        @Setup
+        public void setup() {
+            k = FECBenchmarks.getK(kn);
+            n = FECBenchmarks.getN(kn);
+            fec = createCode(codec, k, n);
+
+            byte sourceData[] = new byte[k * packetSize];
+            new Random(0).nextBytes(sourceData);
+            source = new Buffer[k];
+            for (int i = 0; i < k; i++) {
+                source[i] = new Buffer(sourceData, i * packetSize, packetSize);
+            }
+
+            // only the repair packets are encoded in the benchmark
+            byte repairData[] = new byte[(n - k) * packetSize];
+            repair = new Buffer[n - k];
+            repairIndex = new int[n - k];
+            for (int i = 0; i < n - k; i++) {
+                repair[i] = new Buffer(repairData, i * packetSize, packetSize);
+                repairIndex[i] = k + i;
+            }
+            fec.encode(source, repair, repairIndex);
+
+            byte receivedData[] = sourceData.clone();
+            received = new Buffer[k];
+            receivedIndex = new int[k];
+            for (int i = 0; i < k; i++) {
+                received[i] = new Buffer(receivedData, i * packetSize, packetSize);
+            }
+        }
+    }
+
+    /**
+     * The number of lost data packets of the decoded block, none, one, half
+     * or all of the n-k that the code can recover.
+     */
+    @State(Scope.Thread)
+    public static class Erasures {
+        @Param({ "none", "one", "half", "all" })
+        public String erasures;
+
+        int getCount(int parities) {
+            if ("none".equals(erasures)) {
+                return 0;
+            }
+            if ("one".equals(erasures)) {
+                return 1;
+            }
+            if ("half".equals(erasures)) {
+                return Math.max(1, parities / 2);
+            }
+            return parities;
+        }
+    }
+
+    /**
+     * The packets of one multiply-accumulate of the table loop.
+     */
+    @State(Scope.Thread)
+    public static class Kernel {
+        @Param({ "1024", "10240", "131072" })
+        public int length;
+
+        FECMath fecMath;
+        byte src[];
+        byte dst[];
+
+        @Setup
+        public void setup() {
+            fecMath = new FECMath(8);
+            src = new byte[length];
+            dst = new byte[length];
+            new Random(0).nextBytes(src);
+        }
+    }
+
+    static FECCode createCode(String codec, int k, int n) {
+        if ("pure8".equals(codec)) {
+            return new PureCode(k, n);
+        }
+        if ("pure16".equals(codec)) {
+            return new Pure16Code(k, n);
+        }
+        if ("cauchy8".equals(codec)) {
+            return new CauchyCode(k, n);
+        }
+        if ("native8".equals(codec)) {
+            return new Native8Code(k, n);
+        }
+        throw new IllegalArgumentException("Unknown codec: " + codec);
+    }
+
+    @Benchmark
+    public Buffer[] encode(Code code) {
+        code.fec.encode(code.source, code.repair, code.repairIndex);
+        return code.repair;
+    }
+
+    @Benchmark
+    public Buffer[] decode(Code code, Erasures erasures) {
+        int lost = erasures.getCount(code.n - code.k);
+        // the first data packets are replaced by repair packets, the rest
+        // are still in place from the previous round as decoding only
+        // overwrites the lost ones.
+        for (int i = 0; i < code.k; i++) {
+            if (i < lost) {
+                Buffer from = code.repair[i];
+                Buffer to = code.received[i];
+                System.arraycopy(from.b, from.off, to.b, to.off, to.len);
+                code.receivedIndex[i] = code.k + i;
+            } else {
+                code.receivedIndex[i] = i;
+            }
+        }
+        code.fec.decode(code.received, code.receivedIndex);
+        return code.received;
+    }
+
+    @Benchmark
+    public byte[] addMul(Kernel kernel) {
+        kernel.fecMath.addMul(kernel.dst, 0, kernel.src, 0, (byte) 0x8e, kernel.length);
+        return kernel.dst;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Striping and reconstruction throughput of StreamingFEC for a file kept in
+ * memory, using the code chosen by the default FECCodeFactory. The score is
+ * in files per second, FECBenchmarks converts it to MB/s of file data.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class StreamingFECBenchmark {
+
+    /**
+     * The file and its stripes.
+     */
+    @State(Scope.Benchmark)
+    public static class Data {
+        @Param({ "5,7", "10,14", "16,20", "32,48" })
+        public String kn;
+
+        @Param({ "1024", "10240", "131072", "1048576" })
+        public int packetSize;
+
+        @Param({ "67108864" })
+        public int fileSize;
+
+        @Param({ "1", "4" })
+        public int threads;
+
+        int k;
+        int n;
+        byte file[];
+        byte stripes[][];
+
+        @Setup
+        public void setup() throws IOException {
+            k = FECBenchmarks.getK(kn);
+            n = FECBenchmarks.getN(kn);
+            file = new byte[fileSize];
+            new Random(0).nextBytes(file);
+
+            ByteArrayOutputStream out[] = new ByteArrayOutputStream[n];
+            for (int i = 0; i < n; i++) {
+                out[i] = new ByteArrayOutputStream();
+            }
+            StreamingFEC.stripe(new ByteArrayInputStream(file), out, packetSize, k, n, fileSize);
+            stripes = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                stripes[i] = out[i].toByteArray();
+            }
+        }
+    }
+
+    /**
+     * The number of missing data stripes, none, one or all of the n-k that
+     * can be recovered.
+     */
+    @State(Scope.Benchmark)
+    public static class Erasures {
+        @Param({ "none", "one", "all" })
+        public String erasures;
+
+        int getCount(int parities) {
+            if ("none".equals(erasures)) {
+                return 0;
+            }
+            if ("one".equals(erasures)) {
+                return 1;
+            }
+            return parities;
+        }
+    }
+
+    /**
+     * Discards the written data.
+     */
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        public void write(int b) {
+        }
+
+        public void write(byte b[], int off, int len) {
+        }
+    };
+
+    @Benchmark
+    public long stripe(Data data) throws IOException {
+        OutputStream out[] = new OutputStream[data.n];
+        for (int i = 0; i < data.n; i++) {
+            out[i] = NULL_OUTPUT;
+        }
+        return StreamingFEC.stripe(new ByteArrayInputStream(data.file), out, data.packetSize, data.k, data.n,
+                data.fileSize, data.threads);
+    }
+
+    @Benchmark
+    public long construct(Data data, Erasures erasures) throws IOException {
+        int lost = erasures.getCount(data.n - data.k);
+        InputStream in[] = new InputStream[data.n];
+        for (int i = lost; i < data.n; i++) {
+            in[i] = new ByteArrayInputStream(data.stripes[i]);
+        }
+        return StreamingFEC.construct(in, NULL_OUTPUT, data.packetSize, data.k, data.n, data.fileSize,
+                data.threads, null);
+    }
+}
@@ -0,0 +1,302 @@
+package com.onionnetworks.fec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Pure Java Cauchy Reed-Solomon code that encodes and decodes with XORs
+ * only.  The code works in GF(2^8) like PureCode, but every field element of
+ * the encode and decode matrices is expanded into an 8x8 bit matrix and
+ * every packet is split into 8 sub-packets.  A multiplication of a packet
+ * with an element then becomes XORing the source sub-packets selected by
+ * the bit matrix into the destination sub-packets, so there are no table
+ * lookups per byte.  When the packet length is a multiple of 64 the packets
+ * are copied to long arrays of the scratch and XORed a long at a time.
+ *
+ * The encode matrix is a systematic Cauchy matrix, any k of the n packets
+ * recover the data like with PureCode.  Its rows and columns are scaled so
+ * that the bit matrices have as few ones as possible, the first repair
+ * packet is the plain XOR of the source packets.
+ *
+ * The packet length must be a multiple of 8 and n at most 256.  The packets
+ * are not compatible with the other codes, data encoded with this code must
+ * also be decoded with it.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class CauchyCode extends PureCode {
+
+    // the bits of the field elements and the sub-packets per packet
+    public static final int W = 8;
+
+    // BIT_ROWS[e][r] has bit c set if bit r of e*2^c is set, the rows of the
+    // bit matrix of the element e.
+    protected static final int[][] BIT_ROWS = createBitRows();
+
+    public CauchyCode(int k, int n) {
+        super(k,n,createCauchyMatrix(k,n));
+    }
+
+    /**
+     * Encodes the repair packets one at a time, the bit matrix kernel needs
+     * whole packets so the tiling of PureCode is not used.
+     */
+    protected void encode(byte[][] src, int[] srcOff, byte[][] repair,
+                          int[] repairOff, int[] index, int packetLength,
+                          FECScratch scratch) {
+        if (packetLength % (W*8) != 0) {
+            for (int i=0;i<repair.length;i++) {
+                encode(src,srcOff,repair[i],repairOff[i],index[i],
+                       packetLength);
+            }
+            return;
+        }
+
+        int words = packetLength/8;
+        long[] repairWords = scratch.longs(k,words);
+        boolean loaded = false;
+        for (int i=0;i<repair.length;i++) {
+            if (index[i] < k) { // < k, systematic so direct copy.
+                System.arraycopy(src[index[i]],srcOff[index[i]],repair[i],
+                                 repairOff[i],packetLength);
+                continue;
+            }
+            if (!loaded) {
+                for (int j=0;j<k;j++) {
+                    getLongs(src[j],srcOff[j],scratch.longs(j,words),words);
+                }
+                loaded = true;
+            }
+            int pos = index[i]*k;
+            Arrays.fill(repairWords,0,words,0);
+            for (int j=0;j<k;j++) {
+                addMul(repairWords,scratch.longs(j,words),
+                       (byte) encMatrix[pos+j],words);
+            }
+            putLongs(repairWords,repair[i],repairOff[i],words);
+        }
+    }
+
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index, 
+                          int packetLength, boolean shuffled,
+                          FECScratch scratch) {
+        if (packetLength % (W*8) != 0) {
+            super.decode(pkts,pktsOff,index,packetLength,shuffled,scratch);
+            return;
+        }
+        if (!shuffled) {
+            shuffle(pkts, pktsOff, index, k);
+        }
+
+        char[] decMatrix = getDecodeMatrix(index,scratch);
+        int words = packetLength/8;
+        long[] rowWords = scratch.longs(k,words);
+        boolean loaded = false;
+        for (int row=0; row<k; row++) {
+            if (index[row] < k) {
+                continue;
+            }
+            if (!loaded) {
+                // all the packets are copied before any is overwritten.
+                for (int col=0;col<k;col++) {
+                    getLongs(pkts[col],pktsOff[col],scratch.longs(col,words),
+                             words);
+                }
+                loaded = true;
+            }
+            Arrays.fill(rowWords,0,words,0);
+            for (int col=0 ; col<k ; col++) {
+                addMul(rowWords,scratch.longs(col,words),
+                       (byte) decMatrix[row*k + col],words);
+            }
+            putLongs(rowWords,pkts[row],pktsOff[row],words);
+        }
+        for (int row=0;row < k;row++) {
+            index[row] = row;
+        }
+    }
+
+    /**
+     * dst[] = dst[] + c * src[] for whole packets in long arrays of words
+     * longs, the packet length being a multiple of 64 bytes.
+     */
+    protected void addMul(long[] dst, long[] src, byte c, int words) {
+        if (c == 0) {
+            return;
+        }
+        int subWords = words / W;
+        int[] rows = BIT_ROWS[c & 0xff];
+        for (int r=0, d=0; r<W; r++, d+=subWords) {
+            for (int mask=rows[r], s=0; mask != 0; mask >>>= 1,
+                     s+=subWords) {
+                if ((mask & 1) != 0) {
+                    for (int i=0;i<subWords;i++) {
+                        dst[d+i] ^= src[s+i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the packet into the longs, the byte order doesn't matter as 
+     * long as it is the same both ways, so the native one is used.
+     */
+    private static void getLongs(byte[] b, int off, long[] words, int len) {
+        ByteBuffer.wrap(b,off,len*8).order(ByteOrder.nativeOrder()).
+            asLongBuffer().get(words,0,len);
+    }
+
+    private static void putLongs(long[] words, byte[] b, int off, int len) {
+        ByteBuffer.wrap(b,off,len*8).order(ByteOrder.nativeOrder()).
+            asLongBuffer().put(words,0,len);
+    }
+
+    /**
+     * dst[] = dst[] + c * src[] for whole packets, the sub-packets of src
+     * selected by the bit matrix of c are XORed into the sub-packets of dst.
+     */
+    protected void addMul(byte[] dst, int dstPos, byte[] src, int srcPos,
+                          byte c, int len) {
+        if (c == 0) {
+            return;
+        }
+        int subLen = getSubPacketLength(len);
+        int[] rows = BIT_ROWS[c & 0xff];
+        for (int r=0, d=dstPos; r<W; r++, d+=subLen) {
+            for (int mask=rows[r], s=srcPos; mask != 0; mask >>>= 1,
+                     s+=subLen) {
+                if ((mask & 1) != 0) {
+                    xor(dst,d,src,s,subLen);
+                }
+            }
+        }
+    }
+
+    protected void addMul(ByteBuffer dst, int dstPos, ByteBuffer src,
+                          int srcPos, byte c, int len) {
+        if (c == 0) {
+            return;
+        }
+        int subLen = getSubPacketLength(len);
+        int[] rows = BIT_ROWS[c & 0xff];
+        for (int r=0, d=dstPos; r<W; r++, d+=subLen) {
+            for (int mask=rows[r], s=srcPos; mask != 0; mask >>>= 1,
+                     s+=subLen) {
+                if ((mask & 1) != 0) {
+                    for (int i=0;i<subLen;i++) {
+                        dst.put(d+i, (byte) (dst.get(d+i) ^ src.get(s+i)));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * dst[] ^= src[], used for the packet lengths that are not a multiple
+     * of 64 bytes.
+     */
+    protected static final void xor(byte[] dst, int dstPos, byte[] src,
+                                    int srcPos, int len) {
+        for (int i=0;i<len;i++) {
+            dst[dstPos+i] ^= src[srcPos+i];
+        }
+    }
+
+    protected static final int getSubPacketLength(int packetLength) {
+        if (packetLength % W != 0) {
+            throw new IllegalArgumentException("For Cauchy codes, the "+
+                                               "packet length must be a "+
+                                               "multiple of "+W+".");
+        }
+        return packetLength / W;
+    }
+
+    /**
+     * @return The number of ones in the bit matrix of the element e, the
+     * number of sub-packet XORs needed to multiply a packet by e.
+     */
+    protected static final int getOnes(char e) {
+        int ones = 0;
+        for (int r=0;r<W;r++) {
+            ones += Integer.bitCount(BIT_ROWS[e][r]);
+        }
+        return ones;
+    }
+
+    /**
+     * The systematic encode matrix, the identity on top of the n-k rows of
+     * the Cauchy matrix 1/(x_i+y_j) with x_i = i and y_j = n-k+j.  Scaling
+     * the columns or the rows of the Cauchy part keeps every k*k sub matrix
+     * invertible, so the columns are scaled to make the first row all ones
+     * and the other rows by the element that gives the fewest ones.
+     */
+    protected static char[] createCauchyMatrix(int k, int n) {
+        if (k < 1 || n < k || n > 256) {
+            throw new IllegalArgumentException
+                ("Invalid parameters n="+n+",k="+k+" for Cauchy code");
+        }
+        int m = n - k;
+        char[] matrix = FECMath.createGFMatrix(n,k);
+        for (int i=0;i<k;i++) {
+            matrix[i*k+i] = 1;
+        }
+        for (int i=0;i<m;i++) {
+            for (int j=0;j<k;j++) {
+                matrix[(k+i)*k+j] = fecMath.inverse[i ^ (m+j)];
+            }
+        }
+        if (m == 0) {
+            return matrix;
+        }
+
+        for (int j=0;j<k;j++) {
+            char div = fecMath.inverse[matrix[k*k+j]];
+            for (int i=0;i<m;i++) {
+                int pos = (k+i)*k+j;
+                matrix[pos] = fecMath.mul(matrix[pos],div);
+            }
+        }
+
+        for (int i=1;i<m;i++) {
+            int row = (k+i)*k;
+            char bestDiv = 1;
+            int bestOnes = Integer.MAX_VALUE;
+            for (int j=0;j<k;j++) {
+                char div = fecMath.inverse[matrix[row+j]];
+                int ones = 0;
+                for (int l=0;l<k;l++) {
+                    ones += getOnes(fecMath.mul(matrix[row+l],div));
+                }
+                if (ones < bestOnes) {
+                    bestOnes = ones;
+                    bestDiv = div;
+                }
+            }
+            for (int l=0;l<k;l++) {
+                matrix[row+l] = fecMath.mul(matrix[row+l],bestDiv);
+            }
+        }
+        return matrix;
+    }
+
+    private static int[][] createBitRows() {
+        int[][] bitRows = new int[256][W];
+        for (int e=0;e<256;e++) {
+            for (int c=0;c<W;c++) {
+                int product = fecMath.gf_mul_table[e][1 << c];
+                for (int r=0;r<W;r++) {
+                    if ((product & (1 << r)) != 0) {
+                        bitRows[e][r] |= 1 << c;
+                    }
+                }
+            }
+        }
+        return bitRows;
+    }
+
+    public String toString() {
+        return new String("CauchyCode[k="+k+",n="+n+"]");
+    }
+}
@@ -4,7 +4,7 @@ import java.util.*;
 import java.io.*;
 import java.lang.reflect.*;
 
-//import com.onionnetworks.util.Tuple;
+import com.onionnetworks.util.Tuple;
 
 /**
  * This is the default FECCodeFactory that wraps all of the FECCode 
@@ -20,6 +20,16 @@ import java.lang.reflect.*;
  * let me know because I worked my ass of to provide this for you, so do me
  * a favor and at least let me know what you're using this for.
  *
+ * The created codes are kept in a bounded cache keyed by (k,n), so asking
+ * for the same code again doesn't rebuild the encode matrix.  The size of
+ * the cache is set by the property "com.onionnetworks.fec.codecachesize".
+ *
+ * If the property "com.onionnetworks.fec.calibrate" is true, the first time
+ * a (k,n) is asked for all the codes of the right width are timed and the
+ * fastest one that produces the same packets as the first one is used
+ * instead of the first one.  The results are kept per (k,n) and are
+ * available from getCalibrations().
+ *
  * (c) Copyright 2001 Onion Networks
  * (c) Copyright 2000 OpenCola
  *
@@ -29,11 +39,19 @@ import java.lang.reflect.*;
 public class DefaultFECCodeFactory extends FECCodeFactory {
 
     public static final int DEFAULT_CACHE_TIME = 2*60*1000;
+    public static final int DEFAULT_CACHE_SIZE = 32;
+    public static final int DEFAULT_CALIBRATE_PACKET_SIZE = 10240;
+    public static final int DEFAULT_CALIBRATE_MILLIS = 50;
 
-    //protected TimedSoftHashMap codeCache = new HashMap();
+    protected FECCache<Tuple,FECCode> codeCache;
     protected ArrayList<Constructor<?>> eightBitCodes = new ArrayList<Constructor<?>>();
     protected ArrayList<Constructor<?>> sixteenBitCodes = new ArrayList<Constructor<?>>();
     protected Properties fecProperties;
+    protected boolean calibrate;
+    protected int calibratePacketSize;
+    protected int calibrateMillis;
+    protected Map<Tuple,FECCalibration> calibrations =
+        Collections.synchronizedMap(new LinkedHashMap<Tuple,FECCalibration>());
 
     public DefaultFECCodeFactory() {
         // Load in the properties file.
@@ -72,6 +90,19 @@ public class DefaultFECCodeFactory extends FECCodeFactory {
                 System.out.println(t.getMessage());
             }
         }
+
+        int cacheSize = getIntProperty("com.onionnetworks.fec.codecachesize",
+                                       DEFAULT_CACHE_SIZE);
+        codeCache = new FECCache<Tuple,FECCode>(cacheSize);
+
+        calibrate = "true".equalsIgnoreCase
+            (getProperty("com.onionnetworks.fec.calibrate"));
+        calibratePacketSize = getIntProperty
+            ("com.onionnetworks.fec.calibrate.packetsize",
+             DEFAULT_CALIBRATE_PACKET_SIZE);
+        calibrateMillis = getIntProperty
+            ("com.onionnetworks.fec.calibrate.millis",
+             DEFAULT_CALIBRATE_MILLIS);
     }
 
     /**
@@ -86,44 +117,133 @@ public class DefaultFECCodeFactory extends FECCodeFactory {
         return result;
     }
 
+    /**
+     * @return The property as an int, or def if it is not set or not a
+     * number.
+     */
+    protected int getIntProperty(String key, int def) {
+        String prop = getProperty(key);
+        if (prop != null) {
+            try {
+                return Integer.parseInt(prop.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid value for "+key+": "+prop);
+            }
+        }
+        return def;
+    }
+
     /**
      * If you're only asking for an 8 bit code we will NOT give you a 16 bit
      * one.
+     *
+     * The codes are immutable after creation so the same instance is handed
+     * out to all the callers asking for the same k and n.
      */
-    public synchronized FECCode createFECCode(int k, int n) {
-        Integer K = new Integer(k);
-        Integer N = new Integer(n);
-//        Tuple t = new Tuple(K,N);
+    public FECCode createFECCode(int k, int n) {
+        Tuple t = new Tuple(Integer.valueOf(k),Integer.valueOf(n));
 
         // See if there is a cached code.
-        FECCode result = null; //(FECCode) codeCache.get(t);
+        FECCode result = codeCache.get(t);
         if (result == null) {
-            if (k < 1 || k > 65536 || n < k || n > 65536) {
-                throw new IllegalArgumentException
-                    ("k and n must be between 1 and 65536 and n must not be "+
-                     "smaller than k: k="+k+",n="+n);
+            result = createUncachedFECCode(k, n);
+            if (result != null) {
+                codeCache.put(t,result);
             }
+        } 
+        return result;
+    }
 
-            Iterator it;
-            if (n <= 256 && !eightBitCodes.isEmpty()) {
-                it = eightBitCodes.iterator();
-            } else {
-                it = sixteenBitCodes.iterator();
+    /**
+     * Creates a new code using the first constructor that succeeds, or the
+     * calibrated one if calibration is on, bypassing the code cache.
+     */
+    protected synchronized FECCode createUncachedFECCode(int k, int n) {
+        Integer K = new Integer(k);
+        Integer N = new Integer(n);
+
+        if (k < 1 || k > 65536 || n < k || n > 65536) {
+            throw new IllegalArgumentException
+                ("k and n must be between 1 and 65536 and n must not be "+
+                 "smaller than k: k="+k+",n="+n);
+        }
+
+        FECCode result = null;
+        List<Constructor<?>> codes;
+        if (n <= 256 && !eightBitCodes.isEmpty()) {
+            codes = eightBitCodes;
+        } else {
+            codes = sixteenBitCodes;
+        }
+
+        if (calibrate) {
+            Tuple t = new Tuple(K,N);
+            FECCalibration cal = calibrations.get(t);
+            if (cal == null) {
+                cal = new FECCalibration(k,n,calibratePacketSize,
+                                         calibrateMillis,codes);
+                calibrations.put(t,cal);
+                System.out.println(cal);
             }
-            while (it.hasNext()) {
+            if (cal.getChosenConstructor() != null) {
                 try {
-                    result = (FECCode) ((Constructor) it.next()).newInstance
+                    return (FECCode) cal.getChosenConstructor().newInstance
                         (new Object[] {K, N});
-                    break;
                 } catch (Throwable doh) {
                     doh.printStackTrace();
                 }
             }
-                        
-            //if (result != null) {
-            //    codeCache.put(t,result,DEFAULT_CACHE_TIME);
-            // }
-        } 
+        }
+
+        Iterator it = codes.iterator();
+        while (it.hasNext()) {
+            try {
+                result = (FECCode) ((Constructor) it.next()).newInstance
+                    (new Object[] {K, N});
+                break;
+            } catch (Throwable doh) {
+                doh.printStackTrace();
+            }
+        }
         return result;
     }
+
+    /**
+     * @return The calibrations done so far in the order they were done,
+     * empty if calibration is off.
+     */
+    public List<FECCalibration> getCalibrations() {
+        synchronized (calibrations) {
+            return new ArrayList<FECCalibration>(calibrations.values());
+        }
+    }
+
+    /**
+     * @return The calibration of the (k,n) code, null if it has not been
+     * created with calibration on.
+     */
+    public FECCalibration getCalibration(int k, int n) {
+        return calibrations.get(new Tuple(Integer.valueOf(k),Integer.valueOf(n)));
+    }
+
+    /**
+     * @return The number of createFECCode calls served from the cache.
+     */
+    public long getCacheHits() {
+        return codeCache.getHits();
+    }
+
+    /**
+     * @return The number of createFECCode calls that had to create a code.
+     */
+    public long getCacheMisses() {
+        return codeCache.getMisses();
+    }
+
+    /**
+     * Drops all the cached codes.
+     */
+    public void clearCache() {
+        codeCache.clear();
+    }
 }
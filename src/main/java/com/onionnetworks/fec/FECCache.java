@@ -0,0 +1,94 @@
+package com.onionnetworks.fec;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small bounded LRU cache that is safe to share between threads.  It is
+ * used to keep FECCode instances around in the DefaultFECCodeFactory and
+ * to keep the inverted decode matrices around in the PureCode so that they
+ * don't have to be recomputed for every block of a stream.
+ *
+ * The cache counts the hits and misses of the get() calls so that the
+ * effectiveness of the caching can be monitored.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class FECCache<K,V> {
+
+    protected final int maxSize;
+    protected final Map<K,V> map;
+
+    protected final AtomicLong hits = new AtomicLong();
+    protected final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSize The maximum number of entries, when the cache is full
+     * the least recently used entry is dropped.
+     */
+    @SuppressWarnings("serial")
+    public FECCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: "
+                                               +maxSize);
+        }
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<K,V>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+                return size() > FECCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return The cached value or null if there is none.
+     */
+    public V get(K key) {
+        V value;
+        synchronized (map) {
+            value = map.get(key);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        synchronized (map) {
+            map.put(key, value);
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public String toString() {
+        return "FECCache[size="+size()+",max="+maxSize+",hits="+getHits()+
+            ",misses="+getMisses()+"]";
+    }
+}
@@ -0,0 +1,290 @@
+package com.onionnetworks.fec;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.onionnetworks.util.Buffer;
+
+/**
+ * The result of timing the registered codes for one (k,n) on this host,
+ * used by the DefaultFECCodeFactory when calibration is turned on.
+ *
+ * Every code is timed encoding the n-k repair packets of a random block and
+ * decoding the block with as many data packets lost as the code can
+ * recover.  Only the codes that produce exactly the same repair packets as
+ * the first code that can be created are candidates, the stripes don't
+ * record the code that wrote them so the choice must not change the data.
+ * The fastest candidate for one encode and one decode is chosen.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class FECCalibration {
+
+    private final int k;
+    private final int n;
+    private final int packetSize;
+    private final List<Result> results = new ArrayList<Result>();
+    private Result chosen;
+    private Constructor<?> chosenConstructor;
+
+    /**
+     * Times the codes, takes about 3*millis per code as both encoding and
+     * decoding are first run for millis/2 to let the JIT compile them.
+     *
+     * @param codes The constructors of the codes in the order of preference.
+     */
+    FECCalibration(int k, int n, int packetSize, long millis,
+                   List<Constructor<?>> codes) {
+        this.k = k;
+        this.n = n;
+        this.packetSize = packetSize;
+
+        byte[] source = new byte[k*packetSize];
+        new java.util.Random(k*31+n).nextBytes(source);
+        byte[] reference = null;
+        String referenceName = null;
+
+        for (Constructor<?> con : codes) {
+            String name = con.getDeclaringClass().getName();
+            name = name.substring(name.lastIndexOf('.')+1);
+            FECCode code;
+            try {
+                code = (FECCode) con.newInstance(new Object[] {
+                        Integer.valueOf(k), Integer.valueOf(n)});
+            } catch (Throwable t) {
+                if (t.getCause() != null) {
+                    t = t.getCause();
+                }
+                results.add(new Result(name, 0, 0, false, "failed: "+t));
+                continue;
+            }
+
+            Result result;
+            try {
+                Block block = new Block(code, source);
+                if (reference == null) {
+                    reference = block.parity.clone();
+                    referenceName = name;
+                }
+                if (!Arrays.equals(reference, block.parity)) {
+                    result = new Result(name, 0, 0, false,
+                                        "different packets than "+
+                                        referenceName);
+                } else if (n == k) {
+                    result = new Result(name, 0, 0, true,
+                                        "no repair packets to time");
+                } else {
+                    block.timeEncode(millis/2);
+                    double encodeRate = block.timeEncode(millis);
+                    block.timeDecode(millis/2);
+                    double decodeRate = block.timeDecode(millis);
+                    if (!Arrays.equals(source, block.received)) {
+                        result = new Result(name, encodeRate, decodeRate,
+                                            false, "decoding failed");
+                    } else {
+                        result = new Result(name, encodeRate, decodeRate,
+                                            true, null);
+                    }
+                }
+            } catch (Throwable t) {
+                result = new Result(name, 0, 0, false, "failed: "+t);
+            }
+            results.add(result);
+            if (result.usable && (chosen == null ||
+                                  result.getRate() > chosen.getRate())) {
+                chosen = result;
+                chosenConstructor = con;
+            }
+        }
+
+        for (Result result : results) {
+            if (result.usable && result.reason == null) {
+                result.reason = result == chosen ? "fastest" : "slower";
+            }
+        }
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * @return The timings of all the codes tried, in the order of the keys.
+     */
+    public List<Result> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @return The chosen code, null if none of the codes could be created.
+     */
+    public Result getChosen() {
+        return chosen;
+    }
+
+    Constructor<?> getChosenConstructor() {
+        return chosenConstructor;
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer("FECCalibration[k="+k+",n="+n+
+                                           ",packetSize="+packetSize+
+                                           ",chosen="+(chosen == null ?
+                                                       null : chosen.name)+
+                                           "]");
+        for (Result result : results) {
+            sb.append("\n  ").append(result);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The timing of one code, the rates are in MB/s of source data.
+     */
+    public static class Result {
+        private final String name;
+        private final double encodeRate;
+        private final double decodeRate;
+        private final boolean usable;
+        private String reason;
+
+        Result(String name, double encodeRate, double decodeRate,
+               boolean usable, String reason) {
+            this.name = name;
+            this.encodeRate = encodeRate;
+            this.decodeRate = decodeRate;
+            this.usable = usable;
+            this.reason = reason;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getEncodeRate() {
+            return encodeRate;
+        }
+
+        public double getDecodeRate() {
+            return decodeRate;
+        }
+
+        /**
+         * @return The rate of one encode and one decode, MB/s.
+         */
+        public double getRate() {
+            if (encodeRate <= 0 || decodeRate <= 0) {
+                return 0;
+            }
+            return 1 / (1 / encodeRate + 1 / decodeRate);
+        }
+
+        /**
+         * @return false if the code can't be used in place of the first
+         * one.
+         */
+        public boolean isUsable() {
+            return usable;
+        }
+
+        /**
+         * @return Why the code was chosen or not.
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        public String toString() {
+            return name+": encode "+Math.round(encodeRate)+" MB/s, decode "+
+                Math.round(decodeRate)+" MB/s, "+reason;
+        }
+    }
+
+    /**
+     * One encoded block and the received packets for decoding it.
+     */
+    private class Block {
+        final FECCode code;
+        final Buffer[] src;
+        final Buffer[] repair;
+        final int[] repairIndex;
+        final byte[] parity;
+        final byte[] received;
+        final Buffer[] receivedBufs;
+        final int[] receivedIndex;
+        final int lost;
+
+        Block(FECCode code, byte[] source) {
+            this.code = code;
+            src = new Buffer[k];
+            for (int i=0;i<k;i++) {
+                src[i] = new Buffer(source,i*packetSize,packetSize);
+            }
+            parity = new byte[(n-k)*packetSize];
+            repair = new Buffer[n-k];
+            repairIndex = new int[n-k];
+            for (int i=0;i<n-k;i++) {
+                repair[i] = new Buffer(parity,i*packetSize,packetSize);
+                repairIndex[i] = k+i;
+            }
+            if (n > k) {
+                code.encode(src,repair,repairIndex);
+            }
+            lost = Math.min(k,n-k);
+            received = source.clone();
+            receivedBufs = new Buffer[k];
+            receivedIndex = new int[k];
+            for (int i=0;i<k;i++) {
+                receivedBufs[i] = new Buffer(received,i*packetSize,packetSize);
+            }
+        }
+
+        double timeEncode(long millis) {
+            long blocks = 0;
+            long start = System.nanoTime();
+            long end = start + millis*1000000L;
+            long now;
+            do {
+                code.encode(src,repair,repairIndex);
+                blocks++;
+            } while ((now = System.nanoTime()) < end);
+            return getRate(blocks,now-start);
+        }
+
+        double timeDecode(long millis) {
+            long blocks = 0;
+            long start = System.nanoTime();
+            long end = start + millis*1000000L;
+            long now;
+            do {
+                for (int i=0;i<k;i++) {
+                    if (i < lost) {
+                        System.arraycopy(parity,i*packetSize,received,
+                                         i*packetSize,packetSize);
+                        receivedIndex[i] = k+i;
+                    } else {
+                        receivedIndex[i] = i;
+                    }
+                }
+                code.decode(receivedBufs,receivedIndex);
+                blocks++;
+            } while ((now = System.nanoTime()) < end);
+            return getRate(blocks,now-start);
+        }
+
+        private double getRate(long blocks, long nanos) {
+            return blocks * (double) k * packetSize / (nanos / 1e3);
+        }
+    }
+}
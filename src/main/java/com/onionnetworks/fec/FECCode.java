@@ -1,5 +1,7 @@
 package com.onionnetworks.fec;
 
+import java.nio.ByteBuffer;
+
 import com.onionnetworks.util.Buffer;
 
 /**
@@ -28,6 +30,14 @@ import com.onionnetworks.util.Buffer;
 public abstract class FECCode {
 
     protected int k,n;
+
+    // the work space used when the caller doesn't supply one
+    private static final ThreadLocal<FECScratch> threadScratch =
+        new ThreadLocal<FECScratch>() {
+            protected FECScratch initialValue() {
+                return new FECScratch();
+            }
+        };
     
     /**
      * Construct a new FECCode given <code>k</code> and <code>n</code>
@@ -41,6 +51,20 @@ public abstract class FECCode {
         this.n = n;
     }
 
+    /**
+     * @return The number of source packets.
+     */
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return The number of packets the source packets are encoded to.
+     */
+    public int getN() {
+        return n;
+    }
+
     /**
      * This method takes an array of source packets and generates a number
      * of repair packets from them.  This method could have taken in only
@@ -109,6 +133,37 @@ public abstract class FECCode {
                                    int[] index, int packetLength, 
                                    boolean shuffled);
 
+    /**
+     * Same as encode() above, but the temporary buffers needed while
+     * encoding are taken from the given scratch.  Implementations that
+     * allocate per call should override this, the default simply ignores
+     * the scratch.
+     */
+    protected void encode(byte[][] src, int[] srcOff, byte[][] repair,
+                          int[] repairOff, int[] index, int packetLength,
+                          FECScratch scratch) {
+        encode(src,srcOff,repair,repairOff,index,packetLength);
+    }
+
+    /**
+     * Same as decode() above, but the temporary buffers needed while
+     * decoding are taken from the given scratch.  Implementations that
+     * allocate per call should override this, the default simply ignores
+     * the scratch.
+     */
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index,
+                          int packetLength, boolean shuffled,
+                          FECScratch scratch) {
+        decode(pkts,pktsOff,index,packetLength,shuffled);
+    }
+
+    /**
+     * @return The scratch of the calling thread.
+     */
+    protected static final FECScratch getScratch() {
+        return threadScratch.get();
+    }
+
     /**
      * This method takes an array of source packets and generates a number
      * of repair packets from them.  This method could have taken in only
@@ -131,10 +186,20 @@ public abstract class FECCode {
      * 
      */
     public void encode(Buffer[] src, Buffer[] repair, int[] index) {
-        byte[][] srcBufs = new byte[src.length][];
-        int[] srcOffs = new int[src.length];
-        byte[][] repairBufs = new byte[repair.length][];
-        int[] repairOffs = new int[repair.length];
+        encode(src,repair,index,getScratch());
+    }
+
+    /**
+     * Same as encode(Buffer[],Buffer[],int[]), but uses the given scratch
+     * for the temporary buffers.  Once the scratch has grown to the block 
+     * size the call doesn't allocate anything.
+     */
+    public void encode(Buffer[] src, Buffer[] repair, int[] index, 
+                       FECScratch scratch) {
+        byte[][] srcBufs = scratch.srcBufs(src.length);
+        int[] srcOffs = scratch.srcOffs(src.length);
+        byte[][] repairBufs = scratch.repairBufs(repair.length);
+        int[] repairOffs = scratch.repairOffs(repair.length);
         for (int i=0;i<srcBufs.length;i++) {
             srcBufs[i] = src[i].b;
             srcOffs[i] = src[i].off;
@@ -144,7 +209,12 @@ public abstract class FECCode {
             repairOffs[i] = repair[i].off;
         }
 
-        encode(srcBufs,srcOffs,repairBufs,repairOffs,index,src[0].len);
+        try {
+            encode(srcBufs,srcOffs,repairBufs,repairOffs,index,src[0].len,
+                   scratch);
+        } finally {
+            scratch.release();
+        }
     }
 
     /*
@@ -188,20 +258,243 @@ public abstract class FECCode {
      * 
      */
     public void decode(Buffer[] pkts, int[] index) {
+        decode(pkts,index,getScratch());
+    }
+
+    /**
+     * Same as decode(Buffer[],int[]), but uses the given scratch for the
+     * temporary buffers.  Once the scratch has grown to the block size the
+     * call doesn't allocate anything.
+     */
+    public void decode(Buffer[] pkts, int[] index, FECScratch scratch) {
         // Must pre-shuffle so that no future shuffles bring the byte[]'s
         // out of sync with the Buffer[]'s.  We use copyShuffle so that 
         // the Buffer[]'s don't have their references shuffled around and
         // therefore we can have the Buffer[]'s wrapping one large byte[]
         // that will be decoded with all of the data in order in that block.
-        copyShuffle(pkts,index,k);
+        copyShuffle(pkts,index,k,scratch);
 
-        byte[][] bufs = new byte[pkts.length][];
-        int[] offs = new int[pkts.length];
+        byte[][] bufs = scratch.srcBufs(pkts.length);
+        int[] offs = scratch.srcOffs(pkts.length);
         for (int i=0;i<bufs.length;i++) {
             bufs[i] = pkts[i].b;
             offs[i] = pkts[i].off;
         }
-        decode(bufs,offs,index,pkts[0].len,true);
+        try {
+            decode(bufs,offs,index,pkts[0].len,true,scratch);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Same as encode(Buffer[],Buffer[],int[]) but for ByteBuffers, heap or
+     * direct.  The packet of each buffer is from its position to its limit
+     * and all the packets must be of the same length.  The positions and
+     * limits of the buffers are not changed.
+     *
+     * Buffers backed by an accessible array are encoded in place like the
+     * Buffers, the others are handed to encode(ByteBuffer[],ByteBuffer[],
+     * int[],int,FECScratch) of the implementation.
+     */
+    public void encode(ByteBuffer[] src, ByteBuffer[] repair, int[] index) {
+        encode(src,repair,index,getScratch());
+    }
+
+    public void encode(ByteBuffer[] src, ByteBuffer[] repair, int[] index,
+                       FECScratch scratch) {
+        int packetLength = src[0].remaining();
+        if (!hasArrays(src) || !hasArrays(repair)) {
+            encode(src,repair,index,packetLength,scratch);
+            return;
+        }
+        byte[][] srcBufs = scratch.srcBufs(src.length);
+        int[] srcOffs = scratch.srcOffs(src.length);
+        byte[][] repairBufs = scratch.repairBufs(repair.length);
+        int[] repairOffs = scratch.repairOffs(repair.length);
+        for (int i=0;i<srcBufs.length;i++) {
+            srcBufs[i] = src[i].array();
+            srcOffs[i] = src[i].arrayOffset()+src[i].position();
+        }
+        for (int i=0;i<repairBufs.length;i++) {
+            repairBufs[i] = repair[i].array();
+            repairOffs[i] = repair[i].arrayOffset()+repair[i].position();
+        }
+        try {
+            encode(srcBufs,srcOffs,repairBufs,repairOffs,index,packetLength,
+                   scratch);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Same as decode(Buffer[],int[]) but for ByteBuffers, heap or direct.
+     * The packet of each buffer is from its position to its limit and all
+     * the packets must be of the same length.  The positions and limits of
+     * the buffers are not changed, the data is moved like with the Buffers.
+     *
+     * Buffers backed by an accessible array are decoded in place like the
+     * Buffers, the others are handed to decode(ByteBuffer[],int[],int,
+     * FECScratch) of the implementation.
+     */
+    public void decode(ByteBuffer[] pkts, int[] index) {
+        decode(pkts,index,getScratch());
+    }
+
+    public void decode(ByteBuffer[] pkts, int[] index, FECScratch scratch) {
+        int packetLength = pkts[0].remaining();
+        copyShuffle(pkts,index,k,scratch);
+        if (!hasArrays(pkts)) {
+            decode(pkts,index,packetLength,scratch);
+            return;
+        }
+        byte[][] bufs = scratch.srcBufs(pkts.length);
+        int[] offs = scratch.srcOffs(pkts.length);
+        for (int i=0;i<bufs.length;i++) {
+            bufs[i] = pkts[i].array();
+            offs[i] = pkts[i].arrayOffset()+pkts[i].position();
+        }
+        try {
+            decode(bufs,offs,index,packetLength,true,scratch);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Encodes ByteBuffers that are not all backed by an array, the packets
+     * start at the positions of the buffers.  The default implementation
+     * copies the packets to the heap and back, pure Java implementations
+     * should override this to work on the buffers directly.
+     */
+    protected void encode(ByteBuffer[] src, ByteBuffer[] repair, int[] index,
+                          int packetLength, FECScratch scratch) {
+        byte[][] srcBufs = scratch.srcBufs(src.length);
+        int[] srcOffs = scratch.srcOffs(src.length);
+        byte[][] repairBufs = scratch.repairBufs(repair.length);
+        int[] repairOffs = scratch.repairOffs(repair.length);
+        for (int i=0;i<srcBufs.length;i++) {
+            srcBufs[i] = scratch.heap(i,packetLength);
+            srcOffs[i] = 0;
+            getBytes(src[i],src[i].position(),srcBufs[i],0,packetLength);
+        }
+        for (int i=0;i<repairBufs.length;i++) {
+            repairBufs[i] = scratch.heap(srcBufs.length+i,packetLength);
+            repairOffs[i] = 0;
+        }
+        try {
+            encode(srcBufs,srcOffs,repairBufs,repairOffs,index,packetLength,
+                   scratch);
+            for (int i=0;i<repairBufs.length;i++) {
+                putBytes(repairBufs[i],0,repair[i],repair[i].position(),
+                         packetLength);
+            }
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Decodes shuffled ByteBuffers that are not all backed by an array, the
+     * packets start at the positions of the buffers.  The default 
+     * implementation copies the packets to the heap and the decoded ones
+     * back, pure Java implementations should override this to work on the
+     * buffers directly.
+     */
+    protected void decode(ByteBuffer[] pkts, int[] index, int packetLength,
+                          FECScratch scratch) {
+        byte[][] bufs = scratch.srcBufs(pkts.length);
+        int[] offs = scratch.srcOffs(pkts.length);
+        int[] lost = scratch.rows(pkts.length);
+        for (int i=0;i<bufs.length;i++) {
+            bufs[i] = scratch.heap(i,packetLength);
+            offs[i] = 0;
+            lost[i] = index[i];
+            getBytes(pkts[i],pkts[i].position(),bufs[i],0,packetLength);
+        }
+        try {
+            decode(bufs,offs,index,packetLength,true,scratch);
+            for (int i=0;i<bufs.length;i++) {
+                if (lost[i] >= k) {
+                    putBytes(bufs[i],0,pkts[i],pkts[i].position(),
+                             packetLength);
+                }
+            }
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * @return true if all the buffers are backed by an accessible array.
+     */
+    protected static final boolean hasArrays(ByteBuffer[] bufs) {
+        for (int i=0;i<bufs.length;i++) {
+            if (!bufs[i].hasArray()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies len bytes starting from pos of the buffer into dst, the
+     * position of the buffer is not changed.
+     */
+    protected static final void getBytes(ByteBuffer buf, int pos, byte[] dst,
+                                         int dstOff, int len) {
+        int oldPos = buf.position();
+        buf.position(pos);
+        buf.get(dst,dstOff,len);
+        buf.position(oldPos);
+    }
+
+    /**
+     * Copies len bytes from src to the buffer starting from pos, the 
+     * position of the buffer is not changed.
+     */
+    protected static final void putBytes(byte[] src, int srcOff, 
+                                         ByteBuffer buf, int pos, int len) {
+        int oldPos = buf.position();
+        buf.position(pos);
+        buf.put(src,srcOff,len);
+        buf.position(oldPos);
+    }
+
+    /**
+     * Same as copyShuffle(Buffer[],int[],int) for ByteBuffers.
+     */
+    protected static final void copyShuffle(ByteBuffer[] pkts, int index[],
+                                            int k, FECScratch scratch) {
+        byte[] b = null;
+        int len = pkts[0].remaining();
+        for (int i = 0;i < k ;) {
+            if (index[i] >= k || index[i] == i) {
+                i++;
+            } else {
+                // put pkts in the right position (first check for conflicts).
+                int c = index[i];
+                
+                if (index[c] == c) {
+                    throw new IllegalArgumentException
+                        ("Shuffle Error: Duplicate indexes at "+i);
+                }
+                // swap(index[c],index[i])
+                int tmp = index[i];
+                index[i] = index[c];
+                index[c] = tmp;
+
+                // swap(pkts[c],pkts[i])
+                if (b == null) {
+                    b = scratch.shuffle(2*len);
+                }
+                getBytes(pkts[i],pkts[i].position(),b,0,len);
+                getBytes(pkts[c],pkts[c].position(),b,len,len);
+                putBytes(b,len,pkts[i],pkts[i].position(),len);
+                putBytes(b,0,pkts[c],pkts[c].position(),len);
+            }
+        }
     }
 
     /**
@@ -210,7 +503,13 @@ public abstract class FECCode {
      * Buffer[].
      */
     protected static final void copyShuffle(Buffer[] pkts, int index[], int k){
+        copyShuffle(pkts,index,k,getScratch());
+    }
+
+    protected static final void copyShuffle(Buffer[] pkts, int index[], int k,
+                                            FECScratch scratch) {
         byte[] b = null;
+        int len = pkts[0].len;
         for (int i = 0;i < k ;) {
             if (index[i] >= k || index[i] == i) {
                 i++;
@@ -229,12 +528,12 @@ public abstract class FECCode {
 
                 // swap(pkts[c],pkts[i])
                 if (b == null) {
-                    b = new byte[pkts[0].len];
+                    b = scratch.shuffle(len);
                 }
-                System.arraycopy(pkts[i].b,pkts[i].off,b,0,b.length);
+                System.arraycopy(pkts[i].b,pkts[i].off,b,0,len);
                 System.arraycopy(pkts[c].b,pkts[c].off,pkts[i].b,pkts[i].off,
-                                 b.length);
-                System.arraycopy(b,0,pkts[c].b,pkts[c].off,b.length);
+                                 len);
+                System.arraycopy(b,0,pkts[c].b,pkts[c].off,len);
             }
         }
     }
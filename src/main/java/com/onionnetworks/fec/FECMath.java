@@ -1,5 +1,7 @@
 package com.onionnetworks.fec;
 
+import java.nio.ByteBuffer;
+
 import com.onionnetworks.util.Util;
 
 /**
@@ -354,6 +356,25 @@ public class FECMath {
         }
     }
 
+    /*
+     * addMul() for ByteBuffers, used for the direct buffers that have no
+     * array to work on.  The positions are absolute and the positions and
+     * limits of the buffers are not changed.
+     */
+    public final void addMul(ByteBuffer dst, int dstPos, ByteBuffer src,
+                             int srcPos, byte c, int len) {
+        // nop, optimize
+        if (c == 0) {
+            return;
+        }
+
+        char[] gf_mulc = gf_mul_table[c & 0xff];
+        for (int i = 0; i < len; i++) {
+            dst.put(dstPos + i, (byte) (dst.get(dstPos + i) ^ 
+                                        gf_mulc[src.get(srcPos + i) & 0xff]));
+        }
+    }
+
     /*
      * computes C = AB where A is n*k, B is k*m, C is n*m
      */
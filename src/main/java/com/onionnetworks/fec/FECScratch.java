@@ -0,0 +1,224 @@
+package com.onionnetworks.fec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable work space for encoding and decoding.  The FECCode keeps one of
+ * these per thread, but a caller can also pass its own to the encode and
+ * decode methods.  After the first block of a stream has been handled the
+ * buffers have grown to the needed size and encoding or decoding further
+ * blocks of the same size doesn't allocate anything.
+ *
+ * A scratch may only be used by one thread at a time.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class FECScratch {
+
+    private byte[][] srcBufs = new byte[0][];
+    private int[] srcOffs = new int[0];
+    private byte[][] repairBufs = new byte[0][];
+    private int[] repairOffs = new int[0];
+    private int[] parity = new int[0];
+    private byte[] shuffle = new byte[0];
+
+    private byte[][] packets = new byte[0][];
+    private ByteBuffer[] packetBuffers = new ByteBuffer[0];
+    private byte[][] heap = new byte[0][];
+    private long[][] longs = new long[0][];
+    private int[] rows = new int[0];
+    private byte[][] packetRows = new byte[0][];
+    private char[][] chars = new char[0][];
+    private char[][] charRows = new char[0][];
+    private char[][] decodedRows = new char[0][];
+    private int[] charOffs = new int[0];
+
+    // key used for looking up the decode matrix cache
+    final PureCode.IndexKey probe = new PureCode.IndexKey();
+
+    public FECScratch() {
+    }
+
+    /**
+     * The arrays passed on to the byte[][] based methods have to be of the
+     * exact length, so these are reallocated if the length changes.
+     */
+    final byte[][] srcBufs(int len) {
+        if (srcBufs.length != len) {
+            srcBufs = new byte[len][];
+            srcOffs = new int[len];
+        }
+        return srcBufs;
+    }
+
+    final int[] srcOffs(int len) {
+        srcBufs(len);
+        return srcOffs;
+    }
+
+    final byte[][] repairBufs(int len) {
+        if (repairBufs.length != len) {
+            repairBufs = new byte[len][];
+            repairOffs = new int[len];
+        }
+        return repairBufs;
+    }
+
+    final int[] repairOffs(int len) {
+        repairBufs(len);
+        return repairOffs;
+    }
+
+    final int[] parity(int len) {
+        if (parity.length < len) {
+            parity = new int[len];
+        }
+        return parity;
+    }
+
+    final byte[] shuffle(int len) {
+        if (shuffle.length < len) {
+            shuffle = new byte[len];
+        }
+        return shuffle;
+    }
+
+    /**
+     * @return The i:th packet buffer of at least len bytes, the contents are
+     * undefined.
+     */
+    final byte[] packet(int i, int len) {
+        if (packets.length <= i) {
+            byte[][] tmp = new byte[i+1][];
+            System.arraycopy(packets, 0, tmp, 0, packets.length);
+            packets = tmp;
+        }
+        if (packets[i] == null || packets[i].length < len) {
+            packets[i] = new byte[len];
+        }
+        return packets[i];
+    }
+
+    /**
+     * @return The i:th packet buffer of packet() wrapped in a ByteBuffer.
+     */
+    final ByteBuffer packetBuffer(int i, int len) {
+        byte[] b = packet(i, len);
+        if (packetBuffers.length <= i) {
+            ByteBuffer[] tmp = new ByteBuffer[packets.length];
+            System.arraycopy(packetBuffers, 0, tmp, 0, packetBuffers.length);
+            packetBuffers = tmp;
+        }
+        if (packetBuffers[i] == null || packetBuffers[i].array() != b) {
+            packetBuffers[i] = ByteBuffer.wrap(b);
+        }
+        return packetBuffers[i];
+    }
+
+    /**
+     * @return The i:th heap copy buffer of at least len bytes, used when
+     * ByteBuffers without an array are passed to a code that only works on
+     * byte arrays.  The contents are undefined.
+     */
+    final byte[] heap(int i, int len) {
+        if (heap.length <= i) {
+            byte[][] tmp = new byte[i+1][];
+            System.arraycopy(heap, 0, tmp, 0, heap.length);
+            heap = tmp;
+        }
+        if (heap[i] == null || heap[i].length < len) {
+            heap[i] = new byte[len];
+        }
+        return heap[i];
+    }
+
+    /**
+     * @return The i:th long buffer of at least len longs, the contents are
+     * undefined.
+     */
+    final long[] longs(int i, int len) {
+        if (longs.length <= i) {
+            long[][] tmp = new long[i+1][];
+            System.arraycopy(longs, 0, tmp, 0, longs.length);
+            longs = tmp;
+        }
+        if (longs[i] == null || longs[i].length < len) {
+            longs[i] = new long[len];
+        }
+        return longs[i];
+    }
+
+    final int[] rows(int len) {
+        if (rows.length < len) {
+            rows = new int[len];
+        }
+        return rows;
+    }
+
+    /**
+     * @return An array of len null references for packet buffers.
+     */
+    final byte[][] packetRows(int len) {
+        if (packetRows.length < len) {
+            packetRows = new byte[len][];
+        }
+        java.util.Arrays.fill(packetRows, null);
+        return packetRows;
+    }
+
+    /**
+     * @return The i:th char buffer of at least len chars, the contents are
+     * undefined.
+     */
+    final char[] chars(int i, int len) {
+        if (chars.length <= i) {
+            char[][] tmp = new char[i+1][];
+            System.arraycopy(chars, 0, tmp, 0, chars.length);
+            chars = tmp;
+        }
+        if (chars[i] == null || chars[i].length < len) {
+            chars[i] = new char[len];
+        }
+        return chars[i];
+    }
+
+    /**
+     * @return An array of len null references for char buffers, the length
+     * of the array is exactly len.
+     */
+    final char[][] charRows(int len) {
+        if (charRows.length != len) {
+            charRows = new char[len][];
+        }
+        java.util.Arrays.fill(charRows, null);
+        return charRows;
+    }
+
+    /**
+     * @return An array of len null references for the decoded char buffers,
+     * the length of the array is exactly len.
+     */
+    final char[][] decodedRows(int len) {
+        if (decodedRows.length != len) {
+            decodedRows = new char[len][];
+        }
+        java.util.Arrays.fill(decodedRows, null);
+        return decodedRows;
+    }
+
+    final int[] charOffs(int len) {
+        if (charOffs.length < len) {
+            charOffs = new int[len];
+        }
+        return charOffs;
+    }
+
+    /**
+     * Drops the references to the caller's buffers so that they are not kept
+     * alive by the scratch.
+     */
+    final void release() {
+        java.util.Arrays.fill(srcBufs, null);
+        java.util.Arrays.fill(repairBufs, null);
+    }
+}
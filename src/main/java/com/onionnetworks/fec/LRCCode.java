@@ -0,0 +1,210 @@
+package com.onionnetworks.fec;
+
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Locally repairable code, the k source packets are split into groups that
+ * each get a local repair packet, the XOR of the packets of the group, and
+ * the rest of the n packets are global repair packets computed like with a
+ * Reed-Solomon code.  A single lost packet of a group can be rebuilt from
+ * the other packets of the group instead of k packets, which is what makes
+ * repairing a lost stripe cheap.
+ *
+ * The packet indexes are the k source packets, then the local repair packet
+ * of each group and then the global repair packets.  The groups are
+ * consecutive source packets of about equal size.  Unlike the
+ * Reed-Solomon codes not every set of k packets can be decoded, for example
+ * two local repair packets of the same group can't be used, so
+ * selectIndexes() should be used to pick the packets to decode from.
+ *
+ * The global repair packets are rows of a Cauchy matrix, so with one local
+ * repair packet per group any g+1 lost packets can be recovered, g being
+ * the number of global repair packets, and many patterns of more.
+ *
+ * The packets are not compatible with the other codes and the code can't be
+ * created by the DefaultFECCodeFactory, as the number of groups is needed.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class LRCCode extends PureCode {
+
+    protected final int groups;
+    // the first source packet of each group, and k at the end
+    protected final int[] groupStart;
+
+    /**
+     * @param k The number of source packets.
+     * @param n The number of packets.
+     * @param groups The number of local groups, 1..k, at most n-k.
+     */
+    public LRCCode(int k, int n, int groups) {
+        super(k,n,createLRCMatrix(k,n,groups));
+        this.groups = groups;
+        groupStart = new int[groups+1];
+        for (int j=0;j<=groups;j++) {
+            groupStart[j] = getGroupStart(k,groups,j);
+        }
+    }
+
+    /**
+     * @return The number of local groups.
+     */
+    public int getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return The number of global repair packets.
+     */
+    public int getGlobalParities() {
+        return n - k - groups;
+    }
+
+    /**
+     * @return The group of the packet, -1 for the global repair packets.
+     */
+    public int getGroup(int index) {
+        if (index < 0 || index >= n) {
+            throw new IllegalArgumentException("Invalid index: "+index);
+        }
+        if (index >= k+groups) {
+            return -1;
+        }
+        if (index >= k) {
+            return index - k;
+        }
+        int j = 0;
+        while (groupStart[j+1] <= index) {
+            j++;
+        }
+        return j;
+    }
+
+    /**
+     * @return The indexes of the other packets of the group that are XORed
+     * to rebuild the packet in increasing order, or null for the global
+     * repair packets that need k packets.
+     */
+    public int[] getRepairIndexes(int index) {
+        int group = getGroup(index);
+        if (group < 0) {
+            return null;
+        }
+        int start = groupStart[group];
+        int end = groupStart[group+1];
+        int[] result = new int[end-start];
+        int pos = 0;
+        for (int i=start;i<end;i++) {
+            if (i != index) {
+                result[pos++] = i;
+            }
+        }
+        if (index != k+group) {
+            result[pos++] = k+group;
+        }
+        return result;
+    }
+
+    /**
+     * Rebuilds a packet from the other packets of its group.
+     *
+     * @param pkts The packets of getRepairIndexes() in the same order.
+     * @param repair Where to write the rebuilt packet.
+     */
+    public void repairLocal(Buffer[] pkts, Buffer repair) {
+        java.util.Arrays.fill(repair.b,repair.off,repair.off+repair.len,
+                              (byte) 0);
+        for (int i=0;i<pkts.length;i++) {
+            if (pkts[i].len != repair.len) {
+                throw new IllegalArgumentException("Packet lengths differ.");
+            }
+            addMul(repair.b,repair.off,pkts[i].b,pkts[i].off,(byte) 1,
+                   repair.len);
+        }
+    }
+
+    /**
+     * Chooses k packets to decode from, preferring the lower indexes. A
+     * packet is skipped if its row of the encode matrix depends on the rows
+     * already chosen.
+     *
+     * @param present Which packets are available, of length n.
+     * @return The indexes of the chosen packets in increasing order, or null
+     * if the available packets are not enough to decode.
+     */
+    public int[] selectIndexes(boolean[] present) {
+        int[] result = new int[k];
+        int chosen = 0;
+        // the chosen rows reduced to echelon form, pivots[r] the pivot column
+        char[] rows = new char[k*k];
+        int[] pivots = new int[k];
+        char[] row = new char[k];
+        for (int i=0;i<n && chosen < k;i++) {
+            if (!present[i]) {
+                continue;
+            }
+            System.arraycopy(encMatrix,i*k,row,0,k);
+            for (int r=0;r<chosen;r++) {
+                char c = row[pivots[r]];
+                if (c != 0) {
+                    for (int col=0;col<k;col++) {
+                        row[col] ^= fecMath.mul(c,rows[r*k+col]);
+                    }
+                }
+            }
+            int pivot = 0;
+            while (pivot < k && row[pivot] == 0) {
+                pivot++;
+            }
+            if (pivot == k) {
+                continue;
+            }
+            char inv = fecMath.inverse[row[pivot]];
+            for (int col=0;col<k;col++) {
+                rows[chosen*k+col] = fecMath.mul(row[col],inv);
+            }
+            pivots[chosen] = pivot;
+            result[chosen++] = i;
+        }
+        return chosen == k ? result : null;
+    }
+
+    private static int getGroupStart(int k, int groups, int group) {
+        return (int) ((long) group * k / groups);
+    }
+
+    /**
+     * The systematic encode matrix, the identity, a row of ones over the
+     * columns of each group and the rows of the Cauchy matrix 1/(x_i+y_j)
+     * with x_i = i and y_j = g+j for the g global repair packets.
+     */
+    protected static char[] createLRCMatrix(int k, int n, int groups) {
+        if (k < 1 || n > 256 || groups < 1 || groups > k ||
+            k+groups > n) {
+            throw new IllegalArgumentException
+                ("Invalid parameters n="+n+",k="+k+",groups="+groups+
+                 " for LRC code");
+        }
+        int g = n - k - groups;
+        char[] matrix = FECMath.createGFMatrix(n,k);
+        for (int i=0;i<k;i++) {
+            matrix[i*k+i] = 1;
+        }
+        for (int j=0;j<groups;j++) {
+            int end = getGroupStart(k,groups,j+1);
+            for (int i=getGroupStart(k,groups,j);i<end;i++) {
+                matrix[(k+j)*k+i] = 1;
+            }
+        }
+        for (int i=0;i<g;i++) {
+            for (int j=0;j<k;j++) {
+                matrix[(k+groups+i)*k+j] = fecMath.inverse[i ^ (g+j)];
+            }
+        }
+        return matrix;
+    }
+
+    public String toString() {
+        return new String("LRCCode[k="+k+",n="+n+",groups="+groups+"]");
+    }
+}
@@ -1,5 +1,7 @@
 package com.onionnetworks.fec;
 
+import java.nio.ByteBuffer;
+
 import com.onionnetworks.util.Util;
 /**
  * This class, along with FECMath, provides the implementation of the pure
@@ -37,16 +39,23 @@ public class Pure16Code extends PureCode {
      */
     protected void encode(byte[][] src, int[] srcOff, byte[][] repair, 
                           int[] repairOff, int[] index, int packetLength) {
+        encode(src,srcOff,repair,repairOff,index,packetLength,getScratch());
+    }
+
+    protected void encode(byte[][] src, int[] srcOff, byte[][] repair, 
+                          int[] repairOff, int[] index, int packetLength,
+                          FECScratch scratch) {
         if (packetLength % 2 != 0) {
             throw new IllegalArgumentException("For 16 bit codes, buffers "+
                                                "must be 16 bit aligned.");
         }
-        char[][] srcChars = new char[src.length][];
-        int[] srcCharsOff = new int[src.length];
+        char[][] srcChars = scratch.charRows(src.length);
+        int[] srcCharsOff = scratch.charOffs(src.length);
         int numChars = packetLength/2;
-        char[] repairChars = new char[numChars];
+        // the char buffers 0..k-1 hold the source, k the repair packet
+        char[] repairChars = scratch.chars(src.length,numChars);
         for (int i=0;i<srcChars.length;i++) {
-            srcChars[i] = new char[numChars];
+            srcChars[i] = scratch.chars(i,numChars);
             Util.arraycopy(src[i], srcOff[i], srcChars[i], 0, packetLength);
             srcCharsOff[i] = 0;
         }
@@ -77,7 +86,13 @@ public class Pure16Code extends PureCode {
     }
     
     protected void decode(byte[][] pkts, int[] pktsOff, int[] index, 
-                          int packetLength, boolean inOrder) {          
+                          int packetLength, boolean inOrder) {
+        decode(pkts,pktsOff,index,packetLength,inOrder,getScratch());
+    }
+
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index, 
+                          int packetLength, boolean inOrder,
+                          FECScratch scratch) {
         if (packetLength % 2 != 0) {
             throw new IllegalArgumentException("For 16 bit codes, buffers "+
                                                "must be 16 bit aligned.");
@@ -87,16 +102,17 @@ public class Pure16Code extends PureCode {
             shuffle(pkts, pktsOff, index, k);
         }
 
-        char[][] pktsChars = new char[pkts.length][];
-        int[] pktsCharsOff = new int[pkts.length];
+        char[][] pktsChars = scratch.charRows(pkts.length);
+        int[] pktsCharsOff = scratch.charOffs(pkts.length);
         int numChars = packetLength/2;
         for (int i=0;i<pktsChars.length;i++) {
-            pktsChars[i] = new char[numChars];
+            pktsChars[i] = scratch.chars(i,numChars);
             Util.arraycopy(pkts[i], pktsOff[i], pktsChars[i], 0, packetLength);
             pktsCharsOff[i] = 0;
         }
 
-        char[][] result = decode(pktsChars, pktsCharsOff, index, numChars);
+        char[][] result = decode(pktsChars, pktsCharsOff, index, numChars,
+                                 scratch);
 
         for (int i=0;i<result.length;i++) {
             if (result[i] != null) {
@@ -109,14 +125,24 @@ public class Pure16Code extends PureCode {
 
     protected char[][] decode(char[][] pkts, int[] pktsOff, int[] index, 
                           int numChars) {
+        return decode(pkts,pktsOff,index,numChars,new FECScratch());
+    }
 
-        char[] decMatrix = fecMath.createDecodeMatrix(encMatrix,index,k,n);
+    /**
+     * The decoded packets are returned in buffers of the scratch, so the
+     * caller must copy them out before the scratch is used again.
+     */
+    protected char[][] decode(char[][] pkts, int[] pktsOff, int[] index, 
+                              int numChars, FECScratch scratch) {
+
+        char[] decMatrix = getDecodeMatrix(index,scratch);
         
         // do the actual decoding
-        char[][] tmpPkts = new char[k][];
+        char[][] tmpPkts = scratch.decodedRows(k);
         for (int row=0; row<k; row++) {
             if (index[row] >= k) {
-                tmpPkts[row] = new char[numChars];
+                tmpPkts[row] = scratch.chars(pkts.length+row,numChars);
+                Util.bzero(tmpPkts[row],0,numChars);
                 for (int col=0 ; col<k ; col++) {
                     fecMath.addMul(tmpPkts[row],0,pkts[col],pktsOff[col], 
                                    decMatrix[row*k + col], numChars);
@@ -127,6 +153,93 @@ public class Pure16Code extends PureCode {
         return tmpPkts;
     }
     
+    /**
+     * Encodes the ByteBuffers that have no array, the chars are read from
+     * and written to the buffers without copying through byte arrays.
+     */
+    protected void encode(ByteBuffer[] src, ByteBuffer[] repair, int[] index,
+                          int packetLength, FECScratch scratch) {
+        if (packetLength % 2 != 0) {
+            throw new IllegalArgumentException("For 16 bit codes, buffers "+
+                                               "must be 16 bit aligned.");
+        }
+        char[][] srcChars = scratch.charRows(src.length);
+        int[] srcCharsOff = scratch.charOffs(src.length);
+        int numChars = packetLength/2;
+        char[] repairChars = scratch.chars(src.length,numChars);
+        for (int i=0;i<srcChars.length;i++) {
+            srcChars[i] = scratch.chars(i,numChars);
+            getChars(src[i], src[i].position(), srcChars[i], numChars);
+            srcCharsOff[i] = 0;
+        }
+
+        for (int i=0;i<repair.length;i++) {
+            if (index[i] < k) {
+                putChars(srcChars[index[i]], repair[i], repair[i].position(),
+                         numChars);
+            } else {
+                encode(srcChars,srcCharsOff,repairChars,0,index[i],numChars);
+                putChars(repairChars, repair[i], repair[i].position(),
+                         numChars);
+            }
+        }
+    }
+
+    /**
+     * Decodes the shuffled ByteBuffers that have no array, the chars are
+     * read from and written to the buffers without copying through byte
+     * arrays.
+     */
+    protected void decode(ByteBuffer[] pkts, int[] index, int packetLength,
+                          FECScratch scratch) {
+        if (packetLength % 2 != 0) {
+            throw new IllegalArgumentException("For 16 bit codes, buffers "+
+                                               "must be 16 bit aligned.");
+        }
+        char[][] pktsChars = scratch.charRows(pkts.length);
+        int[] pktsCharsOff = scratch.charOffs(pkts.length);
+        int numChars = packetLength/2;
+        for (int i=0;i<pktsChars.length;i++) {
+            pktsChars[i] = scratch.chars(i,numChars);
+            getChars(pkts[i], pkts[i].position(), pktsChars[i], numChars);
+            pktsCharsOff[i] = 0;
+        }
+
+        char[][] result = decode(pktsChars, pktsCharsOff, index, numChars,
+                                 scratch);
+
+        for (int i=0;i<result.length;i++) {
+            if (result[i] != null) {
+                putChars(result[i], pkts[i], pkts[i].position(), numChars);
+                index[i] = i;
+            }
+        }
+    }
+
+    /**
+     * Reads big endian chars like Util.arraycopy() regardless of the byte
+     * order of the buffer.
+     */
+    private static void getChars(ByteBuffer buf, int pos, char[] chars, 
+                                 int numChars) {
+        for (int i=0;i<numChars;i++,pos+=2) {
+            chars[i] = (char) (((buf.get(pos) & 0xFF) << 8) | 
+                               (buf.get(pos+1) & 0xFF));
+        }
+    }
+
+    private static void putChars(char[] chars, ByteBuffer buf, int pos,
+                                 int numChars) {
+        for (int i=0;i<numChars;i++,pos+=2) {
+            buf.put(pos, (byte) (chars[i] >> 8));
+            buf.put(pos+1, (byte) chars[i]);
+        }
+    }
+
+    protected char[] createDecodeMatrix(int[] index) {
+        return fecMath.createDecodeMatrix(encMatrix,index,k,n);
+    }
+
     public String toString() {
         return new String("Pure16Code[k="+k+",n="+n+"]");
     }
@@ -1,5 +1,8 @@
 package com.onionnetworks.fec;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import com.onionnetworks.util.Util;
 /**
  * This class, along with FECMath, provides the implementation of the pure
@@ -7,6 +10,13 @@ import com.onionnetworks.util.Util;
  * C implementation.  See the file "LICENSE" along with this distribution for
  * additional copyright information.
  *
+ * The inverted decode matrices are cached by the pattern of the received
+ * packet indexes, a stream missing the same stripes for every block only
+ * inverts the matrix once.
+ *
+ * The temporary buffers are taken from a FECScratch, so encoding and
+ * decoding a stream of equally sized blocks doesn't allocate per block.
+ *
  * (c) Copyright 2001 Onion Networks
  * (c) Copyright 2000 OpenCola
  *
@@ -16,8 +26,15 @@ public class PureCode extends FECCode {
 
     // Keeping this around because it amuses me.
     public static final int FEC_MAGIC = 0xFECC0DEC;
+    public static final int DEFAULT_DECODE_CACHE_SIZE = 64;
+    // bytes of source and repair tiles kept in the cache while encoding
+    public static final int ENCODE_CACHE_SIZE = 64*1024;
+    public static final int MIN_TILE_SIZE = 256;
+
     protected static final FECMath fecMath = new FECMath(8);
     protected char[] encMatrix;
+    protected final FECCache<IndexKey,char[]> decodeCache = 
+        new FECCache<IndexKey,char[]>(DEFAULT_DECODE_CACHE_SIZE);
     
     //create a new encoder. This contains n,k and the encoding matrix.
     public PureCode(int k, int n) {
@@ -36,9 +53,69 @@ public class PureCode extends FECCode {
      */
     protected void encode(byte[][] src, int[] srcOff, byte[][] repair, 
                           int[] repairOff, int[] index, int packetLength) {
+        encode(src,srcOff,repair,repairOff,index,packetLength,getScratch());
+    }
+
+    protected void encode(byte[][] src, int[] srcOff, byte[][] repair, 
+                          int[] repairOff, int[] index, int packetLength,
+                          FECScratch scratch) {
+        int parities = 0;
         for (int i=0;i<repair.length;i++) {
-            encode(src,srcOff,repair[i],repairOff[i],index[i],packetLength);
+            if (index[i] < k) { // < k, systematic so direct copy.
+                System.arraycopy(src[index[i]],srcOff[index[i]],repair[i],
+                                 repairOff[i],packetLength);
+            } else {
+                parities++;
+            }
+        }
+        if (parities == 0) {
+            return;
+        }
+        if (parities == 1) {
+            for (int i=0;i<repair.length;i++) {
+                if (index[i] >= k) {
+                    encode(src,srcOff,repair[i],repairOff[i],index[i],
+                           packetLength);
+                }
+            }
+            return;
         }
+
+        // Several repair packets, go through the source packets one tile 
+        // at a time and compute all the repair packets for the tile while
+        // it is still in the cache. This way the source data is read only
+        // once instead of once per repair packet.
+        int[] parity = scratch.parity(parities);
+        for (int i=0,p=0;i<repair.length;i++) {
+            if (index[i] >= k) {
+                parity[p++] = i;
+                Util.bzero(repair[i],repairOff[i],packetLength);
+            }
+        }
+        int tileSize = getTileSize(parities);
+        for (int off=0; off<packetLength; off += tileSize) {
+            int len = Math.min(tileSize, packetLength - off);
+            for (int i=0; i<k ; i++) {
+                for (int p=0; p<parities; p++) {
+                    int r = parity[p];
+                    addMul(repair[r],repairOff[r]+off,src[i],srcOff[i]+off,
+                           (byte) encMatrix[index[r]*k+i],len);
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of bytes of each packet that is encoded in one pass, chosen
+     * so that the tiles of the k source packets and the repair packets fit
+     * in ENCODE_CACHE_SIZE bytes.
+     */
+    protected int getTileSize(int parities) {
+        int tileSize = ENCODE_CACHE_SIZE / (k + parities);
+        // whole 64 byte cache lines, so that the tiles of one pass don't
+        // share a line with the ones of the next.
+        tileSize &= ~63;
+        return Math.max(tileSize, MIN_TILE_SIZE);
     }
 
     protected void encode(byte[][] src, int[] srcOff, byte[] repair, 
@@ -51,14 +128,20 @@ public class PureCode extends FECCode {
             int pos = index*k;
             Util.bzero(repair,repairOff,packetLength);
             for (int i=0; i<k ; i++) {
-                fecMath.addMul(repair,repairOff,src[i],srcOff[i],
-                                   (byte) encMatrix[pos+i],packetLength);
+                addMul(repair,repairOff,src[i],srcOff[i],
+                       (byte) encMatrix[pos+i],packetLength);
             }
         } 
     }
     
     protected void decode(byte[][] pkts, int[] pktsOff, int[] index, 
-                          int packetLength, boolean shuffled) {                
+                          int packetLength, boolean shuffled) {
+        decode(pkts,pktsOff,index,packetLength,shuffled,getScratch());
+    }
+
+    protected void decode(byte[][] pkts, int[] pktsOff, int[] index, 
+                          int packetLength, boolean shuffled,
+                          FECScratch scratch) {
         // This may be the second time shuffle has been called, if so
         // this is ok because it will quickly determine that things are in
         // order.  The previous shuffles may have been necessary to keep
@@ -67,17 +150,18 @@ public class PureCode extends FECCode {
             shuffle(pkts, pktsOff, index, k);
         }
 
-        char[] decMatrix = fecMath.createDecodeMatrix(encMatrix,index,k,n);
+        char[] decMatrix = getDecodeMatrix(index,scratch);
         
         // do the actual decoding..
-        byte[][] tmpPkts = new byte[k][];
+        byte[][] tmpPkts = scratch.packetRows(k);
         for (int row=0; row<k; row++) {
             if (index[row] >= k) {
-                tmpPkts[row] = new byte[packetLength];
+                tmpPkts[row] = scratch.packet(row,packetLength);
+                Util.bzero(tmpPkts[row],0,packetLength);
                 for (int col=0 ; col<k ; col++) {
-                    fecMath.addMul(tmpPkts[row],0,pkts[col],pktsOff[col], 
-                                   (byte) decMatrix[row*k + col],
-                                   packetLength);
+                    addMul(tmpPkts[row],0,pkts[col],pktsOff[col], 
+                           (byte) decMatrix[row*k + col],
+                           packetLength);
                 }
             }
         }
@@ -92,6 +176,154 @@ public class PureCode extends FECCode {
         }
     }
     
+    /**
+     * Encodes the ByteBuffers that have no array directly in the buffers.
+     */
+    protected void encode(ByteBuffer[] src, ByteBuffer[] repair, int[] index,
+                          int packetLength, FECScratch scratch) {
+        for (int i=0;i<repair.length;i++) {
+            int repairOff = repair[i].position();
+            if (index[i] < k) { // < k, systematic so direct copy.
+                ByteBuffer s = src[index[i]];
+                byte[] b = scratch.shuffle(packetLength);
+                getBytes(s,s.position(),b,0,packetLength);
+                putBytes(b,0,repair[i],repairOff,packetLength);
+            } else {
+                int pos = index[i]*k;
+                for (int j=0;j<packetLength;j++) {
+                    repair[i].put(repairOff+j,(byte) 0);
+                }
+                for (int j=0; j<k ; j++) {
+                    addMul(repair[i],repairOff,src[j],src[j].position(),
+                           (byte) encMatrix[pos+j],packetLength);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the shuffled ByteBuffers that have no array directly from the
+     * buffers.
+     */
+    protected void decode(ByteBuffer[] pkts, int[] index, int packetLength,
+                          FECScratch scratch) {
+        char[] decMatrix = getDecodeMatrix(index,scratch);
+
+        for (int row=0; row<k; row++) {
+            if (index[row] >= k) {
+                ByteBuffer tmp = scratch.packetBuffer(row,packetLength);
+                Util.bzero(tmp.array(),0,packetLength);
+                for (int col=0 ; col<k ; col++) {
+                    addMul(tmp,0,pkts[col],pkts[col].position(),
+                           (byte) decMatrix[row*k + col],packetLength);
+                }
+            }
+        }
+
+        // move pkts to their final destination
+        for (int row=0;row < k;row++) {
+            if (index[row] >= k) { // only copy those actually decoded.
+                byte[] tmp = scratch.packet(row,packetLength);
+                putBytes(tmp,0,pkts[row],pkts[row].position(),packetLength);
+                index[row] = row;
+            }
+        }
+    }
+
+    /**
+     * dst[] = dst[] + c * src[], the multiply-accumulate kernel used by
+     * both encoding and decoding.  Subclasses can plug in a faster kernel.
+     */
+    protected void addMul(byte[] dst, int dstPos, byte[] src, int srcPos,
+                          byte c, int len) {
+        fecMath.addMul(dst,dstPos,src,srcPos,c,len);
+    }
+
+    /**
+     * The multiply-accumulate kernel for the ByteBuffers without an array.
+     */
+    protected void addMul(ByteBuffer dst, int dstPos, ByteBuffer src, 
+                          int srcPos, byte c, int len) {
+        fecMath.addMul(dst,dstPos,src,srcPos,c,len);
+    }
+
+    /**
+     * Returns the decode matrix for the given shuffled index, from the cache
+     * if the same index pattern has been seen before.  The returned matrix
+     * is shared, so it must not be modified.
+     */
+    protected char[] getDecodeMatrix(int[] index) {
+        return getDecodeMatrix(index,getScratch());
+    }
+
+    /**
+     * Same as getDecodeMatrix(int[]), the cache is looked up with the key
+     * of the scratch so that a hit doesn't allocate.
+     */
+    protected char[] getDecodeMatrix(int[] index, FECScratch scratch) {
+        IndexKey key = scratch.probe.set(index, k);
+        char[] decMatrix = decodeCache.get(key);
+        if (decMatrix == null) {
+            decMatrix = createDecodeMatrix(index);
+            decodeCache.put(key.copy(), decMatrix);
+        }
+        return decMatrix;
+    }
+
+    protected char[] createDecodeMatrix(int[] index) {
+        return fecMath.createDecodeMatrix(encMatrix,index,k,n);
+    }
+
+    /**
+     * @return The cache holding the inverted decode matrices of this code.
+     */
+    public FECCache<IndexKey,char[]> getDecodeCache() {
+        return decodeCache;
+    }
+
+    /**
+     * Key for the decode matrix cache, the first k packet indexes.
+     */
+    public static final class IndexKey {
+        private int[] index = new int[0];
+        private int hash;
+
+        IndexKey() {
+        }
+
+        IndexKey(int[] index, int k) {
+            set(index, k);
+        }
+
+        /**
+         * Sets the key to the given index, used to reuse a lookup key.  A 
+         * key that has been put in the cache must not be modified.
+         */
+        IndexKey set(int[] index, int k) {
+            if (this.index.length != k) {
+                this.index = new int[k];
+            }
+            System.arraycopy(index, 0, this.index, 0, k);
+            this.hash = Arrays.hashCode(this.index);
+            return this;
+        }
+
+        IndexKey copy() {
+            return new IndexKey(index, index.length);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof IndexKey)) {
+                return false;
+            }
+            return Arrays.equals(index, ((IndexKey) obj).index);
+        }
+    }
+
     public String toString() {
         return new String("PureCode[k="+k+",n="+n+"]");
     }
@@ -41,6 +41,7 @@ import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.GetOptions;
 import org.jclouds.blobstore.util.BlobStoreUtils;
 import org.jclouds.filesystem.reference.FilesystemConstants;
 import org.jclouds.logging.Logger;
@@ -54,7 +55,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.inject.Module;
 
-import fi.hip.sicx.store.StorageClient;
+import fi.hip.sicx.store.RangeStorageClient;
 import fi.hip.sicx.store.StorageClientObserver;
 
 /**
@@ -64,7 +65,7 @@ import fi.hip.sicx.store.StorageClientObserver;
  * @author Seppo Heikkila <seppo.heikkila@cern.ch>
  * @author Joakim Koskela <jookos@gmail.com>
  */
-public class JCloudClient implements StorageClient {
+public class JCloudClient implements RangeStorageClient {
 
     // Connection parameters
     private String provider;
@@ -289,6 +290,38 @@ public class JCloudClient implements StorageClient {
         return this.cis;
     }
 
+    /**
+     * Returns InputStream that reads a byte range of a file in the cloud
+     * with a ranged get, so only the range is transferred.
+     * 
+     * @param currentFileInTheCloud Name of the file in the cloud
+     * @param offset The offset of the range in the file
+     * @param length The length of the range, -1 to read until the end
+     * @param sco observer
+     * @return InputStream that can be used to read the range, null if the
+     *         file can't be read
+     */
+    public InputStream readData(String currentFileInTheCloud, long offset, long length, StorageClientObserver sco) {
+        this.dos = null;
+        this.datasize = (int) length;
+
+        GetOptions options = length < 0 ? GetOptions.Builder.startAt(offset)
+                : GetOptions.Builder.range(offset, offset + length - 1);
+        this.cis = null;
+        try {
+            Blob blob = this.context.getAsyncBlobStore().getBlob(containerName, currentFileInTheCloud, options).get();
+            if (blob != null) {
+                this.cis = new CountingInputStream(blob.getPayload().getInput());
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        return this.cis;
+    }
+
     /**
      * Returns OutputStream that can be used to write data to the
      * specified filename in the cloud. The size of the file has to be
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.joni.test.meta.ACLItem;
+import org.joni.test.meta.MetaDataAPI;
+import org.joni.test.meta.MetaFile;
+import org.joni.test.meta.MetaFileImpl;
+import org.joni.test.meta.UserInfo;
+
+import com.eaio.uuid.UUID;
+import com.onionnetworks.util.Util;
+
+/**
+ * The chunks a user has stored, by the HMAC-SHA256 of their content with
+ * the chunk key of the user, so that a chunk already stored is not uploaded
+ * again. Each chunk is a file of its own in the meta data, named by its
+ * hash, in the directory ".chunks" that is an extra root of the user so
+ * that it is not in the tree of the user's files. The directory is created
+ * when first needed. The key keeps the meta service from telling whether the
+ * user has some known content by its plain hash.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ChunkIndex {
+
+    public static final String DIRECTORY_NAME = ".chunks";
+
+    public static final String MAC_ALGORITHM = "HmacSHA256";
+
+    // the length of the chunk keys in bytes
+    public static final int KEY_LENGTH = 16;
+
+    private final MetaFile directory;
+    private final Map<String, MetaFile> chunks = new HashMap<String, MetaFile>();
+
+    private ChunkIndex(MetaFile directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads the chunks of the user from the meta service.
+     *
+     * @param meta
+     *            Meta server instance.
+     * @param create
+     *            true to create the directory of the chunks if the user has
+     *            none.
+     * @return The index, null if the user has no chunks and create is
+     *         false.
+     */
+    public static ChunkIndex load(MetaDataAPI meta, boolean create) throws IOException {
+        MetaFile directory = loadRoot(meta, DIRECTORY_NAME, create);
+        if (directory == null) {
+            return null;
+        }
+
+        ChunkIndex index = new ChunkIndex(directory);
+        List<MetaFile> files = meta.getListFile(directory.getId());
+        if (files != null) {
+            for (MetaFile chunk : files) {
+                if (!chunk.isDirectory()) {
+                    index.chunks.put(chunk.getName(), chunk);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Finds the extra root directory of the user with the name, the first
+     * root is the user's home.
+     *
+     * @param create
+     *            true to create the directory if the user has none.
+     * @return The directory, null if there is none and create is false.
+     */
+    static MetaFile loadRoot(MetaDataAPI meta, String name, boolean create) throws IOException {
+        UserInfo user = meta.getUserInfo();
+        if (user == null) {
+            throw new IOException("User not found in the meta service!");
+        }
+        List<UUID> roots = user.getRoots();
+        for (int i = 1; roots != null && i < roots.size(); i++) {
+            MetaFile root = meta.getFile(roots.get(i));
+            if (root != null && root.isDirectory() && name.equals(root.getName())) {
+                return root;
+            }
+        }
+        if (!create) {
+            return null;
+        }
+        MetaFile directory = new MetaFileImpl();
+        directory.setDirectory(true);
+        directory.setName(name);
+        directory.addACLItem(new ACLItem(user.getName(), true, true));
+        meta.putFile(directory);
+        List<UUID> newRoots = roots == null ? new ArrayList<UUID>() : new ArrayList<UUID>(roots);
+        newRoots.add(directory.getId());
+        user.setRoots(newRoots);
+        meta.updateUserInfo(user);
+        return directory;
+    }
+
+    /**
+     * @return The directory where the chunks are stored.
+     */
+    public MetaFile getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The stored chunk with the hash, null if there is none.
+     */
+    public MetaFile get(String hash) {
+        return chunks.get(hash);
+    }
+
+    /**
+     * Adds a chunk uploaded to the directory.
+     */
+    public void add(String hash, MetaFile chunk) {
+        chunks.put(hash, chunk);
+    }
+
+    /**
+     * @return The number of chunks stored.
+     */
+    public int size() {
+        return chunks.size();
+    }
+
+    /**
+     * @param mac
+     *            The MAC of the chunk key, see createMac().
+     * @return The HMAC-SHA256 of the data as hex, the name of its chunk.
+     */
+    public static String hash(Mac mac, byte data[], int off, int len) {
+        mac.update(data, off, len);
+        return Util.bytesToHex(mac.doFinal());
+    }
+
+    /**
+     * @param key
+     *            The chunk key of the user, the leading zero bytes may be
+     *            missing as the key servers drop them.
+     * @return A MAC for the hashes of the chunks.
+     */
+    public static Mac createMac(byte key[]) {
+        if (key.length > KEY_LENGTH) {
+            throw new IllegalArgumentException("Invalid chunk key length " + key.length + ".");
+        }
+        byte padded[] = new byte[KEY_LENGTH];
+        System.arraycopy(key, 0, padded, KEY_LENGTH - key.length, key.length);
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(padded, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // every Java platform has HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+}
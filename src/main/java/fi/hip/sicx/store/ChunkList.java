@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joni.test.meta.StripeLocation;
+
+import com.eaio.uuid.UUID;
+
+/**
+ * Records the chunks of a file uploaded in chunks in the stripe list of its
+ * meta data, in the order of the data. Each chunk is a location of the type
+ * "chunk" with the URI "chunk:hash#id=uuid&amp;length=bytes", the hash being
+ * the HMAC-SHA256 of the content of the chunk and the id the one of the meta
+ * file of the chunk in the ChunkIndex.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ChunkList {
+
+    public static final String TYPE = "chunk";
+
+    /**
+     * A chunk of a file.
+     */
+    public static class Chunk {
+        private final String hash;
+        private final UUID id;
+        private final long length;
+
+        public Chunk(String hash, UUID id, long length) {
+            this.hash = hash;
+            this.id = id;
+            this.length = length;
+        }
+
+        /**
+         * @return The keyed hash of the content as hex, see ChunkIndex.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return The id of the meta file of the chunk.
+         */
+        public UUID getId() {
+            return id;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * @return true if the file was uploaded in chunks.
+     */
+    public static boolean isChunked(List<StripeLocation> stripes) {
+        return stripes != null && !stripes.isEmpty() && TYPE.equals(stripes.get(0).getType());
+    }
+
+    /**
+     * @return The location recording the chunk.
+     */
+    public static StripeLocation toLocation(Chunk chunk) throws URISyntaxException {
+        return new StripeLocation(new URI(TYPE + ":" + chunk.getHash() + "#id=" + chunk.getId() + "&length="
+                + chunk.getLength()), TYPE, null);
+    }
+
+    /**
+     * @return The chunks of the file in the order of the data.
+     * @throws IllegalArgumentException
+     *             if a location is not a valid chunk.
+     */
+    public static List<Chunk> getChunks(List<StripeLocation> stripes) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (StripeLocation s : stripes) {
+            URI uri = s.getURI();
+            String id = null;
+            String length = null;
+            if (uri.getFragment() != null) {
+                for (String param : uri.getFragment().split("&")) {
+                    if (param.startsWith("id=")) {
+                        id = param.substring(3);
+                    } else if (param.startsWith("length=")) {
+                        length = param.substring(7);
+                    }
+                }
+            }
+            if (!TYPE.equals(s.getType()) || !TYPE.equals(uri.getScheme()) || id == null || length == null) {
+                throw new IllegalArgumentException("Invalid chunk: " + uri);
+            }
+            try {
+                chunks.add(new Chunk(uri.getSchemeSpecificPart(), new UUID(id), Long.parseLong(length)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid chunk length: " + uri);
+            }
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * The compression of the files before they are encrypted and striped. The
+ * beginning of the file is compressed as a sample first and the file is
+ * compressed only if the sample compresses well, so the data that is
+ * already compressed, like images, videos and archives, is uploaded as it
+ * is.
+ *
+ * The codec is recorded in the stripe URIs, see StripeCode.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class Compression {
+
+    /**
+     * Deflate in the zlib format with the fastest level.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * The size of the beginning of the file compressed as a sample, four
+     * blocks of 64 kB.
+     */
+    public static final int SAMPLE_SIZE = 4 * 64 * 1024;
+
+    /**
+     * The file is compressed if the sample compresses at least to this
+     * fraction of its size.
+     */
+    public static final double MAX_RATIO = 0.9;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return true if the sample from the beginning of the file compresses
+     *         enough for the file to be worth compressing.
+     */
+    public static boolean isCompressible(File file) throws IOException {
+        byte sample[] = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+        InputStream in = new FileInputStream(file);
+        int len = 0;
+        try {
+            int n;
+            while (len < sample.length && (n = in.read(sample, len, sample.length - len)) > 0) {
+                len += n;
+            }
+        } finally {
+            in.close();
+        }
+        if (len == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, len);
+            deflater.finish();
+            byte out[] = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return compressed <= MAX_RATIO * len;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses the file to the target with the codec.
+     *
+     * @return The size of the compressed file.
+     */
+    public static long compress(File file, File target, String codec) throws IOException {
+        if (!DEFLATE.equals(codec)) {
+            throw new IllegalArgumentException("Unknown codec: " + codec);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new DeflaterOutputStream(new FileOutputStream(target), deflater, BUFFER_SIZE);
+            try {
+                byte buf[] = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+            deflater.end();
+        }
+        return target.length();
+    }
+
+    /**
+     * @return The stream that decompresses the data written to it with the
+     *         codec to the out stream, closing it closes the out stream.
+     */
+    public static OutputStream decompressingStream(OutputStream out, String codec) {
+        if (!DEFLATE.equals(codec)) {
+            throw new IllegalArgumentException("Unknown codec: " + codec);
+        }
+        return new InflaterOutputStream(out);
+    }
+}
@@ -19,6 +19,9 @@ package fi.hip.sicx.store;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,12 +30,17 @@ import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
 import org.emi.hydra.client.HydraConnection;
 import org.emi.hydra.client.HydraCrypt;
 import org.emi.hydra.client.HydraKey;
 import org.emi.hydra.client.HydraSettings;
+import org.emi.hydra.client.RangeDecryptingStream;
 import org.joni.test.meta.ACLItem;
 import org.joni.test.meta.MetaDataAPI;
 import org.joni.test.meta.MetaFile;
@@ -42,10 +50,20 @@ import org.joni.test.meta.StripeLocation;
 import org.joni.test.meta.UserInfo;
 
 import com.eaio.uuid.UUID;
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+import com.onionnetworks.fec.LRCCode;
+import com.onionnetworks.util.Util;
 
 import fi.hip.sicx.sla.SLAManager;
 import fi.hip.sicx.store.StorageClientObserver.StorageClientState;
+import fi.hip.sicx.streaming.ConstructStats;
+import fi.hip.sicx.streaming.ContentChunker;
+import fi.hip.sicx.streaming.StageStats;
 import fi.hip.sicx.streaming.StreamingFEC;
+import fi.hip.sicx.streaming.StripeFailoverListener;
+import fi.hip.sicx.streaming.StripeHeader;
+import fi.hip.sicx.streaming.StripePipeline;
 
 /**
  * MetaDataClient class.
@@ -58,13 +76,231 @@ public class MetaDataClient {
 	String PATH_SEPARATOR = "/";
 	long EXTRA_SIZE = 256;
 	
+	// the smallest average size of the chunks, see setChunkSize()
+	public static final int MIN_CHUNK_SIZE = 1024 * 1024;
+	
 	static private HydraSettings hydraConnections = null;
 	
 	StorageClientObserver sco;
 	
+	private PacketSizePolicy packetSizePolicy = new PacketSizePolicy();
+	
+	// the number of stripes read more than needed in the downloads
+	private int hedge = 0;
+	
+	// the longest a read of a stripe may block in the downloads, ms
+	private long stallTimeout = 60000;
+	
+	// the packets queued for each storage in the uploads
+	private int writeQueuePackets = 16;
+	
+	// the longest the uploads wait for the storages to finish the stripes
+	// after striping, ms
+	private long completionTimeout = 10 * 60 * 1000;
+	
+	// the bytes of each stripe uploaded in one segment
+	private long segmentSize = 64 * 1024 * 1024;
+	
+	// where the checkpoints of the uploads in segments are kept, null to
+	// upload in one go
+	private File checkpointDir = new File(System.getProperty("java.io.tmpdir"), "sicx-uploads");
+	
+	// the average size of the chunks of the uploads in chunks, 0 to upload
+	// the files whole
+	private int chunkSize = 0;
+	
+	// compress the files that compress well before encrypting them
+	private boolean compression = false;
+	
+	// the size the packs of small files are filled to, 0 to upload each
+	// file on its own
+	private long packSize = 0;
+	
+	// the largest file that is put in a pack
+	private long packFileSize = 1024 * 1024;
+	
 	public MetaDataClient() {
 		
 	}
+	
+	/**
+	 * Sets how the packet size of the stripes is chosen for the uploads.
+	 */
+	public void setPacketSizePolicy(PacketSizePolicy policy) {
+		this.packetSizePolicy = policy;
+	}
+	
+	public PacketSizePolicy getPacketSizePolicy() {
+		return packetSizePolicy;
+	}
+	
+	/**
+	 * Sets the number of stripes the downloads read more than needed. With
+	 * hedge > 0 each block is decoded from the first stripes to deliver it,
+	 * so up to hedge slow storages don't slow down the download, at the cost
+	 * of transferring more data. 0 reads only the needed stripes.
+	 */
+	public void setHedge(int hedge) {
+		this.hedge = hedge;
+	}
+	
+	public int getHedge() {
+		return hedge;
+	}
+	
+	/**
+	 * Sets the longest time in milliseconds a read of a stripe may block in
+	 * the downloads. A stripe that stalls longer is given up and the
+	 * download goes on from a spare stripe, 0 waits forever.
+	 */
+	public void setStallTimeout(long stallTimeout) {
+		this.stallTimeout = stallTimeout;
+	}
+	
+	public long getStallTimeout() {
+		return stallTimeout;
+	}
+	
+	/**
+	 * Sets the number of packets queued for each stage of the uploads, at
+	 * least 1. The stripes are written to the storages by a thread per
+	 * storage from the queue, the striping waits for a storage only when its
+	 * queue is full.
+	 */
+	public void setWriteQueuePackets(int packets) {
+		this.writeQueuePackets = packets;
+	}
+	
+	public int getWriteQueuePackets() {
+		return writeQueuePackets;
+	}
+	
+	/**
+	 * Sets the longest time in milliseconds the uploads wait for the
+	 * storages to finish the stripes after the file has been striped. An
+	 * upload not done by then has failed, 0 waits forever.
+	 */
+	public void setCompletionTimeout(long completionTimeout) {
+		this.completionTimeout = completionTimeout;
+	}
+	
+	public long getCompletionTimeout() {
+		return completionTimeout;
+	}
+	
+	/**
+	 * Sets the size in bytes of the segments the stripes of large files are
+	 * uploaded in. Each segment is committed by the storages before the next
+	 * one is started, so a failed upload continues from the last committed
+	 * segment instead of the beginning of the file.
+	 */
+	public void setSegmentSize(long segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+	
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+	
+	/**
+	 * Sets the directory where the checkpoints of the uploads in segments
+	 * are saved, null to upload the files in one go without resuming.
+	 */
+	public void setCheckpointDir(File checkpointDir) {
+		this.checkpointDir = checkpointDir;
+	}
+	
+	public File getCheckpointDir() {
+		return checkpointDir;
+	}
+	
+	/**
+	 * Sets the average size of the chunks the files are uploaded in, a power
+	 * of 2 of at least MIN_CHUNK_SIZE, or 0 to upload the files whole. The
+	 * chunks have content-defined boundaries and are stored once per user by
+	 * their content, so only the chunks of a file that are not stored yet
+	 * are encrypted, striped and uploaded. The chunks are 1/4 to 4 times the
+	 * average size. Each chunk is a file of its own with its own key, n
+	 * stripes and padding, and all the chunks of the user are listed for
+	 * each upload, so small chunks cost more than they save.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize != 0 && (chunkSize < MIN_CHUNK_SIZE || Integer.bitCount(chunkSize) != 1)) {
+			throw new IllegalArgumentException("Invalid chunk size " + chunkSize + ".");
+		}
+		this.chunkSize = chunkSize;
+	}
+	
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/**
+	 * Sets whether the files are compressed before they are encrypted and
+	 * striped. A sample from the beginning of each file is compressed first
+	 * and the files that are already compressed are uploaded as they are,
+	 * see Compression. The downloads decompress the files transparently.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+	
+	public boolean isCompression() {
+		return compression;
+	}
+	
+	/**
+	 * Sets the size the packs of the small files uploaded with
+	 * uploadFiles() are filled to, or 0 to upload each file on its own.
+	 */
+	public void setPackSize(long packSize) {
+		if(packSize < 0) {
+			throw new IllegalArgumentException("Invalid pack size " + packSize + ".");
+		}
+		this.packSize = packSize;
+	}
+	
+	public long getPackSize() {
+		return packSize;
+	}
+	
+	/**
+	 * Sets the size of the largest file that is put in a pack, the larger
+	 * files are uploaded on their own.
+	 */
+	public void setPackFileSize(long packFileSize) {
+		this.packFileSize = packFileSize;
+	}
+	
+	public long getPackFileSize() {
+		return packFileSize;
+	}
+	
+	/**
+	 * @return Stats for a download that log the failed stripes and tell them
+	 *         to the observer if it is a StripeFailoverListener, like the
+	 *         SICXUploader.
+	 */
+	ConstructStats createStats() {
+		ConstructStats stats = new ConstructStats();
+		final StripeFailoverListener observer = sco instanceof StripeFailoverListener ? (StripeFailoverListener) sco : null;
+		stats.setFailoverListener(new StripeFailoverListener() {
+			public void stripeFailed(int stripe, long block, IOException cause) {
+				System.out.println("Stripe " + stripe + " failed at block " + block + ": " + cause.getMessage());
+				if (observer != null) {
+					observer.stripeFailed(stripe, block, cause);
+				}
+			}
+			
+			public void spareOpened(int stripe, long block) {
+				System.out.println("Continuing from stripe " + stripe + " at block " + block + ".");
+				if (observer != null) {
+					observer.spareOpened(stripe, block);
+				}
+			}
+		});
+		return stats;
+	}
 		
 	public MetaFile uploadFile(MetaDataAPI meta, SLAManager man, 
 			 				   MetaFile mfile, MetaFile target, 
@@ -107,6 +343,264 @@ public class MetaDataClient {
 			boolean use_encryption,
 			SLA sla, int k, int n,
 			StorageClientObserver insco) throws Exception {
+		return uploadFile(meta, man, mfile, target, file, file_newname, use_encryption, sla, k, n, 0, insco);
+	}
+
+	/**
+	 * Uploads the given file like above, with a locally repairable code if
+	 * localGroups is not 0. With the local groups a lost stripe can be
+	 * recreated from the other stripes of its group instead of k stripes.
+	 * 
+	 * @param meta Metadata server instance.
+	 * @param man SLA manager instance.
+	 * @param mfile MetaFile of the current directory (if null, root is used).
+	 * @param target MetaFile of the new file (with wanted SLA set).
+	 * @param file File that is to be uploaded.
+	 * @param file_newname Name of the new file.
+	 * @param use_encryption Encryption usage.
+	 * @param sla The used SLA.
+	 * @param k number of source packets to encode.
+	 * @param n number of packets to encode to.
+	 * @param localGroups number of local groups of the k data stripes, each
+	 *        gets one local parity stripe out of the n-k, 0 for the plain
+	 *        Reed-Solomon code.
+	 * 
+	 * @return Metafile of the new uploaded file.
+	 * 
+	 * @throws Exception
+	 */
+	public MetaFile uploadFile(MetaDataAPI meta, SLAManager man, 
+			MetaFile mfile, MetaFile target, 
+			File file, String file_newname,
+			boolean use_encryption,
+			SLA sla, int k, int n, int localGroups,
+			StorageClientObserver insco) throws Exception {
+		if(chunkSize > 0 && file != null && file.length() > 0) {
+			this.sco = insco;
+			return uploadChunks(meta, man, mfile, target, file, file_newname, use_encryption, sla, k, n, localGroups, insco);
+		}
+		return uploadStriped(meta, man, mfile, target, file, file_newname, use_encryption, sla, k, n, localGroups, insco);
+	}
+	
+	/**
+	 * Uploads the files to the directory, named after the files. With
+	 * setPackSize() the small files are put in packs, so that a pack of many
+	 * files is encrypted, striped and uploaded once instead of each file.
+	 * The other files are uploaded like with uploadFile().
+	 * 
+	 * @param meta Metadata server instance.
+	 * @param man SLA manager instance.
+	 * @param mfile MetaFile of the current directory (if null, root is used).
+	 * @param files Files that are to be uploaded.
+	 * @param use_encryption Encryption usage.
+	 * @param sla The used SLA.
+	 * @param k number of source packets to encode.
+	 * @param n number of packets to encode to.
+	 * @param localGroups number of local groups, 0 for the plain
+	 *        Reed-Solomon code.
+	 * 
+	 * @return Metafiles of the new uploaded files in the same order, null
+	 *         for the files whose upload failed.
+	 * 
+	 * @throws Exception
+	 */
+	public List<MetaFile> uploadFiles(MetaDataAPI meta, SLAManager man,
+			MetaFile mfile, List<File> files,
+			boolean use_encryption,
+			SLA sla, int k, int n, int localGroups,
+			StorageClientObserver insco) throws Exception {
+		this.sco = insco;
+		progressMade(0, StorageClientState.INITIALIZING);
+		List<MetaFile> result = new ArrayList<MetaFile>();
+		PackBuilder pack = null;
+		// the indexes of the files in the pack being filled
+		List<Integer> packed = new ArrayList<Integer>();
+		for(int i = 0; i < files.size(); i++) {
+			File file = files.get(i);
+			result.add(null);
+			if(packSize > 0 && file.length() > 0 && file.length() <= packFileSize) {
+				if(pack == null) {
+					pack = new PackBuilder(meta, man, PackIndex.load(meta, true), use_encryption, sla, k, n, localGroups);
+				}
+				if(pack.isFull(file.length())) {
+					storePack(pack, packed, result);
+				}
+				UserInfo user = meta.getUserInfo();
+				MetaFile root = mfile;
+				if (root == null || !root.isDirectory())
+					root = meta.getFile(user.getRoots().get(0));
+				MetaFile mf = new MetaFileImpl();
+				mf.setParent(root.getId());
+				mf.setDirectory(false);
+				mf.setName(file.getName());
+				mf.setLength(file.length());
+				mf.addACLItem(new ACLItem(user.getName(), true, true));
+				mf.setSLA(sla);
+				mf.setMinStripes(k);
+				InputStream inS = new FileInputStream(file);
+				try {
+					pack.add(mf, inS, file.length());
+				} finally {
+					inS.close();
+				}
+				packed.add(i);
+			} else {
+				result.set(i, uploadFile(meta, man, mfile, new MetaFileImpl(), file, null, use_encryption, sla, k, n, localGroups, null));
+			}
+			this.sco = insco;
+			progressMade((int)(90.0*(i+1)/files.size()), StorageClientState.ACTIVE);
+		}
+		if(pack != null) {
+			storePack(pack, packed, result);
+		}
+		this.sco = insco;
+		progressMade(100, StorageClientState.COMPLETE);
+		return result;
+	}
+	
+	/**
+	 * Uploads the pack being filled and puts the meta files of its files to
+	 * the result.
+	 */
+	private void storePack(PackBuilder pack, List<Integer> packed, List<MetaFile> result) throws Exception {
+		List<MetaFile> stored = pack.flush(false);
+		for(int j = 0; stored != null && j < stored.size(); j++) {
+			result.set(packed.get(j), stored.get(j));
+		}
+		packed.clear();
+	}
+	
+	/**
+	 * Rewrites the packs that have less than minLive of their bytes in the
+	 * files that are not deleted. The files still in them are packed again
+	 * together with the given code and encryption, and the packs are
+	 * deleted. The packs with no files left are deleted outright.
+	 * 
+	 * @param minLive The fraction of the bytes of a pack in use, 0..1, below
+	 *        which the pack is rewritten.
+	 * 
+	 * @return The number of bytes reclaimed.
+	 * 
+	 * @throws IOException if uploading a new pack failed, the old packs are
+	 *         not deleted then.
+	 */
+	public long compactPacks(MetaDataAPI meta, SLAManager man, double minLive,
+			boolean use_encryption,
+			SLA sla, int k, int n, int localGroups,
+			StorageClientObserver insco) throws Exception {
+		this.sco = insco;
+		PackIndex index = PackIndex.load(meta, false);
+		if(index == null) {
+			return 0;
+		}
+		progressMade(0, StorageClientState.INITIALIZING);
+		Map<String, List<MetaFile>> packed = index.findPackedFiles(meta);
+		List<MetaFile> sparse = new ArrayList<MetaFile>();
+		for(MetaFile pack : index.getPacks()) {
+			long live = 0;
+			List<MetaFile> entries = packed.get(pack.getId().toString());
+			if(entries != null) {
+				for(MetaFile entry : entries) {
+					live += entry.getLength();
+				}
+			}
+			if(live < minLive * pack.getLength()) {
+				sparse.add(pack);
+			}
+		}
+		
+		PackBuilder builder = new PackBuilder(meta, man, index, use_encryption, sla, k, n, localGroups);
+		long reclaimed = 0;
+		for(int i = 0; i < sparse.size(); i++) {
+			MetaFile pack = sparse.get(i);
+			List<MetaFile> entries = packed.get(pack.getId().toString());
+			reclaimed += pack.getLength();
+			if(entries != null) {
+				// the pack is downloaded once and the files copied from it
+				File packFile = File.createTempFile("sicx-pack", null);
+				try {
+					OutputStream packOut = new FileOutputStream(packFile);
+					try {
+						downloadFile(meta, man, pack, packOut, use_encryption, null);
+					} finally {
+						packOut.close();
+					}
+					for(MetaFile entry : entries) {
+						if(builder.isFull(entry.getLength()) && builder.flush(true) == null) {
+							throw new IOException("Uploading a pack failed, compaction stopped.");
+						}
+						InputStream inS = new FileInputStream(packFile);
+						try {
+							StorageStripeSource.skipFully(inS, PackEntry.get(entry.getStripes()).getOffset());
+							builder.add(entry, inS, entry.getLength());
+						} finally {
+							inS.close();
+						}
+						reclaimed -= entry.getLength();
+					}
+				} finally {
+					packFile.delete();
+				}
+			}
+			this.sco = insco;
+			progressMade((int)(90.0*(i+1)/sparse.size()), StorageClientState.ACTIVE);
+		}
+		if(builder.flush(true) == null) {
+			throw new IOException("Uploading a pack failed, compaction stopped.");
+		}
+		
+		// the files are in the new packs now, a pack that fails to be
+		// deleted is left for the next compaction that deletes it outright
+		for(MetaFile pack : sparse) {
+			if(deleteFile(meta, man, pack)) {
+				index.getPacks().remove(pack);
+			} else {
+				System.out.println("Deleting the pack " + pack.getId() + " failed, it is left for the next compaction.");
+				reclaimed -= pack.getLength();
+			}
+		}
+		System.out.println("Compacted " + sparse.size() + " packs, reclaimed " + reclaimed + " bytes.");
+		this.sco = insco;
+		progressMade(100, StorageClientState.COMPLETE);
+		return reclaimed;
+	}
+	
+	/**
+	 * Uploads the file whole as stripes, see uploadFile().
+	 */
+	private MetaFile uploadStriped(MetaDataAPI meta, SLAManager man, 
+			MetaFile mfile, MetaFile target, 
+			File file, String file_newname,
+			boolean use_encryption,
+			SLA sla, int k, int n, int localGroups,
+			StorageClientObserver insco) throws Exception {
+		if(!compression || file == null || file.length() == 0 || !Compression.isCompressible(file)) {
+			return uploadStriped(meta, man, mfile, target, file, file, null, file_newname, use_encryption,
+					sla, k, n, localGroups, insco);
+		}
+		// the compressed file is uploaded in place of the file
+		File compressed = compressFile(file, Compression.DEFLATE);
+		try {
+			return uploadStriped(meta, man, mfile, target, file, compressed, Compression.DEFLATE, file_newname,
+					use_encryption, sla, k, n, localGroups, insco);
+		} finally {
+			// kept only for resuming an upload in segments
+			if(checkpointDir == null || !getCheckpointFile(compressed).exists()) {
+				compressed.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Uploads the file, or the compressed file in its place when the codec
+	 * is given, as stripes.
+	 */
+	private MetaFile uploadStriped(MetaDataAPI meta, SLAManager man, 
+			MetaFile mfile, MetaFile target, 
+			File original, File file, String codec, String file_newname,
+			boolean use_encryption,
+			SLA sla, int k, int n, int localGroups,
+			StorageClientObserver insco) throws Exception {
 		// jk: choose storages based on sla
 		
 		this.sco = insco;
@@ -117,7 +611,8 @@ public class MetaDataClient {
 		//   report update status
 //		int min_stripes = k;
 //		int max_stripes = n;
-		int packetSize = 10240;
+		// chosen for the file and the storages, stored in the meta data
+		int packetSize = PacketSizePolicy.LEGACY_PACKET_SIZE;
 		int keyLength = 128;
 		String algorithm = "AES";
 		String cipher = "AES/CBC/PKCS5Padding";
@@ -125,17 +620,69 @@ public class MetaDataClient {
 		MetaFile mf = target;
 		long stripePaddingSize = 0;
 		long newfile_length = 0;
-		ArrayList<StripeLocation> stripes = new ArrayList<StripeLocation>();
+		List<StripeLocation> stripes = new ArrayList<StripeLocation>();
 		List<StorageClient> jcc = null;
 		OutputStream outStreams[] = null;
 		InputStream inS = null;
+		StripePipeline pipeline = null;
+		StripeCompletion completion = null;
+		UploadCheckpoint checkpoint = null;
+		HydraKey segmentKey = null;
 		
 		int progress = 0;
 		progressMade(progress, StorageClientState.INITIALIZING);
 		progress = 50;
 
-		if(file != null && file.length() > 0) {
+		if(file != null && file.length() > 0 && checkpointDir != null) {
+			// continue an upload that was left unfinished
+			jcc = new ArrayList<StorageClient>();
+			checkpoint = resumeCheckpoint(man, file, k, n, localGroups, use_encryption, jcc);
+			if(checkpoint != null && use_encryption) {
+				segmentKey = resumeKey(meta, mf, checkpoint);
+			}
+		}
+		if(checkpoint == null && file != null && file.length() > 0) {
 			jcc = man.getStorageBySLA(sla, n);
+			packetSize = packetSizePolicy.choose(file.length() + EXTRA_SIZE, k, jcc);
+			System.out.println("Packet size: " + packetSize);
+			long segmentPackets = getSegmentPackets(k, packetSize);
+			if(checkpointDir != null && getSegmentCount(file.length(), k, packetSize, segmentPackets) > 1) {
+				checkpoint = new UploadCheckpoint(getCheckpointFile(file), file, mf.getId().toString(), k, n,
+						localGroups, use_encryption, packetSize, segmentPackets);
+				if(original != file) {
+					checkpoint.setSource(original);
+				}
+				List<StripeLocation> locations = new ArrayList<StripeLocation>();
+				for(int kk = 0; n>kk; kk++) {
+					StorageClient sc = jcc.get(kk);
+					String filename = mf.getId().toString() + kk;
+					locations.add(new StripeLocation(StripeCode.toURI(sc.getURI(filename),
+							segmentPackets * (packetSize + StripeHeader.CHECKSUM_SIZE)), sc.getType(), sc.getVersion()));
+				}
+				checkpoint.setStripes(locations);
+				if(use_encryption) {
+					segmentKey = HydraKey.generateKey(algorithm, keyLength);
+					// sets the IV of the key, the first segment starts from it
+					HydraCrypt.encryptingCipher(segmentKey, cipher);
+					String dummy_filename = mf.getId().toString();
+					String dummy_username = meta.getUserInfo().getName();
+					HydraConnection.distributeKey(getHydraConnections(), 2, segmentKey, dummy_filename, dummy_username);
+				}
+				checkpoint.save();
+			}
+		}
+
+		if(checkpoint != null) {
+			// the large files are uploaded in segments that can be resumed
+			if(!uploadSegments(file, segmentKey, k, n, localGroups, jcc, checkpoint)) {
+				System.out.println("UPLOAD FAILED - RETRY SHOULD CONTINUE FROM SEGMENT " + (checkpoint.getSegments() + 1) + ".");
+				return null;
+			}
+			packetSize = checkpoint.getPacketSize();
+			stripePaddingSize = checkpoint.getStripePadding();
+			stripes.addAll(checkpoint.getStripes());
+			newfile_length = file.length();
+		} else if(file != null && file.length() > 0) {
 
 			// Update progress to GUI
 			//progress = 50;
@@ -147,50 +694,82 @@ public class MetaDataClient {
 			//int needed = jcc.size(); 
 
 			// Get output streams where to write the stripes
-			long datasize = (long)Math.ceil((double)file.length()*1.0/k/packetSize)*packetSize;
+			long datasize = StripeHeader.getStripeSize(packetSize, (long)Math.ceil((double)file.length()*1.0/k/packetSize));
 			System.out.println("Stripe size in bytes: " + datasize + " > " + file.length()*1.0/k);
-			outStreams = new OutputStream[n];
-			System.out.println("Number of output streams: " + n);
-			for(int kk = 0; n>kk; kk++) {
-				StorageClient sc = jcc.get(kk);
-				//String filename = this.file.getName() + "." + kk + "." + "stripe";
-				String filename = mf.getId().toString() + kk;
-				System.out.print("Saving stripe '" + filename);
-				outStreams[kk] = sc.writeData(filename, (int)datasize, sco);
-				stripes.add(new StripeLocation(new URI(sc.getURI(filename)), sc.getType(), sc.getVersion()));
-				System.out.println("' to URL: " + sc.getURI(filename).toString());
-				// Update progress to GUI
-				progress = (int)(50+1.0*kk/(1.0*n-1.0)*50);
-				//setStatus(UploaderState.INITIALIZING);
-				progressMade(progress, StorageClientState.INITIALIZING);
+			FECCode fec;
+			if (localGroups > 0) {
+				fec = new LRCCode(k, n, localGroups);
+			} else {
+				fec = FECCodeFactory.getDefault().createFECCode(k, n);
 			}
+			outStreams = new OutputStream[n];
+			boolean striping = false;
+			try {
+				System.out.println("Number of output streams: " + n);
+				for(int kk = 0; n>kk; kk++) {
+					StorageClient sc = jcc.get(kk);
+					//String filename = this.file.getName() + "." + kk + "." + "stripe";
+					String filename = mf.getId().toString() + kk;
+					System.out.print("Saving stripe '" + filename);
+					outStreams[kk] = sc.writeData(filename, (int)datasize, sco);
+					stripes.add(new StripeLocation(StripeCode.toURI(sc.getURI(filename)), sc.getType(), sc.getVersion()));
+					System.out.println("' to URL: " + sc.getURI(filename).toString());
+					// Update progress to GUI
+					progress = (int)(50+1.0*kk/(1.0*n-1.0)*50);
+					//setStatus(UploaderState.INITIALIZING);
+					progressMade(progress, StorageClientState.INITIALIZING);
+				}
 
-			if(use_encryption) {
-				try {
+				// the file is read, encrypted, encoded and written to each
+				// storage in stages of their own, the stripes are written in
+				// the container format with a header and the packet checksums
+				pipeline = new StripePipeline(fec, packetSize, StreamingFEC.DEFAULT_THREADS, Math.max(1, writeQueuePackets));
+				if(use_encryption) {
 					// Crypting with hydra
 					HydraKey key = HydraKey.generateKey(algorithm, keyLength);
-					inS = HydraCrypt.encryptFile(file, key, cipher);
+					pipeline.setCipher(HydraCrypt.encryptingCipher(key, cipher));
 					// Store the hydra key
 					String dummy_filename = mf.getId().toString();
 					String dummy_username = meta.getUserInfo().getName();
 					//System.out.println("Username: '" + meta.getUserInfo().getName() + "'.");
 					HydraConnection.distributeKey(getHydraConnections(), 2, key, dummy_filename, dummy_username);
-				}catch (Exception e) {
-					e.printStackTrace(System.err);
 				}
-			}else{
+				List<String> cloudFiles = new ArrayList<String>();
+				for(StripeLocation s : stripes) {
+					cloudFiles.add(s.getURI().getRawPath().substring(1));
+				}
+				completion = new StripeCompletion(jcc, cloudFiles, 50, 40);
+				pipeline.setListener(completion);
+
+				// stripe the input stream to the output streams
+				System.out.print("Doing striping... ");
+				// Update progress to GUI
+				progress = 0;
+				//setStatus(UploaderState.ACTIVE);
+				progressMade(progress, StorageClientState.ACTIVE);
 				inS = new FileInputStream(file);
+				// the pipeline closes the streams, also when it fails
+				striping = true;
+				try {
+					stripePaddingSize = pipeline.stripe(inS, outStreams, file.length() + EXTRA_SIZE);
+				} finally {
+					inS.close();
+				}
+			} finally {
+				if(!striping) {
+					// the storages must not wait for the stripes that were
+					// never started
+					for(OutputStream out : outStreams) {
+						if(out != null) {
+							try {
+								out.close();
+							} catch (IOException e) {
+								// the upload has failed anyway
+							}
+						}
+					}
+				}
 			}
-			//
-			//System.out.println("File " + this.file.getName() + " could not be read.");
-
-			// stripe the input stream to the output streams
-			System.out.print("Doing striping... ");
-			// Update progress to GUI
-			progress = 0;
-			//setStatus(UploaderState.ACTIVE);
-			progressMade(progress, StorageClientState.ACTIVE);
-			stripePaddingSize = StreamingFEC.stripe(inS, outStreams, packetSize, k, n, file.length() + EXTRA_SIZE);
 			System.out.println("done.");
 			System.out.println("File striped to " + n + " stripes.");
 			System.out.println("Striped file size:" + file.length() + ", stripedpadlength: " + stripePaddingSize);     
@@ -200,43 +779,18 @@ public class MetaDataClient {
 		}
 
 		// Finish uploading
-		if(stripes.size()>0) {
-			try {
-				progress = 0;
-				while(progress < 100) {
-					double progressall = 0;	
-					for(int kk = 0; kk < n; kk++) {
-						StorageClient sc = jcc.get(kk);
-						double progresslocal = sc.getTransferProgress();
-						progressall += progresslocal;
-						if(progresslocal >= 100) {
-							outStreams[kk].close();
-						}
-						//System.out.println("Progress(" + kk + "): " + progressall);
-					}
-					progress = (int)(progressall*1.0/n);
-					//setStatus(UploaderState.ACTIVE);
-					System.out.println("Progress: " + progress);
-					progressMade((int)(progress/2.0), StorageClientState.ACTIVE);
-					Thread.sleep(200);
-				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		if(completion != null) {
+			// the storages tell when their stripes are done
+			boolean uploaded = completion.await(completionTimeout);
+			for(StageStats stage : pipeline.getStats()) {
+				System.out.println(stage);
 			}
-			for(int kk = 0; kk < n; kk++) {					
-				StorageClient sc = jcc.get(kk);
-				if(sc.writeDataWaitToComplete(100000) == false) {
-					System.out.println("Wait failed: " + kk);
+			if(!uploaded) {
+				System.out.println("UPLOAD FAILED - RETRY SHOULD BE HAPPENING NEXT.");
+				if(codec != null) {
+					file.delete();
 				}
-
-				// Lets double check that file was uploaded ok
-				if(sc.checkFile(stripes.get(kk).getURI().getRawPath().substring(1) , null) == false) {
-					System.out.println("UPLOAD FAILED - RETRY SHOULD BE HAPPENING NEXT.");
-					return null; // Lets fail if even one piece is missing
-				}
-				progress = (int)(50 + 40*kk*1.0/n);
-				progressMade(progress, StorageClientState.ACTIVE);
-				//System.out.println("Wait completed" + kk);
+				return null; // Lets fail if even one piece is missing
 			}
 			
 			//setStatus(UploaderState.COMPLETE);
@@ -256,11 +810,22 @@ public class MetaDataClient {
 			mf.setParent(root.getId());
 			mf.setDirectory(false);
 			if(file_newname == null) {
-				mf.setName(file.getName());
+				mf.setName(original.getName());
 			}else {
 				mf.setName(file_newname);
 			}
-			mf.setLength(newfile_length);
+			if(codec != null) {
+				// the length of the compressed data is in the stripe URIs
+				mf.setLength(original.length());
+				List<StripeLocation> compressed = new ArrayList<StripeLocation>();
+				for(StripeLocation s : stripes) {
+					compressed.add(new StripeLocation(StripeCode.toURI(s.getURI(), codec, newfile_length), s.getType(), s.getVersion()));
+				}
+				stripes = compressed;
+				System.out.println("File compressed with " + codec + " from " + original.length() + " to " + newfile_length + " bytes.");
+			} else {
+				mf.setLength(newfile_length);
+			}
 			mf.addACLItem(new ACLItem(user.getName(), true, true));
 			mf.setSLA(sla);
 			mf.setMinStripes(k);
@@ -269,21 +834,315 @@ public class MetaDataClient {
 			mf.setBlockSize(packetSize);
 			//mf.setK
 
-			// todo: stripes
-			if(stripes.size()>0) {
-				mf.setStripes(stripes);
+			// todo: stripes
+			if(stripes.size()>0) {
+				mf.setStripes(stripes);
+			}
+
+			meta.putFile(mf);
+			System.out.println("done: " + mf.getName());
+			if(checkpoint != null) {
+				checkpoint.delete();
+			}
+			if(codec != null) {
+				file.delete();
+			}
+
+			// todo: key pieces	
+		}
+		
+		progress = 100;
+		progressMade(progress, StorageClientState.COMPLETE);
+		
+		return mf; // or mfile?
+	}
+	
+	/**
+	 * Uploads the file in content-defined chunks. The chunks the user has
+	 * not stored yet are uploaded as files of their own to the ChunkIndex,
+	 * and the meta file of the file gets the list of its chunks instead of
+	 * stripes.
+	 * 
+	 * @return Metafile of the new uploaded file, null if uploading a chunk
+	 *         failed.
+	 */
+	private MetaFile uploadChunks(MetaDataAPI meta, SLAManager man,
+			MetaFile mfile, MetaFile target,
+			File file, String file_newname,
+			boolean use_encryption,
+			SLA sla, int k, int n, int localGroups,
+			StorageClientObserver insco) throws Exception {
+		progressMade(0, StorageClientState.INITIALIZING);
+		ChunkIndex index = ChunkIndex.load(meta, true);
+		Mac mac = getChunkMac(meta, index);
+		List<StripeLocation> chunks = new ArrayList<StripeLocation>();
+		long read = 0;
+		long uploaded = 0;
+		int newChunks = 0;
+		
+		progressMade(0, StorageClientState.ACTIVE);
+		InputStream inS = new FileInputStream(file);
+		try {
+			ContentChunker chunker = new ContentChunker(inS, chunkSize / 4, chunkSize, chunkSize * 4);
+			byte data[];
+			while((data = chunker.next()) != null) {
+				String hash = ChunkIndex.hash(mac, data, 0, data.length);
+				MetaFile chunk = index.get(hash);
+				if(chunk == null) {
+					// the chunks are uploaded like files, without progress
+					File chunkFile = File.createTempFile("sicx-chunk", null);
+					try {
+						OutputStream out = new FileOutputStream(chunkFile);
+						try {
+							out.write(data);
+						} finally {
+							out.close();
+						}
+						chunk = uploadStriped(meta, man, index.getDirectory(), new MetaFileImpl(), chunkFile, hash,
+								use_encryption, sla, k, n, localGroups, null);
+					} finally {
+						chunkFile.delete();
+						this.sco = insco;
+					}
+					if(chunk == null) {
+						System.out.println("UPLOAD FAILED - uploading chunk " + hash + " failed.");
+						return null;
+					}
+					index.add(hash, chunk);
+					uploaded += data.length;
+					newChunks++;
+				}
+				chunks.add(ChunkList.toLocation(new ChunkList.Chunk(hash, chunk.getId(), data.length)));
+				read += data.length;
+				progressMade((int)(90.0*read/file.length()), StorageClientState.ACTIVE);
+			}
+		} finally {
+			inS.close();
+		}
+		System.out.println("File split to " + chunks.size() + " chunks, uploaded " + newChunks + " new chunks of " + uploaded + " bytes out of " + read + ".");
+
+		UserInfo user = meta.getUserInfo();
+		System.out.print("Updating meta data... ");
+		// use the metafile as root that was given, otherwise store in root
+		MetaFile root = mfile;
+		if (root == null || !root.isDirectory())
+			root = meta.getFile(user.getRoots().get(0));
+		MetaFile mf = target;
+		mf.setParent(root.getId());
+		mf.setDirectory(false);
+		mf.setName(file_newname == null ? file.getName() : file_newname);
+		mf.setLength(read);
+		mf.addACLItem(new ACLItem(user.getName(), true, true));
+		mf.setSLA(sla);
+		mf.setMinStripes(k);
+		mf.setStripes(chunks);
+		meta.putFile(mf);
+		System.out.println("done: " + mf.getName());
+
+		progressMade(100, StorageClientState.COMPLETE);
+		return mf;
+	}
+	
+	/**
+	 * Uploads the segments of the stripes that have not been committed yet.
+	 * Each segment is striped as that part of the whole file, so the stripes
+	 * are the same as if uploaded in one go: the CBC encryption of a segment
+	 * continues from the last cipher block of the one before and only the
+	 * segment with the end of the file is padded. The checkpoint is saved
+	 * after all the storages have committed a segment.
+	 * 
+	 * @return true if all the segments have been committed.
+	 */
+	private boolean uploadSegments(File file, HydraKey key, int k, int n, int localGroups,
+			List<StorageClient> jcc, UploadCheckpoint checkpoint) throws Exception {
+		int packetSize = checkpoint.getPacketSize();
+		long segmentPackets = checkpoint.getSegmentPackets();
+		long segmentBytes = segmentPackets * k * packetSize;
+		long fileLength = file.length();
+		long endSize = fileLength + EXTRA_SIZE;
+		long segments = getSegmentCount(fileLength, k, packetSize, segmentPackets);
+		FECCode fec;
+		if (localGroups > 0) {
+			fec = new LRCCode(k, n, localGroups);
+		} else {
+			fec = FECCodeFactory.getDefault().createFECCode(k, n);
+		}
+		List<String> cloudFiles = new ArrayList<String>();
+		for(StripeLocation s : checkpoint.getStripes()) {
+			cloudFiles.add(s.getURI().getRawPath().substring(1));
+		}
+
+		progressMade(0, StorageClientState.ACTIVE);
+		for(long j = checkpoint.getSegments(); j < segments; j++) {
+			long start = j * segmentBytes;
+			long end = Math.min(start + segmentBytes, endSize);
+			// the segment with the end of the file and the ones after it
+			boolean last = start + segmentBytes > fileLength;
+			long dataLength = Math.max(0, Math.min(segmentBytes, fileLength - start));
+			Cipher segmentCipher = null;
+			if(key != null && start <= fileLength) {
+				byte iv[] = j == 0 ? key.getInitializationVector() : checkpoint.getIV(j);
+				if(iv == null) {
+					throw new IOException("The upload checkpoint has no IV for segment " + j + ".");
+				}
+				segmentCipher = HydraCrypt.encryptingCipher(key, last ? "AES/CBC/PKCS5Padding" : "AES/CBC/NoPadding", iv);
 			}
 
-			meta.putFile(mf);
-			System.out.println("done: " + mf.getName());
+			long blocks = (end - start + (long) k * packetSize - 1) / ((long) k * packetSize);
+			long datasize = (j == 0 ? StripeHeader.SIZE : 0) + blocks * (packetSize + StripeHeader.CHECKSUM_SIZE);
+			System.out.println("Uploading segment " + (j + 1) + "/" + segments + " of " + datasize + " bytes per stripe.");
+			OutputStream outStreams[] = new OutputStream[n];
+			List<String> segmentFiles = new ArrayList<String>();
+			for(int kk = 0; n>kk; kk++) {
+				segmentFiles.add(StripeCode.getSegmentName(cloudFiles.get(kk), j));
+				outStreams[kk] = jcc.get(kk).writeData(segmentFiles.get(kk), (int)datasize, sco);
+			}
 
-			// todo: key pieces	
+			StripePipeline pipeline = new StripePipeline(fec, packetSize, StreamingFEC.DEFAULT_THREADS, Math.max(1, writeQueuePackets));
+			pipeline.setCipher(segmentCipher);
+			pipeline.setWriteHeaders(j == 0);
+			int base = (int)(50 + 40.0*j/segments);
+			StripeCompletion completion = new StripeCompletion(jcc, segmentFiles, base, (int)(50 + 40.0*(j+1)/segments) - base);
+			pipeline.setListener(completion);
+			long padding;
+			FileInputStream inS = new FileInputStream(file);
+			try {
+				inS.getChannel().position(Math.min(start, fileLength));
+				padding = pipeline.stripe(new LimitedInputStream(inS, dataLength), outStreams, end - start);
+			} catch (IOException e) {
+				System.out.println("Striping segment " + (j + 1) + " failed: " + e.getMessage());
+				return false;
+			} finally {
+				inS.close();
+			}
+			boolean committed = completion.await(completionTimeout);
+			for(StageStats stage : pipeline.getStats()) {
+				System.out.println(stage);
+			}
+			if(!committed) {
+				return false;
+			}
+			checkpoint.setCommitted(j, last ? null : pipeline.getLastCipherBlock(), padding);
+			checkpoint.save();
 		}
-		
-		progress = 100;
-		progressMade(progress, StorageClientState.COMPLETE);
-		
-		return mf; // or mfile?
+		return true;
+	}
+	
+	/**
+	 * Finds the checkpoint of an unfinished upload of the file and gets the
+	 * storages of its stripes. A checkpoint of the file that was changed
+	 * since, of another code or whose storages are not available is
+	 * deleted.
+	 * 
+	 * @param jcc Where to add the storages of the stripes.
+	 * @return The checkpoint, null if the upload has to start from the
+	 *         beginning.
+	 */
+	private UploadCheckpoint resumeCheckpoint(SLAManager man, File file, int k, int n, int localGroups,
+			boolean use_encryption, List<StorageClient> jcc) {
+		UploadCheckpoint checkpoint = UploadCheckpoint.load(getCheckpointFile(file));
+		if(checkpoint == null) {
+			return null;
+		}
+		if(!checkpoint.matches(file, k, n, localGroups, use_encryption)) {
+			System.out.println("Discarding the upload checkpoint " + checkpoint.getFile() + " of another upload.");
+			checkpoint.delete();
+			return null;
+		}
+		try {
+			for(StripeLocation s : checkpoint.getStripes()) {
+				StorageClient sc = man.getStorageClient(s.getURI(), s.getType(), s.getVersion());
+				if(sc == null) {
+					throw new IOException("No storage for " + s.getURI() + ".");
+				}
+				jcc.add(sc);
+			}
+		} catch (IOException e) {
+			System.out.println("Can't resume the upload of " + file + ": " + e.getMessage());
+			man.returnStorage(jcc);
+			jcc.clear();
+			checkpoint.delete();
+			return null;
+		}
+		System.out.println("Resuming the upload of " + file + " from segment " + (checkpoint.getSegments() + 1) + ".");
+		return checkpoint;
+	}
+	
+	/**
+	 * Gets the key of a resumed upload from the key servers. If the upload
+	 * was started for another meta file, the key is moved to this one.
+	 */
+	private HydraKey resumeKey(MetaDataAPI meta, MetaFile mf, UploadCheckpoint checkpoint) throws Exception {
+		String oldId = checkpoint.getId();
+		String dummy_filename = mf.getId().toString();
+		String dummy_username = meta.getUserInfo().getName();
+		HydraKey key = HydraConnection.gatherKey(getHydraConnections(), oldId, dummy_username);
+		if(!dummy_filename.equals(oldId)) {
+			HydraConnection.distributeKey(getHydraConnections(), 2, key, dummy_filename, dummy_username);
+			checkpoint.setId(dummy_filename);
+			checkpoint.save();
+			try {
+				HydraConnection.removeEntries(getHydraConnections(), oldId, dummy_username);
+			} catch(Exception e) {
+				System.out.println("Failed to remove the old hydra encryption keys: " + e);
+			}
+		}
+		return key;
+	}
+	
+	/**
+	 * @return The number of packets of each stripe in a segment. The
+	 *         segments are encrypted separately, so they have to be whole
+	 *         AES blocks.
+	 */
+	private long getSegmentPackets(int k, int packetSize) {
+		long packets = Math.max(1, segmentSize / (packetSize + StripeHeader.CHECKSUM_SIZE));
+		while((packets * k * packetSize) % 16 != 0) {
+			packets++;
+		}
+		return packets;
+	}
+	
+	/**
+	 * @return The number of segments the stripes of the file are uploaded in.
+	 */
+	private long getSegmentCount(long fileLength, int k, int packetSize, long segmentPackets) {
+		long blockSize = (long) k * packetSize;
+		long blocks = (fileLength + EXTRA_SIZE + blockSize - 1) / blockSize;
+		return (blocks + segmentPackets - 1) / segmentPackets;
+	}
+	
+	/**
+	 * @return Where the checkpoint of the upload of the file is saved.
+	 */
+	private File getCheckpointFile(File file) {
+		return new File(checkpointDir, "upload-" + Integer.toHexString(file.getAbsolutePath().hashCode()) + ".properties");
+	}
+	
+	/**
+	 * Compresses the file for uploading. The compressed file is deleted
+	 * after the upload, unless an upload in segments left a checkpoint to
+	 * resume. A retry of that upload resumes with the same compressed file
+	 * if the checkpoint records it was made from the file as it is now,
+	 * otherwise the file is compressed again and the checkpoint discarded.
+	 * 
+	 * @return The compressed file.
+	 */
+	private File compressFile(File file, String codec) throws IOException {
+		File dir = checkpointDir != null ? checkpointDir : new File(System.getProperty("java.io.tmpdir"));
+		dir.mkdirs();
+		File compressed = new File(dir, "upload-" + Integer.toHexString(file.getAbsolutePath().hashCode()) + "." + codec);
+		UploadCheckpoint checkpoint = checkpointDir != null ? UploadCheckpoint.load(getCheckpointFile(compressed)) : null;
+		if(checkpoint != null) {
+			if(compressed.isFile() && checkpoint.isFrom(file)) {
+				return compressed;
+			}
+			System.out.println("Discarding the upload checkpoint " + checkpoint.getFile() + " of another file.");
+			checkpoint.delete();
+		}
+		Compression.compress(file, compressed, codec);
+		compressed.setLastModified(file.lastModified());
+		return compressed;
 	}
 	
 	/**
@@ -457,11 +1316,17 @@ public class MetaDataClient {
             // .. check if it is empty etc.
         	//System.out.println("MetaClien: deleting directories not implemented - yet.");
         	//return false;
+        } else if(ChunkList.isChunked(mfile.getStripes())) {
+            // the chunks can be shared with other files, so they are left in
+            // the chunk index and the file has no keys of its own
+        } else if(PackEntry.isPacked(mfile.getStripes())) {
+            // the data is left in the pack until the pack is compacted
         } else {
         	if(mfile.getLength() != 0) {
         	
             // get stripes, connections:
             List<StripeLocation> stripes = mfile.getStripes();
+            boolean segmented = StripeCode.getSegmentSize(stripes) > 0;
             for (StripeLocation s : stripes) {
                 StorageClient sc = man.getStorageClient(s.getURI(), s.getType(), s.getVersion());
                 //initSubTask(90/stripes.size());
@@ -471,7 +1336,16 @@ public class MetaDataClient {
 						uri = new URI(s.getURI().toString());
 					
                     String cloudFile = uri.getPath().substring(1);
-                    if(sc.deleteFile(cloudFile, sco) == false) {
+                    if(segmented) {
+                        // the segments are deleted until the last one
+                        String segment;
+                        for(long j = 0; sc.checkFile(segment = StripeCode.getSegmentName(cloudFile, j), sco); j++) {
+                            if(sc.deleteFile(segment, sco) == false) {
+                                System.out.printf("File " + mfile.getName() + " delete failed.\n");
+                                return false;
+                            }
+                        }
+                    } else if(sc.deleteFile(cloudFile, sco) == false) {
                         System.out.printf("File " + mfile.getName() + " delete failed.\n");		   
                         return false;
                     }
@@ -487,12 +1361,14 @@ public class MetaDataClient {
         }
    
         // Remove encryption keys
-        try {
-        	String dummy_filename = mfile.getId().toString();
-        	String dummy_username = meta.getUserInfo().getName();
-        	HydraConnection.removeEntries(getHydraConnections(), dummy_filename, dummy_username);
-        }catch(Exception e) {
-        	System.out.println("Failed to remove hydra encyption keys: " + e);
+        if(!ChunkList.isChunked(mfile.getStripes()) && !PackEntry.isPacked(mfile.getStripes())) {
+        	try {
+        		String dummy_filename = mfile.getId().toString();
+        		String dummy_username = meta.getUserInfo().getName();
+        		HydraConnection.removeEntries(getHydraConnections(), dummy_filename, dummy_username);
+        	}catch(Exception e) {
+        		System.out.println("Failed to remove hydra encyption keys: " + e);
+        	}
         }
         
         // All pieces were deleted so we can remove the file reference
@@ -730,6 +1606,15 @@ public class MetaDataClient {
 		this.sco = insco;
 		int progress = 0;
 		
+		if(ChunkList.isChunked(mfile2.getStripes())) {
+			downloadChunks(meta, man, mfile2, outStream, 0, mfile2.getLength(), use_encryption, insco);
+			return true;
+		}
+		if(PackEntry.isPacked(mfile2.getStripes())) {
+			downloadPacked(meta, man, mfile2, outStream, 0, mfile2.getLength(), use_encryption, insco);
+			return true;
+		}
+		
 		// TODO: Zero size files are special case
 //		if(mfile2.getLength()==0) {
 //			file.createNewFile();
@@ -737,90 +1622,68 @@ public class MetaDataClient {
 //		}
 		
 		MetaFile mfile = mfile2; 
-		StorageClient sc[];
-        int k = 5;
-        int n = 7;
-        int packetSize = 10240;
         List<StripeLocation> stripes = mfile.getStripes();
+        int k = mfile.getMinStripes();
+        int n = stripes.size();
+        int packetSize = PacketSizePolicy.getPacketSize(mfile.getBlockSize());
 
-        //OutputStream decryptingStream = HydraCrypt.decryptingFile(outFile, key, cipher);
-        InputStream inS[] = new InputStream[n];
-        sc = new StorageClient[n];
-        int ind = 0;
-        for (StripeLocation s : stripes) {
-            System.out.println("processing stripe " + s.getURI());
-            sc[ind] = man.getStorageClient(s.getURI(), s.getType(), s.getVersion());
-            if (sc[ind] == null) {
-                continue;
-        	}
-            URI uri = new URI(s.getURI().toString());
-            String cloudFile = uri.getPath().substring(1);
-            
-            if (!sc[ind].checkFile(cloudFile, sco)) {
-                System.out.println("No stripe " + cloudFile + " to get " + mfile.getName() + ".");
-                inS[ind] = null;
-            	//continue;
-            }else {
-            	System.out.println("Downloading stripe " + cloudFile + " to get " + mfile.getName() + ".");
-            	inS[ind] = sc[ind].readData(cloudFile, (int)mfile.getLength(), sco);
-            }
-            ind++;
-            
-    		// Update progress to GUI
-    		progress = (int)(50+1.0*ind/(1.0*n-1.0)*40);
-            progressMade(progress, StorageClientState.INITIALIZING);
-        }
-
-        // Check that we have enough stripes
-        int pieces = 0;
-        for(InputStream inputs : inS) {
-        	if(inputs != null) {
-        		pieces++;
-        	}
-        }
-        if(pieces < mfile.getMinStripes()) {
+        if(n < k) {
         	throw new IOException("Not enough stripes to construct the file: " + mfile.getName());
         }
+        String codec = StripeCode.getCodec(stripes);
+        if (codec != null) {
+            // decompressed after decrypting
+            outStream = Compression.decompressingStream(outStream, codec);
+        }
+        // The stripes are opened by the construction when needed, the
+        // parity stripes only if some data stripes are missing.
+        StorageStripeSource source = new StorageStripeSource(man, stripes, (int)getStoredLength(mfile), sco);
+        source.setStripeSize(getStripeSize(mfile, k, packetSize, StripeCode.isContainer(stripes)));
     
         OutputStream decryptingStream = null;
         progress = 50;
         progressMade(progress, StorageClientState.ACTIVE);
         if (use_encryption) {
-            HydraKey reconstructed_key = null;
-            try {
-                // Get keys
-                String dummy_filename = mfile.getId().toString();
-                String dummy_username = meta.getUserInfo().getName();
-                System.out.println("Decrypting file: " + mfile.getName());
-                reconstructed_key = HydraConnection.gatherKey(getHydraConnections(), dummy_filename, dummy_username);
-
-            } catch (Exception e) {
-                e.printStackTrace(System.err);
-                // TODO: should clean up temp files etc.
-                throw e;
-            }
+            HydraKey reconstructed_key = gatherKey(meta, mfile);
             // Reconstruct data
             decryptingStream = HydraCrypt.decryptingStream(outStream, reconstructed_key, "AES/CBC/PKCS5Padding");
         } else {
             decryptingStream = outStream; // mfile.getName());
         }
 
-        long constructedSize = StreamingFEC.construct(inS, decryptingStream, packetSize, k, ind, mfile.getLength()+EXTRA_SIZE-mfile.getStripePadLength());
-        System.out.println("File '" + mfile.getName() + " constructed from " + ind + " stripes and written to file.");
+        ConstructStats stats = createStats();
+        long constructedSize;
+        try {
+            long dataSize = getStoredLength(mfile)+EXTRA_SIZE-mfile.getStripePadLength();
+            int h = Math.min(hedge, n - k);
+            if (StripeCode.isContainer(stripes)) {
+                // the code and packet size are in the stripe headers
+                if (h > 0) {
+                    constructedSize = StreamingFEC.constructHedged(source, decryptingStream, n, dataSize, h, stats);
+                } else {
+                    constructedSize = StreamingFEC.construct(source, decryptingStream, n, dataSize, StreamingFEC.DEFAULT_THREADS, stallTimeout, stats);
+                }
+            } else {
+                FECCode fec = StripeCode.createCode(stripes, k);
+                if (h > 0) {
+                    constructedSize = StreamingFEC.constructHedged(source, decryptingStream, packetSize, fec, dataSize, h, stats);
+                } else {
+                    constructedSize = StreamingFEC.construct(source, decryptingStream, packetSize, fec, dataSize, StreamingFEC.DEFAULT_THREADS, stallTimeout, stats);
+                }
+            }
+        } finally {
+            // Return the storages, the padding after the data is not read
+            // unless it is short
+            source.close();
+        }
+        System.out.println("Read " + source.getBytesRead() + " bytes from the stripes, " + source.getBytesDrained() + " after the data, " + source.getStripesAborted() + " stripes aborted.");
+        System.out.println("File '" + mfile.getName() + " constructed from " + n + " stripes and written to file.");
+        System.out.println("Blocks decoded: " + stats.getBlocksDecoded() + ", passed through: " + stats.getBlocksPassedThrough() + ", corrupted packets: " + stats.getPacketsCorrupted() + ", late packets: " + stats.getPacketsLate() + ", skipped packets: " + stats.getPacketsSkipped() + ", failed stripes: " + stats.getStripesFailed());
         System.out.println("Constructed file size:" + constructedSize + ", length: " + mfile.getLength() + ", stripedpadlength: " + mfile.getStripePadLength());     
         
         progress = 100;
         progressMade(progress, StorageClientState.ACTIVE);
         
-        // Make sure read has finished (padding is read also) and return storage
-        for(int i=0;ind>i;i++){
-        	if(inS[i] != null) {
-        	  while(inS[i].read() != -1);
-        	  	inS[i].close();        	  
-        	  	man.returnStorage(sc[i]);
-        	}
-        }
-        
         decryptingStream.flush();
         decryptingStream.close();
                 
@@ -831,6 +1694,252 @@ public class MetaDataClient {
 	}
 	
 	
+    /**
+     * Downloads a byte range of a file based on the given metafile. Only
+     * the blocks of the stripes that contain the range are read and decoded,
+     * and with encryption only the cipher blocks of the range and the one
+     * before it, which is the IV of the first one in CBC mode. A compressed
+     * file is read and decompressed from its beginning up to the end of the
+     * range. The output is the same as the same range of the file
+     * downloaded with downloadFile().
+     * 
+     * @param meta Meta server instance.
+     * @param man SLA server instance.
+     * @param mfile Metafile to be downloaded.
+     * @param outStream Where to write the range, closed at the end.
+     * @param offset The offset of the range in the file.
+     * @param length The length of the range, the range ends at the end of
+     *        the file at the latest.
+     * @param use_encryption True if encryption is used, false if not.
+     * 
+     * @return The number of bytes written.
+     * @throws Exception
+     */
+	public long downloadRange(MetaDataAPI meta, SLAManager man, 
+							  MetaFile mfile, OutputStream outStream, 
+							  long offset, long length,
+							  boolean use_encryption,
+							  StorageClientObserver insco) throws Exception {
+		this.sco = insco;
+		if(ChunkList.isChunked(mfile.getStripes())) {
+			return downloadChunks(meta, man, mfile, outStream, offset, length, use_encryption, insco);
+		}
+		if(PackEntry.isPacked(mfile.getStripes())) {
+			return downloadPacked(meta, man, mfile, outStream, offset, length, use_encryption, insco);
+		}
+        List<StripeLocation> stripes = mfile.getStripes();
+        int k = mfile.getMinStripes();
+        int n = stripes.size();
+        int packetSize = PacketSizePolicy.getPacketSize(mfile.getBlockSize());
+
+        if(n < k) {
+        	throw new IOException("Not enough stripes to construct the file: " + mfile.getName());
+        }
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range, offset " + offset + ", length " + length + ".");
+        }
+        length = Math.max(0, Math.min(length, mfile.getLength() - offset));
+        if (StripeCode.getCodec(stripes) != null) {
+            // the offsets of the compressed data are not known, so the file
+            // is read and decompressed from the beginning, the construction
+            // is stopped by the first write after the end of the range
+            RangeOutputStream range = new RangeOutputStream(outStream, offset, length);
+            try {
+                downloadFile(meta, man, mfile, range, use_encryption, insco);
+            } catch (IOException e) {
+                if (!range.isDone()) {
+                    throw e;
+                }
+                outStream.close();
+            }
+            return length;
+        }
+        progressMade(50, StorageClientState.ACTIVE);
+
+        // the range of the constructed data, the ciphertext with encryption
+        OutputStream rangeStream;
+        long dataOffset;
+        long dataLength;
+        if (use_encryption) {
+            RangeDecryptingStream decrypting = new RangeDecryptingStream(outStream, gatherKey(meta, mfile),
+                    "AES/CBC/PKCS5Padding", offset, length);
+            rangeStream = decrypting;
+            dataOffset = decrypting.getCipherOffset();
+            dataLength = decrypting.getCipherLength();
+        } else {
+            rangeStream = outStream;
+            dataOffset = offset;
+            dataLength = length;
+        }
+
+        boolean container = StripeCode.isContainer(stripes);
+        StorageStripeSource source = new StorageStripeSource(man, stripes, (int)getStoredLength(mfile), sco);
+        source.setStripeSize(getStripeSize(mfile, k, packetSize, container));
+        if (dataLength > 0) {
+            // read the stripes only until the last block of the range
+            long blocks = (dataOffset + dataLength - 1) / ((long) k * packetSize) + 1;
+            source.setEnd(container ? StripeHeader.getStripeSize(packetSize, blocks) : blocks * packetSize);
+        }
+
+        ConstructStats stats = createStats();
+        try {
+            long dataSize = getStoredLength(mfile)+EXTRA_SIZE-mfile.getStripePadLength();
+            if (container) {
+                StreamingFEC.constructRange(source, rangeStream, n, dataSize, dataOffset, dataLength, StreamingFEC.DEFAULT_THREADS, stats);
+            } else {
+                FECCode fec = StripeCode.createCode(stripes, k);
+                StreamingFEC.constructRange(source, rangeStream, packetSize, fec, dataSize, dataOffset, dataLength, StreamingFEC.DEFAULT_THREADS, stats);
+            }
+        } finally {
+            source.close();
+        }
+        System.out.println("Range " + offset + "+" + length + " of '" + mfile.getName() + "' constructed from stripe offset " + dataOffset + ".");
+        System.out.println("Read " + source.getBytesRead() + " bytes from the stripes, " + source.getBytesDrained() + " after the range, " + source.getStripesAborted() + " stripes aborted.");
+        System.out.println("Blocks decoded: " + stats.getBlocksDecoded() + ", passed through: " + stats.getBlocksPassedThrough() + ", corrupted packets: " + stats.getPacketsCorrupted());
+
+        rangeStream.flush();
+        rangeStream.close();
+
+        progressMade(100, StorageClientState.COMPLETE);
+		return length;
+	}
+
+    /**
+     * Downloads a range of a file uploaded in chunks, only the chunks that
+     * overlap the range are downloaded. The content of each whole chunk is
+     * checked against its hash.
+     * 
+     * @return The number of bytes written.
+     */
+    private long downloadChunks(MetaDataAPI meta, SLAManager man,
+                                MetaFile mfile, OutputStream outStream,
+                                long offset, long length,
+                                boolean use_encryption,
+                                StorageClientObserver insco) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range, offset " + offset + ", length " + length + ".");
+        }
+        long end = offset + Math.max(0, Math.min(length, mfile.getLength() - offset));
+        long written = 0;
+        Mac mac = getChunkMac(meta, null);
+        try {
+            long chunkStart = 0;
+            for (ChunkList.Chunk chunk : ChunkList.getChunks(mfile.getStripes())) {
+                long chunkEnd = chunkStart + chunk.getLength();
+                if (chunkEnd > offset && chunkStart < end) {
+                    MetaFile chunkFile = meta.getFile(chunk.getId());
+                    if (chunkFile == null) {
+                        throw new IOException("Chunk " + chunk.getHash() + " of " + mfile.getName() + " not found.");
+                    }
+                    ChunkOutputStream out = new ChunkOutputStream(outStream, mac);
+                    if (chunkStart >= offset && chunkEnd <= end) {
+                        downloadFile(meta, man, chunkFile, out, use_encryption, null);
+                        if (!chunk.getHash().equals(out.getHash())) {
+                            throw new IOException("Chunk " + chunk.getHash() + " of " + mfile.getName() + " is corrupted.");
+                        }
+                    } else {
+                        long from = Math.max(offset, chunkStart);
+                        downloadRange(meta, man, chunkFile, out, from - chunkStart, Math.min(end, chunkEnd) - from,
+                                use_encryption, null);
+                    }
+                    written += out.getCount();
+                    this.sco = insco;
+                    progressMade((int) (100.0 * written / Math.max(1, end - offset)), StorageClientState.ACTIVE);
+                }
+                chunkStart = chunkEnd;
+            }
+        } finally {
+            this.sco = insco;
+            outStream.close();
+        }
+        System.out.println("Downloaded " + written + " bytes of '" + mfile.getName() + "' from its chunks.");
+        progressMade(100, StorageClientState.COMPLETE);
+        return written;
+    }
+
+    /**
+     * Downloads a range of a file stored in a pack with a range read of the
+     * pack.
+     * 
+     * @return The number of bytes written.
+     */
+    private long downloadPacked(MetaDataAPI meta, SLAManager man,
+                                MetaFile mfile, OutputStream outStream,
+                                long offset, long length,
+                                boolean use_encryption,
+                                StorageClientObserver insco) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range, offset " + offset + ", length " + length + ".");
+        }
+        PackEntry entry = PackEntry.get(mfile.getStripes());
+        MetaFile pack = meta.getFile(entry.getPack());
+        if (pack == null) {
+            outStream.close();
+            throw new IOException("Pack of " + mfile.getName() + " not found.");
+        }
+        length = Math.max(0, Math.min(length, entry.getLength() - offset));
+        return downloadRange(meta, man, pack, outStream, entry.getOffset() + offset, length, use_encryption, insco);
+    }
+
+    /**
+     * @return The size of the stripes of the file, the data and the padding
+     *         are striped in blocks of k packets.
+     */
+    private long getStripeSize(MetaFile mfile, int k, int packetSize, boolean container) {
+        long blockSize = (long) k * packetSize;
+        long blocks = (getStoredLength(mfile) + EXTRA_SIZE + blockSize - 1) / blockSize;
+        return container ? StripeHeader.getStripeSize(packetSize, blocks) : blocks * packetSize;
+    }
+
+    /**
+     * @return The length of the data in the stripes, the compressed length
+     *         if the file was compressed.
+     */
+    private long getStoredLength(MetaFile mfile) {
+        return StripeCode.getStoredLength(mfile.getStripes(), mfile.getLength());
+    }
+
+    /**
+     * Gets the key of the chunk hashes of the user from the key servers. A
+     * new key is made only for a user with no chunks yet, as the chunks
+     * hashed with a lost key would not be found again.
+     * 
+     * @param index The chunks of the user, null to only get an existing key.
+     * @return A MAC for the hashes of the chunks.
+     */
+    private Mac getChunkMac(MetaDataAPI meta, ChunkIndex index) throws Exception {
+        String username = meta.getUserInfo().getName();
+        HydraKey key;
+        try {
+            key = HydraConnection.gatherKey(getHydraConnections(), ChunkIndex.DIRECTORY_NAME, username);
+        } catch (IOException e) {
+            if (index == null || index.size() > 0) {
+                throw e;
+            }
+            System.out.println("Creating the chunk key of " + username + ".");
+            key = HydraKey.generateKey(HydraKey.ALGORITHM_DEFAULT, ChunkIndex.KEY_LENGTH * 8);
+            HydraConnection.distributeKey(getHydraConnections(), 2, key, ChunkIndex.DIRECTORY_NAME, username);
+        }
+        return ChunkIndex.createMac(key.getEncoded());
+    }
+
+    /**
+     * Gets the encryption key of the file from the key servers.
+     */
+    private HydraKey gatherKey(MetaDataAPI meta, MetaFile mfile) throws Exception {
+        try {
+            // Get keys
+            String dummy_filename = mfile.getId().toString();
+            String dummy_username = meta.getUserInfo().getName();
+            System.out.println("Decrypting file: " + mfile.getName());
+            return HydraConnection.gatherKey(getHydraConnections(), dummy_filename, dummy_username);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            // TODO: should clean up temp files etc.
+            throw e;
+        }
+    }
+	
 	/**
 	 * Returns Canonical name of the given metafile.
 	 * 
@@ -857,4 +1966,325 @@ public class MetaDataClient {
     return currentRootName;
 	}
 	
+	/**
+	 * Waits for the storages to finish the stripes written to them by the
+	 * StripePipeline. The completion of each storage is checked in the
+	 * writing thread of its stripe as soon as the stripe has been written,
+	 * so a fast storage is done while the slow ones are still uploading.
+	 */
+	private class StripeCompletion implements StripePipeline.Listener {
+		private final List<StorageClient> storages;
+		private final List<String> cloudFiles;
+		// the progress before the stripes and the part they add
+		private final int progressBase;
+		private final int progressRange;
+		private int done = 0;
+		private boolean failed = false;
+		
+		StripeCompletion(List<StorageClient> storages, List<String> cloudFiles, int progressBase, int progressRange) {
+			this.storages = storages;
+			this.cloudFiles = cloudFiles;
+			this.progressBase = progressBase;
+			this.progressRange = progressRange;
+		}
+		
+		public void stripeWritten(int index, IOException failure) {
+			boolean ok = false;
+			if (failure != null) {
+				System.out.println("Writing stripe " + index + " failed: " + failure.getMessage());
+			} else {
+				StorageClient sc = storages.get(index);
+				if(sc.writeDataWaitToComplete(100000) == false) {
+					System.out.println("Wait failed: " + index);
+				}
+				// Lets double check that file was uploaded ok
+				ok = sc.checkFile(cloudFiles.get(index), null);
+			}
+			int progress;
+			synchronized (this) {
+				done++;
+				failed |= !ok;
+				progress = (int)(progressBase + progressRange*done*1.0/storages.size());
+				notifyAll();
+			}
+			progressMade(progress, StorageClientState.ACTIVE);
+		}
+		
+		/**
+		 * @param timeout The longest time to wait in milliseconds, 0 waits
+		 *        forever.
+		 * @return true if all the stripes were uploaded in time.
+		 */
+		synchronized boolean await(long timeout) throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while (done < storages.size()) {
+				if (timeout <= 0) {
+					wait();
+					continue;
+				}
+				long left = end - System.currentTimeMillis();
+				if (left <= 0) {
+					System.out.println("Uploading the stripes timed out, " + done + "/" + storages.size() + " done.");
+					// the stripes still being written count as failed
+					failed = true;
+					break;
+				}
+				wait(left);
+			}
+			return !failed;
+		}
+	}
+	
+	/**
+	 * Reads at most the given number of bytes of the stream, for reading a
+	 * segment of the file.
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+		private long left;
+		
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.left = limit;
+		}
+		
+		public int read() throws IOException {
+			if(left <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if(b != -1) {
+				left--;
+			}
+			return b;
+		}
+		
+		public int read(byte b[], int off, int len) throws IOException {
+			if(left <= 0) {
+				return -1;
+			}
+			int num = in.read(b, off, (int) Math.min(len, left));
+			if(num > 0) {
+				left -= num;
+			}
+			return num;
+		}
+		
+		public long skip(long n) throws IOException {
+			long num = in.skip(Math.min(n, left));
+			if(num > 0) {
+				left -= num;
+			}
+			return num;
+		}
+		
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), left);
+		}
+		
+		public boolean markSupported() {
+			return false;
+		}
+	}
+	
+	/**
+	 * Passes a chunk on to the stream of the whole file without closing it,
+	 * and computes the hash of the chunk.
+	 */
+	private static class ChunkOutputStream extends FilterOutputStream {
+		private final Mac mac;
+		private long count = 0;
+		
+		ChunkOutputStream(OutputStream out, Mac mac) {
+			super(out);
+			this.mac = mac;
+			// the MAC may have been left with a part of another chunk
+			mac.reset();
+		}
+		
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		public void write(byte b[], int off, int len) throws IOException {
+			out.write(b, off, len);
+			mac.update(b, off, len);
+			count += len;
+		}
+		
+		/**
+		 * Only flushes, the stream of the file is closed after the last
+		 * chunk.
+		 */
+		public void close() throws IOException {
+			flush();
+		}
+		
+		long getCount() {
+			return count;
+		}
+		
+		String getHash() {
+			return Util.bytesToHex(mac.doFinal());
+		}
+	}
+	
+	/**
+	 * Passes on only a range of the data written to it. A write after the
+	 * end of the range fails, so that the writing can stop early.
+	 */
+	static class RangeOutputStream extends FilterOutputStream {
+		// the bytes to skip and to pass on
+		private long skip;
+		private long left;
+		private boolean done = false;
+		
+		RangeOutputStream(OutputStream out, long offset, long length) {
+			super(out);
+			this.skip = offset;
+			this.left = length;
+		}
+		
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		public void write(byte b[], int off, int len) throws IOException {
+			if (left == 0 && len > 0) {
+				done = true;
+				throw new IOException("The range has been written.");
+			}
+			int skipped = (int) Math.min(skip, len);
+			skip -= skipped;
+			int n = (int) Math.min(left, len - skipped);
+			if (n > 0) {
+				out.write(b, off + skipped, n);
+				left -= n;
+			}
+		}
+		
+		/**
+		 * @return true if the writing was stopped after the end of the
+		 *         range.
+		 */
+		boolean isDone() {
+			return done;
+		}
+	}
+	
+	/**
+	 * Collects small files to a local pack file and uploads the pack as a
+	 * file of its own to the PackIndex, the files get their place in the
+	 * pack as their stripe location.
+	 */
+	private class PackBuilder {
+		private final MetaDataAPI meta;
+		private final SLAManager man;
+		private final PackIndex index;
+		private final boolean use_encryption;
+		private final SLA sla;
+		private final int k;
+		private final int n;
+		private final int localGroups;
+		private final List<MetaFile> entries = new ArrayList<MetaFile>();
+		private final List<Long> offsets = new ArrayList<Long>();
+		private File packFile = null;
+		private OutputStream out = null;
+		private long size = 0;
+		
+		PackBuilder(MetaDataAPI meta, SLAManager man, PackIndex index, boolean use_encryption,
+				SLA sla, int k, int n, int localGroups) {
+			this.meta = meta;
+			this.man = man;
+			this.index = index;
+			this.use_encryption = use_encryption;
+			this.sla = sla;
+			this.k = k;
+			this.n = n;
+			this.localGroups = localGroups;
+		}
+		
+		/**
+		 * @return true if a file of the length doesn't fit in the pack any
+		 *         more.
+		 */
+		boolean isFull(long length) {
+			return size > 0 && size + length > packSize;
+		}
+		
+		/**
+		 * Adds the length bytes from the stream to the pack as the file of
+		 * the meta file.
+		 */
+		void add(MetaFile entry, InputStream in, long length) throws IOException {
+			if(out == null) {
+				packFile = File.createTempFile("sicx-pack", null);
+				out = new FileOutputStream(packFile);
+			}
+			byte buf[] = new byte[64 * 1024];
+			long left = length;
+			while(left > 0) {
+				int read = in.read(buf, 0, (int) Math.min(buf.length, left));
+				if(read < 0) {
+					throw new IOException("File " + entry.getName() + " ended before " + length + " bytes.");
+				}
+				out.write(buf, 0, read);
+				left -= read;
+			}
+			entries.add(entry);
+			offsets.add(size);
+			size += length;
+		}
+		
+		/**
+		 * Uploads the pack and stores the meta files of its files, the pack
+		 * is empty after.
+		 * 
+		 * @param update true to update the meta files of existing files
+		 *        instead of adding new ones.
+		 * @return The meta files of the files in the pack, null if uploading
+		 *         the pack failed.
+		 */
+		List<MetaFile> flush(boolean update) throws Exception {
+			List<MetaFile> stored = new ArrayList<MetaFile>(entries);
+			if(out == null) {
+				return stored;
+			}
+			boolean compress = compression;
+			try {
+				out.close();
+				// the files are read with range reads of the pack, so it is
+				// not compressed
+				compression = false;
+				MetaFile pack = new MetaFileImpl();
+				pack = uploadStriped(meta, man, index.getDirectory(), pack, packFile, pack.getId().toString(),
+						use_encryption, sla, k, n, localGroups, null);
+				if(pack == null) {
+					System.out.println("UPLOAD FAILED - uploading the pack of " + entries.size() + " files failed.");
+					return null;
+				}
+				index.getPacks().add(pack);
+				for(int i = 0; i < entries.size(); i++) {
+					MetaFile entry = entries.get(i);
+					List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+					stripes.add(new PackEntry(pack.getId(), offsets.get(i), entry.getLength()).toLocation());
+					entry.setStripes(stripes);
+					if(update) {
+						meta.updateFile(entry);
+					} else {
+						meta.putFile(entry);
+					}
+				}
+				System.out.println("Packed " + entries.size() + " files of " + size + " bytes to " + pack.getName() + ".");
+			} finally {
+				compression = compress;
+				packFile.delete();
+				packFile = null;
+				out = null;
+				entries.clear();
+				offsets.clear();
+				size = 0;
+			}
+			return stored;
+		}
+	}
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import org.joni.test.meta.StripeLocation;
+
+import com.eaio.uuid.UUID;
+
+/**
+ * The place of a small file in a pack. The small files uploaded together
+ * are stored one after the other in a pack that is encrypted and striped
+ * like a file of its own in the PackIndex, and read with range reads of
+ * the pack.
+ *
+ * The meta file of a packed file has the single stripe location of type
+ * "pack" with the URI "pack:id#offset=bytes&amp;length=bytes", the id being
+ * the one of the meta file of the pack.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class PackEntry {
+
+    public static final String TYPE = "pack";
+
+    private final UUID pack;
+    private final long offset;
+    private final long length;
+
+    public PackEntry(UUID pack, long offset, long length) {
+        this.pack = pack;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @return The id of the meta file of the pack.
+     */
+    public UUID getPack() {
+        return pack;
+    }
+
+    /**
+     * @return The offset of the file in the pack.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return The location recording the entry.
+     */
+    public StripeLocation toLocation() throws URISyntaxException {
+        return new StripeLocation(new URI(TYPE + ":" + pack + "#offset=" + offset + "&length=" + length), TYPE,
+                null);
+    }
+
+    /**
+     * @return true if the file is stored in a pack.
+     */
+    public static boolean isPacked(List<StripeLocation> stripes) {
+        return stripes != null && stripes.size() == 1 && TYPE.equals(stripes.get(0).getType());
+    }
+
+    /**
+     * @return The place of the packed file in its pack.
+     * @throws IllegalArgumentException
+     *             if the location is not a valid entry.
+     */
+    public static PackEntry get(List<StripeLocation> stripes) {
+        URI uri = stripes.get(0).getURI();
+        String offset = null;
+        String length = null;
+        if (uri.getFragment() != null) {
+            for (String param : uri.getFragment().split("&")) {
+                if (param.startsWith("offset=")) {
+                    offset = param.substring(7);
+                } else if (param.startsWith("length=")) {
+                    length = param.substring(7);
+                }
+            }
+        }
+        if (!isPacked(stripes) || !TYPE.equals(uri.getScheme()) || offset == null || length == null) {
+            throw new IllegalArgumentException("Invalid pack entry: " + uri);
+        }
+        try {
+            return new PackEntry(new UUID(uri.getSchemeSpecificPart()), Long.parseLong(offset),
+                    Long.parseLong(length));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid pack entry: " + uri);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joni.test.meta.MetaDataAPI;
+import org.joni.test.meta.MetaFile;
+import org.joni.test.meta.UserInfo;
+
+import com.eaio.uuid.UUID;
+
+/**
+ * The packs of the small files of a user. Each pack is a file of its own in
+ * the meta data, in the directory ".packs" that is an extra root of the
+ * user like the one of the ChunkIndex. The packs don't know which files are
+ * in them, deleting a packed file only removes its meta file, so the files
+ * still in the packs are found by going through the files of the user when
+ * the packs are compacted.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class PackIndex {
+
+    public static final String DIRECTORY_NAME = ".packs";
+
+    private final MetaFile directory;
+    private final List<MetaFile> packs = new ArrayList<MetaFile>();
+
+    private PackIndex(MetaFile directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads the packs of the user from the meta service.
+     *
+     * @param meta
+     *            Meta server instance.
+     * @param create
+     *            true to create the directory of the packs if the user has
+     *            none.
+     * @return The index, null if the user has no packs and create is false.
+     */
+    public static PackIndex load(MetaDataAPI meta, boolean create) throws IOException {
+        MetaFile directory = ChunkIndex.loadRoot(meta, DIRECTORY_NAME, create);
+        if (directory == null) {
+            return null;
+        }
+
+        PackIndex index = new PackIndex(directory);
+        List<MetaFile> files = meta.getListFile(directory.getId());
+        if (files != null) {
+            for (MetaFile pack : files) {
+                if (!pack.isDirectory()) {
+                    index.packs.add(pack);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return The directory where the packs are stored.
+     */
+    public MetaFile getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The packs of the user.
+     */
+    public List<MetaFile> getPacks() {
+        return packs;
+    }
+
+    /**
+     * Goes through the directories of the user for the files that are in
+     * packs. The directories of the packs and of the ChunkIndex are not
+     * listed.
+     *
+     * @return The packed files by the id of their pack.
+     */
+    public Map<String, List<MetaFile>> findPackedFiles(MetaDataAPI meta) throws IOException {
+        Map<String, List<MetaFile>> packed = new HashMap<String, List<MetaFile>>();
+        UserInfo user = meta.getUserInfo();
+        List<UUID> roots = user == null ? null : user.getRoots();
+        if (roots != null) {
+            for (UUID root : roots) {
+                if (root.toString().equals(directory.getId().toString())) {
+                    continue;
+                }
+                // the chunks are files of their own, never in the packs
+                MetaFile file = meta.getFile(root);
+                if (file != null && ChunkIndex.DIRECTORY_NAME.equals(file.getName())) {
+                    continue;
+                }
+                findPackedFiles(meta, root, packed);
+            }
+        }
+        return packed;
+    }
+
+    private static void findPackedFiles(MetaDataAPI meta, UUID dir, Map<String, List<MetaFile>> packed)
+            throws IOException {
+        List<MetaFile> files = meta.getListFile(dir);
+        if (files == null) {
+            return;
+        }
+        for (MetaFile file : files) {
+            if (file.getId().toString().equals(dir.toString())) {
+                // the listing starts with the directory itself
+                continue;
+            }
+            if (file.isDirectory()) {
+                findPackedFiles(meta, file.getId(), packed);
+            } else if (PackEntry.isPacked(file.getStripes())) {
+                String pack = PackEntry.get(file.getStripes()).getPack().toString();
+                List<MetaFile> entries = packed.get(pack);
+                if (entries == null) {
+                    entries = new ArrayList<MetaFile>();
+                    packed.put(pack, entries);
+                }
+                entries.add(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Chooses the packet size of the stripes for each uploaded file. Large
+ * files get large packets so that they are not split into millions of
+ * small blocks, small files small packets so that the last block, which is
+ * padded to full, doesn't make the stripes much larger than the data.
+ * 
+ * The packet size is about the data size divided by k times the target
+ * number of blocks, which keeps the padding under 1/blocks of the data,
+ * within the configured bounds and rounded up to a multiple of ALIGNMENT.
+ * Each storage type can raise the lower bound, for example for backends
+ * with a high cost per write.
+ * 
+ * The bounds are read from the packetsize.properties resource and can be
+ * overridden with System properties of the same names, see the resource for
+ * the keys.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class PacketSizePolicy {
+    /** The packet size of the files uploaded before it was chosen per file. */
+    public static final int LEGACY_PACKET_SIZE = 10240;
+    /** The packet sizes are multiples of this, the CauchyCode needs 8. */
+    public static final int ALIGNMENT = 1024;
+
+    public static final int DEFAULT_MIN = 4096;
+    public static final int DEFAULT_MAX = 256 * 1024;
+    public static final int DEFAULT_BLOCKS = 1024;
+
+    private static final String PREFIX = "fi.hip.sicx.packetsize.";
+
+    private final Properties properties;
+    private final int min;
+    private final int max;
+    private final int blocks;
+
+    /**
+     * Reads the bounds from the packetsize.properties resource and the System
+     * properties.
+     */
+    public PacketSizePolicy() {
+        properties = new Properties();
+        InputStream in = PacketSizePolicy.class.getClassLoader().getResourceAsStream("packetsize.properties");
+        if (in != null) {
+            try {
+                properties.load(in);
+            } catch (IOException e) {
+                System.out.println("Reading packetsize.properties failed, using the defaults: " + e.getMessage());
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        min = getIntProperty(PREFIX + "min", DEFAULT_MIN);
+        max = getIntProperty(PREFIX + "max", DEFAULT_MAX);
+        blocks = getIntProperty(PREFIX + "blocks", DEFAULT_BLOCKS);
+        checkBounds();
+    }
+
+    /**
+     * A policy with the given bounds and no storage specific lower bounds.
+     * 
+     * @param min The smallest packet size.
+     * @param max The largest packet size.
+     * @param blocks The target number of blocks per file.
+     */
+    public PacketSizePolicy(int min, int max, int blocks) {
+        properties = new Properties();
+        this.min = min;
+        this.max = max;
+        this.blocks = blocks;
+        checkBounds();
+    }
+
+    private void checkBounds() {
+        if (min < 1 || max < min || blocks < 1) {
+            throw new IllegalArgumentException("Invalid packet size bounds min=" + min + ",max=" + max
+                    + ",blocks=" + blocks);
+        }
+    }
+
+    /**
+     * Get a value, trying the System properties first and then the
+     * packetsize.properties.
+     */
+    private String getProperty(String key) {
+        String result = System.getProperty(key);
+        if (result == null) {
+            result = properties.getProperty(key);
+        }
+        return result;
+    }
+
+    private int getIntProperty(String key, int def) {
+        String prop = getProperty(key);
+        if (prop != null) {
+            try {
+                return Integer.parseInt(prop.trim());
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid value " + prop + " for " + key + ", using " + def + ".");
+            }
+        }
+        return def;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return The smallest packet size for the storage type, 0 if the type
+     *         has no own lower bound.
+     */
+    public int getStorageMin(String type) {
+        return type == null ? 0 : getIntProperty(PREFIX + type + ".min", 0);
+    }
+
+    /**
+     * Chooses the packet size for a file stored in the given storages.
+     * 
+     * @param dataSize The size of the data to stripe.
+     * @param k The number of data stripes.
+     * @param storages The storages of the stripes.
+     * @return The packet size.
+     */
+    public int choose(long dataSize, int k, List<StorageClient> storages) {
+        int storageMin = 0;
+        if (storages != null) {
+            for (StorageClient sc : storages) {
+                if (sc != null) {
+                    storageMin = Math.max(storageMin, getStorageMin(sc.getType()));
+                }
+            }
+        }
+        return choose(dataSize, k, storageMin);
+    }
+
+    /**
+     * Chooses the packet size for the data.
+     * 
+     * @param dataSize The size of the data to stripe.
+     * @param k The number of data stripes.
+     * @param storageMin The lower bound of the storages, at most the upper
+     *            bound is used.
+     * @return The packet size, a multiple of ALIGNMENT unless the upper bound
+     *         is smaller.
+     */
+    public int choose(long dataSize, int k, int storageMin) {
+        long lower = Math.min(Math.max(min, storageMin), max);
+        long size = (dataSize + (long) k * blocks - 1) / ((long) k * blocks);
+        size = Math.min(Math.max(size, lower), max);
+        size = (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        if (size > max) {
+            size = Math.max(max / ALIGNMENT * ALIGNMENT, Math.min(ALIGNMENT, max));
+        }
+        return (int) size;
+    }
+
+    /**
+     * @return The packet size of the stored file, the packet size used
+     *         before it was stored for the files without it.
+     */
+    public static int getPacketSize(long blockSize) {
+        return blockSize > 0 ? (int) blockSize : LEGACY_PACKET_SIZE;
+    }
+
+    public String toString() {
+        return "PacketSizePolicy[min=" + min + ",max=" + max + ",blocks=" + blocks + "]";
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a byte range of a file from a RangeStorageClient. The range is
+ * requested only at the first read, and a long skip requests the rest of the
+ * range from the new position instead of reading through the skipped bytes.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+class RangeInputStream extends InputStream {
+    /** Skips shorter than this are read through from the open stream. */
+    static final long REOPEN_SKIP = 64 * 1024;
+
+    private final RangeStorageClient client;
+    private final String cloudFile;
+    private final StorageClientObserver sco;
+    // the end of the range, -1 for the end of the file
+    private final long end;
+    private long pos;
+    private InputStream in;
+    private boolean closed = false;
+
+    /**
+     * @param client The client to read the file with.
+     * @param cloudFile Name of the file in the cloud.
+     * @param offset The offset where to start reading.
+     * @param end The offset where to stop reading, -1 for the end of the file.
+     * @param sco observer
+     */
+    RangeInputStream(RangeStorageClient client, String cloudFile, long offset, long end,
+                     StorageClientObserver sco) {
+        this.client = client;
+        this.cloudFile = cloudFile;
+        this.pos = offset;
+        this.end = end;
+        this.sco = sco;
+    }
+
+    private long getLeft() {
+        return end < 0 ? Long.MAX_VALUE : end - pos;
+    }
+
+    private boolean open() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (getLeft() <= 0) {
+            return false;
+        }
+        if (in == null) {
+            in = client.readData(cloudFile, pos, end < 0 ? -1 : end - pos, sco);
+            if (in == null) {
+                throw new IOException("Reading " + cloudFile + " from " + pos + " failed.");
+            }
+        }
+        return true;
+    }
+
+    public int read() throws IOException {
+        if (!open()) {
+            return -1;
+        }
+        int b = in.read();
+        if (b != -1) {
+            pos++;
+        }
+        return b;
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!open()) {
+            return -1;
+        }
+        int num = in.read(b, off, (int) Math.min(len, getLeft()));
+        if (num > 0) {
+            pos += num;
+        }
+        return num;
+    }
+
+    public long skip(long n) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        n = Math.min(n, getLeft());
+        if (n <= 0) {
+            return 0;
+        }
+        if (in != null && n < REOPEN_SKIP) {
+            long num = in.skip(n);
+            if (num > 0) {
+                pos += num;
+            }
+            return num;
+        }
+        // the rest is requested from the new position when read
+        closeRange();
+        pos += n;
+        return n;
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        closeRange();
+    }
+
+    /**
+     * Closes the open request, the next read makes a new one.
+     */
+    private void closeRange() throws IOException {
+        if (in != null) {
+            InputStream old = in;
+            in = null;
+            old.close();
+        }
+    }
+}
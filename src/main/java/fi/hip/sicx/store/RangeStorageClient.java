@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.io.InputStream;
+
+/**
+ * A storage client that can read a byte range of a file, so that reading a
+ * part of a stripe doesn't transfer the whole stripe.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public interface RangeStorageClient extends StorageClient {
+
+    /**
+     * Returns InputStream that reads a byte range of a file in the cloud.
+     * 
+     * @param fileInTheCloud Name of the file in the cloud
+     * @param offset The offset of the range in the file.
+     * @param length The length of the range, -1 to read until the end of
+     * 					the file. The stream ends at the end of the file at
+     * 					the latest.
+     * @param sco observer
+     * @return InputStream of the range, null if the file can't be read.
+     */
+    public InputStream readData(String fileInTheCloud, 
+				long offset, long length,
+				StorageClientObserver sco);
+}
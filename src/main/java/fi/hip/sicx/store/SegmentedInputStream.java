@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a stripe that was uploaded in segments as one stream. The segments
+ * are opened one at a time when the reading gets to them, and the stripe
+ * ends at the first segment that is shorter than the segment size or that
+ * the storage doesn't have.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+class SegmentedInputStream extends InputStream {
+
+    private final StorageClient client;
+    private final String cloudFile;
+    private final long segmentSize;
+    // the offset in the stripe where to stop reading, -1 for the end
+    private final long end;
+    private final int dataSize;
+    private final StorageClientObserver sco;
+
+    private long pos;
+    private long segment;
+    private InputStream in;
+    // set when a segment ended short or the next one doesn't exist
+    private boolean ended = false;
+    private boolean closed = false;
+
+    /**
+     * @param client The client to read the segments with.
+     * @param cloudFile Name of the stripe in the cloud, without the segment.
+     * @param segmentSize The size of the segments without the header.
+     * @param offset The offset in the stripe where to start reading.
+     * @param end The offset where to stop reading, -1 for the end of the
+     *        stripe.
+     * @param dataSize The size of the data to read, used for the progress.
+     * @param sco observer
+     */
+    SegmentedInputStream(StorageClient client, String cloudFile, long segmentSize, long offset, long end,
+                         int dataSize, StorageClientObserver sco) {
+        this.client = client;
+        this.cloudFile = cloudFile;
+        this.segmentSize = segmentSize;
+        this.pos = offset;
+        this.end = end;
+        this.dataSize = dataSize;
+        this.sco = sco;
+        segment = StripeCode.getSegment(segmentSize, offset);
+    }
+
+    private long getSegmentEnd() {
+        return StripeCode.getSegmentStart(segmentSize, segment + 1);
+    }
+
+    private long getLeft() {
+        return end < 0 ? Long.MAX_VALUE : end - pos;
+    }
+
+    /**
+     * Opens the segment of the position if it is not open.
+     *
+     * @return false at the end of the stripe.
+     */
+    private boolean open() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (ended || getLeft() <= 0) {
+            return false;
+        }
+        if (in != null) {
+            return true;
+        }
+        long start = StripeCode.getSegmentStart(segmentSize, segment);
+        String name = StripeCode.getSegmentName(cloudFile, segment);
+        // the first segment is checked when the stripe is opened
+        if (segment > 0 && !client.checkFile(name, sco)) {
+            ended = true;
+            return false;
+        }
+        if (client instanceof RangeStorageClient) {
+            long segmentEnd = end < 0 ? -1 : Math.min(end, getSegmentEnd()) - start;
+            in = new RangeInputStream((RangeStorageClient) client, name, pos - start, segmentEnd, sco);
+        } else {
+            in = client.readData(name, dataSize, sco);
+            if (in == null) {
+                throw new IOException("Reading segment " + name + " failed.");
+            }
+            StorageStripeSource.skipFully(in, pos - start);
+        }
+        return true;
+    }
+
+    public int read() throws IOException {
+        byte b[] = new byte[1];
+        int num;
+        while ((num = read(b, 0, 1)) == 0) {
+            // read at least one byte
+        }
+        return num < 0 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!open()) {
+            return -1;
+        }
+        int num = in.read(b, off, (int) Math.min(len, Math.min(getLeft(), getSegmentEnd() - pos)));
+        if (num < 0) {
+            // a short segment is the last one
+            closeSegment();
+            ended = true;
+            return -1;
+        }
+        pos += num;
+        if (pos == getSegmentEnd()) {
+            closeSegment();
+            segment++;
+        }
+        return num;
+    }
+
+    public long skip(long n) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        n = Math.min(n, getLeft());
+        if (n <= 0 || ended) {
+            return 0;
+        }
+        long segmentEnd = getSegmentEnd();
+        if (pos + n < segmentEnd) {
+            if (in == null) {
+                pos += n;
+                return n;
+            }
+            long num = in.skip(n);
+            if (num > 0) {
+                pos += num;
+            }
+            return num;
+        }
+        // the segments in between are not opened at all
+        closeSegment();
+        pos += n;
+        segment = StripeCode.getSegment(segmentSize, pos);
+        return n;
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        closeSegment();
+    }
+
+    /**
+     * Closes the open segment, the next read opens the one of the position.
+     */
+    private void closeSegment() throws IOException {
+        if (in != null) {
+            InputStream old = in;
+            in = null;
+            old.close();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ * 
+ */
+
+package fi.hip.sicx.store;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import org.joni.test.meta.StripeLocation;
+
+import fi.hip.sicx.sla.SLAManager;
+import fi.hip.sicx.streaming.StripeSource;
+
+/**
+ * Opens the stripes of a file from the storages on demand for
+ * StreamingFEC.construct, and keeps track of the opened streams and how far
+ * they have been read so that the storage clients can be returned
+ * afterwards without reading the rest of the stripes. The stripes uploaded
+ * in segments are read through a SegmentedInputStream.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class StorageStripeSource implements StripeSource {
+    /**
+     * The longest rest of a stripe that is read to the end when closing, so
+     * that the connection can be reused. Longer ones are aborted.
+     */
+    public static final long DRAIN_LIMIT = 64 * 1024;
+
+    private final SLAManager man;
+    private final List<StripeLocation> stripes;
+    private final int dataSize;
+    private final StorageClientObserver sco;
+    // the size of the segments of the stripes, -1 if not uploaded in segments
+    private final long segmentSize;
+
+    private final PositionStream inStreams[];
+    private final StorageClient clients[];
+    // the offset in the stripes where the reads end, -1 for the end
+    private long end = -1;
+    // the size of the stripes, -1 if not known
+    private long stripeSize = -1;
+
+    private long bytesRead = 0;
+    private long bytesDrained = 0;
+    private int stripesAborted = 0;
+
+    /**
+     * @param man SLA manager instance.
+     * @param stripes The stripe locations of the file.
+     * @param dataSize The size of the data to read, used for the progress.
+     * @param sco observer
+     */
+    public StorageStripeSource(SLAManager man, List<StripeLocation> stripes, int dataSize,
+                               StorageClientObserver sco) {
+        this.man = man;
+        this.stripes = stripes;
+        this.dataSize = dataSize;
+        this.sco = sco;
+        segmentSize = StripeCode.getSegmentSize(stripes);
+        inStreams = new PositionStream[stripes.size()];
+        clients = new StorageClient[stripes.size()];
+    }
+
+    /**
+     * Sets the offset in the stripes after the last byte needed, for reading
+     * only a part of the file. The storages that support range reads then
+     * transfer only the bytes from the opening offset to the end.
+     *
+     * @param end The end offset, -1 to read the stripes until their end.
+     */
+    public void setEnd(long end) {
+        this.end = end;
+    }
+
+    /**
+     * Sets the size of the stripes, so that when closing it is known how
+     * many bytes are left of each stripe.
+     *
+     * @param stripeSize The size, -1 if not known.
+     */
+    public void setStripeSize(long stripeSize) {
+        this.stripeSize = stripeSize;
+    }
+
+    public InputStream openStripe(int index, long offset) throws IOException {
+        StripeLocation s = stripes.get(index);
+        System.out.println("processing stripe " + s.getURI());
+        StorageClient sc = man.getStorageClient(s.getURI(), s.getType(), s.getVersion());
+        if (sc == null) {
+            return null;
+        }
+        String cloudFile;
+        try {
+            URI uri = new URI(s.getURI().toString());
+            cloudFile = uri.getPath().substring(1);
+        } catch (URISyntaxException e) {
+            man.returnStorage(sc);
+            throw new IOException("Invalid stripe location: " + s.getURI());
+        }
+
+        String firstFile = segmentSize > 0 ? StripeCode.getSegmentName(cloudFile, 0) : cloudFile;
+        if (!sc.checkFile(firstFile, sco)) {
+            System.out.println("No stripe " + cloudFile + ".");
+            man.returnStorage(sc);
+            return null;
+        }
+        System.out.println("Downloading stripe " + cloudFile + ".");
+        InputStream in;
+        if (segmentSize > 0) {
+            in = new SegmentedInputStream(sc, cloudFile, segmentSize, offset, end, dataSize, sco);
+        } else if (sc instanceof RangeStorageClient) {
+            in = new RangeInputStream((RangeStorageClient) sc, cloudFile, offset, end, sco);
+        } else {
+            in = sc.readData(cloudFile, dataSize, sco);
+            if (in == null) {
+                man.returnStorage(sc);
+                return null;
+            }
+            skipFully(in, offset);
+        }
+
+        inStreams[index] = new PositionStream(in, offset);
+        clients[index] = sc;
+        return inStreams[index];
+    }
+
+    /**
+     * Skips to the given offset of the stream.
+     */
+    static void skipFully(InputStream in, long offset) throws IOException {
+        long skipped = 0;
+        while (skipped < offset) {
+            long num = in.skip(offset - skipped);
+            if (num <= 0) {
+                // skip may give up before the end, read to be sure
+                if (in.read() == -1) {
+                    throw new IOException("Stripe ended before offset " + offset + ".");
+                }
+                num = 1;
+            }
+            skipped += num;
+        }
+    }
+
+    /**
+     * @return The number of stripes of the file.
+     */
+    public int getStripeCount() {
+        return stripes.size();
+    }
+
+    /**
+     * @return The offset where the reading of the stripe has got to, or -1
+     *         if the stripe has not been opened.
+     */
+    public long getPosition(int index) {
+        return inStreams[index] == null ? -1 : inStreams[index].position;
+    }
+
+    /**
+     * @return The number of bytes of the stripe after the position that the
+     *         storage would still send, or -1 if not known.
+     */
+    public long getRemaining(int index) {
+        if (inStreams[index] == null) {
+            return -1;
+        }
+        long limit = end >= 0 && (stripeSize < 0 || end < stripeSize) ? end : stripeSize;
+        return limit < 0 ? -1 : Math.max(0, limit - inStreams[index].position);
+    }
+
+    /**
+     * Closes the opened stripes and returns the storage clients. The rest of
+     * a stripe that was not needed is read to the end only if it is at most
+     * DRAIN_LIMIT bytes, so that the connection can be reused. Longer ones,
+     * and the ones of unknown size that don't end within the limit, are
+     * aborted by closing the stream. The streams the
+     * construction has already closed, like the cancelled ones of a hedged
+     * read, are only returned.
+     */
+    public void close() throws IOException {
+        for (int i = 0; i < inStreams.length; i++) {
+            PositionStream in = inStreams[i];
+            if (in != null) {
+                long remaining = getRemaining(i);
+                try {
+                    if (remaining != 0) {
+                        if (remaining > DRAIN_LIMIT || !drain(in, remaining)) {
+                            System.out.println("Aborting the rest of stripe " + i + " at " + in.position + ".");
+                            stripesAborted++;
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Stripe " + i + " was closed before its end: " + e.getMessage());
+                } finally {
+                    bytesRead += in.position - in.start;
+                    inStreams[i] = null;
+                    try {
+                        in.close();
+                    } finally {
+                        man.returnStorage(clients[i]);
+                        clients[i] = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the rest of the stripe.
+     *
+     * @param remaining The bytes left, -1 if not known.
+     * @return true if the stripe was read to the end, false if it is longer
+     *         than DRAIN_LIMIT.
+     */
+    private boolean drain(PositionStream in, long remaining) throws IOException {
+        long limit = remaining < 0 ? DRAIN_LIMIT : remaining;
+        long before = in.position;
+        byte buffer[] = new byte[8192];
+        try {
+            while (in.position - before < limit) {
+                if (in.read(buffer, 0, (int) Math.min(buffer.length, limit - (in.position - before))) < 0) {
+                    return true;
+                }
+            }
+            // with an unknown size the end has not been seen
+            return remaining >= 0;
+        } finally {
+            bytesDrained += in.position - before;
+        }
+    }
+
+    /**
+     * @return The bytes read from the stripes by the construction and the
+     *         draining, counted when the stripes are closed.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return The bytes read after the construction to finish the stripes.
+     */
+    public long getBytesDrained() {
+        return bytesDrained;
+    }
+
+    /**
+     * @return The number of stripes closed before their end.
+     */
+    public int getStripesAborted() {
+        return stripesAborted;
+    }
+
+    /**
+     * Keeps track of the offset in the stripe.
+     */
+    private static class PositionStream extends FilterInputStream {
+        final long start;
+        long position;
+
+        PositionStream(InputStream in, long offset) {
+            super(in);
+            start = offset;
+            position = offset;
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                position++;
+            }
+            return b;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            int num = in.read(b, off, len);
+            if (num > 0) {
+                position += num;
+            }
+            return num;
+        }
+
+        public long skip(long n) throws IOException {
+            long num = in.skip(n);
+            if (num > 0) {
+                position += num;
+            }
+            return num;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
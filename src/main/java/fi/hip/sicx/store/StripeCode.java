@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+
+import org.joni.test.meta.StripeLocation;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+import com.onionnetworks.fec.LRCCode;
+
+import fi.hip.sicx.streaming.StripeHeader;
+
+/**
+ * Records the format and the code of the stripes of a file in the meta data,
+ * as the fragment of the stripe URIs. The fragment is not part of the path,
+ * so the storages don't see it. The parameters of the fragment are
+ * separated by "&amp;":
+ * 
+ * <ul>
+ * <li>"stripe=version" for stripes in the stripe container format, their
+ * headers describe the code, see StripeHeader.</li>
+ * <li>"lrc=groups" for raw stripes written with a LRCCode, the raw stripes of
+ * the default Reed-Solomon code need only k and the number of stripes.</li>
+ * <li>"segment=bytes" for container stripes uploaded in segments. Each
+ * segment is an object of its own, named after the stripe with ".j" added
+ * for the segment j, and holds that many bytes of the packets and their
+ * checksums, the first one also the header. The last segment may be
+ * shorter.</li>
+ * <li>"codec=name&amp;stored=bytes" for files compressed before they were
+ * encrypted and striped, see Compression. The stripes hold that many bytes
+ * of compressed data instead of the length of the file.</li>
+ * </ul>
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class StripeCode {
+
+    public static final String LRC = "lrc";
+    public static final String STRIPE = "stripe";
+    public static final String SEGMENT = "segment";
+    public static final String CODEC = "codec";
+    public static final String STORED = "stored";
+
+    /**
+     * @return The URI of a stripe in the stripe container format.
+     */
+    public static URI toURI(String uri) throws URISyntaxException {
+        return new URI(uri + "#" + STRIPE + "=" + StripeHeader.VERSION);
+    }
+
+    /**
+     * @return The URI of a stripe in the stripe container format uploaded in
+     *         segments of segmentSize bytes.
+     */
+    public static URI toURI(String uri, long segmentSize) throws URISyntaxException {
+        return new URI(uri + "#" + STRIPE + "=" + StripeHeader.VERSION + "&" + SEGMENT + "=" + segmentSize);
+    }
+
+    /**
+     * @return The URI of a raw stripe with the code parameters added.
+     */
+    public static URI toURI(String uri, FECCode fec) throws URISyntaxException {
+        if (fec instanceof LRCCode) {
+            uri = uri + "#" + LRC + "=" + ((LRCCode) fec).getGroups();
+        }
+        return new URI(uri);
+    }
+
+    /**
+     * @return The URI of a stripe with the codec the file was compressed
+     *         with and the length of the compressed data added.
+     */
+    public static URI toURI(URI uri, String codec, long storedLength) throws URISyntaxException {
+        String params = CODEC + "=" + codec + "&" + STORED + "=" + storedLength;
+        String s = uri.toString();
+        return new URI(s + (uri.getRawFragment() == null ? "#" : "&") + params);
+    }
+
+    /**
+     * @return true if the stripes are in the stripe container format.
+     */
+    public static boolean isContainer(List<StripeLocation> stripes) {
+        return getParameter(stripes, STRIPE) != null;
+    }
+
+    /**
+     * @return The size of the segments of the stripes without the header, or
+     *         -1 if the stripes are single objects.
+     * @throws IllegalArgumentException
+     *             if the size is invalid.
+     */
+    public static long getSegmentSize(List<StripeLocation> stripes) {
+        String size = getParameter(stripes, SEGMENT);
+        if (size == null) {
+            return -1;
+        }
+        try {
+            long segmentSize = Long.parseLong(size);
+            if (segmentSize > 0) {
+                return segmentSize;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Invalid segment size: " + size);
+    }
+
+    /**
+     * @return The codec the file was compressed with, or null if it was
+     *         not compressed.
+     */
+    public static String getCodec(List<StripeLocation> stripes) {
+        return getParameter(stripes, CODEC);
+    }
+
+    /**
+     * @return The length of the data in the stripes, the length of the file
+     *         if it was not compressed.
+     * @throws IllegalArgumentException
+     *             if the length is invalid.
+     */
+    public static long getStoredLength(List<StripeLocation> stripes, long length) {
+        String stored = getParameter(stripes, STORED);
+        if (stored == null) {
+            return length;
+        }
+        try {
+            long storedLength = Long.parseLong(stored);
+            if (storedLength >= 0) {
+                return storedLength;
+            }
+        } catch (NumberFormatException e) {
+            // handled below
+        }
+        throw new IllegalArgumentException("Invalid stored length: " + stored);
+    }
+
+    /**
+     * @return The name of the object of the segment of a stripe.
+     */
+    public static String getSegmentName(String cloudFile, long segment) {
+        return cloudFile + "." + segment;
+    }
+
+    /**
+     * @return The segment that has the byte at the offset of the stripe.
+     */
+    public static long getSegment(long segmentSize, long offset) {
+        return offset < StripeHeader.SIZE ? 0 : (offset - StripeHeader.SIZE) / segmentSize;
+    }
+
+    /**
+     * @return The offset in the stripe where the segment starts.
+     */
+    public static long getSegmentStart(long segmentSize, long segment) {
+        return segment == 0 ? 0 : StripeHeader.SIZE + segment * segmentSize;
+    }
+
+    /**
+     * Creates the code raw stripes were written with.
+     *
+     * @param stripes
+     *            The stripe locations of the file.
+     * @param k
+     *            The number of stripes needed to reconstruct the file.
+     * @return the code.
+     * @throws IllegalArgumentException
+     *             if the code parameters are invalid.
+     */
+    public static FECCode createCode(List<StripeLocation> stripes, int k) {
+        int n = stripes.size();
+        String groups = getParameter(stripes, LRC);
+        if (groups != null) {
+            try {
+                return new LRCCode(k, n, Integer.parseInt(groups));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid local groups: " + groups);
+            }
+        }
+        return FECCodeFactory.getDefault().createFECCode(k, n);
+    }
+
+    /**
+     * @return The value of the parameter in the fragment of the first stripe
+     *         URI, or null if it is not there.
+     */
+    private static String getParameter(List<StripeLocation> stripes, String key) {
+        String fragment = stripes.isEmpty() ? null : stripes.get(0).getURI().getFragment();
+        if (fragment == null) {
+            return null;
+        }
+        for (String param : fragment.split("&")) {
+            if (param.startsWith(key + "=")) {
+                return param.substring(key.length() + 1);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.joni.test.meta.StripeLocation;
+
+import com.onionnetworks.util.Util;
+
+/**
+ * The local record of an upload done in segments, so that an upload that
+ * failed or was stopped can continue from the last segment that all the
+ * storages have committed instead of from the beginning. It records the
+ * file, the code, the stripe locations, the id the key was stored with and
+ * the number of segments committed, with the last cipher block of each one
+ * as the IV of the next. The key itself is only in the key servers.
+ *
+ * The checkpoint is a properties file that is replaced atomically when
+ * saved, so a crash leaves the previous checkpoint.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+class UploadCheckpoint {
+
+    private final File checkpointFile;
+    private final Properties props = new Properties();
+
+    /**
+     * Creates a new checkpoint for the upload of the file, not saved yet.
+     *
+     * @param checkpointFile Where the checkpoint is saved.
+     * @param file The file uploaded.
+     * @param id The id of the meta file the key is stored with.
+     */
+    UploadCheckpoint(File checkpointFile, File file, String id, int k, int n, int localGroups,
+                     boolean encrypted, int packetSize, long segmentPackets) {
+        this.checkpointFile = checkpointFile;
+        props.setProperty("file", file.getAbsolutePath());
+        props.setProperty("length", Long.toString(file.length()));
+        props.setProperty("modified", Long.toString(file.lastModified()));
+        props.setProperty("id", id);
+        props.setProperty("k", Integer.toString(k));
+        props.setProperty("n", Integer.toString(n));
+        props.setProperty("groups", Integer.toString(localGroups));
+        props.setProperty("encrypted", Boolean.toString(encrypted));
+        props.setProperty("packetsize", Integer.toString(packetSize));
+        props.setProperty("segmentpackets", Long.toString(segmentPackets));
+        props.setProperty("segments", "0");
+    }
+
+    private UploadCheckpoint(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * @return The checkpoint saved in the file, or null if there is none or
+     *         it can't be read.
+     */
+    static UploadCheckpoint load(File checkpointFile) {
+        if (!checkpointFile.isFile()) {
+            return null;
+        }
+        UploadCheckpoint checkpoint = new UploadCheckpoint(checkpointFile);
+        try {
+            InputStream in = new FileInputStream(checkpointFile);
+            try {
+                checkpoint.props.load(in);
+            } finally {
+                in.close();
+            }
+            // check that the numbers are there
+            checkpoint.getPacketSize();
+            checkpoint.getSegmentPackets();
+            checkpoint.getSegments();
+            return checkpoint;
+        } catch (IOException e) {
+            System.out.println("Reading the upload checkpoint " + checkpointFile + " failed: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid upload checkpoint " + checkpointFile + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the checkpoint is of an upload of the file as it is
+     *         now with the same code and encryption.
+     */
+    boolean matches(File file, int k, int n, int localGroups, boolean encrypted) {
+        return file.getAbsolutePath().equals(props.getProperty("file"))
+                && Long.toString(file.length()).equals(props.getProperty("length"))
+                && Long.toString(file.lastModified()).equals(props.getProperty("modified"))
+                && Integer.toString(k).equals(props.getProperty("k"))
+                && Integer.toString(n).equals(props.getProperty("n"))
+                && Integer.toString(localGroups).equals(props.getProperty("groups"))
+                && Boolean.toString(encrypted).equals(props.getProperty("encrypted"));
+    }
+
+    /**
+     * Records the file that the uploaded file was made from, when a
+     * compressed copy of it is uploaded in its place.
+     */
+    void setSource(File source) {
+        props.setProperty("source", source.getAbsolutePath());
+        props.setProperty("source.length", Long.toString(source.length()));
+        props.setProperty("source.modified", Long.toString(source.lastModified()));
+    }
+
+    /**
+     * @return true if the uploaded file was made from the source as it is
+     *         now.
+     */
+    boolean isFrom(File source) {
+        return source.getAbsolutePath().equals(props.getProperty("source"))
+                && Long.toString(source.length()).equals(props.getProperty("source.length"))
+                && Long.toString(source.lastModified()).equals(props.getProperty("source.modified"));
+    }
+
+    /**
+     * Saves the checkpoint, replacing the earlier one.
+     */
+    void save() throws IOException {
+        File parent = checkpointFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Creating the directory " + parent + " failed.");
+        }
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "SICX upload checkpoint");
+            out.flush();
+            ((FileOutputStream) out).getFD().sync();
+        } finally {
+            out.close();
+        }
+        // renaming over an existing file fails on some platforms
+        if (!tmp.renameTo(checkpointFile) && !(checkpointFile.delete() && tmp.renameTo(checkpointFile))) {
+            throw new IOException("Saving the upload checkpoint " + checkpointFile + " failed.");
+        }
+    }
+
+    /**
+     * Deletes the saved checkpoint.
+     */
+    void delete() {
+        checkpointFile.delete();
+    }
+
+    File getFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * @return The id of the meta file the key is stored with.
+     */
+    String getId() {
+        return props.getProperty("id");
+    }
+
+    void setId(String id) {
+        props.setProperty("id", id);
+    }
+
+    int getPacketSize() {
+        return Integer.parseInt(props.getProperty("packetsize"));
+    }
+
+    /**
+     * @return The number of packets of each stripe in a segment.
+     */
+    long getSegmentPackets() {
+        return Long.parseLong(props.getProperty("segmentpackets"));
+    }
+
+    /**
+     * @return The number of segments all the storages have committed.
+     */
+    long getSegments() {
+        return Long.parseLong(props.getProperty("segments"));
+    }
+
+    /**
+     * Records the segment committed by all the storages.
+     *
+     * @param segment The segment.
+     * @param lastCipherBlock The last cipher block of the segment, the IV of
+     *        the next one, null if it was not encrypted.
+     * @param padding The padding of the stripes in the segment.
+     */
+    void setCommitted(long segment, byte lastCipherBlock[], long padding) {
+        if (lastCipherBlock != null) {
+            props.setProperty("iv." + (segment + 1), Util.bytesToHex(lastCipherBlock));
+        }
+        props.setProperty("padding", Long.toString(getStripePadding() + padding));
+        props.setProperty("segments", Long.toString(segment + 1));
+    }
+
+    /**
+     * @return The IV to encrypt the segment with, null for the first
+     *         segment that uses the IV of the key.
+     */
+    byte[] getIV(long segment) {
+        String iv = props.getProperty("iv." + segment);
+        return iv == null ? null : Util.hexToBytes(iv);
+    }
+
+    /**
+     * @return The padding of the stripes in the segments committed.
+     */
+    long getStripePadding() {
+        return Long.parseLong(props.getProperty("padding", "0"));
+    }
+
+    void setStripes(List<StripeLocation> stripes) {
+        for (int i = 0; i < stripes.size(); i++) {
+            StripeLocation s = stripes.get(i);
+            props.setProperty("stripe." + i + ".uri", s.getURI().toString());
+            if (s.getType() != null) {
+                props.setProperty("stripe." + i + ".type", s.getType());
+            }
+            if (s.getVersion() != null) {
+                props.setProperty("stripe." + i + ".version", s.getVersion());
+            }
+        }
+    }
+
+    /**
+     * @return The locations of the stripes.
+     * @throws IOException
+     *             if they are not all recorded.
+     */
+    List<StripeLocation> getStripes() throws IOException {
+        int n = Integer.parseInt(props.getProperty("n"));
+        List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+        for (int i = 0; i < n; i++) {
+            String uri = props.getProperty("stripe." + i + ".uri");
+            if (uri == null) {
+                throw new IOException("The upload checkpoint has no stripe " + i + ".");
+            }
+            try {
+                stripes.add(new StripeLocation(new URI(uri), props.getProperty("stripe." + i + ".type"),
+                        props.getProperty("stripe." + i + ".version")));
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid stripe location in the upload checkpoint: " + uri);
+            }
+        }
+        return stripes;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the per block work of the striping layer on a pool of threads while
+ * keeping the results in the original block order.
+ *
+ * A producer thread submits the blocks in order, the worker threads process
+ * them concurrently and the consumer takes the results in the same order
+ * they were submitted. At most window blocks are in flight, a producer
+ * running ahead blocks in submit() until the consumer catches up, so the
+ * memory use is bounded.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+class BlockPipeline<T> {
+
+    private final ExecutorService pool;
+    private final BlockingQueue<Future<T>> inFlight;
+    private final Future<T> end;
+
+    /**
+     * @param threads
+     *            The number of worker threads.
+     * @param window
+     *            The maximum number of blocks submitted but not yet taken.
+     */
+    BlockPipeline(int threads, int window) {
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "StreamingFEC worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        inFlight = new ArrayBlockingQueue<Future<T>>(window);
+        end = new FutureTask<T>(new Callable<T>() {
+            public T call() {
+                return null;
+            }
+        });
+        ((FutureTask<T>) end).run();
+    }
+
+    /**
+     * Reads the blocks and submits them and the end.
+     */
+    interface Producer {
+        void produce() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Runs the producer in a daemon thread. A failure of the producer, also
+     * an unchecked exception or an error, is queued for the consumer, so it
+     * gets the failure from take() instead of waiting for blocks that never
+     * come.
+     *
+     * @return The started thread, interrupted when the consumer gives up.
+     */
+    Thread startProducer(String name, final Producer producer) {
+        Thread thread = new Thread(name) {
+            public void run() {
+                try {
+                    producer.produce();
+                } catch (InterruptedException e) {
+                    // the consumer has given up
+                } catch (Throwable t) {
+                    IOException e = t instanceof IOException ? (IOException) t : new IOException(
+                            "Reading the blocks failed: " + t, t);
+                    try {
+                        submitFailure(e);
+                    } catch (InterruptedException e1) {
+                        // the consumer has given up already
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Queues the next block for processing, blocks if the window is full.
+     */
+    void submit(Callable<T> task) throws InterruptedException {
+        inFlight.put(pool.submit(task));
+    }
+
+    /**
+     * Queues a failure, the consumer gets it from take() after the blocks
+     * submitted before it.
+     */
+    void submitFailure(final IOException e) throws InterruptedException {
+        FutureTask<T> failed = new FutureTask<T>(new Callable<T>() {
+            public T call() throws IOException {
+                throw e;
+            }
+        });
+        failed.run();
+        inFlight.put(failed);
+    }
+
+    /**
+     * Marks the end of the blocks, take() returns null after this.
+     */
+    void submitEnd() throws InterruptedException {
+        inFlight.put(end);
+    }
+
+    /**
+     * @return The result of the next block in the submission order, or null
+     *         if the end has been reached.
+     * @throws IOException
+     *             The failure of the block processing or the producer.
+     */
+    T take() throws IOException {
+        try {
+            Future<T> next = inFlight.take();
+            if (next == end) {
+                return null;
+            }
+            return next.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a block.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Block processing failed: " + cause);
+        }
+    }
+
+    /**
+     * Stops the worker threads and drops the blocks still in flight.
+     */
+    void shutdown() {
+        pool.shutdownNow();
+        inFlight.clear();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of equal sized buffers shared by the queues of a
+ * StripePipeline. The buffers are allocated when first needed, at most the
+ * given number of them, and take() waits for a buffer to be given back when
+ * they are all in use, so the memory of all the queues together is bounded.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final List<byte[]> free = new ArrayList<byte[]>();
+    private int allocated = 0;
+
+    /**
+     * @param bufferSize
+     *            The size of the buffers.
+     * @param maxBuffers
+     *            The most buffers allocated.
+     */
+    public BufferPool(int bufferSize, int maxBuffers) {
+        if (bufferSize < 1 || maxBuffers < 1) {
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize + " or number of buffers "
+                    + maxBuffers + ".");
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @return A buffer, waits if all the buffers are in use.
+     */
+    public synchronized byte[] take() throws InterruptedIOException {
+        while (free.isEmpty() && allocated == maxBuffers) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a buffer.");
+            }
+        }
+        if (!free.isEmpty()) {
+            return free.remove(free.size() - 1);
+        }
+        allocated++;
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Gives back a buffer taken from the pool.
+     */
+    public synchronized void give(byte buffer[]) {
+        free.add(buffer);
+        notifyAll();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    /**
+     * @return The number of buffers allocated so far.
+     */
+    public synchronized int getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * @return The number of buffers in use.
+     */
+    public synchronized int getInUse() {
+        return allocated - free.size();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum used for the packets of the stripes. The
+ * polynomial has better error detection than the one of java.util.zip.CRC32
+ * and is the one used by iSCSI and many storage systems. The bytes are
+ * processed eight at a time with the slicing-by-8 tables.
+ * 
+ * Java 9 and later have java.util.zip.CRC32C that uses the CRC instructions
+ * of the processor, create() returns it when available and an instance of
+ * this class otherwise.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class CRC32C implements Checksum {
+
+    // the reversed Castagnoli polynomial
+    private static final int POLY = 0x82F63B78;
+
+    // TABLES[j][b] is the CRC of the byte b followed by j zero bytes
+    private static final int TABLES[][] = createTables();
+    private static final int T0[] = TABLES[0];
+    private static final int T1[] = TABLES[1];
+    private static final int T2[] = TABLES[2];
+    private static final int T3[] = TABLES[3];
+    private static final int T4[] = TABLES[4];
+    private static final int T5[] = TABLES[5];
+    private static final int T6[] = TABLES[6];
+    private static final int T7[] = TABLES[7];
+
+    // the constructor of java.util.zip.CRC32C, null if not available
+    private static final Constructor<?> JDK_CRC32C = getJdkConstructor();
+
+    private int crc = 0xffffffff;
+
+    /**
+     * @return A new CRC-32C checksum, the one of the JDK if available.
+     */
+    public static Checksum create() {
+        if (JDK_CRC32C != null) {
+            try {
+                return (Checksum) JDK_CRC32C.newInstance();
+            } catch (Exception e) {
+                // fall back to ours
+            }
+        }
+        return new CRC32C();
+    }
+
+    private static Constructor<?> getJdkConstructor() {
+        try {
+            return Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public void update(int b) {
+        crc = (crc >>> 8) ^ T0[(crc ^ b) & 0xff];
+    }
+
+    public void update(byte b[], int off, int len) {
+        int c = crc;
+        while (len >= 8) {
+            int one = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | b[off + 3] << 24);
+            int two = (b[off + 4] & 0xff) | (b[off + 5] & 0xff) << 8 | (b[off + 6] & 0xff) << 16 | b[off + 7] << 24;
+            c = T7[one & 0xff] ^ T6[(one >>> 8) & 0xff] ^ T5[(one >>> 16) & 0xff] ^ T4[one >>> 24]
+                    ^ T3[two & 0xff] ^ T2[(two >>> 8) & 0xff] ^ T1[(two >>> 16) & 0xff] ^ T0[two >>> 24];
+            off += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            c = (c >>> 8) ^ T0[(c ^ b[off++]) & 0xff];
+        }
+        crc = c;
+    }
+
+    public void update(byte b[]) {
+        update(b, 0, b.length);
+    }
+
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    public void reset() {
+        crc = 0xffffffff;
+    }
+
+    private static int[][] createTables() {
+        int tables[][] = new int[8][256];
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int bit = 0; bit < 8; bit++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            tables[0][i] = c;
+        }
+        for (int j = 1; j < 8; j++) {
+            for (int i = 0; i < 256; i++) {
+                int c = tables[j - 1][i];
+                tables[j][i] = (c >>> 8) ^ tables[0][c & 0xff];
+            }
+        }
+        return tables;
+    }
+}
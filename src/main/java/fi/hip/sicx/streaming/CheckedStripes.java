@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * The stripes of a file being read by StreamingFEC.construct, either in the
+ * stripe container format or raw stripes of a known code and packet size.
+ * Every open stripe is read for every block so that the streams stay at the
+ * same block, a packet with a wrong checksum is left out of the decoding of
+ * its block and a stripe that fails is closed. When the good packets of a
+ * block are not enough, the next stripe is opened from the source at the
+ * block and the construction goes on from it, so a storage that fails in
+ * the middle of the file only costs opening a spare stripe. The failures
+ * and the spare stripes are counted in the ConstructStats.
+ * 
+ * With a stall timeout a stripe whose read blocks longer than the timeout
+ * is closed and handled as a failed stripe.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+class CheckedStripes {
+    private final StripeSource source;
+    private final int n;
+    private final ConstructStats stats;
+    // whether the stripes are in the stripe container format
+    private final boolean container;
+    private final InputStream streams[];
+    private final boolean tried[];
+    private StripeHeader header;
+    private FECCode fec;
+    private int packetSize;
+    private StallWatchdog watchdog;
+
+    /**
+     * The stripes in the stripe container format, the code and the packet
+     * size are read from the headers.
+     */
+    CheckedStripes(StripeSource source, int n, ConstructStats stats) {
+        this.source = source;
+        this.n = n;
+        this.stats = stats;
+        container = true;
+        streams = new InputStream[n];
+        tried = new boolean[n];
+    }
+
+    /**
+     * Raw stripes written with the code and the packet size.
+     */
+    CheckedStripes(StripeSource source, FECCode fec, int packetSize, ConstructStats stats) {
+        this.source = source;
+        this.n = fec.getN();
+        this.stats = stats;
+        this.fec = fec;
+        this.packetSize = packetSize;
+        container = false;
+        streams = new InputStream[n];
+        tried = new boolean[n];
+    }
+
+    /**
+     * Watches the reads of the stripes opened after this, a read that blocks
+     * longer than the timeout fails the stripe. close() must be called to
+     * stop the watching.
+     * 
+     * @param timeout
+     *            The timeout in milliseconds, 0 for no timeout.
+     */
+    void setStallTimeout(long timeout) {
+        if (timeout > 0 && watchdog == null) {
+            watchdog = new StallWatchdog(timeout);
+            watchdog.start();
+        }
+    }
+
+    /**
+     * Stops watching the stripes for stalls.
+     */
+    void close() {
+        if (watchdog != null) {
+            watchdog.shutdown();
+        }
+    }
+
+    /**
+     * Opens the stripes in order from the start until they are enough to
+     * decode.
+     * 
+     * @return The code of the stripes.
+     */
+    FECCode open() throws IOException {
+        return open(0);
+    }
+
+    /**
+     * Opens the stripes in order at the block until they are enough to
+     * decode.
+     * 
+     * @return The code of the stripes.
+     */
+    FECCode open(long blockIndex) throws IOException {
+        boolean present[] = new boolean[n];
+        while (fec == null || StreamingFEC.selectStripes(fec, present) == null) {
+            int index = openNext(blockIndex);
+            if (index < 0) {
+                throw new IOException("Not enough valid stripes to reconstruct the data.");
+            }
+            present[index] = true;
+        }
+        return fec;
+    }
+
+    /**
+     * Skips the stripes in the container format opened by open() to the
+     * block, for reading only a part of the file. A stripe that ends before
+     * the block is closed.
+     */
+    void skip(long blockIndex) {
+        for (int i = 0; i < n; i++) {
+            if (streams[i] != null) {
+                try {
+                    ((StripeInputStream) streams[i]).skipPackets(blockIndex);
+                } catch (IOException e) {
+                    System.out.println("Skipping stripe " + i + " failed: " + e.getMessage());
+                    failed(i, blockIndex, e);
+                }
+            }
+        }
+    }
+
+    int getPacketSize() {
+        return packetSize;
+    }
+
+    Block newBlock() {
+        return new Block(packetSize, fec.getK(), n);
+    }
+
+    /**
+     * Reads the packets of the block from the open stripes, opening more
+     * stripes if the good packets are not enough to decode it.
+     * 
+     * @param blockIndex
+     *            The index of the block, the packet index in the stripes.
+     */
+    void read(Block block, long blockIndex) throws IOException {
+        Arrays.fill(block.good, false);
+        for (int i = 0; i < n; i++) {
+            if (streams[i] != null) {
+                readPacket(block, i, blockIndex);
+            }
+        }
+        int selected[];
+        while ((selected = StreamingFEC.selectStripes(fec, block.good)) == null) {
+            int index = openNext(blockIndex);
+            if (index < 0) {
+                throw new IOException("Not enough valid packets to reconstruct block " + blockIndex + ".");
+            }
+            stats.spareOpened(index, blockIndex);
+            readPacket(block, index, blockIndex);
+        }
+        block.select(selected);
+    }
+
+    private void readPacket(Block block, int index, long blockIndex) throws IOException {
+        try {
+            if (readPacket(index, block.packets, index * block.packetSize)) {
+                block.good[index] = true;
+            } else {
+                System.out.println("Stripe " + index + " ended before block " + blockIndex + ".");
+                failed(index, blockIndex, new EOFException("Stripe " + index + " ended before block " + blockIndex
+                        + "."));
+            }
+        } catch (ChecksumException e) {
+            System.out.println(e.getMessage());
+            stats.packetCorrupted();
+        } catch (IOException e) {
+            System.out.println("Reading stripe " + index + " failed: " + e.getMessage());
+            failed(index, blockIndex, e);
+        }
+    }
+
+    /**
+     * Reads the next packet of the stripe.
+     * 
+     * @return false if the stripe ended.
+     */
+    private boolean readPacket(int index, byte buffer[], int offset) throws IOException {
+        if (container) {
+            return ((StripeInputStream) streams[index]).readPacket(buffer, offset);
+        }
+        int read = 0;
+        int num;
+        do {
+            num = streams[index].read(buffer, offset + read, packetSize - read);
+            if (num > 0) {
+                read += num;
+            }
+        } while (num > 0 && read < packetSize);
+        if (read > 0 && read < packetSize) {
+            throw new EOFException("Stripe " + index + " ended in the middle of a packet.");
+        }
+        return read == packetSize;
+    }
+
+    private void failed(int index, long blockIndex, IOException cause) {
+        streams[index] = null;
+        stats.stripeFailed(index, blockIndex, cause);
+    }
+
+    /**
+     * Opens the next stripe not tried yet that has a valid header.
+     * 
+     * @return The index of the opened stripe or -1 if there are no more.
+     */
+    private int openNext(long blockIndex) {
+        for (int i = 0; i < n; i++) {
+            if (!tried[i]) {
+                tried[i] = true;
+                streams[i] = open(i, blockIndex);
+                if (streams[i] != null) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private InputStream open(int index, long blockIndex) {
+        InputStream in = StreamingFEC.openStripe(source, index, container ? 0 : blockIndex * packetSize);
+        if (in == null) {
+            return null;
+        }
+        if (watchdog != null) {
+            in = watchdog.watch(in, index);
+        }
+        if (!container) {
+            return in;
+        }
+        try {
+            StripeInputStream stream = new StripeInputStream(in);
+            StripeHeader h = stream.getHeader();
+            if (h.getIndex() != index || h.getN() != n || (header != null && !header.isSameFile(h))) {
+                System.out.println("Stripe " + index + " has a wrong header " + h + ".");
+                return null;
+            }
+            if (header == null) {
+                header = h;
+                fec = h.createCode();
+                packetSize = h.getPacketSize();
+            }
+            stream.skipPackets(blockIndex);
+            return stream;
+        } catch (IOException e) {
+            System.out.println("Opening stripe " + index + " failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The packets of one block from all the stripes, and the k chosen for
+     * decoding.
+     */
+    static class Block {
+        final int packetSize;
+        final int k;
+        final byte packets[];
+        final Buffer packetBuffers[];
+        final boolean good[];
+        final Buffer selected[];
+        final int index[];
+        // whether the block needs matrix decoding
+        boolean decoded;
+
+        Block(int packetSize, int k, int n) {
+            this.packetSize = packetSize;
+            this.k = k;
+            packets = new byte[n * packetSize];
+            packetBuffers = new Buffer[n];
+            for (int i = 0; i < n; i++) {
+                packetBuffers[i] = new Buffer(packets, i * packetSize, packetSize);
+            }
+            good = new boolean[n];
+            selected = new Buffer[k];
+            index = new int[k];
+        }
+
+        void select(int stripeIndexes[]) {
+            for (int i = 0; i < k; i++) {
+                selected[i] = packetBuffers[stripeIndexes[i]];
+                index[i] = stripeIndexes[i];
+            }
+            // the indexes are in increasing order
+            decoded = stripeIndexes[k - 1] != k - 1;
+        }
+
+        void decode(FECCode fec) {
+            if (decoded) {
+                fec.decode(selected, index);
+            }
+        }
+
+        /**
+         * Writes the decoded data, at most the bytes left of the file.
+         * 
+         * @return the number of bytes in the block.
+         */
+        long write(OutputStream outStream, long fileLeft) throws IOException {
+            for (int i = 0; i < k && fileLeft > 0; i++) {
+                int len = (int) Math.min(packetSize, fileLeft);
+                outStream.write(selected[i].b, selected[i].off, len);
+                fileLeft -= len;
+            }
+            return (long) k * packetSize;
+        }
+    }
+}
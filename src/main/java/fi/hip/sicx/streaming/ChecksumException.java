@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the checksum of a packet of a stripe doesn't match its data.
+ * The stripe stream is positioned at the next packet, so the reading can
+ * continue.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ChecksumException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ChecksumException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pipe between two stages of a StripePipeline, like the piped streams but
+ * passing whole chunks from a BufferPool through a bounded queue instead of
+ * copying bytes through a small ring buffer. The writer waits only when the
+ * queue is full and the reader only when it is empty.
+ * 
+ * A failure of the writing stage is passed to the reader with fail(), and
+ * closing the reading side makes the writes fail, so a stage that gives up
+ * does not leave the other one blocked.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+class ChunkPipe {
+    private final BufferPool pool;
+    private final BlockingQueue<Chunk> queue;
+    private final StageStats stats;
+    private final PipeOutputStream outputStream = new PipeOutputStream();
+    private final PipeInputStream inputStream = new PipeInputStream();
+    private volatile boolean readerClosed = false;
+
+    /**
+     * @param pool
+     *            Where to take the chunks from.
+     * @param capacity
+     *            The number of chunks the queue holds, at least 1.
+     * @param name
+     *            The name of the reading stage for the statistics.
+     */
+    ChunkPipe(BufferPool pool, int capacity, String name) {
+        this.pool = pool;
+        queue = new ArrayBlockingQueue<Chunk>(capacity);
+        stats = new StageStats(name, capacity);
+    }
+
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    InputStream getInputStream() {
+        return inputStream;
+    }
+
+    StageStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Ends the data with a failure, the reader gets it after the data
+     * written before it.
+     */
+    void fail(IOException e) throws IOException {
+        outputStream.flushChunk();
+        put(new Chunk(e));
+    }
+
+    private void put(Chunk chunk) throws IOException {
+        if (readerClosed) {
+            if (chunk.data != null) {
+                pool.give(chunk.data);
+            }
+            throw new IOException("The reading side of the pipe " + stats.getName() + " is closed.");
+        }
+        if (chunk.data != null) {
+            stats.queued(chunk.length);
+        }
+        if (queue.offer(chunk)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the pipe " + stats.getName() + ".");
+        } finally {
+            stats.waitedFull(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A chunk of data, or the end of the data with a possible failure.
+     */
+    private static class Chunk {
+        final byte data[];
+        final IOException failure;
+        int length = 0;
+
+        Chunk(byte data[]) {
+            this.data = data;
+            this.failure = null;
+        }
+
+        Chunk(IOException failure) {
+            this.data = null;
+            this.failure = failure;
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        private Chunk current;
+        private boolean closed = false;
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte b[], int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("The pipe " + stats.getName() + " is closed.");
+            }
+            while (len > 0) {
+                if (current == null) {
+                    current = new Chunk(pool.take());
+                }
+                int num = Math.min(len, current.data.length - current.length);
+                System.arraycopy(b, off, current.data, current.length, num);
+                current.length += num;
+                off += num;
+                len -= num;
+                if (current.length == current.data.length) {
+                    flushChunk();
+                }
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (current != null) {
+                Chunk chunk = current;
+                current = null;
+                if (chunk.length > 0) {
+                    put(chunk);
+                } else {
+                    pool.give(chunk.data);
+                }
+            }
+        }
+
+        /**
+         * Ends the data, closing again does nothing.
+         */
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flushChunk();
+            put(new Chunk((IOException) null));
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private Chunk current;
+        private int position;
+        private boolean ended = false;
+        private IOException failure;
+
+        public int read() throws IOException {
+            byte b[] = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!next()) {
+                return -1;
+            }
+            int num = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, num);
+            position += num;
+            return num;
+        }
+
+        /**
+         * Takes the next chunk if the current one has been read.
+         * 
+         * @return false at the end of the data.
+         */
+        private boolean next() throws IOException {
+            while (current == null || position == current.length) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (ended) {
+                    return false;
+                }
+                if (current != null) {
+                    pool.give(current.data);
+                    current = null;
+                }
+                Chunk chunk = queue.poll();
+                if (chunk == null) {
+                    long start = System.nanoTime();
+                    try {
+                        chunk = queue.take();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Interrupted while reading the pipe " + stats.getName()
+                                + ".");
+                    }
+                    stats.waitedEmpty(System.nanoTime() - start);
+                }
+                if (chunk.data == null) {
+                    ended = true;
+                    stats.ended();
+                    if (chunk.failure != null) {
+                        failure = new IOException("The stage before " + stats.getName() + " failed: "
+                                + chunk.failure.getMessage());
+                        failure.initCause(chunk.failure);
+                        throw failure;
+                    }
+                    return false;
+                }
+                stats.taken();
+                current = chunk;
+                position = 0;
+            }
+            return true;
+        }
+
+        /**
+         * Gives up reading, the chunks in the queue are dropped and the
+         * writes to the pipe fail from now on.
+         */
+        public void close() {
+            readerClosed = true;
+            if (current != null) {
+                pool.give(current.data);
+                current = null;
+            }
+            Chunk chunk;
+            while ((chunk = queue.poll()) != null) {
+                if (chunk.data != null) {
+                    stats.taken();
+                    pool.give(chunk.data);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ * 
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.IOException;
+
+/**
+ * Statistics of a StreamingFEC.construct call.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ConstructStats {
+    private long blocksDecoded = 0;
+    private long blocksPassedThrough = 0;
+    private long packetsCorrupted = 0;
+    private long packetsLate = 0;
+    private long packetsSkipped = 0;
+    private int stripesFailed = 0;
+    private int sparesOpened = 0;
+    private StripeFailoverListener listener;
+
+    /**
+     * Sets the listener told about the stripes that fail during the
+     * construction and the spare stripes opened to replace them.
+     */
+    public synchronized void setFailoverListener(StripeFailoverListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Counts a constructed block.
+     * 
+     * @param decoded
+     *            true if the block needed matrix decoding, false if the data
+     *            stripes were all present.
+     */
+    synchronized void blockConstructed(boolean decoded) {
+        if (decoded) {
+            blocksDecoded++;
+        } else {
+            blocksPassedThrough++;
+        }
+    }
+
+    /**
+     * Counts a packet that was left out because of a wrong checksum.
+     */
+    synchronized void packetCorrupted() {
+        packetsCorrupted++;
+    }
+
+    /**
+     * Counts a packet of a hedged read that arrived after its block was
+     * already constructed from other packets.
+     */
+    synchronized void packetLate() {
+        packetsLate++;
+    }
+
+    /**
+     * Counts the packets a slow stripe of a hedged read skipped to catch up
+     * with the constructed blocks.
+     */
+    synchronized void packetsSkipped(long count) {
+        packetsSkipped += count;
+    }
+
+    /**
+     * Counts a stripe that failed in the middle and tells the listener.
+     */
+    void stripeFailed(int stripe, long block, IOException cause) {
+        StripeFailoverListener l;
+        synchronized (this) {
+            stripesFailed++;
+            l = listener;
+        }
+        if (l != null) {
+            l.stripeFailed(stripe, block, cause);
+        }
+    }
+
+    /**
+     * Counts a spare stripe opened in the middle and tells the listener.
+     */
+    void spareOpened(int stripe, long block) {
+        StripeFailoverListener l;
+        synchronized (this) {
+            sparesOpened++;
+            l = listener;
+        }
+        if (l != null) {
+            l.spareOpened(stripe, block);
+        }
+    }
+
+    /**
+     * @return The number of blocks that were reconstructed from parity
+     *         stripes.
+     */
+    public synchronized long getBlocksDecoded() {
+        return blocksDecoded;
+    }
+
+    /**
+     * @return The number of blocks that were copied from the data stripes
+     *         without decoding.
+     */
+    public synchronized long getBlocksPassedThrough() {
+        return blocksPassedThrough;
+    }
+
+    /**
+     * @return The number of packets with a wrong checksum, handled as missing
+     *         packets.
+     */
+    public synchronized long getPacketsCorrupted() {
+        return packetsCorrupted;
+    }
+
+    /**
+     * @return The number of packets of a hedged read that were read but not
+     *         needed, as the block was constructed before they arrived.
+     */
+    public synchronized long getPacketsLate() {
+        return packetsLate;
+    }
+
+    /**
+     * @return The number of packets of a hedged read that were skipped
+     *         without using them.
+     */
+    public synchronized long getPacketsSkipped() {
+        return packetsSkipped;
+    }
+
+    /**
+     * @return The number of stripes that failed during the construction.
+     */
+    public synchronized int getStripesFailed() {
+        return stripesFailed;
+    }
+
+    /**
+     * @return The number of spare stripes opened during the construction to
+     *         replace the failed ones.
+     */
+    public synchronized int getSparesOpened() {
+        return sparesOpened;
+    }
+
+    public synchronized String toString() {
+        return "ConstructStats[decoded=" + blocksDecoded + ",passedThrough=" + blocksPassedThrough + ",corrupted="
+                + packetsCorrupted + ",late=" + packetsLate + ",skipped=" + packetsSkipped + ",failed=" + stripesFailed + ",spares="
+                + sparesOpened + "]";
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks at boundaries chosen by the content, so that
+ * an insertion or a deletion in the data changes only the chunks around it
+ * and the rest of the chunks stay the same. A boundary is where a rolling
+ * Gear hash of the last 64 bytes has its top log2(average size) bits zero,
+ * but not before the minimum chunk size and at the latest at the maximum.
+ * The top bits are used as the low ones depend only on the last few bytes.
+ *
+ * The Gear table is generated from a fixed seed, the boundaries must not
+ * change between versions as the chunks stored earlier are found by their
+ * content.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ContentChunker {
+
+    private static final long GEAR[] = new long[256];
+    static {
+        Random random = new Random(0x5349435843444331L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    private final int minSize;
+    private final int maxSize;
+    // the hash is shifted right by this to get the top bits
+    private final int shift;
+    // the data read but not returned yet
+    private final byte buffer[];
+    private int length = 0;
+    private boolean end = false;
+
+    /**
+     * @param in
+     *            The stream to split, not closed.
+     * @param minSize
+     *            The smallest chunk, except the last one.
+     * @param averageSize
+     *            The average chunk size, a power of 2.
+     * @param maxSize
+     *            The largest chunk.
+     */
+    public ContentChunker(InputStream in, int minSize, int averageSize, int maxSize) {
+        if (averageSize < 2 || Integer.bitCount(averageSize) != 1 || minSize < 1 || minSize > averageSize || maxSize < averageSize) {
+            throw new IllegalArgumentException("Invalid chunk sizes " + minSize + ", " + averageSize + ", " + maxSize
+                    + ".");
+        }
+        this.in = in;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.shift = 64 - Integer.numberOfTrailingZeros(averageSize);
+        buffer = new byte[maxSize];
+    }
+
+    /**
+     * @return The next chunk, null at the end of the stream.
+     */
+    public byte[] next() throws IOException {
+        while (!end && length < buffer.length) {
+            int num = in.read(buffer, length, buffer.length - length);
+            if (num < 0) {
+                end = true;
+            } else {
+                length += num;
+            }
+        }
+        if (length == 0) {
+            return null;
+        }
+        int size = findBoundary(buffer, length);
+        byte chunk[] = Arrays.copyOf(buffer, size);
+        System.arraycopy(buffer, size, buffer, 0, length - size);
+        length -= size;
+        return chunk;
+    }
+
+    /**
+     * @return The size of the chunk at the start of the data.
+     */
+    private int findBoundary(byte data[], int len) {
+        if (len <= minSize) {
+            return len;
+        }
+        int limit = Math.min(len, maxSize);
+        long hash = 0;
+        // the bytes before the last 64 ones don't affect the hash
+        for (int i = Math.max(0, minSize - 64); i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xff];
+            if (i >= minSize - 1 && (hash >>> shift) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.onionnetworks.fec.FECCode;
+
+/**
+ * The stripes of a file being read by StreamingFEC.constructHedged. More
+ * stripes than needed are opened and every open stripe has a reader thread
+ * that reads its packets into a window of blocks ahead of the block being
+ * written. A block is decoded as soon as the packets that have arrived are
+ * enough, so the construction proceeds at the pace of the k:th fastest
+ * stripe instead of the slowest one. A stripe that falls behind the written
+ * blocks skips to the next block still needed instead of reading the
+ * packets that are no longer needed, and the stripes still being read when
+ * the construction ends are closed without reading them to the end.
+ * 
+ * Both the raw stripes and the stripe container format are supported, a
+ * packet with a wrong checksum is handled as a missing packet.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+class HedgedStripes {
+    /** The number of blocks the readers can be ahead of the written block. */
+    static final int WINDOW = 16;
+
+    private final StripeSource source;
+    private final int n;
+    private final boolean container;
+    private final ConstructStats stats;
+    private FECCode fec;
+    private int packetSize;
+    private StripeHeader header;
+
+    private final Reader readers[];
+    private final boolean tried[];
+    private CheckedStripes.Block window[];
+    private long blocks;
+
+    // guarded by this: the block being constructed, whether its packets
+    // are being decoded and whether the construction has ended
+    private long next = 0;
+    private boolean assembling = false;
+    private boolean done = false;
+
+    /**
+     * Stripes in the stripe container format, the code and the packet size
+     * are read from the headers.
+     */
+    HedgedStripes(StripeSource source, int n, ConstructStats stats) {
+        this(source, n, true, null, 0, stats);
+    }
+
+    /**
+     * Raw stripes encoded with the given code.
+     */
+    HedgedStripes(StripeSource source, FECCode fec, int packetSize, ConstructStats stats) {
+        this(source, fec.getN(), false, fec, packetSize, stats);
+    }
+
+    private HedgedStripes(StripeSource source, int n, boolean container, FECCode fec, int packetSize,
+            ConstructStats stats) {
+        this.source = source;
+        this.n = n;
+        this.container = container;
+        this.fec = fec;
+        this.packetSize = packetSize;
+        this.stats = stats;
+        readers = new Reader[n];
+        tried = new boolean[n];
+    }
+
+    /**
+     * Opens the stripes in order until hedge more than k of them are open, or
+     * more if they are not enough to decode.
+     * 
+     * @return The code of the stripes.
+     */
+    FECCode open(int hedge) throws IOException {
+        boolean present[] = new boolean[n];
+        int opened = 0;
+        while (fec == null || opened < fec.getK() + hedge || StreamingFEC.selectStripes(fec, present) == null) {
+            int index = openNext(0);
+            if (index < 0) {
+                if (fec != null && StreamingFEC.selectStripes(fec, present) != null) {
+                    break;
+                }
+                throw new IOException("Not enough stripes to reconstruct the data.");
+            }
+            present[index] = true;
+            opened++;
+        }
+        return fec;
+    }
+
+    /**
+     * Opens the next stripe not tried yet at the block and creates its
+     * reader, which is started by the caller.
+     * 
+     * @return The index of the opened stripe or -1 if there are no more.
+     */
+    private int openNext(long blockIndex) {
+        for (int i = 0; i < n; i++) {
+            if (!tried[i]) {
+                tried[i] = true;
+                readers[i] = open(i, blockIndex);
+                if (readers[i] != null) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private Reader open(int index, long blockIndex) {
+        if (!container) {
+            InputStream in = StreamingFEC.openStripe(source, index, blockIndex * packetSize);
+            return in == null ? null : new Reader(index, in, null, blockIndex);
+        }
+        InputStream in = StreamingFEC.openStripe(source, index, 0);
+        if (in == null) {
+            return null;
+        }
+        try {
+            StripeInputStream stream = new StripeInputStream(in);
+            StripeHeader h = stream.getHeader();
+            if (h.getIndex() != index || h.getN() != n || (header != null && !header.isSameFile(h))) {
+                System.out.println("Stripe " + index + " has a wrong header " + h + ".");
+                return null;
+            }
+            if (header == null) {
+                header = h;
+                fec = h.createCode();
+                packetSize = h.getPacketSize();
+            }
+            stream.skipPackets(blockIndex);
+            return new Reader(index, in, stream, blockIndex);
+        } catch (IOException e) {
+            System.out.println("Opening stripe " + index + " failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Reconstructs the data from the open stripes.
+     * 
+     * @param fileSize
+     *            the size of the original file.
+     */
+    void construct(OutputStream outStream, long fileSize) throws IOException {
+        int k = fec.getK();
+        long blockSize = (long) k * packetSize;
+        blocks = (fileSize + blockSize - 1) / blockSize;
+        window = new CheckedStripes.Block[(int) Math.min(WINDOW, Math.max(blocks, 1))];
+        for (int i = 0; i < window.length; i++) {
+            window[i] = new CheckedStripes.Block(packetSize, k, n);
+        }
+        for (int i = 0; i < n; i++) {
+            if (readers[i] != null) {
+                readers[i].start();
+            }
+        }
+
+        long fileLeft = fileSize;
+        try {
+            for (long b = 0; b < blocks; b++) {
+                CheckedStripes.Block block = window[(int) (b % window.length)];
+                synchronized (this) {
+                    int selected[];
+                    while ((selected = StreamingFEC.selectStripes(fec, block.good)) == null) {
+                        if (!canComplete(block, b)) {
+                            int index = openNext(b);
+                            if (index < 0) {
+                                throw new IOException("Not enough stripes to reconstruct block " + b + ".");
+                            }
+                            readers[index].start();
+                            continue;
+                        }
+                        wait();
+                    }
+                    block.select(selected);
+                    assembling = true;
+                }
+                block.decode(fec);
+                stats.blockConstructed(block.decoded);
+                fileLeft -= block.write(outStream, fileLeft);
+                synchronized (this) {
+                    Arrays.fill(block.good, false);
+                    next++;
+                    assembling = false;
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the stripes.");
+        } finally {
+            cancel();
+        }
+        outStream.flush();
+    }
+
+    /**
+     * @return true if the packets of the block that have arrived and the ones
+     *         the running readers may still read are enough to decode it.
+     */
+    private boolean canComplete(CheckedStripes.Block block, long blockIndex) {
+        boolean possible[] = block.good.clone();
+        for (int i = 0; i < n; i++) {
+            if (readers[i] != null && !readers[i].ended && readers[i].block <= blockIndex) {
+                possible[i] = true;
+            }
+        }
+        return StreamingFEC.selectStripes(fec, possible) != null;
+    }
+
+    /**
+     * Stops the readers, the streams of the ones still reading are closed so
+     * that the stragglers don't hold the connections.
+     */
+    private void cancel() {
+        synchronized (this) {
+            done = true;
+            notifyAll();
+        }
+        for (int i = 0; i < n; i++) {
+            Reader reader = readers[i];
+            if (reader != null && reader.isAlive()) {
+                reader.interrupt();
+                try {
+                    reader.in.close();
+                } catch (IOException e) {
+                    // the stream is given up anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the packets of one stripe into the window.
+     */
+    private class Reader extends Thread {
+        final int index;
+        final InputStream in;
+        final StripeInputStream stripe;
+        final byte packet[];
+        // guarded by HedgedStripes.this: the next block to read and whether
+        // the reading has ended
+        long block;
+        boolean ended = false;
+
+        Reader(int index, InputStream in, StripeInputStream stripe, long block) {
+            super("StreamingFEC hedged reader " + index);
+            setDaemon(true);
+            this.index = index;
+            this.in = in;
+            this.stripe = stripe;
+            this.block = block;
+            packet = new byte[packetSize];
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    long skip;
+                    synchronized (HedgedStripes.this) {
+                        while (!done && block >= next + window.length) {
+                            HedgedStripes.this.wait();
+                        }
+                        if (done || block >= blocks) {
+                            return;
+                        }
+                        // a straggler skips the blocks already constructed
+                        skip = Math.max(0, next - block);
+                    }
+                    if (skip > 0) {
+                        skipPackets(skip);
+                        stats.packetsSkipped(skip);
+                        synchronized (HedgedStripes.this) {
+                            block += skip;
+                        }
+                        continue;
+                    }
+                    boolean good = readPacket();
+                    synchronized (HedgedStripes.this) {
+                        if (block > next || (block == next && !assembling)) {
+                            if (good) {
+                                CheckedStripes.Block b = window[(int) (block % window.length)];
+                                System.arraycopy(packet, 0, b.packets, index * packetSize, packetSize);
+                                b.good[index] = true;
+                            }
+                        } else if (good) {
+                            stats.packetLate();
+                        }
+                        block++;
+                        HedgedStripes.this.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                if (!isDone()) {
+                    System.out.println("Reading stripe " + index + " failed: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                // cancelled
+            } finally {
+                synchronized (HedgedStripes.this) {
+                    ended = true;
+                    HedgedStripes.this.notifyAll();
+                }
+            }
+        }
+
+        private boolean isDone() {
+            synchronized (HedgedStripes.this) {
+                return done;
+            }
+        }
+
+        /**
+         * @return false if the packet had a wrong checksum.
+         */
+        private boolean readPacket() throws IOException {
+            if (stripe != null) {
+                try {
+                    if (!stripe.readPacket(packet, 0)) {
+                        throw new EOFException("Stripe " + index + " ended before block " + block + ".");
+                    }
+                    return true;
+                } catch (ChecksumException e) {
+                    System.out.println(e.getMessage());
+                    stats.packetCorrupted();
+                    return false;
+                }
+            }
+            int read = 0;
+            while (read < packetSize) {
+                int num = in.read(packet, read, packetSize - read);
+                if (num < 0) {
+                    throw new EOFException("Stripe " + index + " ended before block " + block + ".");
+                }
+                read += num;
+            }
+            return true;
+        }
+
+        private void skipPackets(long count) throws IOException {
+            if (stripe != null) {
+                stripe.skipPackets(count);
+                return;
+            }
+            long left = count * packetSize;
+            while (left > 0) {
+                long num = in.skip(left);
+                if (num <= 0) {
+                    // skip may give up before the end, read to be sure
+                    if (in.read() == -1) {
+                        throw new EOFException("Stripe " + index + " ended before block " + (block + count) + ".");
+                    }
+                    num = 1;
+                }
+                left -= num;
+            }
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An output stream that queues the data written to it and writes it to the
+ * underlying stream in a thread of its own. Writing only blocks when the
+ * queue is full, so StreamingFEC.stripe writing the stripes to the storages
+ * through these is slowed down by a slow storage only after its queue has
+ * filled up, and the other storages are not waited for packet by packet.
+ * 
+ * The data is queued in chunks of the given size, usually the packet size,
+ * and the queue holds at most the given number of chunks. The chunks can be
+ * taken from a BufferPool shared with other queues. flush() waits until the
+ * queue is written and flushed, close() also closes the underlying stream.
+ * finish() queues the end without waiting, the listener is told when the
+ * queue has been written and the underlying stream closed. A failure in
+ * writing the underlying stream is thrown from the next write, flush or
+ * close.
+ * 
+ * The queue depth and the time spent waiting for a full queue are recorded
+ * in the StageStats for seeing which storages hold up the striping.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class QueuedOutputStream extends OutputStream {
+    private static final Chunk FLUSH = new Chunk(null);
+    private static final Chunk END = new Chunk(null);
+
+    /**
+     * Is told when a QueuedOutputStream has written all its data.
+     */
+    public interface Listener {
+        /**
+         * Called by the writing thread of the stream after the queue has
+         * been written and the underlying stream closed, or writing it
+         * failed.
+         * 
+         * @param failure
+         *            Why writing failed, null if it succeeded.
+         */
+        public void written(QueuedOutputStream stream, IOException failure);
+    }
+
+    private final OutputStream out;
+    private final BufferPool pool;
+    private final BlockingQueue<Chunk> queue;
+    private final StageStats stats;
+    private final Thread drainer;
+    private Listener listener;
+    private Chunk current;
+    private boolean ended = false;
+    private boolean closed = false;
+    // guarded by this
+    private IOException failure;
+    private long flushesRequested = 0;
+    private long flushesDone = 0;
+    private volatile long bytesWritten = 0;
+
+    /**
+     * @param out
+     *            The stream to write to.
+     * @param chunkSize
+     *            The size of the queued chunks, usually the packet size.
+     * @param capacity
+     *            The number of chunks the queue holds, at least 1.
+     * @param name
+     *            The name of the stream for the writing thread.
+     */
+    public QueuedOutputStream(OutputStream out, int chunkSize, int capacity, String name) {
+        // the queued chunks plus the ones being filled and written
+        this(out, new BufferPool(chunkSize, capacity + 2), capacity, name);
+    }
+
+    /**
+     * @param out
+     *            The stream to write to.
+     * @param pool
+     *            Where to take the chunks from, the chunk size is the buffer
+     *            size of the pool.
+     * @param capacity
+     *            The number of chunks the queue holds, at least 1.
+     * @param name
+     *            The name of the stream for the writing thread.
+     */
+    public QueuedOutputStream(OutputStream out, BufferPool pool, int capacity, String name) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity + ".");
+        }
+        this.out = out;
+        this.pool = pool;
+        queue = new ArrayBlockingQueue<Chunk>(capacity);
+        stats = new StageStats(name, capacity);
+        drainer = new Thread("QueuedOutputStream " + name) {
+            public void run() {
+                drain();
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Sets the listener told when the data has been written, must be set
+     * before finish() or close().
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            if (current == null) {
+                current = new Chunk(pool.take());
+            }
+            int num = Math.min(len, current.data.length - current.length);
+            System.arraycopy(b, off, current.data, current.length, num);
+            current.length += num;
+            off += num;
+            len -= num;
+            if (current.length == current.data.length) {
+                put(current);
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Queues the data written so far and waits until it is written and the
+     * underlying stream is flushed.
+     */
+    public void flush() throws IOException {
+        checkOpen();
+        flushQueue();
+    }
+
+    /**
+     * Queues the data written so far and the end of the data without waiting
+     * for them to be written. The underlying stream is closed by the writing
+     * thread, and the listener told, after the data has been written.
+     */
+    public void finish() throws IOException {
+        if (ended) {
+            return;
+        }
+        checkOpen();
+        try {
+            if (current != null && current.length > 0) {
+                put(current);
+                current = null;
+            }
+        } finally {
+            ended = true;
+            putEnd();
+        }
+    }
+
+    /**
+     * Writes the queued data, closes the underlying stream and stops the
+     * writing thread. Closing the stream again does nothing.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!ended) {
+                try {
+                    flushQueue();
+                } finally {
+                    ended = true;
+                    putEnd();
+                }
+            }
+            try {
+                drainer.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while closing the stream.");
+            }
+        } finally {
+            closed = true;
+        }
+        checkFailure();
+    }
+
+    /**
+     * Gives up the stream after a failure: the queued data is dropped, the
+     * writing thread stopped and the underlying stream closed without
+     * waiting for the data being written. The listener is not told.
+     * Aborting a closed stream does nothing.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        ended = true;
+        closed = true;
+        synchronized (this) {
+            if (failure == null) {
+                failure = new IOException("The stream was aborted.");
+            }
+            notifyAll();
+        }
+        drainer.interrupt();
+        Chunk chunk;
+        while ((chunk = queue.poll()) != null) {
+            if (chunk.data != null) {
+                pool.give(chunk.data);
+            }
+        }
+        if (current != null) {
+            pool.give(current.data);
+            current = null;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            // the stream is given up anyway
+        }
+    }
+
+    /**
+     * @return The statistics of the queue.
+     */
+    public StageStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return The number of chunks in the queue now.
+     */
+    public int getQueueDepth() {
+        return stats.getQueueDepth();
+    }
+
+    /**
+     * @return The number of chunks the queue holds.
+     */
+    public int getCapacity() {
+        return stats.getCapacity();
+    }
+
+    /**
+     * @return The deepest the queue has been when a chunk was queued.
+     */
+    public int getMaxQueueDepth() {
+        return stats.getMaxQueueDepth();
+    }
+
+    /**
+     * @return The average depth of the queue when a chunk was queued.
+     */
+    public double getAverageQueueDepth() {
+        return stats.getAverageQueueDepth();
+    }
+
+    /**
+     * @return The number of times the queue was full and writing had to
+     *         wait.
+     */
+    public long getQueueFull() {
+        return stats.getQueueFull();
+    }
+
+    /**
+     * @return The time writing has waited for a full queue, in milliseconds.
+     */
+    public long getWaitMillis() {
+        return stats.getFullWaitMillis();
+    }
+
+    /**
+     * @return The number of bytes written to the underlying stream.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public String toString() {
+        return "QueuedOutputStream[written=" + bytesWritten + ",depth=" + getQueueDepth() + "/" + getCapacity()
+                + ",max=" + getMaxQueueDepth() + ",average=" + Math.round(getAverageQueueDepth() * 10) / 10.0
+                + ",full=" + getQueueFull() + ",waited=" + getWaitMillis() + "ms]";
+    }
+
+    private void checkOpen() throws IOException {
+        if (ended) {
+            throw new IOException("The stream is closed.");
+        }
+        checkFailure();
+    }
+
+    private synchronized void checkFailure() throws IOException {
+        if (failure != null) {
+            IOException e = new IOException("Writing the queued data failed: " + failure.getMessage());
+            e.initCause(failure);
+            throw e;
+        }
+    }
+
+    /**
+     * Queues the chunk, waiting if the queue is full.
+     */
+    private void put(Chunk chunk) throws IOException {
+        stats.queued(chunk.length);
+        if (queue.offer(chunk)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the queue.");
+        } finally {
+            stats.waitedFull(System.nanoTime() - start);
+        }
+        checkFailure();
+    }
+
+    private void putEnd() throws IOException {
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while closing the stream.");
+        }
+    }
+
+    /**
+     * Queues the partial chunk and a flush, and waits for the flush.
+     */
+    private void flushQueue() throws IOException {
+        if (current != null && current.length > 0) {
+            put(current);
+            current = null;
+        }
+        long flush;
+        synchronized (this) {
+            flush = ++flushesRequested;
+        }
+        try {
+            queue.put(FLUSH);
+            synchronized (this) {
+                while (flushesDone < flush && failure == null) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while flushing the queue.");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Writes the queued chunks until the end. After a failure the chunks are
+     * only returned so that the writing does not block.
+     */
+    private void drain() {
+        IOException failed = null;
+        while (true) {
+            Chunk chunk = queue.poll();
+            if (chunk == null) {
+                long start = System.nanoTime();
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                stats.waitedEmpty(System.nanoTime() - start);
+            }
+            try {
+                if (chunk == END) {
+                    if (failed == null) {
+                        out.close();
+                    }
+                } else if (chunk == FLUSH) {
+                    if (failed == null) {
+                        out.flush();
+                    }
+                    synchronized (this) {
+                        flushesDone++;
+                        notifyAll();
+                    }
+                } else {
+                    stats.taken();
+                    if (failed == null) {
+                        out.write(chunk.data, 0, chunk.length);
+                        bytesWritten += chunk.length;
+                    }
+                    pool.give(chunk.data);
+                }
+            } catch (Throwable t) {
+                // also the unchecked failures of the stream, the writer
+                // must not wait for a drainer that is gone
+                IOException e = t instanceof IOException ? (IOException) t : new IOException(
+                        "Writing to the stream failed: " + t, t);
+                failed = e;
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                if (chunk.data != null) {
+                    pool.give(chunk.data);
+                }
+            }
+            if (chunk == END) {
+                stats.ended();
+                Listener l;
+                synchronized (this) {
+                    l = listener;
+                }
+                if (l != null) {
+                    l.written(this, failed);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * A chunk of the queued data in a buffer of the pool.
+     */
+    private static class Chunk {
+        final byte data[];
+        int length = 0;
+
+        Chunk(byte data[]) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+/**
+ * Statistics of the queue in front of a stage of a StripePipeline, or of a
+ * QueuedOutputStream. The queue depth is sampled every time a chunk is
+ * queued.
+ * 
+ * A stage whose queue is often full, with the stage before it waiting for
+ * room, is slower than the stage before it. A stage waiting for an empty
+ * queue is waiting for the stage before it, so the bottleneck of the
+ * pipeline is the first stage from the end that is not waiting for its
+ * input.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class StageStats {
+    private final String name;
+    private final int capacity;
+    private long bytes = 0;
+    private long chunks = 0;
+    private int depth = 0;
+    private int maxDepth = 0;
+    private long depthSum = 0;
+    private long queueFull = 0;
+    private long fullNanos = 0;
+    private long emptyNanos = 0;
+    // when the first chunk was queued and the stage ended, 0 if not yet
+    private long started = 0;
+    private long ended = 0;
+
+    /**
+     * @param name
+     *            The name of the stage.
+     * @param capacity
+     *            The number of chunks the queue holds.
+     */
+    public StageStats(String name, int capacity) {
+        this.name = name;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Counts a chunk queued, before it is added to the queue. A chunk
+     * waiting for room in a full queue is not counted in the depth.
+     */
+    synchronized void queued(int length) {
+        if (started == 0) {
+            started = System.nanoTime();
+        }
+        chunks++;
+        depthSum += depth;
+        depth++;
+        maxDepth = Math.max(maxDepth, Math.min(depth, capacity));
+        bytes += length;
+    }
+
+    /**
+     * Counts a chunk taken from the queue by the stage.
+     */
+    synchronized void taken() {
+        depth--;
+    }
+
+    /**
+     * Counts a wait for room in the full queue.
+     */
+    synchronized void waitedFull(long nanos) {
+        queueFull++;
+        fullNanos += nanos;
+    }
+
+    /**
+     * Counts a wait of the stage for a chunk in the empty queue.
+     */
+    synchronized void waitedEmpty(long nanos) {
+        emptyNanos += nanos;
+    }
+
+    /**
+     * Marks the stage done.
+     */
+    synchronized void ended() {
+        if (ended == 0) {
+            ended = System.nanoTime();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of chunks the queue holds.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of bytes queued for the stage.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The number of chunks in the queue now.
+     */
+    public synchronized int getQueueDepth() {
+        return Math.min(depth, capacity);
+    }
+
+    /**
+     * @return The deepest the queue has been.
+     */
+    public synchronized int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return The average depth of the queue when a chunk was queued.
+     */
+    public synchronized double getAverageQueueDepth() {
+        return chunks == 0 ? 0 : (double) depthSum / chunks;
+    }
+
+    /**
+     * @return The number of times the queue was full and the stage before
+     *         had to wait.
+     */
+    public synchronized long getQueueFull() {
+        return queueFull;
+    }
+
+    /**
+     * @return The time the stage before waited for room in the queue, in
+     *         milliseconds.
+     */
+    public synchronized long getFullWaitMillis() {
+        return fullNanos / 1000000;
+    }
+
+    /**
+     * @return The time the stage waited for data in the queue, in
+     *         milliseconds.
+     */
+    public synchronized long getEmptyWaitMillis() {
+        return emptyNanos / 1000000;
+    }
+
+    /**
+     * @return The time from the first chunk to the end of the stage, or to
+     *         now if it has not ended, in milliseconds.
+     */
+    public synchronized long getMillis() {
+        if (started == 0) {
+            return 0;
+        }
+        return ((ended == 0 ? System.nanoTime() : ended) - started) / 1000000;
+    }
+
+    /**
+     * @return The bytes through the stage per second, in MB/s.
+     */
+    public synchronized double getThroughput() {
+        long millis = getMillis();
+        return millis == 0 ? 0 : bytes / 1e3 / millis;
+    }
+
+    public synchronized String toString() {
+        return name + ": " + bytes + " bytes in " + getMillis() + " ms, " + Math.round(getThroughput() * 10) / 10.0
+                + " MB/s, queue " + getQueueDepth() + "/" + capacity + " max " + maxDepth + " average "
+                + Math.round(getAverageQueueDepth() * 10) / 10.0 + ", full " + queueFull + " times for "
+                + getFullWaitMillis() + " ms, empty for " + getEmptyWaitMillis() + " ms";
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches the reads of the stripe streams and closes a stream whose read has
+ * not returned in the timeout, so that a storage that stops sending fails
+ * the stripe instead of blocking the construction. Closing the stream makes
+ * the blocked read return, the read then throws an InterruptedIOException.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+class StallWatchdog extends Thread {
+    private final long timeout;
+    private final List<WatchedInputStream> streams = new ArrayList<WatchedInputStream>();
+    private boolean stopped = false;
+
+    /**
+     * @param timeout
+     *            The longest time a read may block, in milliseconds.
+     */
+    StallWatchdog(long timeout) {
+        super("StreamingFEC stall watchdog");
+        setDaemon(true);
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return The stream that is watched while reading.
+     */
+    synchronized InputStream watch(InputStream in, int index) {
+        WatchedInputStream watched = new WatchedInputStream(in, index);
+        streams.add(watched);
+        return watched;
+    }
+
+    public void run() {
+        try {
+            synchronized (this) {
+                while (!stopped) {
+                    long now = System.currentTimeMillis();
+                    for (WatchedInputStream in : streams) {
+                        in.check(now);
+                    }
+                    wait(Math.max(1, timeout / 4));
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Stops watching, the streams are left open.
+     */
+    synchronized void shutdown() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * A stream that records when the current read started.
+     */
+    private class WatchedInputStream extends FilterInputStream {
+        private final int index;
+        // when the current read started, 0 when not reading
+        private volatile long started = 0;
+        private volatile boolean stalled = false;
+
+        WatchedInputStream(InputStream in, int index) {
+            super(in);
+            this.index = index;
+        }
+
+        void check(long now) {
+            long start = started;
+            if (start != 0 && !stalled && now - start > timeout) {
+                stalled = true;
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // the stream is given up anyway
+                }
+            }
+        }
+
+        private void begin() throws IOException {
+            checkStalled();
+            started = System.currentTimeMillis();
+        }
+
+        private void checkStalled() throws IOException {
+            if (stalled) {
+                throw new InterruptedIOException("Stripe " + index + " stalled for over " + timeout + " ms.");
+            }
+        }
+
+        public int read() throws IOException {
+            begin();
+            int b;
+            try {
+                b = in.read();
+            } catch (IOException e) {
+                checkStalled();
+                throw e;
+            } finally {
+                started = 0;
+            }
+            checkStalled();
+            return b;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            begin();
+            int num;
+            try {
+                num = in.read(b, off, len);
+            } catch (IOException e) {
+                checkStalled();
+                throw e;
+            } finally {
+                started = 0;
+            }
+            // a closed stream may also just end
+            checkStalled();
+            return num;
+        }
+
+        public long skip(long n) throws IOException {
+            begin();
+            try {
+                return in.skip(n);
+            } catch (IOException e) {
+                checkStalled();
+                throw e;
+            } finally {
+                started = 0;
+            }
+        }
+    }
+}
@@ -15,13 +15,19 @@
  */
 package fi.hip.sicx.streaming;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.onionnetworks.fec.FECCode;
 import com.onionnetworks.fec.FECCodeFactory;
+import com.onionnetworks.fec.LRCCode;
 import com.onionnetworks.util.Buffer;
 
 /**
@@ -30,6 +36,9 @@ import com.onionnetworks.util.Buffer;
  * @author Joni Hahkala <joni.hahkala@cern.ch>
  */
 public class StreamingFEC {
+    /** The default number of threads for encoding and decoding. */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
     /**
      * Stripes the data from input into the output.
      * 
@@ -52,53 +61,88 @@ public class StreamingFEC {
      */
     public static long stripe(InputStream inStream, OutputStream outStreams[], int packetSize, int k, int n, long endSize)
             throws IOException {
+        return stripe(inStream, outStreams, packetSize, k, n, endSize, 1);
+    }
 
-        long fileSize = 0;
-        long paddedLen = 0;
-
-        byte source[] = new byte[k * packetSize]; // this is our source file
-        // this will hold the encoded file
-        byte[] stripes = new byte[n * packetSize];
+    /**
+     * Stripes the data from input into the output using several threads for
+     * the encoding. With more than one thread the input is read by a reader
+     * thread, the blocks are encoded concurrently by the encoding threads and
+     * written to the output streams in the block order by the calling thread.
+     * The output is identical to the single threaded striping.
+     * 
+     * @param inStream
+     *            The stream where to read the input data.
+     * @param outStreams
+     *            The streams where to write the stripes. The number of streams
+     *            has to match n.
+     * @param packetSize
+     *            The packet size used for the stripes for calculating the FEC.
+     * @param k
+     *            The number of required stripes to reconstruct the file.
+     * @param n
+     *            The number of stripes.
+     * @param endSize
+     *            the file length to pad the file to.
+     * @param threads
+     *            The number of encoding threads, 1 encodes in the calling
+     *            thread.
+     * @return The number of padding bytes used.
+     * @throws IOException
+     *             thrown in case reading of the input stream or writing to the
+     *             output streams fails.
+     */
+    public static long stripe(InputStream inStream, OutputStream outStreams[], int packetSize, int k, int n,
+            long endSize, int threads) throws IOException {
 
-        // These buffers allow us to put our data in them they
-        // reference a packet length of the file (or at least will once
-        // we fill them)
-        Buffer[] sourceBuffers = new Buffer[k];
-        Buffer[] stripeBuffers = new Buffer[n];
+        // create our fec code
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(k, n);
 
-        for (int i = 0; i < sourceBuffers.length; i++)
-            sourceBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+        return stripe(inStream, outStreams, packetSize, fec, endSize, threads);
+    }
 
-        for (int i = 0; i < stripeBuffers.length; i++)
-            stripeBuffers[i] = new Buffer(stripes, i * packetSize, packetSize);
+    /**
+     * Stripes the data from input into the output with the given code, for
+     * example a LRCCode. The stripes must be reconstructed with the same code.
+     * 
+     * @param inStream
+     *            The stream where to read the input data.
+     * @param outStreams
+     *            The streams where to write the stripes. The number of streams
+     *            has to match the n of the code.
+     * @param packetSize
+     *            The packet size used for the stripes for calculating the FEC.
+     * @param fec
+     *            The code to use.
+     * @param endSize
+     *            the file length to pad the file to.
+     * @param threads
+     *            The number of encoding threads, 1 encodes in the calling
+     *            thread.
+     * @return The number of padding bytes used.
+     * @throws IOException
+     *             thrown in case reading of the input stream or writing to the
+     *             output streams fails.
+     */
+    public static long stripe(InputStream inStream, OutputStream outStreams[], int packetSize, FECCode fec,
+            long endSize, int threads) throws IOException {
+        int k = fec.getK();
+        int n = fec.getN();
 
-        // When sending the data you must identify what it's index was.
-        // Will be shown and explained later
-        int[] stripeIndex = new int[n];
+        if (threads > 1) {
+            return stripeParallel(inStream, outStreams, fec, packetSize, k, n, endSize, threads);
+        }
 
-        for (int i = 0; i < stripeIndex.length; i++)
-            stripeIndex[i] = i;
+        long fileSize = 0;
+        long paddedLen = 0;
 
-        // create our fec code
-        FECCode fec = FECCodeFactory.getDefault().createFECCode(k, n);
+        StripeBlock block = new StripeBlock(packetSize, k, n);
 
         int read;
         do {
-            read = 0;
             // fill the buffer until full or file ends
-            int num = 0;
-            do {
-                num = inStream.read(source, read, source.length - read);
-                if (num > 0) {
-                    read += num;
-                }
-            } while (num > 0 && read < source.length);
-
-            if(read == -1){
-                read = 0;
-            }
+            read = readBlock(inStream, block.source);
             if (read < k * packetSize) {
-                Arrays.fill(source, read, k * packetSize, (byte) 0);
                 if(fileSize + k*packetSize >= endSize){
                     paddedLen = endSize;
                 } else {
@@ -106,19 +150,83 @@ public class StreamingFEC {
                 }
             }
             // encode the data
-            fec.encode(sourceBuffers, stripeBuffers, stripeIndex);
+            block.encode(fec);
             // encoded data is now contained in the stripeBuffer/stripes byte
             // array
-            for (int i = 0; i < n; i++) {
-                outStreams[stripeIndex[i]].write(stripes, i * packetSize, packetSize);
-            }
+            block.write(outStreams);
 
             fileSize += read;
+            if (fileSize >= endSize) {
+                // the data filled the last block, there is no padding
+                paddedLen = fileSize;
+            }
         } while (paddedLen < endSize);
 
         return paddedLen - fileSize;
     }
 
+    /**
+     * The striping with a reader thread, a pool of encoding threads and the
+     * calling thread writing the stripes in order.
+     */
+    private static long stripeParallel(final InputStream inStream, OutputStream outStreams[], final FECCode fec,
+            final int packetSize, final int k, final int n, final long endSize, int threads) throws IOException {
+
+        // the blocks in flight plus the ones being read and written
+        int window = 2 * threads;
+        final BlockingQueue<StripeBlock> freeBlocks = new ArrayBlockingQueue<StripeBlock>(window + 2);
+        for (int i = 0; i < window + 2; i++) {
+            freeBlocks.add(new StripeBlock(packetSize, k, n));
+        }
+        final BlockPipeline<StripeBlock> pipeline = new BlockPipeline<StripeBlock>(threads, window);
+        final AtomicLong padding = new AtomicLong();
+
+        Thread reader = pipeline.startProducer("StreamingFEC reader", new BlockPipeline.Producer() {
+            public void produce() throws IOException, InterruptedException {
+                long fileSize = 0;
+                long paddedLen = 0;
+                do {
+                    final StripeBlock block = freeBlocks.take();
+                    int read = readBlock(inStream, block.source);
+                    if (read < k * packetSize) {
+                        if (fileSize + k * packetSize >= endSize) {
+                            paddedLen = endSize;
+                        } else {
+                            paddedLen = fileSize + k * packetSize;
+                        }
+                    }
+                    pipeline.submit(new Callable<StripeBlock>() {
+                        public StripeBlock call() {
+                            block.encode(fec);
+                            return block;
+                        }
+                    });
+                    fileSize += read;
+                    if (fileSize >= endSize) {
+                        // the data filled the last block, there is no padding
+                        paddedLen = fileSize;
+                    }
+                } while (paddedLen < endSize);
+
+                padding.set(paddedLen - fileSize);
+                pipeline.submitEnd();
+            }
+        });
+
+        try {
+            StripeBlock block;
+            while ((block = pipeline.take()) != null) {
+                block.write(outStreams);
+                freeBlocks.add(block);
+            }
+        } finally {
+            reader.interrupt();
+            pipeline.shutdown();
+        }
+
+        return padding.get();
+    }
+
     /**
      * Reads the file stripes from the input streams and writes the
      * reconstructed file into the output stream.
@@ -142,6 +250,81 @@ public class StreamingFEC {
      */
     public static long construct(InputStream inStreams[], OutputStream outStream, int packetSize, int k, int n,
             long fileSize) throws IOException {
+        return construct(inStreams, outStream, packetSize, k, n, fileSize, 1, null);
+    }
+
+    /**
+     * Reads the file stripes from the input streams and writes the
+     * reconstructed file into the output stream using several threads for the
+     * decoding. With more than one thread the stripes are read ahead by a
+     * reader thread, the blocks are decoded concurrently by the decoding
+     * threads and written to the output stream in the block order by the
+     * calling thread.
+     * 
+     * @param inStreams
+     *            The streams where to read the input streams. Put null for
+     *            missing stripes.
+     * @param outStream
+     *            the stream where to write the reconstructed data.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param k
+     *            the number of required stripes to reconstruct the data.
+     * @param n
+     *            the number of stripes.
+     * @param fileSize
+     *            the size of the original file.
+     * @param threads
+     *            The number of decoding threads, 1 decodes in the calling
+     *            thread.
+     * @param stats
+     *            Where to count the decoded and passed through blocks, can be
+     *            null.
+     * @return the number of reconstructed bytes.
+     * @throws IOException
+     *             thrown in case reading of the input streams or writing to the
+     *             output stream fails.
+     */
+    public static long construct(InputStream inStreams[], OutputStream outStream, int packetSize, int k, int n,
+            long fileSize, int threads, ConstructStats stats) throws IOException {
+
+        // create our fec code
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(k, n);
+
+        return construct(inStreams, outStream, packetSize, fec, fileSize, threads, stats);
+    }
+
+    /**
+     * Reads the file stripes from the input streams and writes the
+     * reconstructed file into the output stream, like construct() above but
+     * with the code that was used for the striping.
+     * 
+     * @param inStreams
+     *            The streams where to read the input streams. Put null for
+     *            missing stripes.
+     * @param outStream
+     *            the stream where to write the reconstructed data.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param fec
+     *            The code used for the striping.
+     * @param fileSize
+     *            the size of the original file.
+     * @param threads
+     *            The number of decoding threads, 1 decodes in the calling
+     *            thread.
+     * @param stats
+     *            Where to count the decoded and passed through blocks, can be
+     *            null.
+     * @return the number of reconstructed bytes.
+     * @throws IOException
+     *             thrown in case reading of the input streams or writing to the
+     *             output stream fails.
+     */
+    public static long construct(InputStream inStreams[], OutputStream outStream, int packetSize, FECCode fec,
+            long fileSize, int threads, ConstructStats stats) throws IOException {
+        int k = fec.getK();
+        int n = fec.getN();
 
         int realStreams = 0;
         
@@ -152,61 +335,36 @@ public class StreamingFEC {
             }
         }
         if(realStreams < k){
-            throw new IOException("Can't reconstruct data from " + " stripes, minimum needed is " + k + ".");
+            throw new IOException("Can't reconstruct data from " + realStreams + " stripes, minimum needed is " + k + ".");
         }
         
-        int stripeIndexes[] = new int[realStreams];
-        
-        int existingStream = 0;
-        for (int i = 0; i < n; i++) {
-            if(inStreams[i] != null){
-                stripeIndexes[existingStream++] = i;                
-            }
+        // Only k stripes are needed, prefer the data stripes as they need no
+        // decoding.
+        int stripeIndexes[] = selectStripes(fec, inStreams);
+        if (stripeIndexes == null) {
+            throw new IOException("Can't reconstruct data from the " + realStreams + " stripes with " + fec + ".");
         }
 
-        long fileLeft = fileSize;
-
-        byte source[] = new byte[n * packetSize]; // this is our source streams
-
-        // These buffers allow us to handle our data in the source buffer.
-        Buffer[] stripeBuffers = new Buffer[realStreams];
+        if (stats == null) {
+            stats = new ConstructStats();
+        }
 
-        for (int i = 0; i < realStreams; i++){
-            stripeBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+        // With all the data stripes present the blocks are only copied, so
+        // there is nothing to parallelize.
+        if (threads > 1 && stripeIndexes[k - 1] != k - 1) {
+            return constructParallel(inStreams, outStream, fec, packetSize, k, stripeIndexes, fileSize, threads, stats);
         }
 
-        // create our fec code
-        FECCode fec = FECCodeFactory.getDefault().createFECCode(k, n);
+        ConstructBlock block = new ConstructBlock(packetSize, k, stripeIndexes);
+        long fileLeft = fileSize;
 
         do {
-            int read;
-
-            for (int i = 0; i < realStreams; i++) {
-                read = 0;
-                // fill the buffer until full or file ends
-                int num = 0;
-                do {
-                    num = inStreams[stripeIndexes[i]].read(source, i * packetSize + read, packetSize - read);
-                    if (num > 0) {
-                        read += num;
-                    }
-                } while (num > 0 && read < packetSize);
-                if (read != packetSize) {
-                    throw new IOException("Unexpected end of stripe. Succesfully read " + (fileSize - fileLeft)
-                            + " bytes.");
-                }
-            }
-            
-            // copy the stripe indexes as the decode overwrites it
-            int tempIndexes[] = new int[realStreams];
-            System.arraycopy(stripeIndexes, 0, tempIndexes, 0, realStreams);
+            block.read(inStreams, fileSize - fileLeft);
             // decode the data
-            fec.decode(stripeBuffers, tempIndexes);
-            // encoded data is now contained in the sourceBuffer/source byte
-            // array
-            outStream.write(source, 0, (fileLeft < k * packetSize) ? (int) fileLeft : k * packetSize);
-
-            fileLeft -= k * packetSize;
+            block.decode(fec);
+            stats.blockConstructed(block.decoded);
+            // decoded data is now contained in the start of the block
+            fileLeft -= block.write(outStream, fileLeft);
         } while (fileLeft > 0);
         
         outStream.flush();
@@ -214,4 +372,1246 @@ public class StreamingFEC {
         return fileSize;
     }
 
+    /**
+     * Reads the file stripes from the stripe source and writes the
+     * reconstructed file into the output stream. The data stripes are opened
+     * first, the parity stripes are opened only to replace data stripes that
+     * are not available. When all the data stripes are available the blocks
+     * are copied to the output without decoding.
+     * 
+     * @param source
+     *            Where to open the stripes from.
+     * @param outStream
+     *            the stream where to write the reconstructed data.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param k
+     *            the number of required stripes to reconstruct the data.
+     * @param n
+     *            the number of stripes.
+     * @param fileSize
+     *            the size of the original file.
+     * @param threads
+     *            The number of decoding threads, 1 decodes in the calling
+     *            thread.
+     * @param stats
+     *            Where to count the decoded and passed through blocks, can be
+     *            null.
+     * @return the number of reconstructed bytes.
+     * @throws IOException
+     *             thrown in case there are not enough stripes available,
+     *             reading of the stripes or writing to the output stream
+     *             fails.
+     */
+    public static long construct(StripeSource source, OutputStream outStream, int packetSize, int k, int n,
+            long fileSize, int threads, ConstructStats stats) throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(k, n);
+        return construct(source, outStream, packetSize, fec, fileSize, threads, stats);
+    }
+
+    /**
+     * Reads the file stripes from the stripe source and writes the
+     * reconstructed file into the output stream, like construct() above but
+     * with the code that was used for the striping. The stripes are opened in
+     * order until they are enough to reconstruct the data, a stripe that
+     * fails in the middle is replaced by the next one opened at the failed
+     * block.
+     * 
+     * @param source
+     *            Where to open the stripes from.
+     * @param outStream
+     *            the stream where to write the reconstructed data.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param fec
+     *            The code used for the striping.
+     * @param fileSize
+     *            the size of the original file.
+     * @param threads
+     *            The number of decoding threads, 1 decodes in the calling
+     *            thread.
+     * @param stats
+     *            Where to count the decoded and passed through blocks, can be
+     *            null.
+     * @return the number of reconstructed bytes.
+     * @throws IOException
+     *             thrown in case there are not enough stripes available,
+     *             reading of the stripes or writing to the output stream
+     *             fails.
+     */
+    public static long construct(StripeSource source, OutputStream outStream, int packetSize, FECCode fec,
+            long fileSize, int threads, ConstructStats stats) throws IOException {
+        return construct(source, outStream, packetSize, fec, fileSize, threads, 0, stats);
+    }
+
+    /**
+     * Reconstructs the file like construct() above, failing over to the
+     * spare stripes in the middle of the file. A stripe that fails, ends
+     * early or whose read blocks longer than the stall timeout is closed and
+     * the next stripe is opened at the block being read, the failures and
+     * the opened stripes are told to the failover listener of the stats.
+     * 
+     * @param source
+     *            Where to open the stripes from.
+     * @param outStream
+     *            the stream where to write the reconstructed data.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param fec
+     *            The code used for the striping.
+     * @param fileSize
+     *            the size of the original file.
+     * @param threads
+     *            The number of decoding threads, 1 decodes in the calling
+     *            thread.
+     * @param stallTimeout
+     *            The longest time a read of a stripe may block in
+     *            milliseconds, 0 for no timeout.
+     * @param stats
+     *            Where to count the decoded blocks and the failed stripes,
+     *            can be null.
+     * @return the number of reconstructed bytes.
+     * @throws IOException
+     *             thrown in case there are not enough stripes available for a
+     *             block, or writing to the output stream fails.
+     */
+    public static long construct(StripeSource source, OutputStream outStream, int packetSize, FECCode fec,
+            long fileSize, int threads, long stallTimeout, ConstructStats stats) throws IOException {
+        if (stats == null) {
+            stats = new ConstructStats();
+        }
+        CheckedStripes stripes = new CheckedStripes(source, fec, packetSize, stats);
+        stripes.setStallTimeout(stallTimeout);
+        try {
+            stripes.open();
+            return construct(stripes, fec, outStream, 0, fileSize, threads, stats);
+        } finally {
+            stripes.close();
+        }
+    }
+
+    /**
+     * Reconstructs a file from stripes in the stripe container format, see
+     * StripeHeader. The code, k and the packet size are read from the stripe
+     * headers. The checksum of every packet is checked as it is read, a
+     * packet with a wrong checksum or a stripe that fails is handled as a
+     * missing packet of the block and more stripes are opened from the
+     * source if the remaining packets are not enough to decode the block.
+     * 
+     * @param source
+     *            Where to open the stripes from.
+     * @param outStream
+     *            the stream where to write the reconstructed data.
+     * @param n
+     *            the number of stripes.
+     * @param fileSize
+     *            the size of the original file.
+     * @param threads
+     *            The number of decoding threads, 1 decodes in the calling
+     *            thread.
+     * @param stats
+     *            Where to count the decoded blocks and the corrupted packets,
+     *            can be null.
+     * @return the number of reconstructed bytes.
+     * @throws IOException
+     *             thrown in case there are not enough valid packets for a
+     *             block, or writing to the output stream fails.
+     */
+    public static long construct(StripeSource source, OutputStream outStream, int n, long fileSize, int threads,
+            ConstructStats stats) throws IOException {
+        return construct(source, outStream, n, fileSize, threads, 0, stats);
+    }
+
+    /**
+     * Reconstructs a file from stripes in the stripe container format like
+     * construct() above, a stripe whose read blocks longer than the stall
+     * timeout is handled like a failed stripe. The failed stripes and the
+     * spare stripes opened to replace them are told to the failover listener
+     * of the stats.
+     * 
+     * @param source
+     *            Where to open the stripes from.
+     * @param outStream
+     *            the stream where to write the reconstructed data.
+     * @param n
+     *            the number of stripes.
+     * @param fileSize
+     *            the size of the original file.
+     * @param threads
+     *            The number of decoding threads, 1 decodes in the calling
+     *            thread.
+     * @param stallTimeout
+     *            The longest time a read of a stripe may block in
+     *            milliseconds, 0 for no timeout.
+     * @param stats
+     *            Where to count the decoded blocks, the corrupted packets and
+     *            the failed stripes, can be null.
+     * @return the number of reconstructed bytes.
+     * @throws IOException
+     *             thrown in case there are not enough valid packets for a
+     *             block, or writing to the output stream fails.
+     */
+    public static long construct(StripeSource source, OutputStream outStream, int n, long fileSize, int threads,
+            long stallTimeout, ConstructStats stats) throws IOException {
+        if (stats == null) {
+            stats = new ConstructStats();
+        }
+        CheckedStripes stripes = new CheckedStripes(source, n, stats);
+        stripes.setStallTimeout(stallTimeout);
+        try {
+            FECCode fec = stripes.open();
+            return construct(stripes, fec, outStream, 0, fileSize, threads, stats);
+        } finally {
+            stripes.close();
+        }
+    }
+
+    /**
+     * Reconstructs a file with hedged reads: hedge stripes more than needed
+     * are opened and read in parallel, and every block is decoded from the
+     * first packets that are enough to decode it. A slow storage then only
+     * slows down the construction if more than hedge stripes are slow. The
+     * stripes that fall behind skip the blocks already constructed and the
+     * ones still being read at the end are closed without reading them to
+     * the end.
+     * 
+     * @param source
+     *            Where to open the stripes from.
+     * @param outStream
+     *            the stream where to write the reconstructed data.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param fec
+     *            The code used for the striping.
+     * @param fileSize
+     *            the size of the original file.
+     * @param hedge
+     *            The number of stripes to read more than k, 0..n-k.
+     * @param stats
+     *            Where to count the decoded blocks and the packets that were
+     *            late or skipped, can be null.
+     * @return the number of reconstructed bytes.
+     * @throws IOException
+     *             thrown in case there are not enough stripes available for a
+     *             block, or writing to the output stream fails.
+     */
+    public static long constructHedged(StripeSource source, OutputStream outStream, int packetSize, FECCode fec,
+            long fileSize, int hedge, ConstructStats stats) throws IOException {
+        if (stats == null) {
+            stats = new ConstructStats();
+        }
+        HedgedStripes stripes = new HedgedStripes(source, fec, packetSize, stats);
+        stripes.open(Math.max(0, hedge));
+        stripes.construct(outStream, fileSize);
+        return fileSize;
+    }
+
+    /**
+     * Reconstructs a file from stripes in the stripe container format with
+     * hedged reads, like constructHedged() above. The code, k and the packet
+     * size are read from the stripe headers, a packet with a wrong checksum
+     * is handled as a missing packet.
+     * 
+     * @param source
+     *            Where to open the stripes from.
+     * @param outStream
+     *            the stream where to write the reconstructed data.
+     * @param n
+     *            the number of stripes.
+     * @param fileSize
+     *            the size of the original file.
+     * @param hedge
+     *            The number of stripes to read more than k, 0..n-k.
+     * @param stats
+     *            Where to count the decoded blocks and the packets that were
+     *            corrupted, late or skipped, can be null.
+     * @return the number of reconstructed bytes.
+     * @throws IOException
+     *             thrown in case there are not enough valid packets for a
+     *             block, or writing to the output stream fails.
+     */
+    public static long constructHedged(StripeSource source, OutputStream outStream, int n, long fileSize, int hedge,
+            ConstructStats stats) throws IOException {
+        if (stats == null) {
+            stats = new ConstructStats();
+        }
+        HedgedStripes stripes = new HedgedStripes(source, n, stats);
+        stripes.open(Math.max(0, hedge));
+        stripes.construct(outStream, fileSize);
+        return fileSize;
+    }
+
+    /**
+     * Reconstructs only a byte range of a file from its stripes. Only the
+     * blocks that contain the range are decoded and the stripes are opened
+     * at the first of them, so a short range of a large file reads only a
+     * few packets from each stripe. The output is the same as the same
+     * range of the output of construct().
+     * 
+     * @param source
+     *            Where to open the stripes from.
+     * @param outStream
+     *            the stream where to write the range of the data.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param fec
+     *            The code used for the striping.
+     * @param fileSize
+     *            the size of the original file.
+     * @param offset
+     *            The offset of the range in the file.
+     * @param length
+     *            The length of the range, the range ends at the end of the
+     *            file at the latest.
+     * @param threads
+     *            The number of decoding threads, 1 decodes in the calling
+     *            thread.
+     * @param stats
+     *            Where to count the decoded and passed through blocks, can be
+     *            null.
+     * @return the number of bytes written.
+     * @throws IOException
+     *             thrown in case there are not enough stripes available,
+     *             reading of the stripes or writing to the output stream
+     *             fails.
+     */
+    public static long constructRange(StripeSource source, OutputStream outStream, int packetSize, FECCode fec,
+            long fileSize, long offset, long length, int threads, ConstructStats stats) throws IOException {
+        length = getRangeLength(fileSize, offset, length);
+        if (length == 0) {
+            return 0;
+        }
+        if (stats == null) {
+            stats = new ConstructStats();
+        }
+        long blockSize = (long) fec.getK() * packetSize;
+        long firstBlock = offset / blockSize;
+        long start = firstBlock * blockSize;
+
+        CheckedStripes stripes = new CheckedStripes(source, fec, packetSize, stats);
+        stripes.open(firstBlock);
+        construct(stripes, fec, new RangeOutputStream(outStream, offset - start, length), firstBlock,
+                getRangeEnd(fileSize, offset + length, blockSize) - start, threads, stats);
+        return length;
+    }
+
+    /**
+     * Reconstructs only a byte range of a file from stripes in the stripe
+     * container format, like constructRange() above. The stripes are opened
+     * at the start for the header and then skipped to the first block of the
+     * range.
+     * 
+     * @param source
+     *            Where to open the stripes from.
+     * @param outStream
+     *            the stream where to write the range of the data.
+     * @param n
+     *            the number of stripes.
+     * @param fileSize
+     *            the size of the original file.
+     * @param offset
+     *            The offset of the range in the file.
+     * @param length
+     *            The length of the range, the range ends at the end of the
+     *            file at the latest.
+     * @param threads
+     *            The number of decoding threads, 1 decodes in the calling
+     *            thread.
+     * @param stats
+     *            Where to count the decoded blocks and the corrupted packets,
+     *            can be null.
+     * @return the number of bytes written.
+     * @throws IOException
+     *             thrown in case there are not enough valid packets for a
+     *             block, or writing to the output stream fails.
+     */
+    public static long constructRange(StripeSource source, OutputStream outStream, int n, long fileSize,
+            long offset, long length, int threads, ConstructStats stats) throws IOException {
+        length = getRangeLength(fileSize, offset, length);
+        if (length == 0) {
+            return 0;
+        }
+        if (stats == null) {
+            stats = new ConstructStats();
+        }
+        CheckedStripes stripes = new CheckedStripes(source, n, stats);
+        FECCode fec = stripes.open();
+        long blockSize = (long) fec.getK() * stripes.getPacketSize();
+        long firstBlock = offset / blockSize;
+        long start = firstBlock * blockSize;
+
+        stripes.skip(firstBlock);
+        construct(stripes, fec, new RangeOutputStream(outStream, offset - start, length), firstBlock,
+                getRangeEnd(fileSize, offset + length, blockSize) - start, threads, stats);
+        return length;
+    }
+
+    /**
+     * @return The length of the range cut to the end of the file.
+     */
+    private static long getRangeLength(long fileSize, long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range, offset " + offset + ", length " + length + ".");
+        }
+        return Math.max(0, Math.min(length, fileSize - offset));
+    }
+
+    /**
+     * @return The end of the block that contains the last byte of the range,
+     *         or the end of the file if it comes first.
+     */
+    private static long getRangeEnd(long fileSize, long end, long blockSize) {
+        return Math.min(fileSize, ((end - 1) / blockSize + 1) * blockSize);
+    }
+
+    /**
+     * The construction from the checked stripes, from the given block on.
+     * 
+     * @param firstBlock
+     *            The index of the first block, the open stripes are at it.
+     * @param fileSize
+     *            The number of bytes to construct from the first block on.
+     */
+    private static long construct(final CheckedStripes stripes, final FECCode fec, OutputStream outStream,
+            final long firstBlock, long fileSize, int threads, ConstructStats stats) throws IOException {
+        int packetSize = stripes.getPacketSize();
+        final long blockSize = (long) fec.getK() * packetSize;
+
+        if (threads <= 1) {
+            CheckedStripes.Block block = stripes.newBlock();
+            long fileLeft = fileSize;
+            long blockIndex = firstBlock;
+            do {
+                stripes.read(block, blockIndex++);
+                block.decode(fec);
+                stats.blockConstructed(block.decoded);
+                fileLeft -= block.write(outStream, fileLeft);
+            } while (fileLeft > 0);
+            outStream.flush();
+            return fileSize;
+        }
+
+        // the blocks in flight plus the ones being read and written
+        int window = 2 * threads;
+        final BlockingQueue<CheckedStripes.Block> freeBlocks = new ArrayBlockingQueue<CheckedStripes.Block>(
+                window + 2);
+        for (int i = 0; i < window + 2; i++) {
+            freeBlocks.add(stripes.newBlock());
+        }
+        final BlockPipeline<CheckedStripes.Block> pipeline = new BlockPipeline<CheckedStripes.Block>(threads,
+                window);
+        final long totalSize = fileSize;
+
+        Thread reader = pipeline.startProducer("StreamingFEC reader", new BlockPipeline.Producer() {
+            public void produce() throws IOException, InterruptedException {
+                long fileLeft = totalSize;
+                long blockIndex = firstBlock;
+                do {
+                    final CheckedStripes.Block block = freeBlocks.take();
+                    stripes.read(block, blockIndex++);
+                    pipeline.submit(new Callable<CheckedStripes.Block>() {
+                        public CheckedStripes.Block call() {
+                            block.decode(fec);
+                            return block;
+                        }
+                    });
+                    fileLeft -= blockSize;
+                } while (fileLeft > 0);
+                pipeline.submitEnd();
+            }
+        });
+
+        long fileLeft = fileSize;
+        try {
+            CheckedStripes.Block block;
+            while ((block = pipeline.take()) != null) {
+                stats.blockConstructed(block.decoded);
+                fileLeft -= block.write(outStream, fileLeft);
+                freeBlocks.add(block);
+            }
+        } finally {
+            reader.interrupt();
+            pipeline.shutdown();
+        }
+        outStream.flush();
+
+        return fileSize;
+    }
+
+    /**
+     * Chooses the k stripes to read from the present ones, preferring the
+     * data stripes as they need no decoding. For the Reed-Solomon codes these
+     * are the first k present stripes, for a LRCCode the stripes that don't
+     * add anything to the ones chosen before are skipped.
+     * 
+     * @return The stripe indexes in increasing order, or null if the present
+     *         stripes are not enough.
+     */
+    private static int[] selectStripes(FECCode fec, InputStream inStreams[]) {
+        boolean present[] = new boolean[fec.getN()];
+        for (int i = 0; i < present.length; i++) {
+            present[i] = inStreams[i] != null;
+        }
+        return selectStripes(fec, present);
+    }
+
+    /**
+     * Same as selectStripes() above for the stripes marked present.
+     */
+    static int[] selectStripes(FECCode fec, boolean present[]) {
+        int k = fec.getK();
+        int n = fec.getN();
+        if (fec instanceof LRCCode) {
+            return ((LRCCode) fec).selectIndexes(present);
+        }
+        int stripeIndexes[] = new int[k];
+        int existingStream = 0;
+        for (int i = 0; i < n && existingStream < k; i++) {
+            if (present[i]) {
+                stripeIndexes[existingStream++] = i;
+            }
+        }
+        return existingStream == k ? stripeIndexes : null;
+    }
+
+    /**
+     * Recreates lost stripes from the surviving ones without reconstructing
+     * the file. The stripes are read block by block to the end, the data
+     * packets of each block are decoded if some of the data stripes are
+     * missing and the packets of the lost stripes are encoded from them. The
+     * stripes hold the encrypted data, so the data is never decrypted. The
+     * stripes are read and written as is, for the stripes in the container
+     * format see repair(InputStream[], OutputStream[]).
+     * 
+     * @param inStreams
+     *            The streams where to read the surviving stripes. Put null for
+     *            missing stripes. Only the first k present stripes are read.
+     * @param outStreams
+     *            The streams where to write the recreated stripes. Put null for
+     *            the stripes that are not recreated.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param k
+     *            the number of required stripes to reconstruct the data.
+     * @param n
+     *            the number of stripes.
+     * @return the number of bytes written to each recreated stripe.
+     * @throws IOException
+     *             thrown in case there are less than k surviving stripes, the
+     *             stripes have different lengths, reading of the input streams
+     *             or writing to the output streams fails.
+     */
+    public static long repair(InputStream inStreams[], OutputStream outStreams[], int packetSize, int k, int n)
+            throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(k, n);
+        return repair(inStreams, outStreams, packetSize, fec);
+    }
+
+    /**
+     * Recreates lost stripes like repair() above with the code that was used
+     * for the striping. With a LRCCode the stripes that have all the other
+     * stripes of their local group present are rebuilt from the group only,
+     * reading a few stripes instead of k.
+     * 
+     * @param inStreams
+     *            The streams where to read the surviving stripes. Put null for
+     *            missing stripes.
+     * @param outStreams
+     *            The streams where to write the recreated stripes. Put null for
+     *            the stripes that are not recreated.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param fec
+     *            The code used for the striping.
+     * @return the number of bytes written to each recreated stripe.
+     * @throws IOException
+     *             thrown in case the surviving stripes are not enough, the
+     *             stripes have different lengths, reading of the input streams
+     *             or writing to the output streams fails.
+     */
+    public static long repair(InputStream inStreams[], OutputStream outStreams[], int packetSize, FECCode fec)
+            throws IOException {
+        int k = fec.getK();
+        int repairIndex[] = getRepairIndex(outStreams);
+
+        RepairBlock block;
+        int localIndexes[] = getLocalRepairStripes(fec, inStreams, repairIndex);
+        if (localIndexes != null) {
+            block = new LocalRepairBlock(packetSize, (LRCCode) fec, localIndexes, repairIndex);
+        } else {
+            int stripeIndexes[] = selectStripes(fec, inStreams);
+            if (stripeIndexes == null) {
+                throw new IOException("Can't repair stripes from the available stripes with " + fec + ".");
+            }
+            block = new RepairBlock(packetSize, k, stripeIndexes, repairIndex);
+        }
+
+        long stripeSize = 0;
+        while (block.block.readOrEnd(inStreams, stripeSize * k)) {
+            block.encode(fec);
+            block.write(outStreams);
+            stripeSize += packetSize;
+        }
+        for (int i = 0; i < repairIndex.length; i++) {
+            outStreams[repairIndex[i]].flush();
+        }
+
+        return stripeSize;
+    }
+
+    /**
+     * Recreates lost stripes like repair() above, opening the stripes that
+     * are not recreated from the stripe source. The caller is responsible for
+     * closing the opened stripes.
+     * 
+     * @param source
+     *            Where to open the surviving stripes from.
+     * @param outStreams
+     *            The streams where to write the recreated stripes. Put null for
+     *            the stripes that are not recreated.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param k
+     *            the number of required stripes to reconstruct the data.
+     * @param n
+     *            the number of stripes.
+     * @return the number of bytes written to each recreated stripe.
+     * @throws IOException
+     *             thrown in case there are not enough stripes available,
+     *             reading of the stripes or writing to the output streams
+     *             fails.
+     */
+    public static long repair(StripeSource source, OutputStream outStreams[], int packetSize, int k, int n)
+            throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(k, n);
+        return repair(source, outStreams, packetSize, fec);
+    }
+
+    /**
+     * Recreates lost stripes like repair() above with the code that was used
+     * for the striping. With a LRCCode the other stripes of the local groups
+     * are opened first, more stripes are opened only if some of them are not
+     * available.
+     * 
+     * @param source
+     *            Where to open the surviving stripes from.
+     * @param outStreams
+     *            The streams where to write the recreated stripes. Put null for
+     *            the stripes that are not recreated.
+     * @param packetSize
+     *            The packet size used for the stripes of the data.
+     * @param fec
+     *            The code used for the striping.
+     * @return the number of bytes written to each recreated stripe.
+     * @throws IOException
+     *             thrown in case there are not enough stripes available,
+     *             reading of the stripes or writing to the output streams
+     *             fails.
+     */
+    public static long repair(StripeSource source, OutputStream outStreams[], int packetSize, FECCode fec)
+            throws IOException {
+        int n = fec.getN();
+        InputStream inStreams[] = new InputStream[n];
+        openRepairStripes(source, inStreams, outStreams, new boolean[n], fec, null);
+        return repair(inStreams, outStreams, packetSize, fec);
+    }
+
+    /**
+     * Recreates lost stripes in the stripe container format, see
+     * StripeHeader. The code and the packet size are read from the stripe
+     * headers, which have to be of the same file. The checksum of every
+     * packet read is checked, and the recreated stripes are written with
+     * their header and the packet checksums.
+     * 
+     * @param inStreams
+     *            The streams where to read the surviving stripes. Put null for
+     *            missing stripes.
+     * @param outStreams
+     *            The streams where to write the recreated stripes. Put null for
+     *            the stripes that are not recreated.
+     * @return the number of bytes written to each recreated stripe, with the
+     *         header and the checksums.
+     * @throws IOException
+     *             thrown in case the surviving stripes are not enough, their
+     *             headers are missing or not of the same file, a packet has a
+     *             wrong checksum, reading of the input streams or writing to
+     *             the output streams fails.
+     */
+    public static long repair(InputStream inStreams[], OutputStream outStreams[]) throws IOException {
+        InputStream stripes[] = new InputStream[inStreams.length];
+        StripeHeader header = null;
+        for (int i = 0; i < inStreams.length; i++) {
+            if (inStreams[i] != null) {
+                StripeInputStream stripe = new StripeInputStream(inStreams[i]);
+                checkHeader(header, stripe.getHeader(), i);
+                if (header == null) {
+                    header = stripe.getHeader();
+                }
+                stripes[i] = stripe;
+            }
+        }
+        if (header == null) {
+            throw new IOException("No stripes to repair from.");
+        }
+        return repairContainers(stripes, outStreams, header);
+    }
+
+    /**
+     * Recreates lost stripes in the stripe container format like repair()
+     * above, opening the stripes that are not recreated from the stripe
+     * source. The code is read from the first stripe that can be opened, a
+     * stripe with a missing header or one of another file is handled as
+     * unavailable. The caller is responsible for closing the opened stripes.
+     * 
+     * @param source
+     *            Where to open the surviving stripes from.
+     * @param outStreams
+     *            The streams where to write the recreated stripes. Put null for
+     *            the stripes that are not recreated.
+     * @return the number of bytes written to each recreated stripe, with the
+     *         header and the checksums.
+     * @throws IOException
+     *             thrown in case there are not enough stripes available, a
+     *             packet has a wrong checksum, reading of the stripes or
+     *             writing to the output streams fails.
+     */
+    public static long repair(StripeSource source, OutputStream outStreams[]) throws IOException {
+        int n = outStreams.length;
+        InputStream inStreams[] = new InputStream[n];
+        boolean tried[] = new boolean[n];
+        StripeHeader header = null;
+        for (int i = 0; i < n && header == null; i++) {
+            if (outStreams[i] == null) {
+                tried[i] = true;
+                StripeInputStream stripe = openContainer(source, i, null);
+                if (stripe != null) {
+                    inStreams[i] = stripe;
+                    header = stripe.getHeader();
+                }
+            }
+        }
+        if (header == null) {
+            throw new IOException("No stripes available to repair from.");
+        }
+        openRepairStripes(source, inStreams, outStreams, tried, header.createCode(), header);
+        return repairContainers(inStreams, outStreams, header);
+    }
+
+    /**
+     * Opens the stripes needed to recreate the ones with an output stream,
+     * with a LRCCode the other stripes of the local groups first.
+     * 
+     * @param tried
+     *            The stripes opened already or that failed to open.
+     * @param header
+     *            The header of the stripes in the container format, null for
+     *            the stripes without one.
+     */
+    private static void openRepairStripes(StripeSource source, InputStream inStreams[], OutputStream outStreams[],
+            boolean tried[], FECCode fec, StripeHeader header) {
+        int n = fec.getN();
+        if (fec instanceof LRCCode) {
+            LRCCode lrc = (LRCCode) fec;
+            for (int i = 0; i < n; i++) {
+                int group[] = outStreams[i] != null ? lrc.getRepairIndexes(i) : null;
+                for (int j = 0; group != null && j < group.length; j++) {
+                    if (!tried[group[j]] && outStreams[group[j]] == null) {
+                        tried[group[j]] = true;
+                        inStreams[group[j]] = openRepairStripe(source, group[j], header);
+                    }
+                }
+            }
+        }
+        if (getLocalRepairStripes(fec, inStreams, getRepairIndex(outStreams)) == null) {
+            for (int i = 0; i < n && selectStripes(fec, inStreams) == null; i++) {
+                if (!tried[i] && outStreams[i] == null) {
+                    tried[i] = true;
+                    inStreams[i] = openRepairStripe(source, i, header);
+                }
+            }
+        }
+    }
+
+    private static InputStream openRepairStripe(StripeSource source, int index, StripeHeader header) {
+        return header == null ? openStripe(source, index, 0) : openContainer(source, index, header);
+    }
+
+    /**
+     * Opens the stripe in the container format from its beginning.
+     * 
+     * @param header
+     *            The header of the other stripes to check the one of the
+     *            stripe against, null to take any.
+     * @return The stripe, null if it can't be opened or its header is
+     *         missing or not of the same file.
+     */
+    private static StripeInputStream openContainer(StripeSource source, int index, StripeHeader header) {
+        InputStream in = openStripe(source, index, 0);
+        if (in == null) {
+            return null;
+        }
+        try {
+            StripeInputStream stripe = new StripeInputStream(in);
+            checkHeader(header, stripe.getHeader(), index);
+            return stripe;
+        } catch (IOException e) {
+            System.out.println("Opening stripe " + index + " failed: " + e.getMessage());
+            try {
+                in.close();
+            } catch (IOException e1) {
+                // the stripe is not used
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Checks that the header is the one of the stripe and of the same file
+     * as the first one.
+     * 
+     * @param first
+     *            The header of the other stripes, null for the first stripe.
+     */
+    private static void checkHeader(StripeHeader first, StripeHeader header, int index) throws IOException {
+        if (header.getIndex() != index) {
+            throw new IOException("Stripe " + index + " has the header of stripe " + header.getIndex() + ".");
+        }
+        if (first != null && !first.isSameFile(header)) {
+            throw new IOException("Stripe " + index + " is not of the same file, " + header + " instead of " + first
+                    + ".");
+        }
+    }
+
+    /**
+     * Recreates the stripes from the packet data of the surviving stripes,
+     * writing them in the container format.
+     */
+    private static long repairContainers(InputStream stripes[], OutputStream outStreams[], StripeHeader header)
+            throws IOException {
+        if (header.getN() != outStreams.length) {
+            throw new IOException("The file has " + header.getN() + " stripes, not " + outStreams.length + ".");
+        }
+        FECCode fec = header.createCode();
+        int packetSize = header.getPacketSize();
+        OutputStream containers[] = new OutputStream[outStreams.length];
+        for (int i = 0; i < outStreams.length; i++) {
+            if (outStreams[i] != null) {
+                containers[i] = new StripeOutputStream(outStreams[i], new StripeHeader(fec, packetSize, i));
+            }
+        }
+        long size = repair(stripes, containers, packetSize, fec);
+        return StripeHeader.getStripeSize(packetSize, size / packetSize);
+    }
+
+    /**
+     * @return The indexes of the stripes to recreate, the ones with an output
+     *         stream.
+     */
+    private static int[] getRepairIndex(OutputStream outStreams[]) {
+        int repairStreams = 0;
+        for (int i = 0; i < outStreams.length; i++) {
+            if (outStreams[i] != null) {
+                repairStreams++;
+            }
+        }
+        int repairIndex[] = new int[repairStreams];
+        for (int i = 0, j = 0; i < outStreams.length; i++) {
+            if (outStreams[i] != null) {
+                repairIndex[j++] = i;
+            }
+        }
+        return repairIndex;
+    }
+
+    /**
+     * @param repairIndex
+     *            The stripes to recreate in increasing order.
+     * @return The stripes to read in increasing order if all the stripes to
+     *         recreate can be rebuilt from their local groups, otherwise null.
+     */
+    private static int[] getLocalRepairStripes(FECCode fec, InputStream inStreams[], int repairIndex[]) {
+        if (!(fec instanceof LRCCode)) {
+            return null;
+        }
+        LRCCode lrc = (LRCCode) fec;
+        int n = fec.getN();
+        boolean needed[] = new boolean[n];
+        int count = 0;
+        for (int i = 0; i < repairIndex.length; i++) {
+            int group[] = lrc.getRepairIndexes(repairIndex[i]);
+            if (group == null) {
+                return null;
+            }
+            for (int j = 0; j < group.length; j++) {
+                if (inStreams[group[j]] == null) {
+                    return null;
+                }
+                if (!needed[group[j]]) {
+                    needed[group[j]] = true;
+                    count++;
+                }
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        int stripeIndexes[] = new int[count];
+        for (int i = 0, j = 0; i < n; i++) {
+            if (needed[i]) {
+                stripeIndexes[j++] = i;
+            }
+        }
+        return stripeIndexes;
+    }
+
+    /**
+     * Opens a stripe, a failure to open is handled as a missing stripe.
+     */
+    static InputStream openStripe(StripeSource source, int index, long offset) {
+        try {
+            return source.openStripe(index, offset);
+        } catch (IOException e) {
+            System.out.println("Opening stripe " + index + " failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The construction with a reader thread, a pool of decoding threads and
+     * the calling thread writing the data in order.
+     */
+    private static long constructParallel(final InputStream inStreams[], OutputStream outStream, final FECCode fec,
+            int packetSize, int k, int stripeIndexes[], final long fileSize, int threads, ConstructStats stats)
+            throws IOException {
+
+        // the blocks in flight plus the ones being read and written
+        int window = 2 * threads;
+        final BlockingQueue<ConstructBlock> freeBlocks = new ArrayBlockingQueue<ConstructBlock>(window + 2);
+        for (int i = 0; i < window + 2; i++) {
+            freeBlocks.add(new ConstructBlock(packetSize, k, stripeIndexes));
+        }
+        final BlockPipeline<ConstructBlock> pipeline = new BlockPipeline<ConstructBlock>(threads, window);
+        final long blockSize = (long) k * packetSize;
+
+        Thread reader = pipeline.startProducer("StreamingFEC reader", new BlockPipeline.Producer() {
+            public void produce() throws IOException, InterruptedException {
+                long fileLeft = fileSize;
+                do {
+                    final ConstructBlock block = freeBlocks.take();
+                    block.read(inStreams, fileSize - fileLeft);
+                    pipeline.submit(new Callable<ConstructBlock>() {
+                        public ConstructBlock call() {
+                            block.decode(fec);
+                            return block;
+                        }
+                    });
+                    fileLeft -= blockSize;
+                } while (fileLeft > 0);
+                pipeline.submitEnd();
+            }
+        });
+
+        long fileLeft = fileSize;
+        try {
+            ConstructBlock block;
+            while ((block = pipeline.take()) != null) {
+                stats.blockConstructed(block.decoded);
+                fileLeft -= block.write(outStream, fileLeft);
+                freeBlocks.add(block);
+            }
+        } finally {
+            reader.interrupt();
+            pipeline.shutdown();
+        }
+        outStream.flush();
+
+        return fileSize;
+    }
+
+    /**
+     * Reads until the buffer is full or the stream ends, the rest of the buffer
+     * is zero filled.
+     * 
+     * @return the number of bytes read.
+     */
+    private static int readBlock(InputStream inStream, byte buffer[]) throws IOException {
+        int read = 0;
+        int num = 0;
+        do {
+            num = inStream.read(buffer, read, buffer.length - read);
+            if (num > 0) {
+                read += num;
+            }
+        } while (num > 0 && read < buffer.length);
+
+        if (read < buffer.length) {
+            Arrays.fill(buffer, read, buffer.length, (byte) 0);
+        }
+        return read;
+    }
+
+    /**
+     * Passes on only a range of the data written to it, for writing a range
+     * of the constructed blocks.
+     */
+    private static class RangeOutputStream extends FilterOutputStream {
+        // the bytes to drop before the range and the bytes left of it
+        private long skip;
+        private long left;
+
+        RangeOutputStream(OutputStream out, long skip, long length) {
+            super(out);
+            this.skip = skip;
+            this.left = length;
+        }
+
+        public void write(int b) throws IOException {
+            if (skip > 0) {
+                skip--;
+            } else if (left > 0) {
+                out.write(b);
+                left--;
+            }
+        }
+
+        public void write(byte b[], int off, int len) throws IOException {
+            if (skip > 0) {
+                int num = (int) Math.min(skip, len);
+                skip -= num;
+                off += num;
+                len -= num;
+            }
+            len = (int) Math.min(len, left);
+            if (len > 0) {
+                out.write(b, off, len);
+                left -= len;
+            }
+        }
+    }
+
+    /**
+     * The buffers for striping one block of k packets into n stripes.
+     */
+    private static class StripeBlock {
+        final int packetSize;
+        final byte source[];
+        // this will hold the encoded block
+        final byte stripes[];
+
+        // These buffers allow us to put our data in them they
+        // reference a packet length of the file (or at least will once
+        // we fill them)
+        final Buffer sourceBuffers[];
+        final Buffer stripeBuffers[];
+
+        // When sending the data you must identify what it's index was.
+        final int stripeIndex[];
+
+        StripeBlock(int packetSize, int k, int n) {
+            this.packetSize = packetSize;
+            source = new byte[k * packetSize];
+            stripes = new byte[n * packetSize];
+            sourceBuffers = new Buffer[k];
+            stripeBuffers = new Buffer[n];
+            stripeIndex = new int[n];
+
+            for (int i = 0; i < k; i++) {
+                sourceBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+            }
+            for (int i = 0; i < n; i++) {
+                stripeBuffers[i] = new Buffer(stripes, i * packetSize, packetSize);
+                stripeIndex[i] = i;
+            }
+        }
+
+        void encode(FECCode fec) {
+            fec.encode(sourceBuffers, stripeBuffers, stripeIndex);
+        }
+
+        void write(OutputStream outStreams[]) throws IOException {
+            for (int i = 0; i < stripeIndex.length; i++) {
+                outStreams[stripeIndex[i]].write(stripes, i * packetSize, packetSize);
+            }
+        }
+    }
+
+    /**
+     * The buffers for reconstructing one block of k packets from the stripes.
+     */
+    private static class ConstructBlock {
+        final int packetSize;
+        final int k;
+        final int stripeIndexes[];
+        // the packets of the stripes, the decoded data is at the start
+        final byte source[];
+        // These buffers allow us to handle our data in the source buffer.
+        final Buffer stripeBuffers[];
+        // copy of the stripe indexes as the decode overwrites it
+        final int tempIndexes[];
+        // whether the blocks need matrix decoding
+        final boolean decoded;
+
+        ConstructBlock(int packetSize, int k, int stripeIndexes[]) {
+            this.packetSize = packetSize;
+            this.k = k;
+            this.stripeIndexes = stripeIndexes;
+            source = new byte[stripeIndexes.length * packetSize];
+            stripeBuffers = new Buffer[stripeIndexes.length];
+            tempIndexes = new int[stripeIndexes.length];
+            for (int i = 0; i < stripeIndexes.length; i++) {
+                stripeBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+            }
+            // the stripe indexes are in increasing order, so the data
+            // stripes are all there if the k:th one is the last data stripe
+            decoded = stripeIndexes[k - 1] != k - 1;
+        }
+
+        /**
+         * Reads the next packet from each of the stripes.
+         * 
+         * @param done
+         *            The number of bytes constructed before this block, for
+         *            the error message.
+         */
+        void read(InputStream inStreams[], long done) throws IOException {
+            for (int i = 0; i < stripeIndexes.length; i++) {
+                if (readPacket(inStreams, i) != packetSize) {
+                    throw new IOException("Unexpected end of stripe. Succesfully read " + done + " bytes.");
+                }
+            }
+        }
+
+        /**
+         * Reads the next packet from each of the stripes like read(), but the
+         * stripes may also all end at the start of the block.
+         * 
+         * @return false if the stripes ended.
+         */
+        boolean readOrEnd(InputStream inStreams[], long done) throws IOException {
+            if (readPacket(inStreams, 0) == 0) {
+                for (int i = 1; i < stripeIndexes.length; i++) {
+                    if (inStreams[stripeIndexes[i]].read() != -1) {
+                        throw new IOException("Stripe " + stripeIndexes[0] + " is shorter than stripe "
+                                + stripeIndexes[i] + ". Succesfully read " + done + " bytes.");
+                    }
+                }
+                return false;
+            }
+            for (int i = 0; i < stripeIndexes.length; i++) {
+                if ((i > 0 ? readPacket(inStreams, i) : packetSize) != packetSize) {
+                    throw new IOException("Unexpected end of stripe. Succesfully read " + done + " bytes.");
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads the packet of the i:th stripe until full or the stripe ends.
+         * 
+         * @return the number of bytes read.
+         */
+        private int readPacket(InputStream inStreams[], int i) throws IOException {
+            int read = 0;
+            int num = 0;
+            do {
+                num = inStreams[stripeIndexes[i]].read(source, i * packetSize + read, packetSize - read);
+                if (num > 0) {
+                    read += num;
+                }
+            } while (num > 0 && read < packetSize);
+            return read;
+        }
+
+        void decode(FECCode fec) {
+            if (!decoded) {
+                // the data stripes were read in place
+                return;
+            }
+            System.arraycopy(stripeIndexes, 0, tempIndexes, 0, stripeIndexes.length);
+            fec.decode(stripeBuffers, tempIndexes);
+        }
+
+        /**
+         * Writes the decoded data, at most the bytes left of the file.
+         * 
+         * @return the number of bytes in the block.
+         */
+        long write(OutputStream outStream, long fileLeft) throws IOException {
+            int blockSize = k * packetSize;
+            outStream.write(source, 0, (fileLeft < blockSize) ? (int) fileLeft : blockSize);
+            return blockSize;
+        }
+    }
+
+    /**
+     * The buffers for recreating the missing stripes of one block from the
+     * packets of the surviving stripes.
+     */
+    private static class RepairBlock {
+        final ConstructBlock block;
+        final int packetSize;
+        // the data packets, the start of the construct block after decoding
+        final Buffer sourceBuffers[];
+        final byte repair[];
+        final Buffer repairBuffers[];
+        final int repairIndex[];
+
+        RepairBlock(int packetSize, int k, int stripeIndexes[], int repairIndex[]) {
+            this(packetSize, new ConstructBlock(packetSize, k, stripeIndexes), repairIndex);
+        }
+
+        RepairBlock(int packetSize, ConstructBlock block, int repairIndex[]) {
+            this.packetSize = packetSize;
+            this.repairIndex = repairIndex;
+            this.block = block;
+            sourceBuffers = new Buffer[block.k];
+            for (int i = 0; i < block.k; i++) {
+                sourceBuffers[i] = new Buffer(block.source, i * packetSize, packetSize);
+            }
+            repair = new byte[repairIndex.length * packetSize];
+            repairBuffers = new Buffer[repairIndex.length];
+            for (int i = 0; i < repairIndex.length; i++) {
+                repairBuffers[i] = new Buffer(repair, i * packetSize, packetSize);
+            }
+        }
+
+        void encode(FECCode fec) {
+            block.decode(fec);
+            fec.encode(sourceBuffers, repairBuffers, repairIndex);
+        }
+
+        void write(OutputStream outStreams[]) throws IOException {
+            for (int i = 0; i < repairIndex.length; i++) {
+                outStreams[repairIndex[i]].write(repair, i * packetSize, packetSize);
+            }
+        }
+    }
+
+    /**
+     * The buffers for rebuilding lost stripes of one block from their local
+     * groups of a LRCCode. The construct block only reads the packets of the
+     * group stripes, its k is the number of them.
+     */
+    private static class LocalRepairBlock extends RepairBlock {
+        // the packets of the group of each recreated stripe
+        final Buffer groupBuffers[][];
+
+        LocalRepairBlock(int packetSize, LRCCode fec, int stripeIndexes[], int repairIndex[]) {
+            super(packetSize, new ConstructBlock(packetSize, stripeIndexes.length, stripeIndexes), repairIndex);
+            groupBuffers = new Buffer[repairIndex.length][];
+            for (int i = 0; i < repairIndex.length; i++) {
+                int group[] = fec.getRepairIndexes(repairIndex[i]);
+                groupBuffers[i] = new Buffer[group.length];
+                for (int j = 0; j < group.length; j++) {
+                    groupBuffers[i][j] = sourceBuffers[Arrays.binarySearch(stripeIndexes, group[j])];
+                }
+            }
+        }
+
+        void encode(FECCode fec) {
+            for (int i = 0; i < repairIndex.length; i++) {
+                ((LRCCode) fec).repairLocal(groupBuffers[i], repairBuffers[i]);
+            }
+        }
+    }
 }
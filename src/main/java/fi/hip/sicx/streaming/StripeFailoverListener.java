@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.IOException;
+
+/**
+ * Is told about the stripes that fail in the middle of a construction and
+ * the stripes opened to replace them.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public interface StripeFailoverListener {
+
+    /**
+     * Called when a stripe fails while reading it, it is not read any more.
+     * 
+     * @param stripe
+     *            The index of the failed stripe.
+     * @param block
+     *            The index of the block that was being read.
+     * @param cause
+     *            Why the stripe failed.
+     */
+    public void stripeFailed(int stripe, long block, IOException cause);
+
+    /**
+     * Called when a spare stripe is opened at a block because the stripes
+     * read so far are not enough to decode it.
+     * 
+     * @param stripe
+     *            The index of the opened stripe.
+     * @param block
+     *            The block where the stripe is read from.
+     */
+    public void spareOpened(int stripe, long block);
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+import com.onionnetworks.fec.CauchyCode;
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+import com.onionnetworks.fec.LRCCode;
+
+/**
+ * The header at the start of a stripe in the stripe container format. It
+ * describes the code, the packet size and the index of the stripe, so the
+ * stripes can be reconstructed without the meta data. The header is
+ * followed by the packets of the stripe, each followed by its CRC-32C.
+ * 
+ * The header is SIZE bytes, the integers are big endian:
+ * 
+ * <pre>
+ * int   magic "SICX"
+ * byte  version
+ * byte  codec
+ * short local groups of a LRC code, 0 for the other codes
+ * int   k
+ * int   n
+ * int   packet size
+ * int   stripe index
+ * int   CRC-32C of the above
+ * </pre>
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class StripeHeader {
+    public static final int MAGIC = 0x53494358;
+    public static final int VERSION = 1;
+    public static final int SIZE = 28;
+    /** The size of the checksum after each packet. */
+    public static final int CHECKSUM_SIZE = 4;
+
+    /** The Reed-Solomon code of the FECCodeFactory, PureCode and the like. */
+    public static final int CODEC_RS = 0;
+    /** The CauchyCode. */
+    public static final int CODEC_CAUCHY = 1;
+    /** The LRCCode. */
+    public static final int CODEC_LRC = 2;
+
+    private final int codec;
+    private final int groups;
+    private final int k;
+    private final int n;
+    private final int packetSize;
+    private final int index;
+
+    /**
+     * @param fec
+     *            The code the stripes are encoded with.
+     * @param packetSize
+     *            The packet size of the stripes.
+     * @param index
+     *            The index of the stripe.
+     */
+    public StripeHeader(FECCode fec, int packetSize, int index) {
+        this(getCodec(fec), fec instanceof LRCCode ? ((LRCCode) fec).getGroups() : 0, fec.getK(), fec.getN(),
+                packetSize, index);
+    }
+
+    private StripeHeader(int codec, int groups, int k, int n, int packetSize, int index) {
+        this.codec = codec;
+        this.groups = groups;
+        this.k = k;
+        this.n = n;
+        this.packetSize = packetSize;
+        this.index = index;
+    }
+
+    private static int getCodec(FECCode fec) {
+        if (fec instanceof LRCCode) {
+            return CODEC_LRC;
+        }
+        if (fec instanceof CauchyCode) {
+            return CODEC_CAUCHY;
+        }
+        return CODEC_RS;
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public int getGroups() {
+        return groups;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return A new instance of the code the stripes were encoded with.
+     */
+    public FECCode createCode() {
+        switch (codec) {
+        case CODEC_LRC:
+            return new LRCCode(k, n, groups);
+        case CODEC_CAUCHY:
+            return new CauchyCode(k, n);
+        default:
+            return FECCodeFactory.getDefault().createFECCode(k, n);
+        }
+    }
+
+    /**
+     * @return true if the other header is of a stripe of the same file, all
+     *         but the index are the same.
+     */
+    public boolean isSameFile(StripeHeader other) {
+        return codec == other.codec && groups == other.groups && k == other.k && n == other.n
+                && packetSize == other.packetSize;
+    }
+
+    /**
+     * @return The offset of the packet in the stripe.
+     */
+    public long getPacketOffset(long packet) {
+        return SIZE + packet * (packetSize + CHECKSUM_SIZE);
+    }
+
+    /**
+     * @return The size of a stripe of the given number of packets.
+     */
+    public static long getStripeSize(int packetSize, long packets) {
+        return SIZE + packets * (packetSize + CHECKSUM_SIZE);
+    }
+
+    /**
+     * Writes the header.
+     */
+    public void write(OutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(SIZE);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeByte(codec);
+        data.writeShort(groups);
+        data.writeInt(k);
+        data.writeInt(n);
+        data.writeInt(packetSize);
+        data.writeInt(index);
+        Checksum crc = CRC32C.create();
+        byte header[] = bytes.toByteArray();
+        crc.update(header, 0, header.length);
+        data.writeInt((int) crc.getValue());
+        data.flush();
+        bytes.writeTo(out);
+    }
+
+    /**
+     * Reads and checks a header.
+     * 
+     * @throws IOException
+     *             if the stream ends, the data is not a stripe header, its
+     *             version is not supported or the checksum doesn't match.
+     */
+    public static StripeHeader read(InputStream in) throws IOException {
+        byte bytes[] = new byte[SIZE];
+        DataInputStream data = new DataInputStream(in);
+        data.readFully(bytes);
+        Checksum crc = CRC32C.create();
+        crc.update(bytes, 0, SIZE - CHECKSUM_SIZE);
+
+        data = new DataInputStream(new java.io.ByteArrayInputStream(bytes));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a stripe, the header is missing.");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported stripe version " + version + ".");
+        }
+        StripeHeader header = new StripeHeader(data.readUnsignedByte(), data.readUnsignedShort(), data.readInt(),
+                data.readInt(), data.readInt(), data.readInt());
+        if (data.readInt() != (int) crc.getValue()) {
+            throw new ChecksumException("Stripe header checksum mismatch.");
+        }
+        if (header.k < 1 || header.n < header.k || header.packetSize < 1 || header.index < 0
+                || header.index >= header.n) {
+            throw new IOException("Invalid stripe header " + header + ".");
+        }
+        return header;
+    }
+
+    public String toString() {
+        return "StripeHeader[codec=" + codec + ",groups=" + groups + ",k=" + k + ",n=" + n + ",packetSize="
+                + packetSize + ",index=" + index + "]";
+    }
+}
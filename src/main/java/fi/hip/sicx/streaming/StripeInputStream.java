@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Reads a stripe in the stripe container format. The header is read when
+ * the stream is created and the checksum of every packet is checked before
+ * its data is returned.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class StripeInputStream extends FilterInputStream {
+    private final StripeHeader header;
+    private final int packetSize;
+    private final Checksum crc = CRC32C.create();
+    private final byte checksum[] = new byte[StripeHeader.CHECKSUM_SIZE];
+    // the packet being returned by read()
+    private byte packet[];
+    private int pos = 0;
+    private int avail = 0;
+    // the index of the next packet
+    private long next = 0;
+
+    /**
+     * Reads the header from the stream.
+     * 
+     * @throws IOException
+     *             if the header is missing or invalid.
+     */
+    public StripeInputStream(InputStream in) throws IOException {
+        super(in);
+        header = StripeHeader.read(in);
+        packetSize = header.getPacketSize();
+    }
+
+    public StripeHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Reads and checks the next packet.
+     * 
+     * @param b
+     *            Where to read the packet, packet size bytes.
+     * @param off
+     *            The offset in b.
+     * @return false if the stripe has ended.
+     * @throws ChecksumException
+     *             if the checksum doesn't match, the stream is then at the
+     *             next packet.
+     * @throws IOException
+     *             if the reading fails or the stripe ends within a packet.
+     */
+    public boolean readPacket(byte b[], int off) throws IOException {
+        int read = readFully(b, off, packetSize);
+        if (read == 0) {
+            return false;
+        }
+        if (read < packetSize || readFully(checksum, 0, checksum.length) < checksum.length) {
+            throw new EOFException("Stripe " + header.getIndex() + " ends within packet " + next + ".");
+        }
+        long packetIndex = next++;
+        crc.reset();
+        crc.update(b, off, packetSize);
+        int value = (checksum[0] & 0xff) << 24 | (checksum[1] & 0xff) << 16 | (checksum[2] & 0xff) << 8
+                | (checksum[3] & 0xff);
+        if (value != (int) crc.getValue()) {
+            throw new ChecksumException("Checksum mismatch in packet " + packetIndex + " of stripe "
+                    + header.getIndex() + ".");
+        }
+        return true;
+    }
+
+    /**
+     * Skips packets without reading or checking them.
+     */
+    public void skipPackets(long count) throws IOException {
+        long left = count * (packetSize + StripeHeader.CHECKSUM_SIZE);
+        while (left > 0) {
+            long num = in.skip(left);
+            if (num <= 0) {
+                // skip may give up before the end, read to be sure
+                if (in.read() == -1) {
+                    throw new EOFException("Stripe " + header.getIndex() + " ends before packet " + (next + count)
+                            + ".");
+                }
+                num = 1;
+            }
+            left -= num;
+        }
+        next += count;
+    }
+
+    private int readFully(byte b[], int off, int len) throws IOException {
+        int read = 0;
+        int num = 0;
+        do {
+            num = in.read(b, off + read, len - read);
+            if (num > 0) {
+                read += num;
+            }
+        } while (num > 0 && read < len);
+        return read;
+    }
+
+    public int read() throws IOException {
+        if (pos == avail && !fill()) {
+            return -1;
+        }
+        return packet[pos++] & 0xff;
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == avail && !fill()) {
+            return -1;
+        }
+        int num = Math.min(len, avail - pos);
+        System.arraycopy(packet, pos, b, off, num);
+        pos += num;
+        return num;
+    }
+
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (pos < avail || fill())) {
+            int num = (int) Math.min(n - skipped, avail - pos);
+            pos += num;
+            skipped += num;
+        }
+        return skipped;
+    }
+
+    public int available() {
+        return avail - pos;
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    private boolean fill() throws IOException {
+        if (packet == null) {
+            packet = new byte[packetSize];
+        }
+        pos = 0;
+        avail = 0;
+        if (!readPacket(packet, 0)) {
+            return false;
+        }
+        avail = packetSize;
+        return true;
+    }
+}
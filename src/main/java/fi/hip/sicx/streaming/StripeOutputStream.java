@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Writes a stripe in the stripe container format, the header first and a
+ * CRC-32C after every packet of the data written. The data written must be
+ * whole packets, as StreamingFEC.stripe writes them.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class StripeOutputStream extends FilterOutputStream {
+    private final int packetSize;
+    private final Checksum crc = CRC32C.create();
+    private final byte checksum[] = new byte[StripeHeader.CHECKSUM_SIZE];
+    // for writing single bytes
+    private final byte single[] = new byte[1];
+    // the bytes of the current packet written
+    private int count = 0;
+    private boolean closed = false;
+
+    /**
+     * Writes the header to the stream.
+     */
+    public StripeOutputStream(OutputStream out, StripeHeader header) throws IOException {
+        this(out, header, true);
+    }
+
+    /**
+     * Writes the header to the stream if writeHeader is true. Without the
+     * header the stream continues a stripe, as a segment of a stripe
+     * uploaded in parts.
+     */
+    public StripeOutputStream(OutputStream out, StripeHeader header, boolean writeHeader) throws IOException {
+        super(out);
+        this.packetSize = header.getPacketSize();
+        if (writeHeader) {
+            header.write(out);
+        }
+    }
+
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+        while (len > 0) {
+            int num = Math.min(len, packetSize - count);
+            out.write(b, off, num);
+            crc.update(b, off, num);
+            count += num;
+            off += num;
+            len -= num;
+            if (count == packetSize) {
+                int value = (int) crc.getValue();
+                checksum[0] = (byte) (value >>> 24);
+                checksum[1] = (byte) (value >>> 16);
+                checksum[2] = (byte) (value >>> 8);
+                checksum[3] = (byte) value;
+                out.write(checksum);
+                crc.reset();
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Closes the stream, closing it again does nothing.
+     * 
+     * @throws IOException
+     *             also if the last packet was not complete.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (count != 0) {
+                throw new IOException("The stripe ends within a packet.");
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
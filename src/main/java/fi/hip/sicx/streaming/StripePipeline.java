@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+import com.onionnetworks.fec.FECCode;
+
+/**
+ * Uploads a file as stripes in the stripe container format with the work
+ * split into stages that run in their own threads: reading the file,
+ * encrypting it, encoding the stripes and writing each stripe to its
+ * storage. The stages are connected by bounded queues of chunks from one
+ * BufferPool, so a stage waits only when its output queue is full or its
+ * input queue is empty and the memory used is bounded.
+ * 
+ * stripe() returns when the file has been encoded and the ends of the
+ * stripes have been queued, the listener is told as each stripe has been
+ * written to its storage. The StageStats of the queues show which stage is
+ * the bottleneck.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class StripePipeline {
+
+    /**
+     * Is told when the stripes have been written.
+     */
+    public interface Listener {
+        /**
+         * Called by the writing thread of the stripe after the stripe has
+         * been written and its stream closed, or writing it failed.
+         * 
+         * @param index
+         *            The index of the stripe.
+         * @param failure
+         *            Why writing failed, null if it succeeded.
+         */
+        public void stripeWritten(int index, IOException failure);
+    }
+
+    private final FECCode fec;
+    private final int packetSize;
+    private final int threads;
+    private final int queueChunks;
+    private Cipher cipher;
+    private Listener listener;
+    private boolean writeHeaders = true;
+    // the last block of the encrypted data, set when the encryption ends
+    private volatile byte lastCipherBlock[];
+    private final List<StageStats> stats = new ArrayList<StageStats>();
+
+    /**
+     * @param fec
+     *            The code to use.
+     * @param packetSize
+     *            The packet size of the stripes.
+     * @param threads
+     *            The number of encoding threads.
+     * @param queueChunks
+     *            The number of chunks of about a packet each queue holds.
+     */
+    public StripePipeline(FECCode fec, int packetSize, int threads, int queueChunks) {
+        if (queueChunks < 1) {
+            throw new IllegalArgumentException("Invalid queue length " + queueChunks + ".");
+        }
+        this.fec = fec;
+        this.packetSize = packetSize;
+        this.threads = threads;
+        this.queueChunks = queueChunks;
+    }
+
+    /**
+     * Sets the cipher to encrypt the data with before encoding it, null for
+     * no encryption.
+     * 
+     * @param cipher
+     *            The cipher initialized for encryption.
+     */
+    public void setCipher(Cipher cipher) {
+        this.cipher = cipher;
+    }
+
+    /**
+     * Sets whether the stripes start with the header. Without it the stripes
+     * written continue the ones of an earlier stripe() call, for uploading
+     * the stripes in segments. The default is true.
+     */
+    public void setWriteHeaders(boolean writeHeaders) {
+        this.writeHeaders = writeHeaders;
+    }
+
+    /**
+     * @return The last cipher block of the data encrypted by the last
+     *         stripe() call, null if nothing was encrypted. With CBC it is
+     *         the IV to encrypt the data that follows with.
+     */
+    public byte[] getLastCipherBlock() {
+        return lastCipherBlock;
+    }
+
+    /**
+     * Sets the listener told when the stripes have been written.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The statistics of the queues in front of the stages, the
+     *         encryption if used, the encoding and the writing of each
+     *         stripe.
+     */
+    public List<StageStats> getStats() {
+        synchronized (stats) {
+            return new ArrayList<StageStats>(stats);
+        }
+    }
+
+    /**
+     * Reads, encrypts and stripes the data into the output streams. The
+     * input stream is not closed.
+     * 
+     * @param inStream
+     *            The stream where to read the input data.
+     * @param outStreams
+     *            The streams where to write the stripes, closed after the
+     *            stripes have been written. The number of streams has to
+     *            match the n of the code.
+     * @param endSize
+     *            The length of the data after encryption to pad it to.
+     * @return The number of padding bytes used.
+     * @throws IOException
+     *             thrown in case reading, encrypting or encoding the data
+     *             fails, or writing a stripe has failed already. The stripes
+     *             are then left unfinished, the output streams closed
+     *             without waiting for their queued data and the listener
+     *             not told.
+     */
+    public long stripe(InputStream inStream, OutputStream outStreams[], long endSize) throws IOException {
+        int n = fec.getN();
+        int stages = cipher == null ? 1 : 2;
+        lastCipherBlock = null;
+        // the chunks of a stage in its queue, being filled and being read
+        BufferPool pool = new BufferPool(packetSize + StripeHeader.CHECKSUM_SIZE, (stages + n) * (queueChunks + 2));
+
+        ChunkPipe readPipe = new ChunkPipe(pool, queueChunks, cipher == null ? "encode" : "encrypt");
+        addStats(readPipe.getStats());
+        startStage("StripePipeline read", inStream, readPipe, null);
+        InputStream encodeIn = readPipe.getInputStream();
+        if (cipher != null) {
+            ChunkPipe encodePipe = new ChunkPipe(pool, queueChunks, "encode");
+            addStats(encodePipe.getStats());
+            startStage("StripePipeline encrypt", encodeIn, encodePipe, cipher);
+            encodeIn = encodePipe.getInputStream();
+        }
+
+        QueuedOutputStream queues[] = new QueuedOutputStream[n];
+        OutputStream stripeStreams[] = new OutputStream[n];
+        boolean striped = false;
+        try {
+            for (int i = 0; i < n; i++) {
+                queues[i] = new QueuedOutputStream(outStreams[i], pool, queueChunks, "stripe " + i);
+                addStats(queues[i].getStats());
+                final int index = i;
+                queues[i].setListener(new QueuedOutputStream.Listener() {
+                    public void written(QueuedOutputStream stream, IOException failure) {
+                        if (listener != null) {
+                            listener.stripeWritten(index, failure);
+                        }
+                    }
+                });
+                stripeStreams[i] = new StripeOutputStream(queues[i], new StripeHeader(fec, packetSize, i),
+                        writeHeaders);
+            }
+            long padding = StreamingFEC.stripe(encodeIn, stripeStreams, packetSize, fec, endSize, threads);
+            for (int i = 0; i < n; i++) {
+                // the packets are whole, so there is nothing more for the
+                // StripeOutputStream to write
+                queues[i].finish();
+            }
+            striped = true;
+            return padding;
+        } finally {
+            if (!striped) {
+                // the writing threads and the storages must not wait for
+                // the stripes that never end
+                for (int i = 0; i < n; i++) {
+                    if (queues[i] != null) {
+                        queues[i].abort();
+                    } else {
+                        closeQuietly(outStreams[i]);
+                    }
+                }
+            }
+            // stops the stages before if the encoding failed
+            encodeIn.close();
+        }
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // the stream is given up anyway
+        }
+    }
+
+    private void addStats(StageStats stageStats) {
+        synchronized (stats) {
+            stats.add(stageStats);
+        }
+    }
+
+    /**
+     * Starts a stage copying the input to the pipe, encrypting it if the
+     * cipher is given.
+     */
+    private void startStage(String name, final InputStream in, final ChunkPipe pipe, final Cipher stageCipher) {
+        Thread stage = new Thread(name) {
+            public void run() {
+                OutputStream out = pipe.getOutputStream();
+                try {
+                    int size = packetSize + StripeHeader.CHECKSUM_SIZE;
+                    byte buffer[] = new byte[size];
+                    // an update can also output a block held back from the
+                    // earlier ones, and the final one the padding block
+                    byte encrypted[] = stageCipher == null ? null : new byte[size + 2
+                            * stageCipher.getBlockSize()];
+                    byte block[] = stageCipher == null ? null : new byte[stageCipher.getBlockSize()];
+                    long encryptedTotal = 0;
+                    int num;
+                    while ((num = in.read(buffer)) != -1) {
+                        if (stageCipher == null) {
+                            out.write(buffer, 0, num);
+                        } else {
+                            num = stageCipher.update(buffer, 0, num, encrypted);
+                            out.write(encrypted, 0, num);
+                            keepLast(block, encrypted, num);
+                            encryptedTotal += num;
+                        }
+                    }
+                    if (stageCipher != null) {
+                        num = stageCipher.doFinal(encrypted, 0);
+                        out.write(encrypted, 0, num);
+                        keepLast(block, encrypted, num);
+                        encryptedTotal += num;
+                        if (encryptedTotal >= block.length) {
+                            lastCipherBlock = block;
+                        }
+                    }
+                    out.close();
+                } catch (IOException e) {
+                    fail(pipe, e);
+                } catch (GeneralSecurityException e) {
+                    IOException failure = new IOException("Encrypting the data failed: " + e.getMessage());
+                    failure.initCause(e);
+                    fail(pipe, failure);
+                } catch (RuntimeException e) {
+                    // the encoding must not wait for a stage that is gone
+                    IOException failure = new IOException("Reading the data failed: " + e);
+                    failure.initCause(e);
+                    fail(pipe, failure);
+                } finally {
+                    if (stageCipher != null) {
+                        // stops the read stage if this one failed
+                        try {
+                            in.close();
+                        } catch (IOException e) {
+                            // nothing more to stop
+                        }
+                    }
+                }
+            }
+        };
+        stage.setDaemon(true);
+        stage.start();
+    }
+
+    /**
+     * Keeps the last block.length bytes written in block.
+     */
+    private static void keepLast(byte block[], byte b[], int len) {
+        if (len >= block.length) {
+            System.arraycopy(b, len - block.length, block, 0, block.length);
+        } else {
+            System.arraycopy(block, len, block, 0, block.length - len);
+            System.arraycopy(b, 0, block, block.length - len, len);
+        }
+    }
+
+    private static void fail(ChunkPipe pipe, IOException e) {
+        try {
+            pipe.fail(e);
+        } catch (IOException e1) {
+            // the reading stage has given up already
+        }
+    }
+}
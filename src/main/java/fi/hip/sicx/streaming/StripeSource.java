@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full 
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ * 
+ */
+package fi.hip.sicx.streaming;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens the stripes of a file for StreamingFEC.construct on demand, so that
+ * the stripes that are not needed for the reconstruction are never opened.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public interface StripeSource {
+
+    /**
+     * Opens a stripe for reading.
+     * 
+     * @param index
+     *            The index of the stripe, 0..n-1. The stripes 0..k-1 are the
+     *            data stripes.
+     * @param offset
+     *            The byte offset in the stripe where to start reading.
+     * @return The stream of the stripe or null if the stripe is not
+     *         available.
+     * @throws IOException
+     *             in case opening the stripe fails, this is handled like a
+     *             missing stripe.
+     */
+    public InputStream openStripe(int index, long offset) throws IOException;
+}
@@ -1393,7 +1393,11 @@ public class GUIComponent
                 localt.setImmediate(true);
                 localt.setDragMode(TableDragMode.ROW);
                 localt.setVisibleColumns(new Object[] { "Name", "Size" });
-            	guicomponent.notifyUser("File '" + sicxup.getFile().getName() + "' download completed.",
+            	String failover = "";
+            	if (sicxup.getStripesFailed() > 0) {
+            		failover = " " + sicxup.getStripesFailed() + " stripes failed, " + sicxup.getSparesOpened() + " spare stripes used.";
+            	}
+            	guicomponent.notifyUser("File '" + sicxup.getFile().getName() + "' download completed." + failover,
                         Notification.TYPE_TRAY_NOTIFICATION);
             }else{
             	Item item = localt.getItem(sicxup.getTargetFile());
@@ -17,6 +17,7 @@ package fi.hip.sicx.vaadin;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -28,10 +29,14 @@ import org.joni.test.meta.SLA;
 import org.joni.test.meta.StripeLocation;
 
 import fi.hip.sicx.sla.SLAManager;
+import fi.hip.sicx.store.ChunkList;
 import fi.hip.sicx.store.MetaDataClient;
 import fi.hip.sicx.store.MetaHandler;
+import fi.hip.sicx.store.PackEntry;
 import fi.hip.sicx.store.StorageClient;
 import fi.hip.sicx.store.StorageClientObserver;
+import fi.hip.sicx.store.StripeCode;
+import fi.hip.sicx.streaming.StripeFailoverListener;
 
 /**
  * SICXUploader
@@ -45,7 +50,7 @@ import fi.hip.sicx.store.StorageClientObserver;
  */
 public class SICXUploader 
     extends Thread
-    implements StorageClientObserver {
+    implements StorageClientObserver, StripeFailoverListener {
 
     /* instance sdata needed for completing the task */
     private SICXUploaderObserver app; 
@@ -56,6 +61,10 @@ public class SICXUploader
     private int min_stripes;
     private int max_stripes;
     
+    // the stripes that failed in the download and the spares opened
+    private int stripesFailed = 0;
+    private int sparesOpened = 0;
+    
     private boolean use_encryption;
     
     // Current state of the task
@@ -166,7 +175,8 @@ public class SICXUploader
     		setStatus(UploaderState.INITIALIZING);
 
     		// Upload file
-    		// TODO Retrying should happen in stripe level, not like this
+    		// the large files are uploaded in segments, so a retry continues
+    		// from the last segment the storages committed
     		MetaDataClient mc = new MetaDataClient();
     		int retry_times = 3;
     		while(retry_times>0) {
@@ -253,10 +263,17 @@ public class SICXUploader
                     List<StripeLocation> stripes = mfile.getStripes();
                     int pieces = 0;
                     int needed = mfile.getMinStripes();
-                    if (stripes != null)
+                    // for the stripes uploaded in segments the first one is checked
+                    boolean segmented = stripes != null && StripeCode.getSegmentSize(stripes) > 0;
+                    // the chunks and the packs have their own stripes, they are checked when downloaded
+                    if (ChunkList.isChunked(stripes) || PackEntry.isPacked(stripes))
+                        pieces = needed;
+                    else if (stripes != null)
                         for (StripeLocation s : stripes) {
                             URI uri = new URI(s.getURI().toString());
                             String cloudFile = uri.getPath().substring(1);
+                            if (segmented)
+                                cloudFile = StripeCode.getSegmentName(cloudFile, 0);
                             //System.out.println("Getting sc for file: " + cloudFile);
                             StorageClient sc = man.getStorageClient(s.getURI(), s.getType(), s.getVersion());
                             if (sc == null)
@@ -300,6 +317,38 @@ public class SICXUploader
         setStatus(this.uploadStatus);
     }
     
+    /**
+     * Counts the stripe that failed in the middle of the download and
+     * tells the application, the download continues from the other stripes.
+     */
+    public void stripeFailed(int stripe, long block, IOException cause) {
+        synchronized (this) {
+            stripesFailed++;
+        }
+        setStatus(this.uploadStatus);
+    }
+    
+    public void spareOpened(int stripe, long block) {
+        synchronized (this) {
+            sparesOpened++;
+        }
+        setStatus(this.uploadStatus);
+    }
+    
+    /**
+     * @return The number of stripes that failed in the middle of the download.
+     */
+    public synchronized int getStripesFailed() {
+        return stripesFailed;
+    }
+    
+    /**
+     * @return The number of spare stripes opened to replace the failed ones.
+     */
+    public synchronized int getSparesOpened() {
+        return sparesOpened;
+    }
+    
     public void progressMade(int progressTotal, StorageClientState newuploadStatus) {
         progress = progressTotal;
         if(newuploadStatus.equals(StorageClientState.INITIALIZING)) {
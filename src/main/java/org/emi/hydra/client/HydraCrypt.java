@@ -128,6 +128,50 @@ public class HydraCrypt {
         return cipherInput;
     }
 
+    /**
+     * Creates a cipher for encrypting with a HydraKey, for encrypting the
+     * data in chunks
+     * 
+     * @param key The key to be used, the IV of the cipher is saved to it
+     * @param transformation The transformation used in JCE format
+     * @return The cipher initialized for encryption
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     */
+    public static Cipher encryptingCipher(HydraKey key, String transformation) throws NoSuchAlgorithmException,
+            NoSuchPaddingException, InvalidKeyException {
+        Cipher cipher = Cipher.getInstance(transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+
+        // save IV to the encryption key
+        key.setInitializationVector(cipher.getIV());
+
+        return cipher;
+    }
+
+    /**
+     * Creates a cipher for encrypting with a HydraKey from the given IV, for
+     * continuing the encryption of data that was encrypted in parts. The IV
+     * of the key is not changed.
+     * 
+     * @param key The key to be used
+     * @param transformation The transformation used in JCE format
+     * @param iv The IV, with CBC the last cipher block of the data before
+     * @return The cipher initialized for encryption
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public static Cipher encryptingCipher(HydraKey key, String transformation, byte[] iv)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+            InvalidAlgorithmParameterException {
+        Cipher cipher = Cipher.getInstance(transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher;
+    }
+
     /**
      * Decrypts a file at given path with HydraKey
      * 
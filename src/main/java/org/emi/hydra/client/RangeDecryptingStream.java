@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package org.emi.hydra.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Decrypts a byte range of data encrypted in CBC mode without the data
+ * before it. In CBC mode a block is decrypted with the key and the previous
+ * ciphertext block, so the ciphertext is written to the stream starting from
+ * the block before the first block of the range, see getCipherOffset(), and
+ * that block is used as the IV. The first block is decrypted with the IV of
+ * the key. Only the bytes of the range are written to the target stream.
+ * 
+ * The padding is not checked or removed, so the range must be within the
+ * plaintext.
+ * 
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class RangeDecryptingStream extends OutputStream {
+    private final OutputStream target;
+    private final HydraKey key;
+    private final Cipher cipher;
+    private final int blockSize;
+    private final long cipherOffset;
+    private final long cipherLength;
+    // the previous ciphertext block used as the IV, null when not needed
+    private byte iv[];
+    private int ivFill = 0;
+    private boolean initialized = false;
+    // the bytes to drop before the range and the bytes left of it
+    private long skip;
+    private long left;
+
+    /**
+     * @param targetStream
+     *            The stream where to write the decrypted range.
+     * @param key
+     *            The key to be used.
+     * @param transformation
+     *            The transformation used for the encryption in JCE format,
+     *            the mode must be CBC.
+     * @param offset
+     *            The offset of the range in the plaintext.
+     * @param length
+     *            The length of the range.
+     * @throws NoSuchAlgorithmException
+     *             if the mode is not CBC or the algorithm is not available.
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     */
+    public RangeDecryptingStream(OutputStream targetStream, HydraKey key, String transformation, long offset,
+            long length) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+            InvalidAlgorithmParameterException {
+        String parts[] = transformation.split("/");
+        if (parts.length != 3 || !parts[1].equalsIgnoreCase("CBC")) {
+            throw new NoSuchAlgorithmException("Range decryption needs CBC mode, not " + transformation + ".");
+        }
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range, offset " + offset + ", length " + length + ".");
+        }
+        this.target = targetStream;
+        this.key = key;
+        // the padding is only in the last block, which is left as is
+        cipher = Cipher.getInstance(parts[0] + "/CBC/NoPadding");
+        blockSize = cipher.getBlockSize();
+
+        long firstBlock = offset / blockSize;
+        cipherOffset = firstBlock > 0 ? (firstBlock - 1) * blockSize : 0;
+        cipherLength = length == 0 ? 0 : ((offset + length - 1) / blockSize + 1) * blockSize - cipherOffset;
+        skip = offset - firstBlock * blockSize;
+        left = length;
+        if (firstBlock > 0) {
+            iv = new byte[blockSize];
+        } else {
+            init(key.getInitializationVector());
+        }
+    }
+
+    /**
+     * @return The offset in the ciphertext where the data written to this
+     *         stream must start.
+     */
+    public long getCipherOffset() {
+        return cipherOffset;
+    }
+
+    /**
+     * @return The number of ciphertext bytes needed for the range.
+     */
+    public long getCipherLength() {
+        return cipherLength;
+    }
+
+    private void init(byte ivBytes[]) throws InvalidKeyException, InvalidAlgorithmParameterException {
+        if (ivBytes != null) {
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ivBytes));
+        } else {
+            cipher.init(Cipher.DECRYPT_MODE, key);
+        }
+        initialized = true;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+        if (!initialized) {
+            int num = Math.min(len, blockSize - ivFill);
+            System.arraycopy(b, off, iv, ivFill, num);
+            ivFill += num;
+            off += num;
+            len -= num;
+            if (ivFill < blockSize) {
+                return;
+            }
+            try {
+                init(iv);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Initializing the decryption failed: " + e.getMessage());
+            }
+        }
+        if (len > 0 && left > 0) {
+            writeRange(cipher.update(b, off, len));
+        }
+    }
+
+    /**
+     * Writes the part of the decrypted bytes that is in the range.
+     */
+    private void writeRange(byte plain[]) throws IOException {
+        if (plain == null) {
+            return;
+        }
+        int off = (int) Math.min(skip, plain.length);
+        skip -= off;
+        int len = (int) Math.min(plain.length - off, left);
+        if (len > 0) {
+            target.write(plain, off, len);
+            left -= len;
+        }
+    }
+
+    public void flush() throws IOException {
+        target.flush();
+    }
+
+    /**
+     * Decrypts the rest of the range and closes the target stream.
+     * 
+     * @throws IOException
+     *             if the ciphertext didn't end at a block boundary.
+     */
+    public void close() throws IOException {
+        try {
+            if (initialized && left > 0) {
+                writeRange(cipher.doFinal());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Decrypting the range failed: " + e.getMessage());
+        } finally {
+            target.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Mac;
+
+import org.joni.test.meta.StripeLocation;
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+
+/**
+ * Tests recording the chunks of a file in its stripe list.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ChunkListTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+        String hash = ChunkIndex.hash(ChunkIndex.createMac(new byte[ChunkIndex.KEY_LENGTH]), "chunk".getBytes("UTF-8"),
+                0, 5);
+        UUID id = new UUID("00000000-0000-0001-0000-000000000001");
+        stripes.add(ChunkList.toLocation(new ChunkList.Chunk(hash, id, 5)));
+        stripes.add(ChunkList.toLocation(new ChunkList.Chunk(hash, id, 5)));
+
+        assertTrue(ChunkList.isChunked(stripes));
+        List<ChunkList.Chunk> chunks = ChunkList.getChunks(stripes);
+        assertEquals(2, chunks.size());
+        assertEquals(64, chunks.get(0).getHash().length());
+        assertEquals(hash, chunks.get(1).getHash());
+        assertEquals(id.toString(), chunks.get(1).getId().toString());
+        assertEquals(5, chunks.get(1).getLength());
+    }
+
+    @Test
+    public void testKeyedHashes() throws Exception {
+        byte data[] = "chunk".getBytes("UTF-8");
+        byte key[] = new byte[ChunkIndex.KEY_LENGTH];
+        new Random(1).nextBytes(key);
+        key[0] = 0;
+        String hash = ChunkIndex.hash(ChunkIndex.createMac(key), data, 0, data.length);
+
+        // the key servers drop the leading zero bytes
+        byte gathered[] = new byte[key.length - 1];
+        System.arraycopy(key, 1, gathered, 0, gathered.length);
+        assertEquals(hash, ChunkIndex.hash(ChunkIndex.createMac(gathered), data, 0, data.length));
+
+        // the same content of another user has another name
+        key[1]++;
+        assertFalse(hash.equals(ChunkIndex.hash(ChunkIndex.createMac(key), data, 0, data.length)));
+
+        // the MAC is ready for the next chunk
+        Mac mac = ChunkIndex.createMac(key);
+        assertEquals(ChunkIndex.hash(mac, data, 0, 5), ChunkIndex.hash(mac, data, 0, 5));
+    }
+
+    @Test
+    public void testStripes() throws Exception {
+        List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+        assertFalse(ChunkList.isChunked(null));
+        assertFalse(ChunkList.isChunked(stripes));
+        stripes.add(new StripeLocation(new URI("memory:///file#stripe=1"), "memory", null));
+        assertFalse(ChunkList.isChunked(stripes));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidChunk() throws Exception {
+        List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+        stripes.add(new StripeLocation(new URI("chunk:abcd#length=5"), ChunkList.TYPE, null));
+        ChunkList.getChunks(stripes);
+    }
+}
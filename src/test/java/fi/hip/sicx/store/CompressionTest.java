@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.joni.test.meta.StripeLocation;
+import org.junit.Test;
+
+/**
+ * Tests compressing the files before striping and recording the codec.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class CompressionTest {
+
+    private File createFile(byte data[]) throws IOException {
+        File file = File.createTempFile("compression", ".dat");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    private byte[] createText(int size) {
+        StringBuilder sb = new StringBuilder();
+        Random rand = new Random(1);
+        while (sb.length() < size) {
+            sb.append("2012-05-").append(10 + rand.nextInt(20)).append(",storage").append(rand.nextInt(8))
+                    .append(",upload,").append(rand.nextInt(100000)).append('\n');
+        }
+        return sb.substring(0, size).getBytes();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte data[] = createText(Compression.SAMPLE_SIZE * 3 + 1234);
+        File file = createFile(data);
+        assertTrue(Compression.isCompressible(file));
+
+        File compressed = createFile(new byte[0]);
+        long length = Compression.compress(file, compressed, Compression.DEFLATE);
+        assertEquals(compressed.length(), length);
+        assertTrue(length < data.length / 2);
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        OutputStream out = Compression.decompressingStream(result, Compression.DEFLATE);
+        InputStream in = new FileInputStream(compressed);
+        byte buf[] = new byte[1000];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        out.close();
+        assertArrayEquals(data, result.toByteArray());
+    }
+
+    @Test
+    public void testIncompressible() throws Exception {
+        byte data[] = new byte[Compression.SAMPLE_SIZE * 2];
+        new Random(2).nextBytes(data);
+        // only the beginning is sampled
+        System.arraycopy(createText(Compression.SAMPLE_SIZE), 0, data, Compression.SAMPLE_SIZE,
+                Compression.SAMPLE_SIZE);
+        assertFalse(Compression.isCompressible(createFile(data)));
+        assertFalse(Compression.isCompressible(createFile(new byte[0])));
+        assertTrue(Compression.isCompressible(createFile(createText(100))));
+    }
+
+    @Test
+    public void testStripeURIs() throws Exception {
+        List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+        stripes.add(new StripeLocation(StripeCode.toURI("memory:///file0"), "memory", null));
+        assertNull(StripeCode.getCodec(stripes));
+        assertEquals(1000, StripeCode.getStoredLength(stripes, 1000));
+
+        URI uri = StripeCode.toURI(StripeCode.toURI("memory:///file0", 4100), Compression.DEFLATE, 321);
+        stripes.set(0, new StripeLocation(uri, "memory", null));
+        assertEquals("/file0", uri.getPath());
+        assertEquals(Compression.DEFLATE, StripeCode.getCodec(stripes));
+        assertEquals(321, StripeCode.getStoredLength(stripes, 1000));
+        assertEquals(4100, StripeCode.getSegmentSize(stripes));
+        assertTrue(StripeCode.isContainer(stripes));
+
+        uri = StripeCode.toURI(new URI("memory:///file0"), Compression.DEFLATE, 321);
+        stripes.set(0, new StripeLocation(uri, "memory", null));
+        assertEquals(Compression.DEFLATE, StripeCode.getCodec(stripes));
+        assertFalse(StripeCode.isContainer(stripes));
+    }
+
+    @Test
+    public void testRangeStopsEarly() throws Exception {
+        byte data[] = createText(Compression.SAMPLE_SIZE * 20);
+        File file = createFile(data);
+        File compressed = createFile(new byte[0]);
+        Compression.compress(file, compressed, Compression.DEFLATE);
+
+        // the decompression is stopped soon after the end of the range
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        MetaDataClient.RangeOutputStream range = new MetaDataClient.RangeOutputStream(result, 1000, 5000);
+        OutputStream out = Compression.decompressingStream(range, Compression.DEFLATE);
+        InputStream in = new FileInputStream(compressed);
+        byte buf[] = new byte[100];
+        long fed = 0;
+        try {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+                fed += n;
+            }
+            out.close();
+        } catch (IOException e) {
+            assertTrue(range.isDone());
+        } finally {
+            in.close();
+        }
+        assertTrue(range.isDone());
+        assertTrue(fed < compressed.length() / 2);
+        byte expected[] = new byte[5000];
+        System.arraycopy(data, 1000, expected, 0, expected.length);
+        assertArrayEquals(expected, result.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCodec() throws Exception {
+        Compression.decompressingStream(new ByteArrayOutputStream(), "lz4");
+    }
+}
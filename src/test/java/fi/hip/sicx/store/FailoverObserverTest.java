@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+
+import fi.hip.sicx.streaming.ConstructTest.MemoryStripeSource;
+import fi.hip.sicx.streaming.FailoverTest.FailingSource;
+import fi.hip.sicx.streaming.StreamingFEC;
+import fi.hip.sicx.streaming.StripeFailoverListener;
+
+/**
+ * Tests that the stripes failing in the middle of a download are reported
+ * to the observer of the MetaDataClient.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class FailoverObserverTest {
+    static int PACKET_SIZE = 1024;
+    static int K = 5;
+    static int N = 7;
+    static int SIZE = PACKET_SIZE * K * 20 - 55;
+
+    /**
+     * An observer that records the failover events.
+     */
+    static class RecordingObserver implements StorageClientObserver, StripeFailoverListener {
+        final List<String> events = new ArrayList<String>();
+
+        public void progressMade(int progressTotal) {
+        }
+
+        public void progressMade(int progressTotal, StorageClientState uploadStatus) {
+        }
+
+        public synchronized void stripeFailed(int stripe, long block, IOException cause) {
+            events.add("failed " + stripe + " at " + block);
+        }
+
+        public synchronized void spareOpened(int stripe, long block) {
+            events.add("opened " + stripe + " at " + block);
+        }
+    }
+
+    @Test
+    public void testObserverGetsFailover() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        byte data[] = new byte[SIZE];
+        new Random(3).nextBytes(data);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+            outStreams[i] = stripes[i];
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), outStreams, PACKET_SIZE, fec, SIZE, 1);
+        // the stripe 1 fails in the middle of its 11th packet
+        FailingSource source = new FailingSource(new MemoryStripeSource(stripes), PACKET_SIZE * 10 + 100, 1);
+
+        MetaDataClient client = new MetaDataClient();
+        RecordingObserver observer = new RecordingObserver();
+        client.sco = observer;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingFEC.construct(source, out, PACKET_SIZE, fec, SIZE, 1, client.createStats());
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals("[failed 1 at 10, opened 5 at 10]", observer.events.toString());
+    }
+}
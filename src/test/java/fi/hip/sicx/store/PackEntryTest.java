@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joni.test.meta.StripeLocation;
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+
+/**
+ * Tests recording the place of a small file in its pack.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class PackEntryTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        UUID pack = new UUID("00000000-0000-0002-0000-000000000002");
+        List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+        stripes.add(new PackEntry(pack, 123456, 200).toLocation());
+
+        assertTrue(PackEntry.isPacked(stripes));
+        assertFalse(ChunkList.isChunked(stripes));
+        PackEntry entry = PackEntry.get(stripes);
+        assertEquals(pack.toString(), entry.getPack().toString());
+        assertEquals(123456, entry.getOffset());
+        assertEquals(200, entry.getLength());
+    }
+
+    @Test
+    public void testStripes() throws Exception {
+        List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+        assertFalse(PackEntry.isPacked(null));
+        assertFalse(PackEntry.isPacked(stripes));
+        stripes.add(new StripeLocation(new URI("memory:///file#stripe=1"), "memory", null));
+        assertFalse(PackEntry.isPacked(stripes));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidEntry() throws Exception {
+        List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+        stripes.add(new StripeLocation(new URI("pack:abcd#offset=5"), PackEntry.TYPE, null));
+        PackEntry.get(stripes);
+    }
+}
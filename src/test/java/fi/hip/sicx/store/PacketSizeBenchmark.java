@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+
+import fi.hip.sicx.streaming.StreamingFEC;
+
+/**
+ * Shows the trade-off of the packet size: the striping and reconstruction
+ * throughput and the padding of the stripes for files of different sizes,
+ * for fixed packet sizes and the one chosen by the PacketSizePolicy. The
+ * reconstruction is done with the first data stripe missing, so every
+ * block is decoded. Run with:
+ * 
+ * java -cp target/classes:target/test-classes fi.hip.sicx.store.PacketSizeBenchmark [k] [n] [max file size MB]
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class PacketSizeBenchmark {
+
+    private static final int PACKET_SIZES[] = { 4096, 10240, 65536, 262144 };
+
+    public static void main(String[] args) throws IOException {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 7;
+        int maxSize = (args.length > 2 ? Integer.parseInt(args[2]) : 64) * 1024 * 1024;
+
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(k, n);
+        PacketSizePolicy policy = new PacketSizePolicy();
+        byte data[] = new byte[maxSize];
+        new Random().nextBytes(data);
+
+        System.out.println("k=" + k + " n=" + n + " " + policy);
+        System.out.printf("%12s %12s %10s %14s %14s%n", "file size", "packet size", "padding", "stripe MB/s",
+                "construct MB/s");
+        for (int size = 16 * 1024; size <= maxSize; size *= 16) {
+            for (int packetSize : PACKET_SIZES) {
+                run(fec, data, size, packetSize, "");
+            }
+            run(fec, data, size, policy.choose(size, k, 0), " chosen");
+        }
+    }
+
+    private static void run(FECCode fec, byte data[], int size, int packetSize, String note) throws IOException {
+        int n = fec.getN();
+        // warm up and measure, the small files are repeated to get a time
+        int rounds = Math.max(1, 16 * 1024 * 1024 / size);
+        ByteArrayOutputStream stripes[] = null;
+        long stripeNanos = 0;
+        long constructNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            stripeNanos = 0;
+            constructNanos = 0;
+            for (int r = 0; r < rounds; r++) {
+                stripes = new ByteArrayOutputStream[n];
+                for (int i = 0; i < n; i++) {
+                    stripes[i] = new ByteArrayOutputStream();
+                }
+                long start = System.nanoTime();
+                StreamingFEC.stripe(new ByteArrayInputStream(data, 0, size), (OutputStream[]) stripes, packetSize,
+                        fec, size, StreamingFEC.DEFAULT_THREADS);
+                long middle = System.nanoTime();
+                InputStream inStreams[] = new InputStream[n];
+                for (int i = 1; i < n; i++) {
+                    inStreams[i] = new ByteArrayInputStream(stripes[i].toByteArray());
+                }
+                long copied = System.nanoTime();
+                StreamingFEC.construct(inStreams, new NullOutputStream(), packetSize, fec, size,
+                        StreamingFEC.DEFAULT_THREADS, null);
+                long end = System.nanoTime();
+                stripeNanos += middle - start;
+                constructNanos += end - copied;
+            }
+        }
+        long stored = (long) stripes[0].size() * fec.getK();
+        System.out.printf("%12d %12d %9.2f%% %14.1f %14.1f%s%n", size, packetSize, 100.0 * (stored - size) / size,
+                rate(size, rounds, stripeNanos), rate(size, rounds, constructNanos), note);
+    }
+
+    private static double rate(int size, int rounds, long nanos) {
+        return (double) size * rounds / (nanos / 1e3);
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        public void write(int b) {
+        }
+
+        public void write(byte b[], int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the choice of the packet size of the stripes.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class PacketSizePolicyTest {
+
+    @Test
+    public void testBounds() {
+        PacketSizePolicy policy = new PacketSizePolicy(4096, 256 * 1024, 1024);
+        // small files get the smallest packets
+        assertEquals(4096, policy.choose(0, 5, 0));
+        assertEquals(4096, policy.choose(1000, 5, 0));
+        assertEquals(4096, policy.choose(5L * 1024 * 4096, 5, 0));
+        // huge files the largest
+        assertEquals(256 * 1024, policy.choose(5L * 1024 * 1024 * 1024 * 10, 5, 0));
+    }
+
+    @Test
+    public void testScalesWithSize() {
+        PacketSizePolicy policy = new PacketSizePolicy(1024, 1024 * 1024, 1000);
+        // 10 MB in 5 stripes and 1000 blocks, 2000 bytes rounded up to 2048
+        assertEquals(2048, policy.choose(10 * 1000 * 1000, 5, 0));
+        // the same with twice the stripes
+        assertEquals(1024, policy.choose(10 * 1000 * 1000, 10, 0));
+        for (long size = 1; size < 1L << 40; size = size * 3 + 7) {
+            int packetSize = policy.choose(size, 5, 0);
+            assertEquals(0, packetSize % PacketSizePolicy.ALIGNMENT);
+            long blockSize = 5L * packetSize;
+            long padding = (blockSize - size % blockSize) % blockSize;
+            // the padding is under 1/blocks of the data unless the packets
+            // are at a bound
+            assertTrue(padding <= size / 1000 + PacketSizePolicy.ALIGNMENT * 5L || packetSize == 1024
+                    || packetSize == 1024 * 1024);
+        }
+    }
+
+    @Test
+    public void testStorageMin() {
+        PacketSizePolicy policy = new PacketSizePolicy(4096, 64 * 1024, 1024);
+        assertEquals(16 * 1024, policy.choose(1000, 5, 16 * 1024));
+        // the storage minimum can't go over the maximum
+        assertEquals(64 * 1024, policy.choose(1000, 5, 1024 * 1024));
+        assertEquals(0, policy.getStorageMin("none"));
+    }
+
+    @Test
+    public void testProperties() {
+        System.setProperty("fi.hip.sicx.packetsize.max", "131072");
+        System.setProperty("fi.hip.sicx.packetsize.test.min", "32768");
+        try {
+            PacketSizePolicy policy = new PacketSizePolicy();
+            assertEquals(131072, policy.getMax());
+            assertEquals(32768, policy.getStorageMin("test"));
+            assertEquals(32768, policy.choose(1000, 5, policy.getStorageMin("test")));
+        } finally {
+            System.clearProperty("fi.hip.sicx.packetsize.max");
+            System.clearProperty("fi.hip.sicx.packetsize.test.min");
+        }
+    }
+
+    @Test
+    public void testLegacyPacketSize() {
+        assertEquals(10240, PacketSizePolicy.getPacketSize(0));
+        assertEquals(65536, PacketSizePolicy.getPacketSize(65536));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new PacketSizePolicy(8192, 4096, 1024);
+    }
+}
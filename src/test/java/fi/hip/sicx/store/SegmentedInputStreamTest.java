@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fi.hip.sicx.streaming.StripeHeader;
+
+/**
+ * Tests reading the stripes uploaded in segments.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class SegmentedInputStreamTest {
+    private static Random rand = new Random();
+    static long SEGMENT = 1000;
+
+    /**
+     * Keeps the files in memory and reads ranges of them.
+     */
+    static class MemoryStorageClient implements RangeStorageClient {
+        final Map<String, byte[]> files = new HashMap<String, byte[]>();
+        int opened = 0;
+
+        public InputStream readData(String fileInTheCloud, long offset, long length, StorageClientObserver sco) {
+            byte data[] = files.get(fileInTheCloud);
+            if (data == null) {
+                return null;
+            }
+            opened++;
+            int end = length < 0 ? data.length : (int) Math.min(data.length, offset + length);
+            return new ByteArrayInputStream(Arrays.copyOfRange(data, (int) offset, end));
+        }
+
+        public InputStream readData(String fileInTheCloud, int indatasize, StorageClientObserver sco) {
+            return readData(fileInTheCloud, 0, -1, sco);
+        }
+
+        public boolean checkFile(String cloudFile, StorageClientObserver sco) {
+            return files.containsKey(cloudFile);
+        }
+
+        public OutputStream writeData(String targetName, int indatasize, StorageClientObserver sco) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean connect() {
+            return true;
+        }
+
+        public boolean storeFile(String localInputFilename, String fileInTheCloud, StorageClientObserver sco) {
+            return false;
+        }
+
+        public boolean getFile(String cloudFile, String localOutFile, StorageClientObserver sco) {
+            return false;
+        }
+
+        public boolean deleteFile(String cloudFile, StorageClientObserver sco) {
+            return files.remove(cloudFile) != null;
+        }
+
+        public boolean logout() {
+            return true;
+        }
+
+        public int getTransferProgress() {
+            return 100;
+        }
+
+        public boolean writeDataWaitToComplete(int timeout) {
+            return true;
+        }
+
+        public boolean writeDataIsCompleted() {
+            return true;
+        }
+
+        public String getURI(String path) {
+            return "memory:///" + path;
+        }
+
+        public String getType() {
+            return "memory";
+        }
+
+        public String getVersion() {
+            return "1";
+        }
+
+        public String setURI(String newURIStart) {
+            return newURIStart;
+        }
+
+        public boolean isReusable() {
+            return true;
+        }
+    }
+
+    /**
+     * @return The stripe, stored in segments in the client.
+     */
+    private byte[] store(MemoryStorageClient client, int length) {
+        byte stripe[] = new byte[length];
+        rand.nextBytes(stripe);
+        for (long j = 0; StripeCode.getSegmentStart(SEGMENT, j) < length; j++) {
+            int start = (int) StripeCode.getSegmentStart(SEGMENT, j);
+            int end = (int) Math.min(length, StripeCode.getSegmentStart(SEGMENT, j + 1));
+            client.files.put(StripeCode.getSegmentName("stripe", j), Arrays.copyOfRange(stripe, start, end));
+        }
+        return stripe;
+    }
+
+    private byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte buffer[] = new byte[333];
+        int num;
+        while ((num = in.read(buffer)) != -1) {
+            out.write(buffer, 0, num);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSegments() throws IOException {
+        assertEquals(0, StripeCode.getSegment(SEGMENT, StripeHeader.SIZE - 1));
+        assertEquals(0, StripeCode.getSegment(SEGMENT, StripeHeader.SIZE + SEGMENT - 1));
+        assertEquals(1, StripeCode.getSegment(SEGMENT, StripeHeader.SIZE + SEGMENT));
+        assertEquals(StripeHeader.SIZE + 2 * SEGMENT, StripeCode.getSegmentStart(SEGMENT, 2));
+
+        // a short last segment and a full one
+        for (int length : new int[] { 3500, (int) (StripeHeader.SIZE + 3 * SEGMENT) }) {
+            MemoryStorageClient client = new MemoryStorageClient();
+            byte stripe[] = store(client, length);
+            assertArrayEquals(stripe, readAll(new SegmentedInputStream(client, "stripe", SEGMENT, 0, -1, 0, null)));
+            assertEquals(client.files.size(), client.opened);
+        }
+    }
+
+    @Test
+    public void testRange() throws IOException {
+        MemoryStorageClient client = new MemoryStorageClient();
+        byte stripe[] = store(client, 3500);
+        int offset = (int) StripeHeader.SIZE + 1500;
+        InputStream in = new SegmentedInputStream(client, "stripe", SEGMENT, offset, 2900, 0, null);
+        assertArrayEquals(Arrays.copyOfRange(stripe, offset, 2900), readAll(in));
+        // only the segments of the range are read
+        assertEquals(2, client.opened);
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        MemoryStorageClient client = new MemoryStorageClient();
+        byte stripe[] = store(client, 3500);
+        InputStream in = new SegmentedInputStream(client, "stripe", SEGMENT, 0, -1, 0, null);
+        byte start[] = new byte[10];
+        assertEquals(10, in.read(start));
+        // over the second segment to the third
+        assertEquals(2500, in.skip(2500));
+        assertArrayEquals(Arrays.copyOfRange(stripe, 2510, 3500), readAll(in));
+        assertEquals(3, client.opened);
+    }
+
+    @Test
+    public void testReadAfterClose() throws IOException {
+        MemoryStorageClient client = new MemoryStorageClient();
+        client.files.put("file", new byte[100]);
+        InputStream in = new RangeInputStream(client, "file", 10, 50, null);
+        assertEquals(0, in.read());
+        in.close();
+        try {
+            in.read();
+            fail("A closed stream was read.");
+        } catch (IOException e) {
+            assertEquals("Stream closed", e.getMessage());
+        }
+        // no new request after closing
+        assertEquals(1, client.opened);
+    }
+
+    @Test
+    public void testSegmentedReadAfterClose() throws IOException {
+        MemoryStorageClient client = new MemoryStorageClient();
+        store(client, 3500);
+        InputStream in = new SegmentedInputStream(client, "stripe", SEGMENT, 0, -1, 0, null);
+        in.read(new byte[10]);
+        in.close();
+        try {
+            in.read(new byte[10]);
+            fail("A closed stream was read.");
+        } catch (IOException e) {
+            assertEquals("Stream closed", e.getMessage());
+        }
+        assertEquals(1, client.opened);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joni.test.meta.StripeLocation;
+import org.junit.Test;
+
+/**
+ * Tests saving and loading the checkpoints of the uploads in segments.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class UploadCheckpointTest {
+
+    private File createFile() throws IOException {
+        File file = File.createTempFile("upload", ".dat");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[1000]);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = createFile();
+        File checkpointFile = new File(file.getPath() + ".checkpoint");
+        checkpointFile.deleteOnExit();
+        UploadCheckpoint checkpoint = new UploadCheckpoint(checkpointFile, file, "id", 5, 7, 0, true, 4096, 64);
+        List<StripeLocation> stripes = new ArrayList<StripeLocation>();
+        for (int i = 0; i < 7; i++) {
+            stripes.add(new StripeLocation(StripeCode.toURI("memory:///id" + i, 64 * 4100), "memory", null));
+        }
+        checkpoint.setStripes(stripes);
+        checkpoint.save();
+
+        byte iv[] = new byte[16];
+        iv[3] = 17;
+        checkpoint.setCommitted(0, iv, 0);
+        checkpoint.setCommitted(1, null, 123);
+        checkpoint.save();
+
+        UploadCheckpoint loaded = UploadCheckpoint.load(checkpointFile);
+        assertTrue(loaded.matches(file, 5, 7, 0, true));
+        assertFalse(loaded.matches(file, 5, 7, 0, false));
+        assertFalse(loaded.matches(file, 4, 7, 0, true));
+        assertEquals("id", loaded.getId());
+        assertEquals(4096, loaded.getPacketSize());
+        assertEquals(64, loaded.getSegmentPackets());
+        assertEquals(2, loaded.getSegments());
+        assertEquals(123, loaded.getStripePadding());
+        assertNull(loaded.getIV(0));
+        assertArrayEquals(iv, loaded.getIV(1));
+        assertNull(loaded.getIV(2));
+        List<StripeLocation> loadedStripes = loaded.getStripes();
+        assertEquals(7, loadedStripes.size());
+        assertEquals(new URI("memory:///id6#stripe=1&segment=262400"), loadedStripes.get(6).getURI());
+        assertEquals(64 * 4100, StripeCode.getSegmentSize(loadedStripes));
+
+        loaded.delete();
+        assertNull(UploadCheckpoint.load(checkpointFile));
+    }
+
+    @Test
+    public void testChangedFile() throws Exception {
+        File file = createFile();
+        File checkpointFile = new File(file.getPath() + ".checkpoint");
+        checkpointFile.deleteOnExit();
+        new UploadCheckpoint(checkpointFile, file, "id", 5, 7, 0, false, 4096, 64).save();
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(1);
+        out.close();
+        assertFalse(UploadCheckpoint.load(checkpointFile).matches(file, 5, 7, 0, false));
+
+        // the source of a compressed copy is checked too
+        File copy = createFile();
+        UploadCheckpoint checkpoint = new UploadCheckpoint(checkpointFile, copy, "id", 5, 7, 0, false, 4096, 64);
+        checkpoint.setSource(file);
+        checkpoint.save();
+        assertTrue(UploadCheckpoint.load(checkpointFile).isFrom(file));
+        assertFalse(UploadCheckpoint.load(checkpointFile).isFrom(copy));
+        out = new FileOutputStream(file, true);
+        out.write(1);
+        out.close();
+        assertFalse(UploadCheckpoint.load(checkpointFile).isFrom(file));
+
+        // a broken checkpoint is not used
+        out = new FileOutputStream(checkpointFile);
+        out.write("segments=x\n".getBytes("ISO-8859-1"));
+        out.close();
+        assertNull(UploadCheckpoint.load(checkpointFile));
+    }
+}
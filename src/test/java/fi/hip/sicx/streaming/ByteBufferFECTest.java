@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.Pure16Code;
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Class to test the ByteBuffer encoding and decoding against the Buffer one.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ByteBufferFECTest {
+    private static Random rand = new Random();
+
+    private static final int K = 5;
+    private static final int N = 8;
+    private static final int PACKET_SIZE = 1000;
+    // the packets don't start from the beginning of the buffers
+    private static final int OFFSET = 3;
+
+    @Test
+    public void testHeapBuffers() {
+        for (FECCode fec : getCodes()) {
+            test(fec, false, false);
+        }
+    }
+
+    @Test
+    public void testDirectBuffers() {
+        for (FECCode fec : getCodes()) {
+            test(fec, true, false);
+        }
+    }
+
+    @Test
+    public void testReadOnlySource() {
+        for (FECCode fec : getCodes()) {
+            test(fec, false, true);
+        }
+    }
+
+    private FECCode[] getCodes() {
+        return new FECCode[] { new PureCode(K, N), new Pure16Code(K, N) };
+    }
+
+    private void test(FECCode fec, boolean direct, boolean readOnly) {
+        byte source[] = new byte[K * PACKET_SIZE];
+        rand.nextBytes(source);
+        byte expected[] = encode(fec, source);
+
+        ByteBuffer src[] = new ByteBuffer[K];
+        for (int i = 0; i < K; i++) {
+            src[i] = allocate(direct);
+            putPacket(src[i], source, i);
+            if (readOnly) {
+                src[i] = src[i].asReadOnlyBuffer();
+            }
+        }
+        ByteBuffer repair[] = new ByteBuffer[N];
+        int repairIndex[] = new int[N];
+        for (int i = 0; i < N; i++) {
+            repair[i] = allocate(direct);
+            repairIndex[i] = i;
+        }
+        fec.encode(src, repair, repairIndex);
+        for (int i = 0; i < N; i++) {
+            assertEquals(OFFSET, repair[i].position());
+            assertTrue(fec + " packet " + i, Arrays.equals(getPacket(expected, i), getPacket(repair[i])));
+        }
+
+        // decode from out of order packets with the stripes 0, 2 and 3 lost
+        int received[] = new int[] { 6, 1, 7, 4, 5 };
+        ByteBuffer pkts[] = new ByteBuffer[K];
+        for (int i = 0; i < K; i++) {
+            pkts[i] = allocate(direct);
+            putPacket(pkts[i], expected, received[i]);
+        }
+        fec.decode(pkts, received);
+        for (int i = 0; i < K; i++) {
+            assertEquals(OFFSET, pkts[i].position());
+            assertTrue(fec + " decoded " + i, Arrays.equals(getPacket(source, i), getPacket(pkts[i])));
+        }
+    }
+
+    /**
+     * @return A buffer with the packet from OFFSET to the limit, in the non
+     *         default byte order to check that the order doesn't matter.
+     */
+    private ByteBuffer allocate(boolean direct) {
+        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(PACKET_SIZE + 2 * OFFSET) : ByteBuffer
+                .allocate(PACKET_SIZE + 2 * OFFSET);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(OFFSET);
+        buf.limit(OFFSET + PACKET_SIZE);
+        return buf;
+    }
+
+    private void putPacket(ByteBuffer buf, byte data[], int packet) {
+        buf.duplicate().put(data, packet * PACKET_SIZE, PACKET_SIZE);
+    }
+
+    private byte[] getPacket(byte data[], int packet) {
+        return Arrays.copyOfRange(data, packet * PACKET_SIZE, (packet + 1) * PACKET_SIZE);
+    }
+
+    private byte[] getPacket(ByteBuffer buf) {
+        byte packet[] = new byte[buf.remaining()];
+        buf.duplicate().get(packet);
+        return packet;
+    }
+
+    private byte[] encode(FECCode fec, byte source[]) {
+        byte repair[] = new byte[N * PACKET_SIZE];
+        Buffer sourceBuffers[] = new Buffer[K];
+        Buffer repairBuffers[] = new Buffer[N];
+        int repairIndex[] = new int[N];
+        for (int i = 0; i < K; i++) {
+            sourceBuffers[i] = new Buffer(source, i * PACKET_SIZE, PACKET_SIZE);
+        }
+        for (int i = 0; i < N; i++) {
+            repairBuffers[i] = new Buffer(repair, i * PACKET_SIZE, PACKET_SIZE);
+            repairIndex[i] = i;
+        }
+        fec.encode(sourceBuffers, repairBuffers, repairIndex);
+        return repair;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.CauchyCode;
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Class to test that the Cauchy code recovers the data from any k packets.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class CauchyCodeTest {
+    private static Random rand = new Random();
+
+    @Test
+    public void testAllErasures() {
+        // every k of n combination, with the long and the byte kernels
+        testAllErasures(5, 7, 1024);
+        testAllErasures(10, 14, 1024);
+        testAllErasures(10, 14, 1000);
+    }
+
+    @Test
+    public void testRandomErasures() {
+        int k = 32;
+        int n = 48;
+        int packetSize = 640;
+        FECCode fec = new CauchyCode(k, n);
+        byte source[] = new byte[k * packetSize];
+        rand.nextBytes(source);
+        byte repair[] = encode(fec, source, k, n, packetSize);
+
+        for (int round = 0; round < 100; round++) {
+            int packets[] = new int[n];
+            for (int i = 0; i < n; i++) {
+                packets[i] = i;
+            }
+            for (int i = n - 1; i > 0; i--) {
+                int j = rand.nextInt(i + 1);
+                int tmp = packets[i];
+                packets[i] = packets[j];
+                packets[j] = tmp;
+            }
+            assertTrue(Arrays.equals(source, decode(fec, repair, Arrays.copyOf(packets, k), k, packetSize)));
+        }
+    }
+
+    @Test
+    public void testDirectBuffers() {
+        int k = 4;
+        int n = 6;
+        int packetSize = 512;
+        FECCode fec = new CauchyCode(k, n);
+        byte source[] = new byte[k * packetSize];
+        rand.nextBytes(source);
+        byte repair[] = encode(fec, source, k, n, packetSize);
+
+        ByteBuffer src[] = new ByteBuffer[k];
+        for (int i = 0; i < k; i++) {
+            src[i] = ByteBuffer.allocateDirect(packetSize);
+            src[i].put(source, i * packetSize, packetSize).flip();
+        }
+        ByteBuffer parity[] = new ByteBuffer[n - k];
+        int parityIndex[] = new int[n - k];
+        for (int i = 0; i < n - k; i++) {
+            parity[i] = ByteBuffer.allocateDirect(packetSize);
+            parityIndex[i] = k + i;
+        }
+        fec.encode(src, parity, parityIndex);
+        for (int i = 0; i < n - k; i++) {
+            byte packet[] = new byte[packetSize];
+            parity[i].get(packet);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(repair, (k + i) * packetSize, (k + i + 1) * packetSize),
+                    packet));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnalignedPacket() {
+        int k = 2;
+        int n = 3;
+        encode(new CauchyCode(k, n), new byte[k * 100], k, n, 100);
+    }
+
+    private void testAllErasures(int k, int n, int packetSize) {
+        FECCode fec = new CauchyCode(k, n);
+        byte source[] = new byte[k * packetSize];
+        rand.nextBytes(source);
+        byte repair[] = encode(fec, source, k, n, packetSize);
+
+        // go through the subsets of k packets as bit masks
+        for (int mask = 0; mask < (1 << n); mask++) {
+            if (Integer.bitCount(mask) != k) {
+                continue;
+            }
+            int received[] = new int[k];
+            for (int i = 0, j = 0; i < n; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    received[j++] = i;
+                }
+            }
+            assertTrue(fec + " " + Arrays.toString(received),
+                    Arrays.equals(source, decode(fec, repair, received, k, packetSize)));
+        }
+    }
+
+    private byte[] decode(FECCode fec, byte repair[], int received[], int k, int packetSize) {
+        byte data[] = new byte[k * packetSize];
+        Buffer dataBuffers[] = new Buffer[k];
+        for (int i = 0; i < k; i++) {
+            System.arraycopy(repair, received[i] * packetSize, data, i * packetSize, packetSize);
+            dataBuffers[i] = new Buffer(data, i * packetSize, packetSize);
+        }
+        fec.decode(dataBuffers, received.clone());
+        return data;
+    }
+
+    private byte[] encode(FECCode fec, byte source[], int k, int n, int packetSize) {
+        byte repair[] = new byte[n * packetSize];
+        Buffer sourceBuffers[] = new Buffer[k];
+        Buffer repairBuffers[] = new Buffer[n];
+        int repairIndex[] = new int[n];
+        for (int i = 0; i < k; i++) {
+            sourceBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+        }
+        for (int i = 0; i < n; i++) {
+            repairBuffers[i] = new Buffer(repair, i * packetSize, packetSize);
+            repairIndex[i] = i;
+        }
+        fec.encode(sourceBuffers, repairBuffers, repairIndex);
+        return repair;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.LRCCode;
+
+/**
+ * Class to test the reconstruction from the stripe sources.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ConstructTest {
+    private static Random rand = new Random();
+    static int PACKET_SIZE = 1024;
+    static int EXTRA_SIZE = 256;
+    static int K = 5;
+    static int N = 7;
+
+    /**
+     * Stripe source of in memory stripes, remembers which stripes were opened.
+     */
+    public static class MemoryStripeSource implements StripeSource {
+        byte stripes[][];
+        boolean available[];
+        List<Integer> opened = new ArrayList<Integer>();
+
+        public MemoryStripeSource(ByteArrayOutputStream stripeStreams[]) {
+            stripes = new byte[stripeStreams.length][];
+            available = new boolean[stripeStreams.length];
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = stripeStreams[i].toByteArray();
+                available[i] = true;
+            }
+        }
+
+        public InputStream openStripe(int index, long offset) throws IOException {
+            if (!available[index]) {
+                throw new IOException("Stripe " + index + " is not available");
+            }
+            opened.add(index);
+            return new ByteArrayInputStream(stripes[index], (int) offset, stripes[index].length - (int) offset);
+        }
+    }
+
+    byte data[];
+    long padding;
+
+    private MemoryStripeSource stripe(int size) throws IOException {
+        data = new byte[size];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+        }
+        padding = StreamingFEC.stripe(new ByteArrayInputStream(data), (OutputStream[]) stripes, PACKET_SIZE, K, N,
+                size + EXTRA_SIZE);
+        return new MemoryStripeSource(stripes);
+    }
+
+    @Test
+    public void testPassThrough() throws IOException {
+        MemoryStripeSource source = stripe(PACKET_SIZE * K * 10 + 123);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConstructStats stats = new ConstructStats();
+
+        StreamingFEC.construct(source, out, PACKET_SIZE, K, N, data.length + EXTRA_SIZE - padding, 4, stats);
+
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), source.opened);
+        assertEquals(0, stats.getBlocksDecoded());
+        assertEquals(11, stats.getBlocksPassedThrough());
+    }
+
+    @Test
+    public void testMissingDataStripe() throws IOException {
+        MemoryStripeSource source = stripe(PACKET_SIZE * K * 10 + 123);
+        source.available[2] = false;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConstructStats stats = new ConstructStats();
+
+        StreamingFEC.construct(source, out, PACKET_SIZE, K, N, data.length + EXTRA_SIZE - padding, 4, stats);
+
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        // only the first parity stripe is opened to replace the data stripe
+        assertEquals(Arrays.asList(0, 1, 3, 4, 5), source.opened);
+        assertEquals(11, stats.getBlocksDecoded());
+    }
+
+    @Test
+    public void testLRC() throws IOException {
+        LRCCode fec = new LRCCode(6, 10, 2);
+        data = new byte[PACKET_SIZE * 6 * 10 + 123];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[10];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+        }
+        padding = StreamingFEC.stripe(new ByteArrayInputStream(data), (OutputStream[]) stripes, PACKET_SIZE, fec,
+                data.length + EXTRA_SIZE, 1);
+        MemoryStripeSource source = new MemoryStripeSource(stripes);
+        // two data stripes of the first group, its local parity is not enough
+        source.available[1] = false;
+        source.available[2] = false;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        StreamingFEC.construct(source, out, PACKET_SIZE, fec, data.length + EXTRA_SIZE - padding, 2, null);
+
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+        // the local parity of the second group adds nothing, a global one is
+        // needed
+        assertEquals(Arrays.asList(0, 3, 4, 5, 6, 7, 8), source.opened);
+    }
+}
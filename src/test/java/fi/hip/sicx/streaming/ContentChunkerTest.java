@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Class to test the content-defined chunking.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ContentChunkerTest {
+    private static Random rand = new Random();
+
+    private List<byte[]> split(byte data[]) throws IOException {
+        ContentChunker chunker = new ContentChunker(new ByteArrayInputStream(data), 2048, 8192, 32768);
+        List<byte[]> chunks = new ArrayList<byte[]>();
+        byte chunk[];
+        while ((chunk = chunker.next()) != null) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private Set<ByteBuffer> toSet(List<byte[]> chunks) {
+        Set<ByteBuffer> set = new HashSet<ByteBuffer>();
+        for (byte chunk[] : chunks) {
+            set.add(ByteBuffer.wrap(chunk));
+        }
+        return set;
+    }
+
+    @Test
+    public void testSizes() throws IOException {
+        byte data[] = new byte[1024 * 1024];
+        rand.nextBytes(data);
+        List<byte[]> chunks = split(data);
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            int size = chunks.get(i).length;
+            assertTrue(size <= 32768);
+            assertTrue(size >= 2048 || i == chunks.size() - 1);
+            joined.write(chunks.get(i));
+        }
+        assertArrayEquals(data, joined.toByteArray());
+        // about the average size after the minimum
+        int average = data.length / chunks.size();
+        assertTrue("average " + average, average > 6000 && average < 14000);
+
+        // the same data gives the same chunks
+        assertEquals(toSet(chunks), toSet(split(data)));
+        assertEquals(0, split(new byte[0]).size());
+    }
+
+    @Test
+    public void testInsertion() throws IOException {
+        byte data[] = new byte[1024 * 1024];
+        rand.nextBytes(data);
+        // 100 new bytes in the middle
+        byte edited[] = new byte[data.length + 100];
+        rand.nextBytes(edited);
+        System.arraycopy(data, 0, edited, 0, 500000);
+        System.arraycopy(data, 500000, edited, 500100, data.length - 500000);
+
+        List<byte[]> chunks = split(data);
+        Set<ByteBuffer> original = toSet(chunks);
+        int changed = 0;
+        for (ByteBuffer chunk : toSet(split(edited))) {
+            if (!original.contains(chunk)) {
+                changed++;
+            }
+        }
+        // only the chunks around the insertion change
+        assertTrue("changed " + changed, changed <= 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSizes() {
+        new ContentChunker(new ByteArrayInputStream(new byte[0]), 1024, 3000, 8192);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECScratch;
+import com.onionnetworks.fec.Pure16Code;
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Measures the heap allocated per encoded and decoded block, with the per
+ * thread scratch and with a caller supplied one. After the warm up both
+ * should be close to zero bytes per block. Needs a JVM that supports the
+ * thread allocation counters (com.sun.management.ThreadMXBean). Run with:
+ * 
+ * java -cp target/classes:target/test-classes fi.hip.sicx.streaming.FECAllocationBenchmark [k] [n] [packetsize]
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class FECAllocationBenchmark {
+
+    private static final int BLOCKS = 2000;
+
+    public static void main(String[] args) {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 7;
+        int packetSize = args.length > 2 ? Integer.parseInt(args[2]) : 10240;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocation counters not supported by this JVM.");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        System.out.println("k=" + k + " n=" + n + " packet size: " + packetSize + " bytes");
+        FECCode codes[] = new FECCode[] { new PureCode(k, n), new Pure16Code(k, n) };
+        for (FECCode fec : codes) {
+            Block block = new Block(fec, k, n, packetSize);
+            FECScratch scratch = new FECScratch();
+            // warm up, grows the scratches and fills the decode matrix cache
+            block.run(null, BLOCKS);
+            block.run(scratch, BLOCKS);
+
+            long id = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(id);
+            block.run(null, BLOCKS);
+            long middle = threads.getThreadAllocatedBytes(id);
+            block.run(scratch, BLOCKS);
+            long after = threads.getThreadAllocatedBytes(id);
+
+            System.out.printf("%-24s thread scratch: %8.1f bytes/block, caller scratch: %8.1f bytes/block%n", fec,
+                    (middle - before) / (double) BLOCKS, (after - middle) / (double) BLOCKS);
+        }
+    }
+
+    /**
+     * One block encoded to all the n packets and decoded from the last k.
+     */
+    private static class Block {
+        private final FECCode fec;
+        private final int k;
+        private final Buffer source[];
+        private final Buffer repair[];
+        private final int repairIndex[];
+        private final Buffer received[];
+        private final int receivedIndex[];
+
+        Block(FECCode fec, int k, int n, int packetSize) {
+            this.fec = fec;
+            this.k = k;
+            byte sourceData[] = new byte[k * packetSize];
+            new Random().nextBytes(sourceData);
+            byte repairData[] = new byte[n * packetSize];
+            byte receivedData[] = new byte[k * packetSize];
+            source = new Buffer[k];
+            repair = new Buffer[n];
+            repairIndex = new int[n];
+            received = new Buffer[k];
+            receivedIndex = new int[k];
+            for (int i = 0; i < k; i++) {
+                source[i] = new Buffer(sourceData, i * packetSize, packetSize);
+                received[i] = new Buffer(receivedData, i * packetSize, packetSize);
+            }
+            for (int i = 0; i < n; i++) {
+                repair[i] = new Buffer(repairData, i * packetSize, packetSize);
+                repairIndex[i] = i;
+            }
+        }
+
+        void run(FECScratch scratch, int blocks) {
+            int n = repair.length;
+            for (int b = 0; b < blocks; b++) {
+                if (scratch == null) {
+                    fec.encode(source, repair, repairIndex);
+                } else {
+                    fec.encode(source, repair, repairIndex, scratch);
+                }
+                for (int i = 0; i < k; i++) {
+                    int index = n - k + i;
+                    System.arraycopy(repair[index].b, repair[index].off, received[i].b, received[i].off,
+                            received[i].len);
+                    receivedIndex[i] = index;
+                }
+                if (scratch == null) {
+                    fec.decode(received, receivedIndex);
+                } else {
+                    fec.decode(received, receivedIndex, scratch);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.DefaultFECCodeFactory;
+import com.onionnetworks.fec.FECCalibration;
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Class to test the caching of the FEC codes and decode matrices.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class FECCacheTest {
+    private static Random rand = new Random();
+
+    @Test
+    public void testCodeCache() {
+        DefaultFECCodeFactory factory = new DefaultFECCodeFactory();
+
+        FECCode first = factory.createFECCode(5, 7);
+        FECCode second = factory.createFECCode(5, 7);
+        FECCode other = factory.createFECCode(4, 6);
+
+        assertSame(first, second);
+        assertTrue(first != other);
+        assertEquals(1, factory.getCacheHits());
+        assertEquals(2, factory.getCacheMisses());
+    }
+
+    @Test
+    public void testCalibration() {
+        System.setProperty("com.onionnetworks.fec.keys", "pure8,cauchy8");
+        System.setProperty("com.onionnetworks.fec.calibrate", "true");
+        System.setProperty("com.onionnetworks.fec.calibrate.millis", "5");
+        DefaultFECCodeFactory factory;
+        try {
+            factory = new DefaultFECCodeFactory();
+        } finally {
+            System.clearProperty("com.onionnetworks.fec.keys");
+            System.clearProperty("com.onionnetworks.fec.calibrate");
+            System.clearProperty("com.onionnetworks.fec.calibrate.millis");
+        }
+
+        FECCode code = factory.createFECCode(5, 7);
+        factory.clearCache();
+        FECCode again = factory.createFECCode(5, 7);
+
+        assertEquals(1, factory.getCalibrations().size());
+        FECCalibration cal = factory.getCalibration(5, 7);
+        assertEquals(2, cal.getResults().size());
+        assertEquals(code.getClass().getSimpleName(), cal.getChosen().getName());
+        assertEquals(code.getClass(), again.getClass());
+        assertEquals("fastest", cal.getChosen().getReason());
+
+        FECCalibration.Result pure = cal.getResults().get(0);
+        FECCalibration.Result cauchy = cal.getResults().get(1);
+        assertTrue(pure.isUsable());
+        assertTrue(pure.getRate() > 0);
+        assertFalse(cauchy.isUsable());
+        assertEquals("different packets than PureCode", cauchy.getReason());
+    }
+
+    @Test
+    public void testDecodeMatrixCache() {
+        int k = 5;
+        int n = 7;
+        int packetSize = 1024;
+        PureCode fec = new PureCode(k, n);
+
+        for (int block = 0; block < 4; block++) {
+            byte source[] = new byte[k * packetSize];
+            rand.nextBytes(source);
+            byte repair[] = new byte[n * packetSize];
+            Buffer[] sourceBuffers = new Buffer[k];
+            Buffer[] repairBuffers = new Buffer[n];
+            int[] repairIndex = new int[n];
+            for (int i = 0; i < k; i++) {
+                sourceBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+            }
+            for (int i = 0; i < n; i++) {
+                repairBuffers[i] = new Buffer(repair, i * packetSize, packetSize);
+                repairIndex[i] = i;
+            }
+            fec.encode(sourceBuffers, repairBuffers, repairIndex);
+
+            // drop the stripes 1 and 3 from every block
+            int[] received = new int[] { 0, 2, 4, 5, 6 };
+            byte data[] = new byte[k * packetSize];
+            Buffer[] dataBuffers = new Buffer[k];
+            for (int i = 0; i < k; i++) {
+                System.arraycopy(repair, received[i] * packetSize, data, i * packetSize, packetSize);
+                dataBuffers[i] = new Buffer(data, i * packetSize, packetSize);
+            }
+            fec.decode(dataBuffers, received);
+
+            assertTrue(Arrays.equals(source, data));
+        }
+
+        assertEquals(1, fec.getDecodeCache().getMisses());
+        assertEquals(3, fec.getDecodeCache().getHits());
+    }
+}
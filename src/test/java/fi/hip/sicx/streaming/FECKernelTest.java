@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECScratch;
+import com.onionnetworks.fec.Pure16Code;
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Class to test the tiled encoding and the reused scratch space of the codes.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class FECKernelTest {
+    private static Random rand = new Random();
+
+    @Test
+    public void testTiledEncode() {
+        int k = 10;
+        int n = 14;
+        int packetSizes[] = new int[] { 100, 1021, 10240, 65536 };
+        for (int packetSize : packetSizes) {
+            byte source[] = new byte[k * packetSize];
+            rand.nextBytes(source);
+            FECCode fec = new PureCode(k, n);
+
+            // all the packets at once uses the tiled encoding
+            byte tiled[] = encode(fec, source, k, n, packetSize);
+
+            // one packet at a time uses the plain encoding
+            byte plain[] = new byte[n * packetSize];
+            Buffer sourceBuffers[] = new Buffer[k];
+            for (int i = 0; i < k; i++) {
+                sourceBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+            }
+            for (int i = 0; i < n; i++) {
+                fec.encode(sourceBuffers, new Buffer[] { new Buffer(plain, i * packetSize, packetSize) },
+                        new int[] { i });
+            }
+            assertTrue("packet size " + packetSize, Arrays.equals(plain, tiled));
+        }
+    }
+
+    @Test
+    public void testScratchReuse() {
+        int k = 5;
+        int n = 8;
+        FECCode codes[] = new FECCode[] { new PureCode(k, n), new Pure16Code(k, n) };
+        FECScratch scratch = new FECScratch();
+        // the same scratch through different codes, sizes and erasures
+        int packetSizes[] = new int[] { 1024, 512, 4096, 1024 };
+        int receivedSets[][] = new int[][] { { 0, 1, 2, 3, 4 }, { 5, 1, 6, 3, 7 }, { 4, 5, 6, 7, 0 }, { 1, 2, 7, 3, 4 } };
+        for (FECCode fec : codes) {
+            for (int b = 0; b < packetSizes.length; b++) {
+                int packetSize = packetSizes[b];
+                byte source[] = new byte[k * packetSize];
+                rand.nextBytes(source);
+                byte repair[] = new byte[n * packetSize];
+                Buffer sourceBuffers[] = new Buffer[k];
+                Buffer repairBuffers[] = new Buffer[n];
+                int repairIndex[] = new int[n];
+                for (int i = 0; i < k; i++) {
+                    sourceBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+                }
+                for (int i = 0; i < n; i++) {
+                    repairBuffers[i] = new Buffer(repair, i * packetSize, packetSize);
+                    repairIndex[i] = i;
+                }
+                fec.encode(sourceBuffers, repairBuffers, repairIndex, scratch);
+                assertTrue(Arrays.equals(repair, encode(fec, source, k, n, packetSize)));
+
+                int received[] = receivedSets[b].clone();
+                byte data[] = new byte[k * packetSize];
+                Buffer dataBuffers[] = new Buffer[k];
+                for (int i = 0; i < k; i++) {
+                    System.arraycopy(repair, received[i] * packetSize, data, i * packetSize, packetSize);
+                    dataBuffers[i] = new Buffer(data, i * packetSize, packetSize);
+                }
+                fec.decode(dataBuffers, received, scratch);
+                assertTrue(fec + " block " + b, Arrays.equals(source, data));
+            }
+        }
+    }
+
+    private byte[] encode(FECCode fec, byte source[], int k, int n, int packetSize) {
+        byte repair[] = new byte[n * packetSize];
+        Buffer sourceBuffers[] = new Buffer[k];
+        Buffer repairBuffers[] = new Buffer[n];
+        int repairIndex[] = new int[n];
+        for (int i = 0; i < k; i++) {
+            sourceBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+        }
+        for (int i = 0; i < n; i++) {
+            repairBuffers[i] = new Buffer(repair, i * packetSize, packetSize);
+            repairIndex[i] = i;
+        }
+        fec.encode(sourceBuffers, repairBuffers, repairIndex);
+        return repair;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+
+import fi.hip.sicx.streaming.ConstructTest.MemoryStripeSource;
+import fi.hip.sicx.streaming.HedgedTest.StallingSource;
+
+/**
+ * Class to test the failover to the spare stripes in the middle of the
+ * reconstruction.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class FailoverTest {
+    private static Random rand = new Random();
+    static int PACKET_SIZE = 1024;
+    static int K = 5;
+    static int N = 7;
+    static int BLOCKS = 30;
+    static int SIZE = PACKET_SIZE * K * BLOCKS - 55;
+
+    byte data[];
+
+    /**
+     * A stream that fails after the given number of bytes.
+     */
+    static class FailingInputStream extends FilterInputStream {
+        private long left;
+
+        FailingInputStream(InputStream in, long bytes) {
+            super(in);
+            left = bytes;
+        }
+
+        public int read() throws IOException {
+            if (left <= 0) {
+                throw new IOException("Connection reset.");
+            }
+            left--;
+            return super.read();
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            if (left <= 0) {
+                throw new IOException("Connection reset.");
+            }
+            int num = super.read(b, off, (int) Math.min(len, left));
+            if (num > 0) {
+                left -= num;
+            }
+            return num;
+        }
+    }
+
+    /**
+     * A source where the given stripes fail after the given number of bytes.
+     */
+    public static class FailingSource implements StripeSource {
+        final MemoryStripeSource source;
+        final int failing[];
+        final long bytes;
+        final List<Long> offsets = new ArrayList<Long>();
+
+        public FailingSource(MemoryStripeSource source, long bytes, int... failing) {
+            this.source = source;
+            this.bytes = bytes;
+            this.failing = failing;
+        }
+
+        public InputStream openStripe(int index, long offset) throws IOException {
+            InputStream in = source.openStripe(index, offset);
+            offsets.add(offset);
+            for (int i : failing) {
+                if (i == index) {
+                    return new FailingInputStream(in, bytes);
+                }
+            }
+            return in;
+        }
+    }
+
+    /**
+     * Records the failover events as strings.
+     */
+    static class RecordingListener implements StripeFailoverListener {
+        final List<String> events = new ArrayList<String>();
+        IOException cause;
+
+        public synchronized void stripeFailed(int stripe, long block, IOException cause) {
+            events.add("failed " + stripe + " at " + block);
+            this.cause = cause;
+        }
+
+        public synchronized void spareOpened(int stripe, long block) {
+            events.add("opened " + stripe + " at " + block);
+        }
+    }
+
+    private MemoryStripeSource stripe(FECCode fec, boolean container) throws IOException {
+        data = new byte[SIZE];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+            outStreams[i] = container ? new StripeOutputStream(stripes[i], new StripeHeader(fec, PACKET_SIZE, i))
+                    : stripes[i];
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), outStreams, PACKET_SIZE, fec, SIZE, 1);
+        for (int i = 0; i < N; i++) {
+            outStreams[i].close();
+        }
+        return new MemoryStripeSource(stripes);
+    }
+
+    @Test
+    public void testFailover() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        for (int threads = 1; threads <= 3; threads += 2) {
+            MemoryStripeSource memory = stripe(fec, false);
+            // stripe 1 fails in the middle of its 11th packet
+            FailingSource source = new FailingSource(memory, PACKET_SIZE * 10 + 100, 1);
+            RecordingListener listener = new RecordingListener();
+            ConstructStats stats = new ConstructStats();
+            stats.setFailoverListener(listener);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            StreamingFEC.construct(source, out, PACKET_SIZE, fec, SIZE, threads, stats);
+
+            assertArrayEquals(data, out.toByteArray());
+            assertEquals("[failed 1 at 10, opened 5 at 10]", listener.events.toString());
+            // the spare stripe is opened at the failed block
+            assertEquals(Long.valueOf(10L * PACKET_SIZE), source.offsets.get(5));
+            assertEquals(1, stats.getStripesFailed());
+            assertEquals(1, stats.getSparesOpened());
+            assertEquals(10, stats.getBlocksPassedThrough());
+            assertEquals(BLOCKS - 10, stats.getBlocksDecoded());
+        }
+    }
+
+    @Test
+    public void testContainerFailover() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource memory = stripe(fec, true);
+        FailingSource source = new FailingSource(memory, memory.stripes[0].length / 2, 0, 3);
+        RecordingListener listener = new RecordingListener();
+        ConstructStats stats = new ConstructStats();
+        stats.setFailoverListener(listener);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        StreamingFEC.construct(source, out, N, SIZE, 2, stats);
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(2, stats.getStripesFailed());
+        assertEquals(2, stats.getSparesOpened());
+        // both fail at the same block before the spares are opened
+        assertEquals(4, listener.events.size());
+        assertTrue(listener.events.get(0).startsWith("failed 0 at "));
+        assertTrue(listener.events.get(1).startsWith("failed 3 at "));
+        assertTrue(listener.events.get(2).startsWith("opened 5 at "));
+        assertTrue(listener.events.get(3).startsWith("opened 6 at "));
+    }
+
+    @Test
+    public void testStallTimeout() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource memory = stripe(fec, false);
+        StallingSource source = new StallingSource(memory, 2, PACKET_SIZE * 7);
+        RecordingListener listener = new RecordingListener();
+        ConstructStats stats = new ConstructStats();
+        stats.setFailoverListener(listener);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        StreamingFEC.construct(source, out, PACKET_SIZE, fec, SIZE, 1, 100, stats);
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals("[failed 2 at 7, opened 5 at 7]", listener.events.toString());
+        assertTrue(listener.cause instanceof InterruptedIOException);
+        assertTrue(source.stream.closed);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoSpares() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource memory = stripe(fec, false);
+        FailingSource source = new FailingSource(memory, PACKET_SIZE * 3, 0, 1, 2);
+        StreamingFEC.construct(source, new ByteArrayOutputStream(), PACKET_SIZE, fec, SIZE, 1, null);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+
+import fi.hip.sicx.streaming.ConstructTest.MemoryStripeSource;
+
+/**
+ * Class to test the hedged reads of the stripes.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class HedgedTest {
+    private static Random rand = new Random();
+    static int PACKET_SIZE = 1024;
+    static int K = 5;
+    static int N = 7;
+    static int BLOCKS = 40;
+    static int SIZE = PACKET_SIZE * K * BLOCKS - 77;
+
+    byte data[];
+
+    /**
+     * A stream that blocks in read after the given number of bytes until it
+     * is closed, like a storage that stopped sending.
+     */
+    static class StalledInputStream extends FilterInputStream {
+        private long left;
+        boolean closed = false;
+
+        StalledInputStream(InputStream in, long bytes) {
+            super(in);
+            left = bytes;
+        }
+
+        private synchronized void stall() throws IOException {
+            while (left <= 0 && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // wait for the close
+                }
+            }
+            if (closed) {
+                throw new IOException("Stream closed.");
+            }
+        }
+
+        public int read() throws IOException {
+            stall();
+            left--;
+            return super.read();
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            stall();
+            int num = super.read(b, off, (int) Math.min(len, left));
+            if (num > 0) {
+                left -= num;
+            }
+            return num;
+        }
+
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A source where one stripe stalls after the given number of bytes.
+     */
+    static class StallingSource implements StripeSource {
+        final MemoryStripeSource source;
+        final int stalled;
+        final long bytes;
+        StalledInputStream stream;
+
+        StallingSource(MemoryStripeSource source, int stalled, long bytes) {
+            this.source = source;
+            this.stalled = stalled;
+            this.bytes = bytes;
+        }
+
+        public InputStream openStripe(int index, long offset) throws IOException {
+            InputStream in = source.openStripe(index, offset);
+            if (index == stalled) {
+                stream = new StalledInputStream(in, bytes);
+                return stream;
+            }
+            return in;
+        }
+    }
+
+    private MemoryStripeSource stripe(FECCode fec, boolean container) throws IOException {
+        data = new byte[SIZE];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+            outStreams[i] = container ? new StripeOutputStream(stripes[i], new StripeHeader(fec, PACKET_SIZE, i))
+                    : stripes[i];
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), outStreams, PACKET_SIZE, fec, SIZE, 1);
+        for (int i = 0; i < N; i++) {
+            outStreams[i].close();
+        }
+        return new MemoryStripeSource(stripes);
+    }
+
+    private byte[] construct(StripeSource source, FECCode fec, boolean container, int hedge, ConstructStats stats)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (container) {
+            StreamingFEC.constructHedged(source, out, N, SIZE, hedge, stats);
+        } else {
+            StreamingFEC.constructHedged(source, out, PACKET_SIZE, fec, SIZE, hedge, stats);
+        }
+        return out.toByteArray();
+    }
+
+    private void testStalledStripe(boolean container) throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        // a data stripe stops sending in the middle of the file
+        StallingSource source = new StallingSource(stripe(fec, container), 2, PACKET_SIZE * BLOCKS / 2);
+        ConstructStats stats = new ConstructStats();
+        assertArrayEquals(data, construct(source, fec, container, 1, stats));
+        // the blocks after the stall were decoded from the hedged stripe
+        assertTrue(stats.getBlocksDecoded() >= BLOCKS / 2 - 1);
+        assertEquals(BLOCKS, stats.getBlocksDecoded() + stats.getBlocksPassedThrough());
+        // the straggler was cancelled
+        assertTrue(source.stream.closed);
+        assertEquals(K + 1, source.source.opened.size());
+    }
+
+    @Test
+    public void testStalledStripe() throws IOException {
+        testStalledStripe(false);
+    }
+
+    @Test
+    public void testStalledStripeContainer() throws IOException {
+        testStalledStripe(true);
+    }
+
+    @Test
+    public void testNoHedge() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource source = stripe(fec, false);
+        ConstructStats stats = new ConstructStats();
+        assertArrayEquals(data, construct(source, fec, false, 0, stats));
+        assertEquals(K, source.opened.size());
+        assertEquals(BLOCKS, stats.getBlocksPassedThrough());
+    }
+
+    @Test
+    public void testFailingStripes() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource memory = stripe(fec, false);
+        memory.available[0] = false;
+        // a stripe that ends in the middle, the missing packets are read
+        // from a stripe opened at the block
+        memory.stripes[3] = java.util.Arrays.copyOf(memory.stripes[3], PACKET_SIZE * 10);
+        assertArrayEquals(data, construct(memory, fec, false, 0, null));
+        assertEquals(N - 1, memory.opened.size());
+    }
+
+    @Test
+    public void testCorruptedPackets() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource source = stripe(fec, true);
+        StripeHeader header = new StripeHeader(fec, PACKET_SIZE, 0);
+        for (int i = 0; i < BLOCKS; i += 3) {
+            source.stripes[i % K][(int) header.getPacketOffset(i) + 5] ^= 1;
+        }
+        ConstructStats stats = new ConstructStats();
+        assertArrayEquals(data, construct(source, fec, true, 2, stats));
+        assertTrue(stats.getPacketsCorrupted() > 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooFewStripes() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource source = stripe(fec, false);
+        source.available[0] = false;
+        source.available[1] = false;
+        source.available[2] = false;
+        construct(source, fec, false, 2, null);
+    }
+}
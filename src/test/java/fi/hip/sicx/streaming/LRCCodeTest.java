@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.LRCCode;
+import com.onionnetworks.util.Buffer;
+
+/**
+ * Class to test the local repair and the decoding of the locally repairable
+ * code.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class LRCCodeTest {
+    private static Random rand = new Random();
+
+    @Test
+    public void testGroups() {
+        LRCCode fec = new LRCCode(6, 10, 2);
+        assertArrayEquals(new int[] { 0, 2, 6 }, fec.getRepairIndexes(1));
+        assertArrayEquals(new int[] { 3, 4, 5 }, fec.getRepairIndexes(7));
+        assertNull(fec.getRepairIndexes(8));
+        assertTrue(fec.getGroup(5) == 1 && fec.getGroup(9) == -1);
+
+        // uneven groups
+        fec = new LRCCode(7, 11, 3);
+        assertArrayEquals(new int[] { 0, 7 }, fec.getRepairIndexes(1));
+        assertArrayEquals(new int[] { 2, 8 }, fec.getRepairIndexes(3));
+        assertArrayEquals(new int[] { 4, 5, 6 }, fec.getRepairIndexes(9));
+    }
+
+    @Test
+    public void testLocalRepair() {
+        int k = 12;
+        int n = 16;
+        int packetSize = 1000;
+        LRCCode fec = new LRCCode(k, n, 3);
+        byte source[] = new byte[k * packetSize];
+        rand.nextBytes(source);
+        byte packets[] = encode(fec, source, k, n, packetSize);
+
+        for (int lost = 0; lost < k + fec.getGroups(); lost++) {
+            int indexes[] = fec.getRepairIndexes(lost);
+            Buffer group[] = new Buffer[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                group[i] = new Buffer(packets, indexes[i] * packetSize, packetSize);
+            }
+            Buffer repair = new Buffer(new byte[packetSize]);
+            fec.repairLocal(group, repair);
+            assertArrayEquals("packet " + lost, Arrays.copyOfRange(packets, lost * packetSize, (lost + 1)
+                    * packetSize), repair.b);
+        }
+    }
+
+    @Test
+    public void testAllErasures() {
+        // every erasure pattern, up to g+1 lost packets are always recovered
+        testAllErasures(6, 10, 2);
+        testAllErasures(8, 12, 2);
+        testAllErasures(7, 11, 3);
+        testAllErasures(4, 6, 2);
+    }
+
+    private void testAllErasures(int k, int n, int groups) {
+        int packetSize = 256;
+        LRCCode fec = new LRCCode(k, n, groups);
+        byte source[] = new byte[k * packetSize];
+        rand.nextBytes(source);
+        byte packets[] = encode(fec, source, k, n, packetSize);
+
+        for (int mask = 0; mask < (1 << n); mask++) {
+            boolean present[] = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                present[i] = (mask & (1 << i)) == 0;
+            }
+            int received[] = fec.selectIndexes(present);
+            if (Integer.bitCount(mask) <= fec.getGlobalParities() + 1) {
+                assertNotNull(fec + " lost " + Integer.toBinaryString(mask), received);
+            }
+            if (received == null) {
+                continue;
+            }
+            for (int i = 0; i < k; i++) {
+                assertTrue(present[received[i]]);
+            }
+            assertArrayEquals(fec + " " + Arrays.toString(received), source,
+                    decode(fec, packets, received, k, packetSize));
+        }
+    }
+
+    private byte[] decode(LRCCode fec, byte packets[], int received[], int k, int packetSize) {
+        byte data[] = new byte[k * packetSize];
+        Buffer dataBuffers[] = new Buffer[k];
+        for (int i = 0; i < k; i++) {
+            System.arraycopy(packets, received[i] * packetSize, data, i * packetSize, packetSize);
+            dataBuffers[i] = new Buffer(data, i * packetSize, packetSize);
+        }
+        fec.decode(dataBuffers, received.clone());
+        return data;
+    }
+
+    private byte[] encode(LRCCode fec, byte source[], int k, int n, int packetSize) {
+        byte packets[] = new byte[n * packetSize];
+        Buffer sourceBuffers[] = new Buffer[k];
+        Buffer repairBuffers[] = new Buffer[n];
+        int repairIndex[] = new int[n];
+        for (int i = 0; i < k; i++) {
+            sourceBuffers[i] = new Buffer(source, i * packetSize, packetSize);
+        }
+        for (int i = 0; i < n; i++) {
+            repairBuffers[i] = new Buffer(packets, i * packetSize, packetSize);
+            repairIndex[i] = i;
+        }
+        fec.encode(sourceBuffers, repairBuffers, repairIndex);
+        return packets;
+    }
+}
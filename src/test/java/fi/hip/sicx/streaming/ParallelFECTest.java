@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Class to test the multithreaded striping and reconstruction.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class ParallelFECTest {
+    private static Random rand = new Random();
+    static int PACKET_SIZE = 1024;
+    static int EXTRA_SIZE = 256;
+
+    @Test
+    public void testParallelStripe() throws IOException {
+        int sizes[] = new int[] { 5, PACKET_SIZE * 5 - 3, PACKET_SIZE * 5 * 40 + 2256 };
+        for (int size : sizes) {
+            byte data[] = new byte[size];
+            rand.nextBytes(data);
+
+            ByteArrayOutputStream sequential[] = newStreams(7);
+            ByteArrayOutputStream parallel[] = newStreams(7);
+            long sequentialPadding = StreamingFEC.stripe(new ByteArrayInputStream(data), (OutputStream[]) sequential,
+                    PACKET_SIZE, 5, 7, data.length + EXTRA_SIZE, 1);
+            long parallelPadding = StreamingFEC.stripe(new ByteArrayInputStream(data), (OutputStream[]) parallel,
+                    PACKET_SIZE, 5, 7, data.length + EXTRA_SIZE, 4);
+
+            assertEquals(sequentialPadding, parallelPadding);
+            for (int i = 0; i < 7; i++) {
+                assertTrue("stripe " + i + " of size " + size,
+                        Arrays.equals(sequential[i].toByteArray(), parallel[i].toByteArray()));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelConstruct() throws IOException {
+        int k = 5;
+        int n = 7;
+        int size = PACKET_SIZE * k * 40 + 2256;
+        byte data[] = new byte[size];
+        rand.nextBytes(data);
+
+        ByteArrayOutputStream stripes[] = newStreams(n);
+        long padding = StreamingFEC.stripe(new ByteArrayInputStream(data), (OutputStream[]) stripes, PACKET_SIZE, k,
+                n, size + EXTRA_SIZE);
+        long blocks = stripes[0].size() / PACKET_SIZE;
+
+        // all the stripes, without the stripe 1 and without the stripes 0 and 3
+        int missing[][] = new int[][] { {}, { 1 }, { 0, 3 } };
+        for (int m = 0; m < missing.length; m++) {
+            ByteArrayInputStream inStreams[] = new ByteArrayInputStream[n];
+            for (int i = 0; i < n; i++) {
+                inStreams[i] = new ByteArrayInputStream(stripes[i].toByteArray());
+            }
+            for (int i : missing[m]) {
+                inStreams[i] = null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ConstructStats stats = new ConstructStats();
+            StreamingFEC.construct(inStreams, out, PACKET_SIZE, k, n, size + EXTRA_SIZE - padding, 4, stats);
+
+            assertTrue(Arrays.equals(data, out.toByteArray()));
+            if (missing[m].length == 0) {
+                assertEquals(blocks, stats.getBlocksPassedThrough());
+                assertEquals(0, stats.getBlocksDecoded());
+            } else {
+                assertEquals(blocks, stats.getBlocksDecoded());
+                assertEquals(0, stats.getBlocksPassedThrough());
+            }
+        }
+    }
+
+    /**
+     * A stream that fails with an unchecked exception after the given
+     * number of bytes.
+     */
+    static class BrokenInputStream extends FilterInputStream {
+        private long left;
+
+        BrokenInputStream(InputStream in, long bytes) {
+            super(in);
+            left = bytes;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            if (left <= 0) {
+                throw new IllegalStateException("Broken stream.");
+            }
+            int num = super.read(b, off, (int) Math.min(len, left));
+            if (num > 0) {
+                left -= num;
+            }
+            return num;
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testStripeReaderFailure() throws IOException {
+        int size = PACKET_SIZE * 5 * 40;
+        InputStream in = new BrokenInputStream(new ByteArrayInputStream(new byte[size]), size / 2);
+        try {
+            StreamingFEC.stripe(in, (OutputStream[]) newStreams(7), PACKET_SIZE, 5, 7, size + EXTRA_SIZE, 4);
+            fail("The striping should fail.");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testConstructReaderFailure() throws IOException {
+        int k = 5;
+        int n = 7;
+        int size = PACKET_SIZE * k * 40;
+        ByteArrayOutputStream stripes[] = newStreams(n);
+        long padding = StreamingFEC.stripe(new ByteArrayInputStream(new byte[size]), (OutputStream[]) stripes,
+                PACKET_SIZE, k, n, size + EXTRA_SIZE);
+        InputStream inStreams[] = new InputStream[n];
+        for (int i = 0; i < n; i++) {
+            inStreams[i] = new ByteArrayInputStream(stripes[i].toByteArray());
+        }
+        // the blocks are decoded in parallel from the stripes 1-5
+        inStreams[0] = null;
+        inStreams[5] = new BrokenInputStream(inStreams[5], PACKET_SIZE * 10);
+        try {
+            StreamingFEC.construct(inStreams, new ByteArrayOutputStream(), PACKET_SIZE, k, n, size + EXTRA_SIZE
+                    - padding, 4, new ConstructStats());
+            fail("The construction should fail.");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private ByteArrayOutputStream[] newStreams(int n) {
+        ByteArrayOutputStream streams[] = new ByteArrayOutputStream[n];
+        for (int i = 0; i < n; i++) {
+            streams[i] = new ByteArrayOutputStream();
+        }
+        return streams;
+    }
+}
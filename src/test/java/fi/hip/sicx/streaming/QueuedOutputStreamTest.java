@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+
+/**
+ * Class to test the queued writing of the stripes.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class QueuedOutputStreamTest {
+    private static Random rand = new Random();
+    static int PACKET_SIZE = 1024;
+
+    /**
+     * A stream whose writes block until it is released, like a slow storage.
+     */
+    static class BlockingOutputStream extends FilterOutputStream {
+        private boolean released = false;
+
+        BlockingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        synchronized void release() {
+            released = true;
+            notifyAll();
+        }
+
+        public synchronized void write(byte b[], int off, int len) throws IOException {
+            while (!released) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted.");
+                }
+            }
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Records whether the stream was closed.
+     */
+    static class ClosingOutputStream extends ByteArrayOutputStream {
+        volatile boolean closed = false;
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testWrite() throws IOException {
+        byte data[] = new byte[PACKET_SIZE * 20 + 333];
+        rand.nextBytes(data);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QueuedOutputStream out = new QueuedOutputStream(bytes, PACKET_SIZE, 4, "test");
+        int pos = 0;
+        while (pos < data.length) {
+            int len = Math.min(data.length - pos, rand.nextInt(3 * PACKET_SIZE));
+            out.write(data, pos, len);
+            pos += len;
+        }
+        out.write(7);
+        out.flush();
+        assertEquals(data.length + 1, bytes.size());
+        out.close();
+        out.close();
+
+        byte written[] = bytes.toByteArray();
+        assertEquals(7, written[data.length]);
+        byte start[] = new byte[data.length];
+        System.arraycopy(written, 0, start, 0, data.length);
+        assertArrayEquals(data, start);
+        assertEquals(data.length + 1, out.getBytesWritten());
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        int capacity = 4;
+        final BlockingOutputStream slow = new BlockingOutputStream(new ByteArrayOutputStream());
+        QueuedOutputStream out = new QueuedOutputStream(slow, PACKET_SIZE, capacity, "slow");
+        byte packet[] = new byte[PACKET_SIZE];
+
+        // one packet being written and the queue full do not block
+        out.write(packet);
+        while (out.getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+        for (int i = 0; i < capacity; i++) {
+            out.write(packet);
+        }
+        assertEquals(capacity, out.getQueueDepth());
+        assertEquals(capacity, out.getMaxQueueDepth());
+        assertEquals(0, out.getQueueFull());
+
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // release anyway
+                }
+                slow.release();
+            }
+        }.start();
+        out.write(packet);
+        assertEquals(1, out.getQueueFull());
+        assertTrue(out.getWaitMillis() >= 50);
+        out.close();
+        assertEquals((capacity + 2) * PACKET_SIZE, out.getBytesWritten());
+    }
+
+    @Test
+    public void testFailure() throws IOException {
+        OutputStream failing = new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IOException("Storage failed.");
+            }
+        };
+        QueuedOutputStream out = new QueuedOutputStream(failing, PACKET_SIZE, 2, "failing");
+        try {
+            // the failure is thrown from a write once the queue is full
+            // at the latest, or from the flush
+            out.write(new byte[PACKET_SIZE * 10]);
+            out.flush();
+            fail("The failure was not thrown.");
+        } catch (IOException e) {
+            assertEquals("Storage failed.", e.getCause().getMessage());
+        }
+        try {
+            out.close();
+            fail("The failure was not thrown.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testUncheckedFailure() throws IOException {
+        OutputStream failing = new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IllegalStateException("Storage broke.");
+            }
+        };
+        QueuedOutputStream out = new QueuedOutputStream(failing, PACKET_SIZE, 2, "broken");
+        try {
+            out.write(new byte[PACKET_SIZE * 10]);
+            out.flush();
+            fail("The failure was not thrown.");
+        } catch (IOException e) {
+            assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testAbort() throws Exception {
+        ClosingOutputStream bytes = new ClosingOutputStream();
+        BlockingOutputStream slow = new BlockingOutputStream(bytes);
+        QueuedOutputStream out = new QueuedOutputStream(slow, PACKET_SIZE, 4, "test");
+        final List<IOException> told = new ArrayList<IOException>();
+        out.setListener(new QueuedOutputStream.Listener() {
+            public void written(QueuedOutputStream stream, IOException failure) {
+                told.add(failure);
+            }
+        });
+        out.write(new byte[PACKET_SIZE * 3]);
+
+        // the stuck writing is given up without waiting for it
+        out.abort();
+        assertTrue(bytes.closed);
+        assertEquals(0, bytes.size());
+        try {
+            out.write(1);
+            fail("The aborted stream was written.");
+        } catch (IOException e) {
+            // expected
+        }
+        out.close();
+        Thread.sleep(100);
+        assertTrue(told.isEmpty());
+    }
+
+    @Test
+    public void testStripe() throws IOException {
+        int k = 4;
+        int n = 6;
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(k, n);
+        byte data[] = new byte[PACKET_SIZE * k * 10 + 500];
+        rand.nextBytes(data);
+
+        ByteArrayOutputStream queued[] = new ByteArrayOutputStream[n];
+        OutputStream outStreams[] = new OutputStream[n];
+        for (int i = 0; i < n; i++) {
+            queued[i] = new ByteArrayOutputStream();
+            outStreams[i] = new StripeOutputStream(new QueuedOutputStream(queued[i], PACKET_SIZE, 3, "stripe " + i),
+                    new StripeHeader(fec, PACKET_SIZE, i));
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), outStreams, PACKET_SIZE, fec, data.length, 2);
+        for (int i = 0; i < n; i++) {
+            outStreams[i].close();
+        }
+
+        ByteArrayOutputStream direct[] = new ByteArrayOutputStream[n];
+        OutputStream directStreams[] = new OutputStream[n];
+        for (int i = 0; i < n; i++) {
+            direct[i] = new ByteArrayOutputStream();
+            directStreams[i] = new StripeOutputStream(direct[i], new StripeHeader(fec, PACKET_SIZE, i));
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), directStreams, PACKET_SIZE, fec, data.length, 1);
+        for (int i = 0; i < n; i++) {
+            directStreams[i].close();
+            assertArrayEquals(direct[i].toByteArray(), queued[i].toByteArray());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+
+import fi.hip.sicx.streaming.ConstructTest.MemoryStripeSource;
+
+/**
+ * Class to test the reconstruction of byte ranges of a file.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class RangeTest {
+    private static Random rand = new Random();
+    static int PACKET_SIZE = 1024;
+    static int K = 5;
+    static int N = 7;
+    static int BLOCK_SIZE = K * PACKET_SIZE;
+    static int SIZE = BLOCK_SIZE * 20 + 321;
+
+    byte data[];
+
+    /**
+     * Counts the bytes read from the stripes, the skipped bytes are not
+     * transferred.
+     */
+    static class CountingStripeSource implements StripeSource {
+        final MemoryStripeSource source;
+        long read = 0;
+
+        CountingStripeSource(MemoryStripeSource source) {
+            this.source = source;
+        }
+
+        public InputStream openStripe(int index, long offset) throws IOException {
+            return new FilterInputStream(source.openStripe(index, offset)) {
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        read++;
+                    }
+                    return b;
+                }
+
+                public int read(byte b[], int off, int len) throws IOException {
+                    int num = super.read(b, off, len);
+                    if (num > 0) {
+                        read += num;
+                    }
+                    return num;
+                }
+            };
+        }
+    }
+
+    private MemoryStripeSource stripe(FECCode fec, boolean container) throws IOException {
+        data = new byte[SIZE];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+            outStreams[i] = container ? new StripeOutputStream(stripes[i], new StripeHeader(fec, PACKET_SIZE, i))
+                    : stripes[i];
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), outStreams, PACKET_SIZE, fec, SIZE, 1);
+        for (int i = 0; i < N; i++) {
+            outStreams[i].close();
+        }
+        return new MemoryStripeSource(stripes);
+    }
+
+    private byte[] range(StripeSource source, FECCode fec, boolean container, long offset, long length, int threads)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written;
+        if (container) {
+            written = StreamingFEC.constructRange(source, out, N, SIZE, offset, length, threads, null);
+        } else {
+            written = StreamingFEC.constructRange(source, out, PACKET_SIZE, fec, SIZE, offset, length, threads, null);
+        }
+        assertEquals(out.size(), written);
+        return out.toByteArray();
+    }
+
+    private void testRanges(boolean container) throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource source = stripe(fec, container);
+        long ranges[][] = { { 0, 10 }, { 0, SIZE }, { 100, BLOCK_SIZE }, { BLOCK_SIZE, BLOCK_SIZE },
+                { BLOCK_SIZE - 1, 2 }, { BLOCK_SIZE * 7 + 1000, BLOCK_SIZE * 3 + 17 }, { SIZE - 10, 10 },
+                { SIZE - 10, 1000 }, { SIZE, 10 }, { 500, 0 } };
+        for (long range[] : ranges) {
+            int from = (int) Math.min(range[0], SIZE);
+            int to = (int) Math.min(range[0] + range[1], SIZE);
+            byte expected[] = Arrays.copyOfRange(data, from, to);
+            assertArrayEquals(expected, range(source, fec, container, range[0], range[1], 1));
+            assertArrayEquals(expected, range(source, fec, container, range[0], range[1], 3));
+        }
+
+        // with data stripes missing the blocks of the range are decoded
+        source.available[1] = false;
+        source.available[3] = false;
+        assertArrayEquals(Arrays.copyOfRange(data, BLOCK_SIZE * 3 + 5, BLOCK_SIZE * 9),
+                range(source, fec, container, BLOCK_SIZE * 3 + 5, BLOCK_SIZE * 6 - 5, 2));
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        testRanges(false);
+    }
+
+    @Test
+    public void testContainerRanges() throws IOException {
+        testRanges(true);
+    }
+
+    @Test
+    public void testReadsOnlyRange() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        CountingStripeSource source = new CountingStripeSource(stripe(fec, false));
+        long offset = SIZE - 10;
+        assertArrayEquals(Arrays.copyOfRange(data, SIZE - 10, SIZE), range(source, fec, false, offset, 10, 1));
+        // only the last block is read from the k data stripes
+        assertEquals((long) K * PACKET_SIZE, source.read);
+
+        source = new CountingStripeSource(stripe(fec, true));
+        range(source, fec, true, offset, 10, 1);
+        // the headers and the last block, with the checksums
+        assertTrue(source.read <= (long) K * (StripeHeader.SIZE + PACKET_SIZE + StripeHeader.CHECKSUM_SIZE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeOffset() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        range(stripe(fec, false), fec, false, -1, 10, 1);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+import com.onionnetworks.fec.LRCCode;
+
+import fi.hip.sicx.streaming.ConstructTest.MemoryStripeSource;
+
+/**
+ * Class to test the recreation of lost stripes.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class RepairTest {
+    private static Random rand = new Random();
+    static int PACKET_SIZE = 1024;
+    static int K = 5;
+    static int N = 7;
+
+    private ByteArrayOutputStream[] stripe(int size) throws IOException {
+        byte data[] = new byte[size];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), stripes, PACKET_SIZE, K, N, size);
+        return stripes;
+    }
+
+    /**
+     * Repairs the lost stripes from the rest and checks they are identical to
+     * the originals.
+     */
+    private void repair(ByteArrayOutputStream stripes[], int lost[]) throws IOException {
+        InputStream inStreams[] = new InputStream[N];
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < N; i++) {
+            inStreams[i] = new ByteArrayInputStream(stripes[i].toByteArray());
+        }
+        for (int i : lost) {
+            inStreams[i] = null;
+            outStreams[i] = new ByteArrayOutputStream();
+        }
+
+        long size = StreamingFEC.repair(inStreams, outStreams, PACKET_SIZE, K, N);
+
+        for (int i : lost) {
+            assertEquals(stripes[i].size(), size);
+            assertArrayEquals("stripe " + i, stripes[i].toByteArray(),
+                    ((ByteArrayOutputStream) outStreams[i]).toByteArray());
+        }
+    }
+
+    @Test
+    public void testRepairParity() throws IOException {
+        repair(stripe(100000), new int[] { 6 });
+    }
+
+    @Test
+    public void testRepairData() throws IOException {
+        ByteArrayOutputStream stripes[] = stripe(100000);
+        repair(stripes, new int[] { 1 });
+        repair(stripes, new int[] { 0, 4 });
+        repair(stripes, new int[] { 3, 5 });
+    }
+
+    @Test
+    public void testRepairFromSource() throws IOException {
+        ByteArrayOutputStream stripes[] = stripe(50000);
+        MemoryStripeSource source = new MemoryStripeSource(stripes);
+        source.available[0] = false;
+        OutputStream outStreams[] = new OutputStream[N];
+        outStreams[2] = new ByteArrayOutputStream();
+
+        StreamingFEC.repair(source, outStreams, PACKET_SIZE, K, N);
+
+        assertArrayEquals(stripes[2].toByteArray(), ((ByteArrayOutputStream) outStreams[2]).toByteArray());
+        // the lost stripe is not opened, the unavailable one is replaced by
+        // parity
+        assertEquals(Arrays.asList(1, 3, 4, 5, 6), source.opened);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooFewStripes() throws IOException {
+        ByteArrayOutputStream stripes[] = stripe(10000);
+        InputStream inStreams[] = new InputStream[N];
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < K - 1; i++) {
+            inStreams[i] = new ByteArrayInputStream(stripes[i].toByteArray());
+        }
+        outStreams[N - 1] = new ByteArrayOutputStream();
+        StreamingFEC.repair(inStreams, outStreams, PACKET_SIZE, K, N);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedStripe() throws IOException {
+        ByteArrayOutputStream stripes[] = stripe(10000);
+        InputStream inStreams[] = new InputStream[N];
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < N - 1; i++) {
+            byte stripe[] = stripes[i].toByteArray();
+            inStreams[i] = new ByteArrayInputStream(stripe, 0, i == 0 ? stripe.length - PACKET_SIZE : stripe.length);
+        }
+        outStreams[N - 1] = new ByteArrayOutputStream();
+        StreamingFEC.repair(inStreams, outStreams, PACKET_SIZE, K, N);
+    }
+
+    @Test
+    public void testLocalRepair() throws IOException {
+        LRCCode fec = new LRCCode(6, 10, 2);
+        byte data[] = new byte[100000];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[10];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), stripes, PACKET_SIZE, fec, data.length, 1);
+        MemoryStripeSource source = new MemoryStripeSource(stripes);
+
+        // one lost stripe is rebuilt from the other stripes of its group
+        OutputStream outStreams[] = new OutputStream[10];
+        outStreams[1] = new ByteArrayOutputStream();
+        StreamingFEC.repair(source, outStreams, PACKET_SIZE, fec);
+        assertArrayEquals(stripes[1].toByteArray(), ((ByteArrayOutputStream) outStreams[1]).toByteArray());
+        assertEquals(Arrays.asList(0, 2, 6), source.opened);
+
+        // two lost stripes of a group need the global parities
+        source.opened.clear();
+        outStreams[2] = new ByteArrayOutputStream();
+        outStreams[1] = new ByteArrayOutputStream();
+        StreamingFEC.repair(source, outStreams, PACKET_SIZE, fec);
+        assertArrayEquals(stripes[1].toByteArray(), ((ByteArrayOutputStream) outStreams[1]).toByteArray());
+        assertArrayEquals(stripes[2].toByteArray(), ((ByteArrayOutputStream) outStreams[2]).toByteArray());
+        assertEquals(Arrays.asList(0, 6, 3, 4, 5, 7, 8), source.opened);
+    }
+
+    private ByteArrayOutputStream[] stripeContainers(FECCode fec, byte data[]) throws IOException {
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[fec.getN()];
+        OutputStream outStreams[] = new OutputStream[fec.getN()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+            outStreams[i] = new StripeOutputStream(stripes[i], new StripeHeader(fec, PACKET_SIZE, i));
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), outStreams, PACKET_SIZE, fec, data.length, 1);
+        for (int i = 0; i < stripes.length; i++) {
+            outStreams[i].close();
+        }
+        return stripes;
+    }
+
+    @Test
+    public void testRepairContainers() throws IOException {
+        byte data[] = new byte[100000];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = stripeContainers(FECCodeFactory.getDefault().createFECCode(K, N), data);
+        MemoryStripeSource source = new MemoryStripeSource(stripes);
+        OutputStream outStreams[] = new OutputStream[N];
+        outStreams[1] = new ByteArrayOutputStream();
+        outStreams[6] = new ByteArrayOutputStream();
+
+        long size = StreamingFEC.repair(source, outStreams);
+
+        // the rebuilt stripes have their own headers and checksums
+        for (int i : new int[] { 1, 6 }) {
+            assertEquals(stripes[i].size(), size);
+            assertArrayEquals("stripe " + i, stripes[i].toByteArray(),
+                    ((ByteArrayOutputStream) outStreams[i]).toByteArray());
+            stripes[i] = (ByteArrayOutputStream) outStreams[i];
+        }
+        source = new MemoryStripeSource(stripes);
+        source.available[0] = false;
+        source.available[2] = false;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingFEC.construct(source, out, N, data.length, 1, null);
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testRepairContainersOfAnotherFile() throws IOException {
+        byte data[] = new byte[20000];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = stripeContainers(FECCodeFactory.getDefault().createFECCode(K, N), data);
+        ByteArrayOutputStream other[] = stripeContainers(new LRCCode(K, N, 1), data);
+        MemoryStripeSource source = new MemoryStripeSource(stripes);
+        // the stripe of another code is not used
+        source.stripes[3] = other[3].toByteArray();
+        OutputStream outStreams[] = new OutputStream[N];
+        outStreams[2] = new ByteArrayOutputStream();
+
+        StreamingFEC.repair(source, outStreams);
+        assertEquals(Arrays.asList(0, 1, 3, 4, 5, 6), source.opened);
+        assertArrayEquals(stripes[2].toByteArray(), ((ByteArrayOutputStream) outStreams[2]).toByteArray());
+
+        InputStream inStreams[] = new InputStream[N];
+        for (int i = 0; i < N; i++) {
+            inStreams[i] = new ByteArrayInputStream(source.stripes[i]);
+        }
+        inStreams[2] = null;
+        try {
+            StreamingFEC.repair(inStreams, outStreams);
+            fail("Repaired from the stripes of two files.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
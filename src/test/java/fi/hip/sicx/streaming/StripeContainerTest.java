@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+import com.onionnetworks.fec.LRCCode;
+
+import fi.hip.sicx.streaming.ConstructTest.MemoryStripeSource;
+
+/**
+ * Class to test the stripe container format and the checking of the packet
+ * checksums in the reconstruction.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class StripeContainerTest {
+    private static Random rand = new Random();
+    static int PACKET_SIZE = 1024;
+    static int K = 5;
+    static int N = 7;
+
+    byte data[];
+
+    private ByteArrayOutputStream[] stripe(FECCode fec, int size) throws IOException {
+        data = new byte[size];
+        rand.nextBytes(data);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[fec.getN()];
+        OutputStream outStreams[] = new OutputStream[fec.getN()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+            outStreams[i] = new StripeOutputStream(stripes[i], new StripeHeader(fec, PACKET_SIZE, i));
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), outStreams, PACKET_SIZE, fec, size, 1);
+        for (int i = 0; i < stripes.length; i++) {
+            outStreams[i].close();
+        }
+        return stripes;
+    }
+
+    private static void corrupt(MemoryStripeSource source, int stripe, long packet) {
+        StripeHeader header = new StripeHeader(FECCodeFactory.getDefault().createFECCode(K, N), PACKET_SIZE, 0);
+        source.stripes[stripe][(int) header.getPacketOffset(packet) + 17] ^= 1;
+    }
+
+    @Test
+    public void testCRC32C() {
+        CRC32C crc = new CRC32C();
+        crc.update("123456789".getBytes());
+        assertEquals(0xE3069283L, crc.getValue());
+
+        byte bytes[] = new byte[1000];
+        rand.nextBytes(bytes);
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        CRC32C single = new CRC32C();
+        for (int i = 0; i < bytes.length; i++) {
+            single.update(bytes[i]);
+        }
+        assertEquals(crc.getValue(), single.getValue());
+
+        // the one of the JDK if there is one
+        Checksum created = CRC32C.create();
+        created.update(bytes, 0, bytes.length);
+        assertEquals(crc.getValue(), created.getValue());
+    }
+
+    @Test
+    public void testHeader() throws IOException {
+        ByteArrayOutputStream stripes[] = stripe(new LRCCode(6, 10, 2), 20000);
+        StripeInputStream in = new StripeInputStream(new ByteArrayInputStream(stripes[3].toByteArray()));
+        StripeHeader header = in.getHeader();
+        assertEquals(StripeHeader.CODEC_LRC, header.getCodec());
+        assertEquals(2, header.getGroups());
+        assertEquals(3, header.getIndex());
+        assertEquals(StripeHeader.getStripeSize(PACKET_SIZE, 4), stripes[3].size());
+        assertEquals("LRCCode[k=6,n=10,groups=2]", header.createCode().toString());
+
+        // the data stripes read back as the data
+        byte stripe[] = new byte[4 * PACKET_SIZE];
+        assertEquals(PACKET_SIZE, in.read(stripe, 0, stripe.length));
+        assertEquals(3 * PACKET_SIZE, in.skip(3 * PACKET_SIZE));
+        assertEquals(-1, in.read());
+    }
+
+    @Test(timeout = 10000)
+    public void testReaderFailure() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        final MemoryStripeSource memory = new MemoryStripeSource(stripe(fec, PACKET_SIZE * K * 40));
+        // the stripe 0 fails with an unchecked exception in the middle
+        StripeSource source = new StripeSource() {
+            public InputStream openStripe(int index, long offset) throws IOException {
+                InputStream in = memory.openStripe(index, offset);
+                return index == 0 ? new ParallelFECTest.BrokenInputStream(in, memory.stripes[0].length / 2) : in;
+            }
+        };
+        try {
+            StreamingFEC.construct(source, new ByteArrayOutputStream(), N, data.length, 2, new ConstructStats());
+            fail("The construction should fail.");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testConstruct() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource source = new MemoryStripeSource(stripe(fec, PACKET_SIZE * K * 10 + 123));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConstructStats stats = new ConstructStats();
+
+        StreamingFEC.construct(source, out, N, data.length, 1, stats);
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), source.opened);
+        assertEquals(11, stats.getBlocksPassedThrough());
+    }
+
+    @Test
+    public void testCorruptedPackets() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource source = new MemoryStripeSource(stripe(fec, PACKET_SIZE * K * 10 + 123));
+        corrupt(source, 1, 3);
+        corrupt(source, 4, 3);
+        corrupt(source, 0, 7);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConstructStats stats = new ConstructStats();
+
+        StreamingFEC.construct(source, out, N, data.length, 3, stats);
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(3, stats.getPacketsCorrupted());
+        // the parity stripes are opened at the first corrupted block
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6), source.opened);
+        assertEquals(2, stats.getBlocksDecoded());
+    }
+
+    @Test
+    public void testCorruptedHeader() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource source = new MemoryStripeSource(stripe(fec, PACKET_SIZE * K * 3));
+        source.stripes[2][10] ^= 1;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConstructStats stats = new ConstructStats();
+
+        StreamingFEC.construct(source, out, N, data.length, 1, stats);
+
+        assertArrayEquals(data, out.toByteArray());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), source.opened);
+        assertEquals(3, stats.getBlocksDecoded());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooManyCorrupted() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        MemoryStripeSource source = new MemoryStripeSource(stripe(fec, PACKET_SIZE * K * 3));
+        corrupt(source, 0, 1);
+        corrupt(source, 2, 1);
+        corrupt(source, 6, 1);
+        StreamingFEC.construct(source, new ByteArrayOutputStream(), N, data.length, 1, null);
+    }
+}
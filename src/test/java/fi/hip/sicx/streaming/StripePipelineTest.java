@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2012 Helsinki Institute of Physics, University of Helsinki
+ * All rights reserved. See the copyright.txt in the distribution for a full
+ * listing of individual contributors.
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package fi.hip.sicx.streaming;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Test;
+
+import com.onionnetworks.fec.FECCode;
+import com.onionnetworks.fec.FECCodeFactory;
+
+import fi.hip.sicx.streaming.QueuedOutputStreamTest.BlockingOutputStream;
+import fi.hip.sicx.streaming.QueuedOutputStreamTest.ClosingOutputStream;
+
+/**
+ * Class to test the staged striping.
+ *
+ * @author Joni Hahkala <joni.hahkala@cern.ch>
+ */
+public class StripePipelineTest {
+    private static Random rand = new Random();
+    static int PACKET_SIZE = 1024;
+    static int K = 4;
+    static int N = 6;
+
+    /**
+     * Records the written stripes.
+     */
+    static class RecordingListener implements StripePipeline.Listener {
+        final List<Integer> written = new ArrayList<Integer>();
+        final List<IOException> failures = new ArrayList<IOException>();
+
+        public synchronized void stripeWritten(int index, IOException failure) {
+            written.add(index);
+            failures.add(failure);
+            notifyAll();
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 10000;
+            while (written.size() < count && System.currentTimeMillis() < end) {
+                wait(100);
+            }
+        }
+    }
+
+    private byte[][] stripe(FECCode fec, byte data[]) throws IOException {
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+            outStreams[i] = new StripeOutputStream(stripes[i], new StripeHeader(fec, PACKET_SIZE, i));
+        }
+        StreamingFEC.stripe(new ByteArrayInputStream(data), outStreams, PACKET_SIZE, fec, data.length + 256, 1);
+        byte result[][] = new byte[N][];
+        for (int i = 0; i < N; i++) {
+            outStreams[i].close();
+            result[i] = stripes[i].toByteArray();
+        }
+        return result;
+    }
+
+    @Test
+    public void testStripe() throws Exception {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        byte data[] = new byte[PACKET_SIZE * K * 12 + 321];
+        rand.nextBytes(data);
+
+        StripePipeline pipeline = new StripePipeline(fec, PACKET_SIZE, 2, 4);
+        RecordingListener listener = new RecordingListener();
+        pipeline.setListener(listener);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+        }
+        pipeline.stripe(new ByteArrayInputStream(data), stripes, data.length + 256);
+        listener.await(N);
+
+        assertEquals(N, listener.written.size());
+        for (IOException failure : listener.failures) {
+            assertNull(failure);
+        }
+        byte expected[][] = stripe(fec, data);
+        for (int i = 0; i < N; i++) {
+            assertArrayEquals(expected[i], stripes[i].toByteArray());
+        }
+
+        List<StageStats> stats = pipeline.getStats();
+        assertEquals(1 + N, stats.size());
+        assertEquals("encode", stats.get(0).getName());
+        assertEquals(data.length, stats.get(0).getBytes());
+        assertEquals(expected[0].length, stats.get(1).getBytes());
+    }
+
+    @Test
+    public void testEncrypt() throws Exception {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        byte data[] = new byte[PACKET_SIZE * K * 5 + 1000];
+        rand.nextBytes(data);
+        byte key[] = new byte[16];
+        byte iv[] = new byte[16];
+        rand.nextBytes(key);
+        rand.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        byte encrypted[] = cipher.doFinal(data);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+
+        StripePipeline pipeline = new StripePipeline(fec, PACKET_SIZE, 1, 3);
+        RecordingListener listener = new RecordingListener();
+        pipeline.setListener(listener);
+        pipeline.setCipher(cipher);
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+        }
+        pipeline.stripe(new ByteArrayInputStream(data), stripes, data.length + 256);
+        listener.await(N);
+
+        byte expected[][] = stripe(fec, encrypted);
+        for (int i = 0; i < N; i++) {
+            assertArrayEquals(expected[i], stripes[i].toByteArray());
+        }
+        List<StageStats> stats = pipeline.getStats();
+        assertEquals("encrypt", stats.get(0).getName());
+        assertEquals(data.length, stats.get(0).getBytes());
+        assertEquals("encode", stats.get(1).getName());
+        assertEquals(encrypted.length, stats.get(1).getBytes());
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        // the end of the file is in the second segment, the third one is
+        // only padding
+        byte data[] = new byte[PACKET_SIZE * K * 4 - 100];
+        rand.nextBytes(data);
+        SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+        byte iv[] = new byte[16];
+        rand.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        byte encrypted[] = cipher.doFinal(data);
+        long endSize = data.length + 256;
+
+        long segmentBytes = 2 * PACKET_SIZE * K;
+        ByteArrayOutputStream stripes[] = new ByteArrayOutputStream[N];
+        for (int i = 0; i < N; i++) {
+            stripes[i] = new ByteArrayOutputStream();
+        }
+        long padding = 0;
+        for (int j = 0; j * segmentBytes < endSize; j++) {
+            long start = j * segmentBytes;
+            boolean last = start + segmentBytes > data.length;
+            StripePipeline pipeline = new StripePipeline(fec, PACKET_SIZE, 2, 4);
+            RecordingListener listener = new RecordingListener();
+            pipeline.setListener(listener);
+            pipeline.setWriteHeaders(j == 0);
+            if (start <= data.length) {
+                Cipher segmentCipher = Cipher.getInstance(last ? "AES/CBC/PKCS5Padding" : "AES/CBC/NoPadding");
+                segmentCipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+                pipeline.setCipher(segmentCipher);
+            }
+            int dataLength = (int) Math.max(0, Math.min(segmentBytes, data.length - start));
+            padding += pipeline.stripe(new ByteArrayInputStream(data, (int) Math.min(start, data.length), dataLength),
+                    stripes, Math.min(segmentBytes, endSize - start));
+            listener.await(N);
+            assertEquals(N, listener.written.size());
+            if (!last) {
+                iv = pipeline.getLastCipherBlock();
+                assertArrayEquals(Arrays.copyOfRange(encrypted, (int) (start + segmentBytes - 16),
+                        (int) (start + segmentBytes)), iv);
+            }
+        }
+
+        // the same stripes as when striped in one go
+        byte expected[][] = stripe(fec, encrypted);
+        for (int i = 0; i < N; i++) {
+            assertArrayEquals(expected[i], stripes[i].toByteArray());
+        }
+        assertEquals(endSize - encrypted.length, padding);
+    }
+
+    @Test
+    public void testSlowStorage() throws Exception {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        byte data[] = new byte[PACKET_SIZE * K * 3];
+        rand.nextBytes(data);
+
+        // the queues hold the whole stripes
+        StripePipeline pipeline = new StripePipeline(fec, PACKET_SIZE, 1, 16);
+        RecordingListener listener = new RecordingListener();
+        pipeline.setListener(listener);
+        ByteArrayOutputStream slowStripe = new ByteArrayOutputStream();
+        BlockingOutputStream slow = new BlockingOutputStream(slowStripe);
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < N; i++) {
+            outStreams[i] = i == 2 ? slow : new ByteArrayOutputStream();
+        }
+        pipeline.stripe(new ByteArrayInputStream(data), outStreams, data.length + 256);
+
+        // the others finish while the slow one is still writing
+        listener.await(N - 1);
+        assertEquals(N - 1, listener.written.size());
+        assertTrue(!listener.written.contains(2));
+        slow.release();
+        listener.await(N);
+        assertEquals(Integer.valueOf(2), listener.written.get(N - 1));
+        assertArrayEquals(stripe(fec, data)[2], slowStripe.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadFailure() throws IOException {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        InputStream failing = new InputStream() {
+            private int left = PACKET_SIZE * K * 2;
+
+            public int read() throws IOException {
+                if (left-- <= 0) {
+                    throw new IOException("Disk failed.");
+                }
+                return 1;
+            }
+        };
+        OutputStream outStreams[] = new OutputStream[N];
+        for (int i = 0; i < N; i++) {
+            outStreams[i] = new ByteArrayOutputStream();
+        }
+        new StripePipeline(fec, PACKET_SIZE, 1, 2).stripe(failing, outStreams, PACKET_SIZE * K * 10);
+    }
+
+    @Test(timeout = 10000)
+    public void testUncheckedReadFailure() throws Exception {
+        FECCode fec = FECCodeFactory.getDefault().createFECCode(K, N);
+        InputStream failing = new InputStream() {
+            private int left = PACKET_SIZE * K * 2;
+
+            public int read() throws IOException {
+                if (left-- <= 0) {
+                    throw new IllegalStateException("Broken reader.");
+                }
+                return 1;
+            }
+        };
+        StripePipeline pipeline = new StripePipeline(fec, PACKET_SIZE, 1, 2);
+        RecordingListener listener = new RecordingListener();
+        pipeline.setListener(listener);
+        ClosingOutputStream outStreams[] = new ClosingOutputStream[N];
+        for (int i = 0; i < N; i++) {
+            outStreams[i] = new ClosingOutputStream();
+        }
+        try {
+            pipeline.stripe(failing, outStreams, PACKET_SIZE * K * 10);
+            fail("The failure was not thrown.");
+        } catch (IOException e) {
+            // expected
+        }
+        // the unfinished stripes are given up
+        for (int i = 0; i < N; i++) {
+            assertTrue(outStreams[i].closed);
+        }
+        assertTrue(listener.written.isEmpty());
+    }
+}
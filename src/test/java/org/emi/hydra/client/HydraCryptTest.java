@@ -18,6 +18,7 @@ package org.emi.hydra.client;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -25,6 +26,7 @@ import java.io.InputStream;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -133,4 +135,34 @@ public class HydraCryptTest {
 		
 	}
 
+
+	/**
+	 * Tests that decrypting a range of the ciphertext gives the same bytes
+	 * as the range of the plaintext, at and across the cipher blocks.
+	 * @throws Exception
+	 */
+	@Test
+	public void testRangeDecrypt() throws Exception {
+		HydraKey hk1 = HydraKey.generateKey();
+		byte[] plaintext = new byte[1000];
+		new Random().nextBytes(plaintext);
+		byte[] ciphertext = HydraCrypt.encrypt(plaintext, hk1, "AES/CBC/PKCS5Padding");
+
+		long[][] ranges = { { 0, 1 }, { 0, 16 }, { 5, 30 }, { 16, 16 }, { 31, 2 }, { 100, 500 }, { 990, 10 }, { 0, 1000 }, { 500, 0 } };
+		for (long[] range : ranges) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			RangeDecryptingStream decrypting = new RangeDecryptingStream(out, hk1, "AES/CBC/PKCS5Padding", range[0], range[1]);
+			int from = (int) decrypting.getCipherOffset();
+			int to = from + (int) decrypting.getCipherLength();
+			assertTrue("the range should be within the ciphertext", to <= ciphertext.length);
+			// write in pieces that don't match the blocks
+			for (int i = from; i < to; i += 7) {
+				decrypting.write(ciphertext, i, Math.min(7, to - i));
+			}
+			decrypting.close();
+			assertTrue("range " + range[0] + "+" + range[1] + " should match the plaintext",
+					Arrays.equals(Arrays.copyOfRange(plaintext, (int) range[0], (int) (range[0] + range[1])), out.toByteArray()));
+		}
+	}
+
 }